@@ -0,0 +1,216 @@
+package com.etheller.warsmash;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.etheller.warsmash.util.Quadtree;
+import com.etheller.warsmash.util.QuadtreeIntersector;
+import com.etheller.warsmash.util.SpatialHash;
+
+/**
+ * Adds, removes and moves random objects in a {@link Quadtree} and a
+ * {@link SpatialHash}, and checks after every step that both of them find
+ * exactly what a plain list finds. Then checks that moving objects around a
+ * quadtree that has reached its working size does not allocate.
+ *
+ * Arguments are the seed (random) and the number of steps (200000).
+ */
+public class QuadtreeFuzz {
+	private static final float MAP_SIZE = 4096f;
+	private static final float MAX_RADIUS = 64f;
+	private static final int MAX_OBJECTS = 300;
+	private static final int ALLOCATION_CHECK_OBJECTS = 1000;
+	private static final int ALLOCATION_CHECK_TRANSLATES = 1000000;
+
+	public static void main(final String[] args) {
+		final long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+		final int steps = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		System.out.println("Seed " + seed);
+		final Random random = new Random(seed);
+		fuzz(random, steps);
+		System.out.println("Quadtree and spatial hash agreed with the list for " + steps + " steps");
+		checkTranslateAllocation(random);
+	}
+
+	private static void fuzz(final Random random, final int steps) {
+		final Rectangle mapBounds = new Rectangle(-MAP_SIZE / 2, -MAP_SIZE / 2, MAP_SIZE, MAP_SIZE);
+		final Quadtree<FuzzObject> quadtree = new Quadtree<>(mapBounds);
+		final SpatialHash<FuzzObject> spatialHash = new SpatialHash<>(mapBounds, MAX_RADIUS * 2);
+		final List<FuzzObject> objects = new ArrayList<>();
+		final Rectangle query = new Rectangle();
+		final Collector quadtreeFound = new Collector(true);
+		final Collector spatialHashFound = new Collector(false);
+		int nextId = 0;
+		for (int step = 0; step < steps; step++) {
+			final int action = random.nextInt(10);
+			if ((objects.isEmpty() || (action == 0)) && (objects.size() < MAX_OBJECTS)) {
+				final FuzzObject object = new FuzzObject(nextId++, randomBounds(random, new Rectangle()));
+				objects.add(object);
+				quadtree.add(object, object.quadtreeBounds);
+				spatialHash.add(object, object.spatialHashBounds);
+			}
+			else if (action == 1) {
+				final FuzzObject object = objects.remove(random.nextInt(objects.size()));
+				quadtree.remove(object, object.quadtreeBounds);
+				spatialHash.remove(object, object.spatialHashBounds);
+			}
+			else {
+				final FuzzObject object = objects.get(random.nextInt(objects.size()));
+				// mostly small steps like walking units, sometimes a blink across the map
+				final float maxShift = action == 2 ? MAP_SIZE / 2 : 8f;
+				final float xShift = clampShift(object.quadtreeBounds.x, object.quadtreeBounds.width,
+						(random.nextFloat() - 0.5f) * 2 * maxShift);
+				final float yShift = clampShift(object.quadtreeBounds.y, object.quadtreeBounds.height,
+						(random.nextFloat() - 0.5f) * 2 * maxShift);
+				quadtree.translate(object, object.quadtreeBounds, xShift, yShift);
+				spatialHash.translate(object, object.spatialHashBounds, xShift, yShift);
+			}
+
+			randomBounds(random, query);
+			query.setSize(query.width * 4, query.height * 4);
+			quadtreeFound.clear(step);
+			quadtree.intersect(query, quadtreeFound);
+			spatialHashFound.clear(step);
+			spatialHash.intersect(query, spatialHashFound);
+			int expected = 0;
+			for (final FuzzObject object : objects) {
+				if (object.quadtreeBounds.overlaps(query)) {
+					expected++;
+					if (object.lastFoundByQuadtree != step) {
+						throw new IllegalStateException("Step " + step + ": quadtree missed " + object);
+					}
+					if (object.lastFoundBySpatialHash != step) {
+						throw new IllegalStateException("Step " + step + ": spatial hash missed " + object);
+					}
+				}
+			}
+			if (quadtreeFound.found != expected) {
+				throw new IllegalStateException("Step " + step + ": quadtree found " + quadtreeFound.found
+						+ " objects instead of " + expected);
+			}
+			if (spatialHashFound.found != expected) {
+				throw new IllegalStateException("Step " + step + ": spatial hash found " + spatialHashFound.found
+						+ " objects instead of " + expected);
+			}
+		}
+	}
+
+	private static void checkTranslateAllocation(final Random random) {
+		final java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("Cannot measure allocations on this JVM, skipping the allocation check");
+			return;
+		}
+		final com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+		final long threadId = Thread.currentThread().getId();
+		final Rectangle mapBounds = new Rectangle(-MAP_SIZE / 2, -MAP_SIZE / 2, MAP_SIZE, MAP_SIZE);
+		final Quadtree<FuzzObject> quadtree = new Quadtree<>(mapBounds);
+		final FuzzObject[] objects = new FuzzObject[ALLOCATION_CHECK_OBJECTS];
+		for (int i = 0; i < objects.length; i++) {
+			objects[i] = new FuzzObject(i, randomBounds(random, new Rectangle()));
+			quadtree.add(objects[i], objects[i].quadtreeBounds);
+		}
+		// the shifts are made up front, so that only the quadtree can allocate below
+		final float[] shifts = new float[ALLOCATION_CHECK_TRANSLATES * 2];
+		for (int i = 0; i < shifts.length; i++) {
+			shifts[i] = (random.nextFloat() - 0.5f) * 16f;
+		}
+		// the first pass grows the pools and node arrays to their working size
+		translateAll(quadtree, objects, shifts);
+		final long allocatedBefore = allocationBean.getThreadAllocatedBytes(threadId);
+		translateAll(quadtree, objects, shifts);
+		final long allocated = allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+		System.out.println(
+				"Quadtree allocated " + allocated + " bytes over " + ALLOCATION_CHECK_TRANSLATES + " translates");
+		// leave room for the odd array that still grows in a tree shape not seen before
+		if (allocated > (ALLOCATION_CHECK_TRANSLATES / 100)) {
+			throw new IllegalStateException("Quadtree translate allocates");
+		}
+	}
+
+	private static void translateAll(final Quadtree<FuzzObject> quadtree, final FuzzObject[] objects,
+			final float[] shifts) {
+		for (int i = 0; i < ALLOCATION_CHECK_TRANSLATES; i++) {
+			final FuzzObject object = objects[i % objects.length];
+			final Rectangle bounds = object.quadtreeBounds;
+			final float xShift = clampShift(bounds.x, bounds.width, shifts[i * 2]);
+			final float yShift = clampShift(bounds.y, bounds.height, shifts[(i * 2) + 1]);
+			quadtree.translate(object, bounds, xShift, yShift);
+		}
+	}
+
+	private static Rectangle randomBounds(final Random random, final Rectangle bounds) {
+		final float size = 1f + (random.nextFloat() * MAX_RADIUS * 2);
+		final float x = (-MAP_SIZE / 2) + (random.nextFloat() * (MAP_SIZE - size));
+		final float y = (-MAP_SIZE / 2) + (random.nextFloat() * (MAP_SIZE - size));
+		return bounds.set(x, y, size, size);
+	}
+
+	/**
+	 * Keeps a shifted object inside the map, the same as the game does for units.
+	 */
+	private static float clampShift(final float position, final float size, final float shift) {
+		final float newPosition = Math.max(-MAP_SIZE / 2, Math.min((MAP_SIZE / 2) - size, position + shift));
+		return newPosition - position;
+	}
+
+	/**
+	 * Each index keeps its own copy of the bounds, since translate moves the
+	 * bounds it is given.
+	 */
+	private static final class FuzzObject {
+		private final int id;
+		private final Rectangle quadtreeBounds;
+		private final Rectangle spatialHashBounds;
+		private int lastFoundByQuadtree = -1;
+		private int lastFoundBySpatialHash = -1;
+
+		private FuzzObject(final int id, final Rectangle bounds) {
+			this.id = id;
+			this.quadtreeBounds = bounds;
+			this.spatialHashBounds = new Rectangle(bounds);
+		}
+
+		@Override
+		public String toString() {
+			return "object " + this.id + " at " + this.quadtreeBounds;
+		}
+	}
+
+	/**
+	 * Counts the distinct objects found, since the quadtree reports an object
+	 * once for every leaf it is in.
+	 */
+	private static final class Collector implements QuadtreeIntersector<FuzzObject> {
+		private final boolean quadtree;
+		private int step;
+		private int found;
+
+		private Collector(final boolean quadtree) {
+			this.quadtree = quadtree;
+		}
+
+		private void clear(final int step) {
+			this.step = step;
+			this.found = 0;
+		}
+
+		@Override
+		public boolean onIntersect(final FuzzObject intersectingObject) {
+			if (this.quadtree) {
+				if (intersectingObject.lastFoundByQuadtree != this.step) {
+					intersectingObject.lastFoundByQuadtree = this.step;
+					this.found++;
+				}
+			}
+			else if (intersectingObject.lastFoundBySpatialHash != this.step) {
+				intersectingObject.lastFoundBySpatialHash = this.step;
+				this.found++;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package com.etheller.warsmash;
+
+import java.util.Random;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.etheller.warsmash.util.Quadtree;
+import com.etheller.warsmash.util.QuadtreeIntersector;
+import com.etheller.warsmash.util.SpatialHash;
+import com.etheller.warsmash.util.SpatialIndex;
+
+/**
+ * Compares the {@link Quadtree} and the {@link SpatialHash} the way
+ * CWorldCollision uses them: a map full of units that walk around a little
+ * every tick, each of them looking for what is near it. Both get the same
+ * moves, so they must find the same units. The quadtree reports a unit once
+ * for every leaf it is in, so only distinct units are counted.
+ *
+ * Arguments are the number of units (1000), ticks (500) and timed runs (5).
+ */
+public class SpatialIndexBenchmark {
+	private static final float MAP_SIZE = 16384f;
+	// the default MaxCollisionRadius of the gameplay constants
+	private static final float MAX_COLLISION_RADIUS = 200f;
+	private static final float MAX_STEP = 16f;
+	private static final float QUERY_MARGIN = 128f;
+	private static final long SEED = 1234;
+
+	public static void main(final String[] args) {
+		final int unitCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		final int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		final int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		final Rectangle mapBounds = new Rectangle(-MAP_SIZE / 2, -MAP_SIZE / 2, MAP_SIZE, MAP_SIZE);
+
+		for (int run = -1; run < runs; run++) {
+			// run -1 is the warmup
+			final long quadtreeStart = System.nanoTime();
+			final long quadtreeFound = runScene(new Quadtree<Unit>(mapBounds), unitCount, ticks);
+			final long quadtreeNanos = System.nanoTime() - quadtreeStart;
+			final long spatialHashStart = System.nanoTime();
+			final long spatialHashFound = runScene(
+					new SpatialHash<Unit>(mapBounds, MAX_COLLISION_RADIUS * 2), unitCount, ticks);
+			final long spatialHashNanos = System.nanoTime() - spatialHashStart;
+			if (quadtreeFound != spatialHashFound) {
+				throw new IllegalStateException(
+						"Quadtree found " + quadtreeFound + " units but the spatial hash found " + spatialHashFound);
+			}
+			if (run >= 0) {
+				System.out.println("Run " + run + ": quadtree " + (quadtreeNanos / 1000000) + "ms, spatial hash "
+						+ (spatialHashNanos / 1000000) + "ms, " + quadtreeFound + " units found by each");
+			}
+		}
+	}
+
+	/**
+	 * @return how many units all the queries found together
+	 */
+	private static long runScene(final SpatialIndex<Unit> index, final int unitCount, final int ticks) {
+		final Random random = new Random(SEED);
+		final Unit[] units = new Unit[unitCount];
+		// units walk inside this, so they never leave the map
+		final float limit = (MAP_SIZE / 2) - (MAX_COLLISION_RADIUS * 2);
+		for (int i = 0; i < unitCount; i++) {
+			final float radius = 8f + (random.nextFloat() * 40f);
+			final float x = (random.nextFloat() - 0.5f) * 2 * limit;
+			final float y = (random.nextFloat() - 0.5f) * 2 * limit;
+			units[i] = new Unit(new Rectangle(x - radius, y - radius, radius * 2, radius * 2));
+			index.add(units[i], units[i].bounds);
+		}
+		final Rectangle query = new Rectangle();
+		final CountingIntersector counter = new CountingIntersector();
+		for (int tick = 0; tick < ticks; tick++) {
+			for (final Unit unit : units) {
+				final Rectangle bounds = unit.bounds;
+				final float xShift = bounceOffEdge(bounds.x, (random.nextFloat() - 0.5f) * 2 * MAX_STEP, limit);
+				final float yShift = bounceOffEdge(bounds.y, (random.nextFloat() - 0.5f) * 2 * MAX_STEP, limit);
+				index.translate(unit, bounds, xShift, yShift);
+			}
+			for (final Unit unit : units) {
+				final Rectangle bounds = unit.bounds;
+				query.set(bounds.x - QUERY_MARGIN, bounds.y - QUERY_MARGIN, bounds.width + (QUERY_MARGIN * 2),
+						bounds.height + (QUERY_MARGIN * 2));
+				counter.query++;
+				index.intersect(query, counter);
+			}
+		}
+		return counter.found;
+	}
+
+	private static float bounceOffEdge(final float position, final float shift, final float limit) {
+		if ((position + shift) > limit) {
+			return -Math.abs(shift);
+		}
+		if ((position + shift) < -limit) {
+			return Math.abs(shift);
+		}
+		return shift;
+	}
+
+	/**
+	 * Stands in for CUnit, which (unlike Rectangle) uses identity for
+	 * hashCode/equals.
+	 */
+	private static final class Unit {
+		private final Rectangle bounds;
+		private long lastQuery = -1;
+
+		private Unit(final Rectangle bounds) {
+			this.bounds = bounds;
+		}
+	}
+
+	private static final class CountingIntersector implements QuadtreeIntersector<Unit> {
+		private long query;
+		private long found;
+
+		@Override
+		public boolean onIntersect(final Unit intersectingObject) {
+			if (intersectingObject.lastQuery == this.query) {
+				return false;
+			}
+			intersectingObject.lastQuery = this.query;
+			this.found++;
+			return false;
+		}
+	}
+}
@@ -14,6 +14,7 @@ import com.badlogic.gdx.math.Quaternion;
 import com.badlogic.gdx.math.Rectangle;
 import com.badlogic.gdx.math.Vector3;
 import com.etheller.warsmash.datasources.DataSource;
+import com.etheller.warsmash.datasources.DataSourceConfig;
 import com.etheller.warsmash.units.DataTable;
 import com.etheller.warsmash.util.DataSourceFileHandle;
 import com.etheller.warsmash.viewer5.Camera;
@@ -62,7 +63,7 @@ public class WarsmashGdxGame extends ApplicationAdapter implements CanvasProvide
 		final String renderer = Gdx.gl.glGetString(GL20.GL_RENDERER);
 		System.err.println("Renderer: " + renderer);
 
-		this.codebase = WarsmashGdxMapScreen.parseDataSources(this.warsmashIni);
+		this.codebase = DataSourceConfig.parseDataSources(this.warsmashIni);
 		this.viewer = new MdxViewer(this.codebase, this, new Vector3(0.3f, 0.3f, -0.25f));
 
 		this.viewer.addHandler(new MdxHandler());
@@ -5,9 +5,6 @@ import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.InputProcessor;
@@ -23,12 +20,6 @@ import com.badlogic.gdx.graphics.glutils.ShapeRenderer;
 import com.badlogic.gdx.math.Matrix4;
 import com.badlogic.gdx.math.Rectangle;
 import com.badlogic.gdx.utils.viewport.ExtendViewport;
-import com.etheller.warsmash.datasources.CascDataSourceDescriptor;
-import com.etheller.warsmash.datasources.CompoundDataSourceDescriptor;
-import com.etheller.warsmash.datasources.DataSource;
-import com.etheller.warsmash.datasources.DataSourceDescriptor;
-import com.etheller.warsmash.datasources.FolderDataSourceDescriptor;
-import com.etheller.warsmash.datasources.MpqDataSourceDescriptor;
 import com.etheller.warsmash.parsers.fdf.GameUI;
 import com.etheller.warsmash.parsers.jass.Jass2.RootFrameListener;
 import com.etheller.warsmash.units.DataTable;
@@ -231,34 +222,6 @@ public class WarsmashGdxMapScreen implements InputProcessor, Screen {
 		}
 	}
 
-	public static DataSource parseDataSources(final DataTable warsmashIni) {
-		final Element dataSourcesConfig = warsmashIni.get("DataSources");
-		final int dataSourcesCount = dataSourcesConfig.getFieldValue("Count");
-		final List<DataSourceDescriptor> dataSourcesList = new ArrayList<>();
-		for (int i = 0; i < dataSourcesCount; i++) {
-			final String type = dataSourcesConfig.getField("Type" + (i < 10 ? "0" : "") + i);
-			final String path = dataSourcesConfig.getField("Path" + (i < 10 ? "0" : "") + i);
-			switch (type) {
-			case "Folder": {
-				dataSourcesList.add(new FolderDataSourceDescriptor(path));
-				break;
-			}
-			case "MPQ": {
-				dataSourcesList.add(new MpqDataSourceDescriptor(path));
-				break;
-			}
-			case "CASC": {
-				final String prefixes = dataSourcesConfig.getField("Prefixes" + (i < 10 ? "0" : "") + i);
-				dataSourcesList.add(new CascDataSourceDescriptor(path, Arrays.asList(prefixes.split(","))));
-				break;
-			}
-			default:
-				throw new RuntimeException("Unknown data source type: " + type);
-			}
-		}
-		return new CompoundDataSourceDescriptor(dataSourcesList).createDataSource();
-	}
-
 	private void updateUIScene() {
 		this.tempRect.x = this.uiViewport.getScreenX();
 		this.tempRect.y = this.uiViewport.getScreenY();
@@ -282,7 +245,14 @@ public class WarsmashGdxMapScreen implements InputProcessor, Screen {
 		Gdx.gl30.glEnable(GL30.GL_SCISSOR_TEST);
 		final float deltaTime = Gdx.graphics.getDeltaTime();
 		Gdx.gl30.glBindVertexArray(WarsmashGdxGame.VAO);
-		this.meleeUI.update(deltaTime);
+		this.viewer.lockSimulation();
+		try {
+			this.meleeUI.update(deltaTime);
+			this.viewer.flushOrders();
+		}
+		finally {
+			this.viewer.unlockSimulation();
+		}
 		this.viewer.updateAndRender();
 
 		Gdx.gl30.glDisable(GL30.GL_SCISSOR_TEST);
@@ -307,7 +277,13 @@ public class WarsmashGdxMapScreen implements InputProcessor, Screen {
 		this.uiViewport.apply();
 		this.batch.setProjectionMatrix(this.uiCamera.combined);
 		this.batch.begin();
-		this.meleeUI.render(this.batch, this.glyphLayout);
+		this.viewer.lockSimulation();
+		try {
+			this.meleeUI.render(this.batch, this.glyphLayout);
+		}
+		finally {
+			this.viewer.unlockSimulation();
+		}
 		this.batch.end();
 
 		Gdx.gl30.glEnable(GL30.GL_SCISSOR_TEST);
@@ -316,6 +292,7 @@ public class WarsmashGdxMapScreen implements InputProcessor, Screen {
 
 	@Override
 	public void dispose() {
+		this.viewer.getSimulationThread().stop();
 		this.meleeUI.dispose();
 	}
 
@@ -343,13 +320,25 @@ public class WarsmashGdxMapScreen implements InputProcessor, Screen {
 
 	@Override
 	public boolean keyDown(final int keycode) {
-		this.meleeUI.keyDown(keycode);
+		this.viewer.lockSimulation();
+		try {
+			this.meleeUI.keyDown(keycode);
+		}
+		finally {
+			this.viewer.unlockSimulation();
+		}
 		return true;
 	}
 
 	@Override
 	public boolean keyUp(final int keycode) {
-		this.meleeUI.keyUp(keycode);
+		this.viewer.lockSimulation();
+		try {
+			this.meleeUI.keyUp(keycode);
+		}
+		finally {
+			this.viewer.unlockSimulation();
+		}
 		return true;
 	}
 
@@ -365,8 +354,14 @@ public class WarsmashGdxMapScreen implements InputProcessor, Screen {
 	public boolean touchDown(final int screenX, final int screenY, final int pointer, final int button) {
 		final float worldScreenY = this.viewer.canvas.getHeight() - screenY;
 
-		if (this.meleeUI.touchDown(screenX, screenY, worldScreenY, button)) {
-			return false;
+		this.viewer.lockSimulation();
+		try {
+			if (this.meleeUI.touchDown(screenX, screenY, worldScreenY, button)) {
+				return false;
+			}
+		}
+		finally {
+			this.viewer.unlockSimulation();
 		}
 		return false;
 	}
@@ -375,8 +370,14 @@ public class WarsmashGdxMapScreen implements InputProcessor, Screen {
 	public boolean touchUp(final int screenX, final int screenY, final int pointer, final int button) {
 		final float worldScreenY = this.viewer.canvas.getHeight() - screenY;
 
-		if (this.meleeUI.touchUp(screenX, screenY, worldScreenY, button)) {
-			return false;
+		this.viewer.lockSimulation();
+		try {
+			if (this.meleeUI.touchUp(screenX, screenY, worldScreenY, button)) {
+				return false;
+			}
+		}
+		finally {
+			this.viewer.unlockSimulation();
 		}
 		return false;
 	}
@@ -384,8 +385,14 @@ public class WarsmashGdxMapScreen implements InputProcessor, Screen {
 	@Override
 	public boolean touchDragged(final int screenX, final int screenY, final int pointer) {
 		final float worldScreenY = this.viewer.canvas.getHeight() - screenY;
-		if (this.meleeUI.touchDragged(screenX, screenY, worldScreenY, pointer)) {
-			return false;
+		this.viewer.lockSimulation();
+		try {
+			if (this.meleeUI.touchDragged(screenX, screenY, worldScreenY, pointer)) {
+				return false;
+			}
+		}
+		finally {
+			this.viewer.unlockSimulation();
 		}
 		return false;
 	}
@@ -393,15 +400,27 @@ public class WarsmashGdxMapScreen implements InputProcessor, Screen {
 	@Override
 	public boolean mouseMoved(final int screenX, final int screenY) {
 		final float worldScreenY = this.viewer.canvas.getHeight() - screenY;
-		if (this.meleeUI.mouseMoved(screenX, screenY, worldScreenY)) {
-			return false;
+		this.viewer.lockSimulation();
+		try {
+			if (this.meleeUI.mouseMoved(screenX, screenY, worldScreenY)) {
+				return false;
+			}
+		}
+		finally {
+			this.viewer.unlockSimulation();
 		}
 		return false;
 	}
 
 	@Override
 	public boolean scrolled(final int amount) {
-		this.meleeUI.scrolled(amount);
+		this.viewer.lockSimulation();
+		try {
+			this.meleeUI.scrolled(amount);
+		}
+		finally {
+			this.viewer.unlockSimulation();
+		}
 		return true;
 	}
 
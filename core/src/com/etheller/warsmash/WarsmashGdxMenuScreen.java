@@ -23,6 +23,7 @@ import com.badlogic.gdx.utils.viewport.ExtendViewport;
 import com.badlogic.gdx.utils.viewport.FitViewport;
 import com.badlogic.gdx.utils.viewport.Viewport;
 import com.etheller.warsmash.datasources.DataSource;
+import com.etheller.warsmash.datasources.DataSourceConfig;
 import com.etheller.warsmash.parsers.fdf.GameUI;
 import com.etheller.warsmash.parsers.jass.Jass2.RootFrameListener;
 import com.etheller.warsmash.units.DataTable;
@@ -95,7 +96,7 @@ public class WarsmashGdxMenuScreen implements InputProcessor, Screen, SingleMode
 			final String renderer = Gdx.gl.glGetString(GL20.GL_RENDERER);
 			System.err.println("Renderer: " + renderer);
 
-			this.codebase = WarsmashGdxMapScreen.parseDataSources(this.warsmashIni);
+			this.codebase = DataSourceConfig.parseDataSources(this.warsmashIni);
 			this.viewer = new MdxViewer(this.codebase, this.game, Vector3.Zero);
 
 			this.viewer.addHandler(new MdxHandler());
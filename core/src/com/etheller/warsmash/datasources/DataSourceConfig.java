@@ -0,0 +1,44 @@
+package com.etheller.warsmash.datasources;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.etheller.warsmash.units.DataTable;
+import com.etheller.warsmash.units.Element;
+
+/**
+ * Reads the data sources listed in the [DataSources] section of warsmash.ini.
+ */
+public final class DataSourceConfig {
+	public static DataSource parseDataSources(final DataTable warsmashIni) {
+		final Element dataSourcesConfig = warsmashIni.get("DataSources");
+		final int dataSourcesCount = dataSourcesConfig.getFieldValue("Count");
+		final List<DataSourceDescriptor> dataSourcesList = new ArrayList<>();
+		for (int i = 0; i < dataSourcesCount; i++) {
+			final String type = dataSourcesConfig.getField("Type" + (i < 10 ? "0" : "") + i);
+			final String path = dataSourcesConfig.getField("Path" + (i < 10 ? "0" : "") + i);
+			switch (type) {
+			case "Folder": {
+				dataSourcesList.add(new FolderDataSourceDescriptor(path));
+				break;
+			}
+			case "MPQ": {
+				dataSourcesList.add(new MpqDataSourceDescriptor(path));
+				break;
+			}
+			case "CASC": {
+				final String prefixes = dataSourcesConfig.getField("Prefixes" + (i < 10 ? "0" : "") + i);
+				dataSourcesList.add(new CascDataSourceDescriptor(path, Arrays.asList(prefixes.split(","))));
+				break;
+			}
+			default:
+				throw new RuntimeException("Unknown data source type: " + type);
+			}
+		}
+		return new CompoundDataSourceDescriptor(dataSourcesList).createDataSource();
+	}
+
+	private DataSourceConfig() {
+	}
+}
@@ -0,0 +1,294 @@
+package com.etheller.warsmash.headless;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.etheller.warsmash.datasources.DataSource;
+import com.etheller.warsmash.datasources.DataSourceConfig;
+import com.etheller.warsmash.networking.ServerToClientListener;
+import com.etheller.warsmash.networking.WarsmashClientParser;
+import com.etheller.warsmash.networking.WarsmashReplayReader;
+import com.etheller.warsmash.networking.WarsmashReplayWriter;
+import com.etheller.warsmash.units.DataTable;
+import com.etheller.warsmash.util.StringBundle;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulation;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulationChecksum;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CPlayerUnitOrderExecutor;
+
+/**
+ * Plays a replay recorded by the server (see {@link WarsmashReplayWriter}) on a
+ * {@link HeadlessSimulationHost}, as fast as the CPU allows, and checks the
+ * checksums in the replay against the ones it computes itself. Turns the orders
+ * of a game into a regression test for determinism, and a benchmark for the
+ * simulation under a real game's load.
+ *
+ * Orders are applied on the same ticks that the game client applies them:
+ * everything received after turn T finished is issued right after the
+ * simulation ran the tick after T, even when the server finished several turns
+ * at once next.
+ */
+public class HeadlessReplayPlayer implements ServerToClientListener {
+	private final CSimulation simulation;
+	private final Map<Integer, CPlayerUnitOrderExecutor> indexToExecutor = new HashMap<>();
+	private final List<Runnable> pendingOrders = new ArrayList<>();
+	private final int checksumInterval;
+	// hashes from whichever side got to a turn first, until the other side does
+	private final Map<Integer, long[]> computedChecksums = new HashMap<>();
+	private final Map<Integer, long[]> recordedChecksums = new HashMap<>();
+
+	private int latestFinishedTurnTick = -1;
+	private long ticks;
+	private long ordersIssued;
+	private int checksumsMatched;
+	private int firstMismatchTurnTick = -1;
+	private CSimulationChecksum.Subsystem firstMismatchSubsystem;
+
+	public HeadlessReplayPlayer(final CSimulation simulation, final int checksumInterval) {
+		this.simulation = simulation;
+		this.checksumInterval = checksumInterval;
+	}
+
+	/**
+	 * Reads every record of the replay and runs the simulation along with it.
+	 */
+	public void play(final WarsmashReplayReader reader) throws IOException {
+		final WarsmashClientParser parser = new WarsmashClientParser(this);
+		byte recordType;
+		while ((recordType = reader.readRecord()) != WarsmashReplayWriter.RECORD_END) {
+			switch (recordType) {
+			case WarsmashReplayWriter.RECORD_MESSAGES:
+				parser.parse(reader.getMessages());
+				break;
+			case WarsmashReplayWriter.RECORD_CHECKSUMS:
+				recordedChecksums(reader.getChecksumTurnTick(), reader.getChecksums());
+				break;
+			}
+		}
+		if (!this.pendingOrders.isEmpty()) {
+			System.err.println(this.pendingOrders.size() + " orders after the last finished turn were not played");
+		}
+	}
+
+	private CPlayerUnitOrderExecutor getExecutor(final int playerIndex) {
+		CPlayerUnitOrderExecutor executor = this.indexToExecutor.get(playerIndex);
+		if (executor == null) {
+			executor = new CPlayerUnitOrderExecutor(this.simulation, playerIndex);
+			this.indexToExecutor.put(playerIndex, executor);
+		}
+		return executor;
+	}
+
+	private void update() {
+		this.simulation.update();
+		this.ticks++;
+		final int gameTurnTick = this.simulation.getGameTurnTick();
+		if ((this.checksumInterval > 0) && ((gameTurnTick % this.checksumInterval) == 0)
+				&& CSimulationChecksum.isChecksumTick(gameTurnTick)) {
+			final long[] hashes = this.simulation.getChecksum().getHashes().clone();
+			final long[] recorded = this.recordedChecksums.remove(gameTurnTick);
+			if (recorded != null) {
+				compareChecksums(gameTurnTick, hashes, recorded);
+			}
+			else {
+				this.computedChecksums.put(gameTurnTick, hashes);
+			}
+		}
+	}
+
+	private void recordedChecksums(final int gameTurnTick, final long[] checksums) {
+		final long[] computed = this.computedChecksums.remove(gameTurnTick);
+		if (computed != null) {
+			compareChecksums(gameTurnTick, computed, checksums);
+		}
+		else {
+			this.recordedChecksums.put(gameTurnTick, checksums);
+		}
+	}
+
+	private void compareChecksums(final int gameTurnTick, final long[] computed, final long[] recorded) {
+		final CSimulationChecksum.Subsystem mismatch = CSimulationChecksum.findMismatch(computed, recorded);
+		if (mismatch == null) {
+			this.checksumsMatched++;
+		}
+		else if (this.firstMismatchTurnTick == -1) {
+			this.firstMismatchTurnTick = gameTurnTick;
+			this.firstMismatchSubsystem = mismatch;
+			System.err.println("Replay diverged at turn " + gameTurnTick + " in " + mismatch);
+		}
+	}
+
+	@Override
+	public void finishedTurn(final int gameTurnTick) {
+		// the client would have been waiting here for this turn to finish
+		while (this.simulation.getGameTurnTick() <= this.latestFinishedTurnTick) {
+			update();
+		}
+		for (final Runnable order : this.pendingOrders) {
+			order.run();
+		}
+		this.ordersIssued += this.pendingOrders.size();
+		this.pendingOrders.clear();
+		while (this.simulation.getGameTurnTick() <= gameTurnTick) {
+			update();
+		}
+		this.latestFinishedTurnTick = gameTurnTick;
+	}
+
+	@Override
+	public void turnDelayChanged(final int turnDelay) {
+	}
+
+	@Override
+	public void issueTargetOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
+			final int orderId, final int targetHandleId, final boolean queue) {
+		final CPlayerUnitOrderExecutor executor = getExecutor(playerIndex);
+		this.pendingOrders.add(new Runnable() {
+			@Override
+			public void run() {
+				executor.issueTargetOrder(unitHandleId, abilityHandleId, orderId, targetHandleId, queue);
+			}
+		});
+	}
+
+	@Override
+	public void issuePointOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
+			final int orderId, final float x, final float y, final boolean queue) {
+		final CPlayerUnitOrderExecutor executor = getExecutor(playerIndex);
+		this.pendingOrders.add(new Runnable() {
+			@Override
+			public void run() {
+				executor.issuePointOrder(unitHandleId, abilityHandleId, orderId, x, y, queue);
+			}
+		});
+	}
+
+	@Override
+	public void issueDropItemAtPointOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
+			final int orderId, final int targetHandleId, final float x, final float y, final boolean queue) {
+		final CPlayerUnitOrderExecutor executor = getExecutor(playerIndex);
+		this.pendingOrders.add(new Runnable() {
+			@Override
+			public void run() {
+				executor.issueDropItemAtPointOrder(unitHandleId, abilityHandleId, orderId, targetHandleId, x, y,
+						queue);
+			}
+		});
+	}
+
+	@Override
+	public void issueImmediateOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
+			final int orderId, final boolean queue) {
+		final CPlayerUnitOrderExecutor executor = getExecutor(playerIndex);
+		this.pendingOrders.add(new Runnable() {
+			@Override
+			public void run() {
+				executor.issueImmediateOrder(unitHandleId, abilityHandleId, orderId, queue);
+			}
+		});
+	}
+
+	@Override
+	public void unitCancelTrainingItem(final int playerIndex, final int unitHandleId, final int cancelIndex) {
+		final CPlayerUnitOrderExecutor executor = getExecutor(playerIndex);
+		this.pendingOrders.add(new Runnable() {
+			@Override
+			public void run() {
+				executor.unitCancelTrainingItem(unitHandleId, cancelIndex);
+			}
+		});
+	}
+
+	@Override
+	public void acceptJoin(final int playerIndex) {
+	}
+
+	@Override
+	public void startGame() {
+	}
+
+	@Override
+	public void heartbeat() {
+	}
+
+	public long getTicks() {
+		return this.ticks;
+	}
+
+	public long getOrdersIssued() {
+		return this.ordersIssued;
+	}
+
+	public int getChecksumsMatched() {
+		return this.checksumsMatched;
+	}
+
+	/**
+	 * @return the first turn whose checksums did not match the replay, or -1
+	 */
+	public int getFirstMismatchTurnTick() {
+		return this.firstMismatchTurnTick;
+	}
+
+	public CSimulationChecksum.Subsystem getFirstMismatchSubsystem() {
+		return this.firstMismatchSubsystem;
+	}
+
+	/**
+	 * Plays a replay file on a map from the data sources in warsmash.ini.
+	 * Arguments are the replay path and the map path (defaults to the map in
+	 * warsmash.ini). Exits with 1 if the replay did not play back the same.
+	 */
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: HeadlessReplayPlayer <replay file> [map file]");
+			System.exit(2);
+		}
+		final DataTable warsmashIni = new DataTable(StringBundle.EMPTY);
+		try (FileInputStream warsmashIniInputStream = new FileInputStream("warsmash.ini")) {
+			warsmashIni.readTXT(warsmashIniInputStream, true);
+		}
+		final String mapFilePath = args.length > 1 ? args[1] : warsmashIni.get("Map").getField("FilePath");
+		final DataSource codebase = DataSourceConfig.parseDataSources(warsmashIni);
+
+		final WarsmashReplayReader reader = new WarsmashReplayReader(new File(args[0]));
+		try {
+			if (reader.getMapChecksum() != 0) {
+				final long mapChecksum;
+				try (InputStream mapStream = codebase.getResourceAsStream(mapFilePath)) {
+					mapChecksum = WarsmashReplayWriter.computeMapChecksum(mapStream);
+				}
+				if (mapChecksum != reader.getMapChecksum()) {
+					System.err.println("Warning: " + mapFilePath + " is not the map this replay was recorded on");
+				}
+			}
+
+			final HeadlessSimulationHost host = new HeadlessSimulationHost(codebase, mapFilePath);
+			final CSimulation simulation = host.loadMap(reader.getRandomSeed());
+			final HeadlessReplayPlayer player = new HeadlessReplayPlayer(simulation, reader.getChecksumInterval());
+
+			final long startTime = System.nanoTime();
+			player.play(reader);
+			final double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+			simulation.getPathfindingService().shutdown();
+
+			System.out.println("Played " + player.getTicks() + " ticks (" + player.getOrdersIssued() + " orders, "
+					+ reader.getPlayerIndices().length + " players) in " + seconds + "s ("
+					+ (player.getTicks() / seconds) + " ticks/s)");
+			System.out.println(player.getChecksumsMatched() + " checksums matched");
+			if (player.getFirstMismatchTurnTick() != -1) {
+				System.out.println("First mismatch at turn " + player.getFirstMismatchTurnTick() + " in "
+						+ player.getFirstMismatchSubsystem());
+				System.exit(1);
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,489 @@
+package com.etheller.warsmash.headless;
+
+import java.awt.image.BufferedImage;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.etheller.warsmash.datasources.DataSource;
+import com.etheller.warsmash.datasources.DataSourceConfig;
+import com.etheller.warsmash.parsers.w3x.War3Map;
+import com.etheller.warsmash.parsers.w3x.doo.Doodad;
+import com.etheller.warsmash.parsers.w3x.doo.War3MapDoo;
+import com.etheller.warsmash.parsers.w3x.objectdata.Warcraft3MapObjectData;
+import com.etheller.warsmash.parsers.w3x.unitsdoo.Unit;
+import com.etheller.warsmash.parsers.w3x.unitsdoo.War3MapUnitsDoo;
+import com.etheller.warsmash.parsers.w3x.w3e.War3MapW3e;
+import com.etheller.warsmash.parsers.w3x.w3i.Player;
+import com.etheller.warsmash.parsers.w3x.w3i.War3MapW3i;
+import com.etheller.warsmash.units.DataTable;
+import com.etheller.warsmash.units.manager.MutableObjectData.MutableGameObject;
+import com.etheller.warsmash.util.StringBundle;
+import com.etheller.warsmash.util.War3ID;
+import com.etheller.warsmash.util.WarsmashConstants;
+import com.etheller.warsmash.util.WorldEditStrings;
+import com.etheller.warsmash.viewer5.handlers.w3x.War3MapSimulationLoader;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CDestructable;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CItem;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulation;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulationRandom;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulationSnapshot;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnit;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CWidget;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.targeting.AbilityTarget;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.attacks.CUnitAttackInstant;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.attacks.CUnitAttackListener;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.attacks.CUnitAttackMissile;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.projectile.CAttackProjectile;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.config.CBasePlayer;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.config.War3MapConfig;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CMapControl;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CRacePreference;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.util.ResourceType;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.util.SimulationRenderController;
+import com.etheller.warsmash.viewer5.handlers.w3x.ui.command.CommandErrorListener;
+
+/**
+ * Runs a {@link CSimulation} without libGDX rendering, audio or UI: loads the
+ * map's terrain pathing, object data, destructables and units through the
+ * same {@link War3MapSimulationLoader} as War3MapViewer, and then ticks the
+ * simulation at {@link WarsmashConstants#SIMULATION_STEP_TIME} from a plain
+ * thread. Good for authoritative servers, bots, soak tests, and for measuring
+ * how fast the simulation runs by itself.
+ *
+ * The map script is not run, so only what is placed in the map's units and
+ * doodads layers exists.
+ */
+public class HeadlessSimulationHost {
+	private static final War3ID sloc = War3ID.fromString("sloc");
+	private static final long STEP_NANOS = (long) (WarsmashConstants.SIMULATION_STEP_TIME * 1000000000L);
+	// same as the viewer, past this much lag we give up on catching up
+	private static final int MAX_STEPS_BEHIND = 3;
+
+	private final War3Map mapMpq;
+	private final War3MapConfig mapConfig;
+	private Warcraft3MapObjectData allObjectData;
+	private War3MapSimulationLoader simulationLoader;
+	private CSimulation simulation;
+
+	private Thread thread;
+	private volatile boolean running;
+	private volatile long tickCount;
+	private volatile long updateNanos;
+	private volatile long stepsSkipped;
+
+	public HeadlessSimulationHost(final DataSource gameDataSource, final String mapFilePath) {
+		this.mapMpq = new War3Map(gameDataSource, mapFilePath);
+		this.mapConfig = new War3MapConfig(WarsmashConstants.MAX_PLAYERS);
+	}
+
+	public CSimulation loadMap() throws IOException {
+		return loadMap(WarsmashConstants.SIMULATION_RANDOM_SEED);
+	}
+
+	/**
+	 * @param randomSeed the seed of the simulation's random number generator,
+	 *                   games and their replays must use the same one
+	 */
+	public CSimulation loadMap(final long randomSeed) throws IOException {
+		return loadMap(randomSeed, null);
+	}
+
+	/**
+	 * @param snapshot if not null, the game starts from this snapshot instead of
+	 *                 from the units placed on the map
+	 */
+	public CSimulation loadMap(final long randomSeed, final CSimulationSnapshot snapshot) throws IOException {
+		final War3MapW3i mapInfo = this.mapMpq.readMapInformation();
+		int playerIndex = 0;
+		for (final Player player : mapInfo.getPlayers()) {
+			final CBasePlayer cfgPlayer = this.mapConfig.getPlayer(playerIndex);
+			cfgPlayer.setName(player.getName());
+			cfgPlayer.setRacePref(CRacePreference.VALUES[player.getRace()]);
+			cfgPlayer.setController(CMapControl.VALUES[player.getType()]);
+			playerIndex++;
+		}
+
+		final WorldEditStrings worldEditStrings = new WorldEditStrings(this.mapMpq);
+		final DataTable miscData = War3MapSimulationLoader.loadMiscData(this.mapMpq, worldEditStrings);
+
+		final War3MapW3e terrainData = this.mapMpq.readEnvironment();
+		final float[] centerOffset = terrainData.getCenterOffset();
+		final int[] mapSize = terrainData.getMapSize();
+		final PathingGrid pathingGrid = new PathingGrid(this.mapMpq.readPathing(), centerOffset);
+		final Rectangle entireMapRectangle = new Rectangle(centerOffset[0], centerOffset[1],
+				(mapSize[0] * 128f) - 128, (mapSize[1] * 128f) - 128);
+
+		this.allObjectData = this.mapMpq.readModifications();
+		this.simulationLoader = new War3MapSimulationLoader(this.mapMpq, this.allObjectData, pathingGrid);
+		this.simulation = new CSimulation(this.mapConfig, miscData, this.allObjectData.getUnits(),
+				this.allObjectData.getItems(), this.allObjectData.getDestructibles(), this.allObjectData.getAbilities(),
+				new HeadlessRenderController(), pathingGrid, entireMapRectangle, new CSimulationRandom(randomSeed),
+				new HeadlessCommandErrorListener());
+		this.simulationLoader.setSimulation(this.simulation);
+
+		loadDestructables();
+		if (snapshot != null) {
+			restoreSnapshot(snapshot);
+		}
+		else {
+			loadUnitsAndItems();
+		}
+		return this.simulation;
+	}
+
+	private void loadDestructables() throws IOException {
+		final War3MapDoo doo = this.mapMpq.readDoodads();
+		for (final Doodad doodad : doo.getDoodads()) {
+			final MutableGameObject row = this.allObjectData.getDestructibles().get(doodad.getId());
+			if (row == null) {
+				// plain doodads have no gameplay
+				continue;
+			}
+			this.simulationLoader.createDestructable(row, doodad);
+		}
+	}
+
+	private void loadUnitsAndItems() throws IOException {
+		if (this.mapMpq.has("war3mapUnits.doo")) {
+			final War3MapUnitsDoo dooFile = this.mapMpq.readUnits();
+			for (final Unit unit : dooFile.getUnits()) {
+				final War3ID unitId = unit.getId();
+				if (sloc.equals(unitId)) {
+					continue;
+				}
+				final float unitX = unit.getLocation()[0];
+				final float unitY = unit.getLocation()[1];
+				final int editorConfigHitPointPercent = unit.getHitpoints();
+				if (this.allObjectData.getUnits().get(unitId) != null) {
+					final CUnit unitCreated = createNewUnit(unitId, unitX, unitY, unit.getPlayer(),
+							(float) Math.toDegrees(unit.getAngle()));
+					if (editorConfigHitPointPercent > 0) {
+						unitCreated.setLife(this.simulation,
+								unitCreated.getMaximumLife() * (editorConfigHitPointPercent / 100f));
+					}
+					if (unit.getGoldAmount() != 0) {
+						unitCreated.setGold(unit.getGoldAmount());
+					}
+				}
+				else {
+					final MutableGameObject itemRow = this.allObjectData.getItems().get(unitId);
+					if (itemRow != null) {
+						this.simulation.createItem(itemRow.getAlias(), unitX, unitY);
+					}
+				}
+			}
+		}
+		this.simulation.unitsLoaded();
+	}
+
+	private void restoreSnapshot(final CSimulationSnapshot snapshot) {
+		snapshot.restore(this.simulation, new CSimulationSnapshot.WidgetCreator() {
+			@Override
+			public CUnit createUnit(final War3ID typeId, final int playerIndex, final float x, final float y,
+					final float facing) {
+				return createNewUnit(typeId, x, y, playerIndex, facing);
+			}
+
+			@Override
+			public void createItem(final War3ID typeId, final float x, final float y) {
+				HeadlessSimulationHost.this.simulation
+						.createItem(HeadlessSimulationHost.this.allObjectData.getItems().get(typeId).getAlias(), x, y);
+			}
+		});
+	}
+
+	/**
+	 * Saves the game as of its last tick, see {@link CSimulationSnapshot}. Only
+	 * while the simulation thread is stopped.
+	 */
+	public void writeSnapshot(final OutputStream outputStream) throws IOException {
+		if (this.thread != null) {
+			throw new IllegalStateException("Simulation must be stopped to take a snapshot");
+		}
+		CSimulationSnapshot.write(this.simulation, outputStream);
+	}
+
+	private CUnit createNewUnit(final War3ID unitId, final float unitX, final float unitY, final int playerIndex,
+			final float facing) {
+		return this.simulationLoader.createUnit(this.allObjectData.getUnits().get(unitId), playerIndex, unitX, unitY,
+				facing);
+	}
+
+	/**
+	 * Starts ticking the simulation on its own thread, either at the real game
+	 * speed, or as fast as it will go when throttled is false.
+	 */
+	public void startThread(final boolean throttled) {
+		if (this.simulation == null) {
+			throw new IllegalStateException("Map must be loaded before the simulation can run");
+		}
+		this.running = true;
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runLoop(throttled);
+			}
+		}, "HeadlessSimulation");
+		this.thread.start();
+	}
+
+	public void stop() {
+		this.running = false;
+		if (this.thread != null) {
+			try {
+				this.thread.join();
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.thread = null;
+		}
+		this.simulation.getPathfindingService().shutdown();
+	}
+
+	private void runLoop(final boolean throttled) {
+		long nextTickTime = System.nanoTime();
+		while (this.running) {
+			final long updateStartTime = System.nanoTime();
+			this.simulation.update();
+			final long updateEndTime = System.nanoTime();
+			this.updateNanos += updateEndTime - updateStartTime;
+			this.tickCount++;
+			if (throttled) {
+				nextTickTime += STEP_NANOS;
+				final long sleepNanos = nextTickTime - updateEndTime;
+				if (sleepNanos > 0) {
+					try {
+						Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+					}
+					catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				else if (-sleepNanos > (STEP_NANOS * MAX_STEPS_BEHIND)) {
+					this.stepsSkipped += -sleepNanos / STEP_NANOS;
+					nextTickTime = updateEndTime;
+				}
+			}
+		}
+	}
+
+	public CSimulation getSimulation() {
+		return this.simulation;
+	}
+
+	public long getTickCount() {
+		return this.tickCount;
+	}
+
+	public long getStepsSkipped() {
+		return this.stepsSkipped;
+	}
+
+	/**
+	 * @return the average time spent inside CSimulation.update, in milliseconds
+	 */
+	public double getAverageUpdateMillis() {
+		final long tickCount = this.tickCount;
+		if (tickCount == 0) {
+			return 0;
+		}
+		return (this.updateNanos / (double) tickCount) / 1000000.0;
+	}
+
+	/**
+	 * Loads the map from the data sources in warsmash.ini and runs it for a while,
+	 * printing how fast it went. Arguments are the map path (defaults to the map
+	 * in warsmash.ini), the number of seconds to run, "unthrottled" to run as fast
+	 * as possible instead of at game speed, and a snapshot to start from.
+	 */
+	public static void main(final String[] args) {
+		final DataTable warsmashIni = new DataTable(StringBundle.EMPTY);
+		try (FileInputStream warsmashIniInputStream = new FileInputStream("warsmash.ini")) {
+			warsmashIni.readTXT(warsmashIniInputStream, true);
+		}
+		catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		final String mapFilePath = args.length > 0 ? args[0] : warsmashIni.get("Map").getField("FilePath");
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+		final boolean throttled = (args.length <= 2) || !"unthrottled".equals(args[2]);
+		final String snapshotPath = args.length > 3 ? args[3] : null;
+
+		final DataSource codebase = DataSourceConfig.parseDataSources(warsmashIni);
+		final HeadlessSimulationHost host = new HeadlessSimulationHost(codebase, mapFilePath);
+		try {
+			final long loadStartTime = System.currentTimeMillis();
+			CSimulationSnapshot snapshot = null;
+			if (snapshotPath != null) {
+				try (InputStream snapshotStream = new FileInputStream(snapshotPath)) {
+					snapshot = CSimulationSnapshot.read(snapshotStream);
+				}
+			}
+			final CSimulation simulation = host.loadMap(WarsmashConstants.SIMULATION_RANDOM_SEED, snapshot);
+			System.out.println("Loaded " + mapFilePath + " in " + (System.currentTimeMillis() - loadStartTime)
+					+ "ms: " + simulation.getUnits().size() + " units, " + simulation.getDestructables().size()
+					+ " destructables");
+		}
+		catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		final long runStartTime = System.nanoTime();
+		host.startThread(throttled);
+		try {
+			Thread.sleep(seconds * 1000L);
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		host.stop();
+		final double runSeconds = (System.nanoTime() - runStartTime) / 1000000000.0;
+		System.out.println("Ran " + host.getTickCount() + " ticks in " + runSeconds + "s ("
+				+ (host.getTickCount() / runSeconds) + " ticks/s), " + host.getAverageUpdateMillis()
+				+ "ms per update, " + host.getStepsSkipped() + " steps skipped");
+	}
+
+	private final class HeadlessRenderController implements SimulationRenderController {
+		@Override
+		public CAttackProjectile createAttackProjectile(final CSimulation simulation, final float launchX,
+				final float launchY, final float launchFacing, final CUnit source, final CUnitAttackMissile unitAttack,
+				final AbilityTarget target, final float damage, final int bounceIndex,
+				final CUnitAttackListener attackListener) {
+			return War3MapSimulationLoader.createAttackProjectile(simulation, launchX, launchY, launchFacing, source,
+					unitAttack, target, damage, bounceIndex, attackListener);
+		}
+
+		@Override
+		public CUnit createUnit(final CSimulation simulation, final War3ID typeId, final int playerIndex,
+				final float x, final float y, final float facing) {
+			return createNewUnit(typeId, x, y, playerIndex, facing);
+		}
+
+		@Override
+		public void createInstantAttackEffect(final CSimulation cSimulation, final CUnit source,
+				final CUnitAttackInstant attack, final CWidget target) {
+		}
+
+		@Override
+		public void spawnDamageSound(final CWidget damagedDestructable, final String weaponSound,
+				final String armorType) {
+		}
+
+		@Override
+		public void spawnUnitConstructionSound(final CUnit constructingUnit, final CUnit constructedStructure) {
+		}
+
+		@Override
+		public void removeUnit(final CUnit unit) {
+		}
+
+		@Override
+		public void removeDestructable(final CDestructable dest) {
+		}
+
+		@Override
+		public BufferedImage getBuildingPathingPixelMap(final War3ID rawcode) {
+			return HeadlessSimulationHost.this.simulationLoader.getBuildingPathingPixelMap(rawcode);
+		}
+
+		@Override
+		public BufferedImage getDestructablePathingPixelMap(final War3ID rawcode) {
+			return HeadlessSimulationHost.this.simulationLoader.getDestructablePathingPixelMap(rawcode);
+		}
+
+		@Override
+		public BufferedImage getDestructablePathingDeathPixelMap(final War3ID rawcode) {
+			return HeadlessSimulationHost.this.simulationLoader.getDestructablePathingDeathPixelMap(rawcode);
+		}
+
+		@Override
+		public void spawnUnitConstructionFinishSound(final CUnit constructedStructure) {
+		}
+
+		@Override
+		public void spawnBuildingDeathEffect(final CUnit cUnit) {
+		}
+
+		@Override
+		public void spawnGainLevelEffect(final CUnit cUnit) {
+		}
+
+		@Override
+		public void spawnUnitReadySound(final CUnit trainedUnit) {
+		}
+
+		@Override
+		public void unitRepositioned(final CUnit cUnit) {
+		}
+
+		@Override
+		public void spawnGainResourceTextTag(final CUnit gainingUnit, final ResourceType resourceType,
+				final int amount) {
+		}
+
+		@Override
+		public void spawnEffectOnUnit(final CUnit unit, final String effectPath) {
+		}
+
+		@Override
+		public void spawnSpellEffectOnUnit(final CUnit unit, final War3ID alias) {
+		}
+
+		@Override
+		public void spawnUIUnitGetItemSound(final CUnit cUnit, final CItem item) {
+		}
+
+		@Override
+		public void spawnUIUnitDropItemSound(final CUnit cUnit, final CItem item) {
+		}
+
+		@Override
+		public void spawnAbilitySoundEffect(final CUnit caster, final War3ID alias) {
+		}
+
+		@Override
+		public void unitPreferredSelectionReplacement(final CUnit unit, final CUnit newUnit) {
+		}
+
+		@Override
+		public void heroRevived(final CUnit trainedUnit) {
+		}
+
+		@Override
+		public void heroDeathEvent(final CUnit cUnit) {
+		}
+	}
+
+	private static final class HeadlessCommandErrorListener implements CommandErrorListener {
+		@Override
+		public void showCommandError(final String message) {
+			System.err.println("Command error: " + message);
+		}
+
+		@Override
+		public void showCantPlaceError() {
+			System.err.println("Command error: can't place");
+		}
+
+		@Override
+		public void showNoFoodError() {
+			System.err.println("Command error: no food");
+		}
+
+		@Override
+		public void showInventoryFullError() {
+			System.err.println("Command error: inventory full");
+		}
+
+		@Override
+		public void showUnableToFindCoupleTargetError() {
+			System.err.println("Command error: unable to find couple target");
+		}
+	}
+}
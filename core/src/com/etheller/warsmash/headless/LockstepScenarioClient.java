@@ -0,0 +1,422 @@
+package com.etheller.warsmash.headless;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.etheller.warsmash.networking.ServerToClientListener;
+import com.etheller.warsmash.networking.WarsmashClient;
+import com.etheller.warsmash.networking.WarsmashClientParser;
+import com.etheller.warsmash.networking.WarsmashClientSendingOrderListener;
+import com.etheller.warsmash.networking.WarsmashClientWriter;
+import com.etheller.warsmash.networking.udp.OrderedUdpClient;
+import com.etheller.warsmash.networking.udp.UdpClientTransport;
+import com.etheller.warsmash.util.WarsmashConstants;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulation;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulationChecksum;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnit;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.CAbility;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.CAbilityMove;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.orders.OrderIds;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CPlayerUnitOrderExecutor;
+
+/**
+ * A game client for {@link LockstepScenarioRunner}. It takes turns the way
+ * {@link WarsmashClient} and the map viewer do, on a thread of its own at the
+ * same frame and tick rates, and gives orders at a steady rate.
+ *
+ * Given a simulation, it runs it like the viewer does, moves its own units to
+ * random places on the map, and sends the simulation's checksums, so the server
+ * reports a desync as soon as two simulations disagree. Without one, it hashes
+ * the orders it plays along with the tick it plays them on and sends that hash
+ * instead, which only shows that every client got the same orders on the same
+ * ticks.
+ */
+public class LockstepScenarioClient implements ServerToClientListener, Runnable {
+	private static final long FRAME_NANOS = 1000000000L / 60;
+	private static final long STEP_NANOS = (long) (WarsmashConstants.SIMULATION_STEP_TIME * 1000000000L);
+	private static final long INITIAL_HASH = 0xcbf29ce484222325L;
+	private static final long HASH_MULTIPLIER = 0x100000001b3L;
+	// the simulation keeps scratch objects in static fields, since a game only has
+	// one, so simulations in the same process must not run at the same time
+	private static final Object SIMULATION_LOCK = new Object();
+
+	private final OrderedUdpClient udpClient;
+	private final WarsmashClientWriter writer;
+	private final WarsmashClientSendingOrderListener orderListener;
+	private final CSimulation simulation;
+	private final Map<Integer, CPlayerUnitOrderExecutor> indexToExecutor = new HashMap<>();
+	private final Random random;
+	private final float ordersPerSecond;
+	// from the network thread, run at the start of the next frame
+	private final Queue<Runnable> receivedMessages = new ConcurrentLinkedQueue<>();
+	private volatile boolean running;
+	private Thread thread;
+
+	private volatile int playerIndex = -1;
+	private boolean gameStarted;
+	private int latestCompletedTurn = -1;
+	private int latestLocallyRequestedTurn = -1;
+	private volatile int gameTurnTick;
+	private long updateNanos;
+	private final Queue<QueuedOrder> queuedOrders = new ArrayDeque<>();
+	private long orderHash = INITIAL_HASH;
+	private final long[] checksums = new long[CSimulationChecksum.getSubsystemCount()];
+	private float orderBudget;
+
+	private volatile long stallNanos;
+	private volatile long ordersIssued;
+	private volatile long ordersPlayed;
+	private volatile int turnDelay;
+
+	public LockstepScenarioClient(final UdpClientTransport.Factory transportFactory, final long randomSeed,
+			final float ordersPerSecond) throws IOException {
+		this(transportFactory, randomSeed, ordersPerSecond, null);
+	}
+
+	/**
+	 * @param simulation a freshly loaded simulation to run, loaded the same for
+	 *                   every client, or null to only hash the orders
+	 */
+	public LockstepScenarioClient(final UdpClientTransport.Factory transportFactory, final long randomSeed,
+			final float ordersPerSecond, final CSimulation simulation) throws IOException {
+		this.udpClient = new OrderedUdpClient(transportFactory, new WarsmashClientParser(this));
+		this.writer = new WarsmashClientWriter(this.udpClient);
+		this.orderListener = new WarsmashClientSendingOrderListener(this.writer);
+		this.simulation = simulation;
+		this.random = new Random(randomSeed);
+		this.ordersPerSecond = ordersPerSecond;
+	}
+
+	/**
+	 * Starts receiving and taking turns, and asks the server to join.
+	 */
+	public void start() {
+		new Thread(this.udpClient, "LockstepScenarioClient network").start();
+		this.running = true;
+		this.thread = new Thread(this, "LockstepScenarioClient");
+		this.thread.start();
+		this.receivedMessages.add(new Runnable() {
+			@Override
+			public void run() {
+				LockstepScenarioClient.this.writer.joinGame();
+				LockstepScenarioClient.this.writer.send();
+			}
+		});
+	}
+
+	public void stop() throws InterruptedException {
+		this.running = false;
+		this.thread.join();
+	}
+
+	@Override
+	public void run() {
+		long lastTime = System.nanoTime();
+		while (this.running) {
+			final long currentTime = System.nanoTime();
+			final long deltaNanos = currentTime - lastTime;
+			lastTime = currentTime;
+
+			if (this.simulation != null) {
+				synchronized (SIMULATION_LOCK) {
+					runFrame(deltaNanos);
+				}
+			}
+			else {
+				runFrame(deltaNanos);
+			}
+
+			final long sleepNanos = FRAME_NANOS - (System.nanoTime() - currentTime);
+			if (sleepNanos > 0) {
+				try {
+					Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+				}
+				catch (final InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void runFrame(final long deltaNanos) {
+		Runnable message;
+		while ((message = this.receivedMessages.poll()) != null) {
+			message.run();
+		}
+		if (!this.gameStarted) {
+			return;
+		}
+		giveOrders(deltaNanos);
+		this.writer.flush();
+
+		this.updateNanos += deltaNanos;
+		while (this.updateNanos >= STEP_NANOS) {
+			if (this.latestCompletedTurn >= this.gameTurnTick) {
+				this.updateNanos -= STEP_NANOS;
+				if (this.simulation != null) {
+					this.simulation.update();
+					this.gameTurnTick = this.simulation.getGameTurnTick();
+				}
+				else {
+					this.gameTurnTick++;
+				}
+				turnCompleted(this.gameTurnTick);
+			}
+			else {
+				this.stallNanos += deltaNanos;
+				if (this.updateNanos > (STEP_NANOS * 3)) {
+					this.writer.framesSkipped((int) (this.updateNanos / STEP_NANOS));
+					this.writer.send();
+					this.updateNanos = 0;
+				}
+				break;
+			}
+		}
+	}
+
+	private void giveOrders(final long deltaNanos) {
+		this.orderBudget += (this.ordersPerSecond * deltaNanos) / 1000000000f;
+		while (this.orderBudget >= 1) {
+			this.orderBudget--;
+			if (this.simulation != null) {
+				giveMoveOrder();
+			}
+			else {
+				this.orderListener.issuePointOrder(this.random.nextInt(1000), 0, this.random.nextInt(100),
+						this.random.nextFloat() * 8192, this.random.nextFloat() * 8192, false);
+				this.ordersIssued++;
+			}
+		}
+	}
+
+	/**
+	 * Moves one of our units that can move to a random cell of the map, if we have
+	 * any.
+	 */
+	private void giveMoveOrder() {
+		final List<CUnit> units = this.simulation.getUnitIndex().getUnitsOfPlayer(this.playerIndex);
+		if (units.isEmpty()) {
+			return;
+		}
+		final int firstIndex = this.random.nextInt(units.size());
+		for (int i = 0; i < units.size(); i++) {
+			final CUnit unit = units.get((firstIndex + i) % units.size());
+			if (unit.isDead()) {
+				continue;
+			}
+			for (final CAbility ability : unit.getAbilities()) {
+				if (ability instanceof CAbilityMove) {
+					final PathingGrid pathingGrid = this.simulation.getPathingGrid();
+					final float x = pathingGrid.getWorldX(this.random.nextInt(pathingGrid.getWidth()));
+					final float y = pathingGrid.getWorldY(this.random.nextInt(pathingGrid.getHeight()));
+					this.orderListener.issuePointOrder(unit.getHandleId(), ability.getHandleId(), OrderIds.move, x,
+							y, false);
+					this.ordersIssued++;
+					return;
+				}
+			}
+		}
+	}
+
+	private void turnCompleted(final int gameTurnTick) {
+		final long[] checksums;
+		if (this.simulation != null) {
+			checksums = this.simulation.getChecksum().getHashesForTurn(gameTurnTick);
+		}
+		else {
+			checksums = this.checksums;
+			for (int i = 0; i < checksums.length; i++) {
+				checksums[i] = mix(this.orderHash, i);
+			}
+		}
+		this.writer.finishedTurn(gameTurnTick, this.latestCompletedTurn, checksums);
+		this.writer.send();
+		this.latestLocallyRequestedTurn = gameTurnTick;
+		while (!this.queuedOrders.isEmpty()
+				&& (this.queuedOrders.peek().turnTick == this.latestLocallyRequestedTurn)) {
+			this.queuedOrders.poll().play();
+		}
+	}
+
+	private void playOrder(final QueuedOrder order) {
+		if (this.simulation != null) {
+			if (this.simulation.getUnit(order.unitHandleId) == null) {
+				// removed since it was ordered, the same on every client
+				return;
+			}
+			getExecutor(order.playerIndex).issuePointOrder(order.unitHandleId, order.abilityHandleId, order.orderId,
+					order.x, order.y, order.queue);
+		}
+		else {
+			long hash = mix(this.orderHash, this.latestLocallyRequestedTurn);
+			hash = mix(hash, order.playerIndex);
+			hash = mix(hash, order.unitHandleId);
+			hash = mix(hash, order.orderId);
+			hash = mix(hash, Float.floatToRawIntBits(order.x));
+			this.orderHash = mix(hash, Float.floatToRawIntBits(order.y));
+		}
+		this.ordersPlayed++;
+	}
+
+	private CPlayerUnitOrderExecutor getExecutor(final int playerIndex) {
+		CPlayerUnitOrderExecutor executor = this.indexToExecutor.get(playerIndex);
+		if (executor == null) {
+			executor = new CPlayerUnitOrderExecutor(this.simulation, playerIndex);
+			this.indexToExecutor.put(playerIndex, executor);
+		}
+		return executor;
+	}
+
+	private static long mix(final long hash, final long value) {
+		return (hash ^ value) * HASH_MULTIPLIER;
+	}
+
+	@Override
+	public void issuePointOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
+			final int orderId, final float x, final float y, final boolean queue) {
+		this.receivedMessages.add(new Runnable() {
+			@Override
+			public void run() {
+				final QueuedOrder order = new QueuedOrder(playerIndex, unitHandleId, abilityHandleId, orderId, x, y,
+						queue);
+				final int currentServerTurnInProgress = LockstepScenarioClient.this.latestCompletedTurn + 1;
+				if (currentServerTurnInProgress > LockstepScenarioClient.this.latestLocallyRequestedTurn) {
+					order.turnTick = currentServerTurnInProgress;
+					LockstepScenarioClient.this.queuedOrders.add(order);
+				}
+				else if (currentServerTurnInProgress == LockstepScenarioClient.this.latestLocallyRequestedTurn) {
+					order.play();
+				}
+				else {
+					System.err.println("Turn tick system mismatch: " + currentServerTurnInProgress + " < "
+							+ LockstepScenarioClient.this.latestLocallyRequestedTurn);
+				}
+			}
+		});
+	}
+
+	@Override
+	public void issueTargetOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
+			final int orderId, final int targetHandleId, final boolean queue) {
+	}
+
+	@Override
+	public void issueDropItemAtPointOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
+			final int orderId, final int targetHandleId, final float x, final float y, final boolean queue) {
+	}
+
+	@Override
+	public void issueImmediateOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
+			final int orderId, final boolean queue) {
+	}
+
+	@Override
+	public void unitCancelTrainingItem(final int playerIndex, final int unitHandleId, final int cancelIndex) {
+	}
+
+	@Override
+	public void acceptJoin(final int playerIndex) {
+		this.playerIndex = playerIndex;
+	}
+
+	@Override
+	public void startGame() {
+		this.receivedMessages.add(new Runnable() {
+			@Override
+			public void run() {
+				LockstepScenarioClient.this.gameStarted = true;
+			}
+		});
+	}
+
+	@Override
+	public void finishedTurn(final int gameTurnTick) {
+		this.receivedMessages.add(new Runnable() {
+			@Override
+			public void run() {
+				LockstepScenarioClient.this.latestCompletedTurn = gameTurnTick;
+			}
+		});
+	}
+
+	@Override
+	public void turnDelayChanged(final int turnDelay) {
+		this.turnDelay = turnDelay;
+	}
+
+	@Override
+	public void heartbeat() {
+	}
+
+	/**
+	 * @return -1 until the server accepted us
+	 */
+	public int getPlayerIndex() {
+		return this.playerIndex;
+	}
+
+	public int getGameTurnTick() {
+		return this.gameTurnTick;
+	}
+
+	/**
+	 * @return how long we had a tick due but not the turn from the server to run
+	 *         it
+	 */
+	public long getStallNanos() {
+		return this.stallNanos;
+	}
+
+	public long getOrdersIssued() {
+		return this.ordersIssued;
+	}
+
+	public long getOrdersPlayed() {
+		return this.ordersPlayed;
+	}
+
+	public int getTurnDelay() {
+		return this.turnDelay;
+	}
+
+	public long getRetransmitCount() {
+		return this.udpClient.getRetransmitCount();
+	}
+
+	public long getRoundTripNanos() {
+		return this.udpClient.getRoundTripNanos();
+	}
+
+	private final class QueuedOrder {
+		private final int playerIndex;
+		private final int unitHandleId;
+		private final int abilityHandleId;
+		private final int orderId;
+		private final float x;
+		private final float y;
+		private final boolean queue;
+		private int turnTick;
+
+		private QueuedOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
+				final int orderId, final float x, final float y, final boolean queue) {
+			this.playerIndex = playerIndex;
+			this.unitHandleId = unitHandleId;
+			this.abilityHandleId = abilityHandleId;
+			this.orderId = orderId;
+			this.x = x;
+			this.y = y;
+			this.queue = queue;
+		}
+
+		private void play() {
+			playOrder(this);
+		}
+	}
+}
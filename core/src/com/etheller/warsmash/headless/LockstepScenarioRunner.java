@@ -0,0 +1,361 @@
+package com.etheller.warsmash.headless;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.etheller.warsmash.datasources.DataSource;
+import com.etheller.warsmash.datasources.DataSourceConfig;
+import com.etheller.warsmash.networking.WarsmashServer;
+import com.etheller.warsmash.networking.udp.DatagramBufferPool;
+import com.etheller.warsmash.networking.udp.LoopbackNetwork;
+import com.etheller.warsmash.units.DataTable;
+import com.etheller.warsmash.util.StringBundle;
+import com.etheller.warsmash.util.WarsmashConstants;
+
+/**
+ * Runs a {@link WarsmashServer} and a few {@link LockstepScenarioClient}s over a
+ * {@link LoopbackNetwork}, under the network conditions of a scenario, and
+ * reports how long the clients waited on turns, how much was sent again, and
+ * what got through. All in one process, in real time.
+ *
+ * With a map, every client runs its own {@link HeadlessSimulationHost} of it
+ * and moves its units around, and the server compares the real simulation
+ * checksums. Without one, the clients only compare hashes of the orders they
+ * played, see {@link LockstepScenarioClient}.
+ *
+ * A scenario is a text file of "key value" lines, '#' starts a comment:
+ *
+ * <pre>
+ * name lossy wifi
+ * map Maps\Test.w3x  # optional, from the data sources in warsmash.ini
+ * clients 4         # how many clients play
+ * duration 30       # seconds of game
+ * orders 3          # orders per second from each client
+ * seed 1
+ * latency 40        # one way, in milliseconds
+ * jitter 20         # milliseconds either way
+ * loss 0.05         # chances, from 0 to 1
+ * duplicate 0.01
+ * reorder 0.05
+ * at 10 loss 0.3    # changes a condition 10 seconds into the game
+ * at 15 loss 0.05
+ * </pre>
+ */
+public class LockstepScenarioRunner {
+	private static final long JOIN_TIMEOUT_MILLIS = 10000;
+
+	private final Scenario scenario;
+	private final DataSource gameDataSource;
+	private final PrintStream report;
+
+	/**
+	 * @param gameDataSource where the scenario's map is, only needed if it has one
+	 */
+	public LockstepScenarioRunner(final Scenario scenario, final DataSource gameDataSource,
+			final PrintStream report) {
+		this.scenario = scenario;
+		this.gameDataSource = gameDataSource;
+		this.report = report;
+	}
+
+	/**
+	 * @return false if the server saw the clients disagree on a turn
+	 */
+	public boolean run() throws IOException, InterruptedException {
+		final Scenario scenario = this.scenario;
+		final LoopbackNetwork network = new LoopbackNetwork(scenario.seed);
+		network.setConditions(scenario.latencyMillis, scenario.jitterMillis, scenario.lossChance,
+				scenario.duplicateChance, scenario.reorderChance);
+		final long poolMissesBefore = DatagramBufferPool.SHARED.getMisses();
+
+		// every client gets the same game, loaded before anyone joins
+		final List<HeadlessSimulationHost> hosts = new ArrayList<>();
+		if (scenario.mapFilePath != null) {
+			for (int i = 0; i < scenario.clientCount; i++) {
+				final HeadlessSimulationHost host = new HeadlessSimulationHost(this.gameDataSource,
+						scenario.mapFilePath);
+				host.loadMap(scenario.seed);
+				hosts.add(host);
+			}
+		}
+
+		final WarsmashServer server = new WarsmashServer(network.getServerFactory());
+		server.startThread();
+		final List<LockstepScenarioClient> clients = new ArrayList<>();
+		for (int i = 0; i < scenario.clientCount; i++) {
+			final LockstepScenarioClient client = new LockstepScenarioClient(network.getClientFactory(),
+					scenario.seed + i + 1, scenario.ordersPerSecond,
+					hosts.isEmpty() ? null : hosts.get(i).getSimulation());
+			clients.add(client);
+			client.start();
+		}
+		try {
+			final long joinDeadline = System.currentTimeMillis() + JOIN_TIMEOUT_MILLIS;
+			for (final LockstepScenarioClient client : clients) {
+				while (client.getPlayerIndex() == -1) {
+					if (System.currentTimeMillis() > joinDeadline) {
+						throw new IllegalStateException("Clients did not all join in time");
+					}
+					Thread.sleep(10);
+				}
+			}
+			server.startGame();
+
+			final long startTime = System.nanoTime();
+			int nextChange = 0;
+			long elapsedMillis;
+			while ((elapsedMillis = (System.nanoTime() - startTime) / 1000000) < (scenario.durationSeconds * 1000)) {
+				while ((nextChange < scenario.changes.size())
+						&& (scenario.changes.get(nextChange).atMillis <= elapsedMillis)) {
+					scenario.changes.get(nextChange).apply(scenario);
+					network.setConditions(scenario.latencyMillis, scenario.jitterMillis, scenario.lossChance,
+							scenario.duplicateChance, scenario.reorderChance);
+					nextChange++;
+				}
+				Thread.sleep(10);
+			}
+		}
+		finally {
+			for (final LockstepScenarioClient client : clients) {
+				client.stop();
+			}
+			for (final HeadlessSimulationHost host : hosts) {
+				host.stop();
+			}
+			network.close();
+		}
+
+		final float seconds = scenario.durationSeconds;
+		final int expectedTurns = (int) (seconds / WarsmashConstants.SIMULATION_STEP_TIME);
+		int fewestTurns = Integer.MAX_VALUE;
+		long totalStallNanos = 0;
+		long worstStallNanos = 0;
+		long ordersIssued = 0;
+		long fewestOrdersPlayed = Long.MAX_VALUE;
+		long clientRetransmits = 0;
+		long worstRoundTripNanos = 0;
+		for (final LockstepScenarioClient client : clients) {
+			fewestTurns = Math.min(fewestTurns, client.getGameTurnTick());
+			totalStallNanos += client.getStallNanos();
+			worstStallNanos = Math.max(worstStallNanos, client.getStallNanos());
+			ordersIssued += client.getOrdersIssued();
+			fewestOrdersPlayed = Math.min(fewestOrdersPlayed, client.getOrdersPlayed());
+			clientRetransmits += client.getRetransmitCount();
+			worstRoundTripNanos = Math.max(worstRoundTripNanos, client.getRoundTripNanos());
+		}
+		final int firstDesyncTurnTick = server.getFirstDesyncTurnTick();
+
+		this.report.println("Scenario \"" + scenario.name + "\": " + scenario.clientCount + " clients for "
+				+ scenario.durationSeconds + "s, "
+				+ (scenario.mapFilePath != null ? "simulating " + scenario.mapFilePath : "hashing orders only"));
+		this.report.println("  turns played: " + fewestTurns + " of " + expectedTurns + " ("
+				+ ((fewestTurns * 100) / Math.max(1, expectedTurns)) + "%), turn delay at the end "
+				+ server.getTurnDelay());
+		this.report.println("  stalled: " + (totalStallNanos / clients.size() / 1000000) + "ms per client, worst "
+				+ (worstStallNanos / 1000000) + "ms");
+		this.report.println("  orders: " + ordersIssued + " given, " + fewestOrdersPlayed
+				+ " played by every client, " + (fewestOrdersPlayed / seconds) + "/s");
+		this.report.println("  retransmits: " + server.getRetransmitCount() + " from the server, "
+				+ clientRetransmits + " from the clients, worst round trip " + (worstRoundTripNanos / 1000000)
+				+ "ms");
+		this.report.println("  datagrams: " + network.getDatagramsSent() + " sent, " + network.getDatagramsLost()
+				+ " lost, " + network.getDatagramsDuplicated() + " duplicated, " + network.getDatagramsReordered()
+				+ " held back, " + ((network.getBytesSent() / 1024) / seconds) + " KiB/s");
+		this.report.println("  buffer pool: " + (DatagramBufferPool.SHARED.getMisses() - poolMissesBefore)
+				+ " allocations");
+		if (firstDesyncTurnTick != -1) {
+			this.report.println("  DESYNC at turn " + firstDesyncTurnTick);
+			return false;
+		}
+		this.report.println("  no desync");
+		return true;
+	}
+
+	public static final class Scenario {
+		private String name = "unnamed";
+		private String mapFilePath;
+		private int clientCount = 2;
+		private float durationSeconds = 20;
+		private float ordersPerSecond = 2;
+		private long seed = 1;
+		private float latencyMillis;
+		private float jitterMillis;
+		private float lossChance;
+		private float duplicateChance;
+		private float reorderChance;
+		private final List<ConditionChange> changes = new ArrayList<>();
+
+		public static Scenario read(final File file) throws IOException {
+			final Scenario scenario = new Scenario();
+			scenario.name = file.getName();
+			try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+				String line;
+				int lineNumber = 0;
+				while ((line = reader.readLine()) != null) {
+					lineNumber++;
+					final int commentStart = line.indexOf('#');
+					if (commentStart != -1) {
+						line = line.substring(0, commentStart);
+					}
+					line = line.trim();
+					if (line.isEmpty()) {
+						continue;
+					}
+					try {
+						scenario.parseLine(line);
+					}
+					catch (final RuntimeException e) {
+						throw new IOException(file + ":" + lineNumber + ": " + e.getMessage(), e);
+					}
+				}
+			}
+			return scenario;
+		}
+
+		/**
+		 * @param script scenario lines, see {@link LockstepScenarioRunner}
+		 */
+		public static Scenario parse(final String... script) {
+			final Scenario scenario = new Scenario();
+			for (final String line : script) {
+				scenario.parseLine(line);
+			}
+			return scenario;
+		}
+
+		private void parseLine(final String line) {
+			final String[] parts = line.split("\\s+", 2);
+			if (parts.length < 2) {
+				throw new IllegalArgumentException("Expected a key and a value: " + line);
+			}
+			final String key = parts[0];
+			final String value = parts[1];
+			if ("at".equals(key)) {
+				final String[] changeParts = value.split("\\s+", 3);
+				if (changeParts.length < 3) {
+					throw new IllegalArgumentException("Expected a time, a key and a value: " + line);
+				}
+				this.changes.add(new ConditionChange((long) (Float.parseFloat(changeParts[0]) * 1000),
+						changeParts[1], Float.parseFloat(changeParts[2])));
+				return;
+			}
+			switch (key) {
+			case "name":
+				this.name = value;
+				break;
+			case "map":
+				this.mapFilePath = value;
+				break;
+			case "clients":
+				this.clientCount = Integer.parseInt(value);
+				break;
+			case "duration":
+				this.durationSeconds = Float.parseFloat(value);
+				break;
+			case "orders":
+				this.ordersPerSecond = Float.parseFloat(value);
+				break;
+			case "seed":
+				this.seed = Long.parseLong(value);
+				break;
+			default:
+				setCondition(key, Float.parseFloat(value));
+				break;
+			}
+		}
+
+		private void setCondition(final String key, final float value) {
+			switch (key) {
+			case "latency":
+				this.latencyMillis = value;
+				break;
+			case "jitter":
+				this.jitterMillis = value;
+				break;
+			case "loss":
+				this.lossChance = value;
+				break;
+			case "duplicate":
+				this.duplicateChance = value;
+				break;
+			case "reorder":
+				this.reorderChance = value;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown key: " + key);
+			}
+		}
+	}
+
+	private static final class ConditionChange {
+		private final long atMillis;
+		private final String key;
+		private final float value;
+
+		private ConditionChange(final long atMillis, final String key, final float value) {
+			this.atMillis = atMillis;
+			this.key = key;
+			this.value = value;
+		}
+
+		private void apply(final Scenario scenario) {
+			scenario.setCondition(this.key, this.value);
+		}
+	}
+
+	/**
+	 * Runs the scenario files given as arguments, or a few built in ones if there
+	 * are none. "-map path" first runs the scenarios that have no map of their own
+	 * on that map. Exits with 1 if any of them desynced.
+	 */
+	public static void main(final String[] args) throws IOException, InterruptedException {
+		String defaultMapFilePath = null;
+		int firstScenarioArg = 0;
+		if ((args.length >= 2) && "-map".equals(args[0])) {
+			defaultMapFilePath = args[1];
+			firstScenarioArg = 2;
+		}
+		final List<Scenario> scenarios = new ArrayList<>();
+		if (args.length == firstScenarioArg) {
+			scenarios.add(Scenario.parse("name lan", "clients 4", "duration 10", "latency 1"));
+			scenarios.add(Scenario.parse("name broadband", "clients 4", "duration 15", "latency 30", "jitter 5",
+					"loss 0.005"));
+			scenarios.add(Scenario.parse("name lossy wifi", "clients 4", "duration 15", "latency 15", "jitter 20",
+					"loss 0.05", "duplicate 0.01", "reorder 0.05"));
+			scenarios.add(Scenario.parse("name bad link", "clients 2", "duration 15", "latency 150", "jitter 50",
+					"loss 0.1", "duplicate 0.02", "reorder 0.1"));
+			scenarios.add(Scenario.parse("name latency spike", "clients 3", "duration 20", "latency 10",
+					"at 5 latency 300", "at 10 latency 10"));
+		}
+		else {
+			for (int i = firstScenarioArg; i < args.length; i++) {
+				scenarios.add(Scenario.read(new File(args[i])));
+			}
+		}
+		DataSource gameDataSource = null;
+		for (final Scenario scenario : scenarios) {
+			if (scenario.mapFilePath == null) {
+				scenario.mapFilePath = defaultMapFilePath;
+			}
+			if ((scenario.mapFilePath != null) && (gameDataSource == null)) {
+				final DataTable warsmashIni = new DataTable(StringBundle.EMPTY);
+				try (FileInputStream warsmashIniInputStream = new FileInputStream("warsmash.ini")) {
+					warsmashIni.readTXT(warsmashIniInputStream, true);
+				}
+				gameDataSource = DataSourceConfig.parseDataSources(warsmashIni);
+			}
+		}
+
+		boolean allInSync = true;
+		for (final Scenario scenario : scenarios) {
+			allInSync &= new LockstepScenarioRunner(scenario, gameDataSource, System.out).run();
+		}
+		System.exit(allInSync ? 0 : 1);
+	}
+}
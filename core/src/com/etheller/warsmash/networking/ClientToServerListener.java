@@ -19,7 +19,13 @@ public interface ClientToServerListener {
 
 	void unitCancelTrainingItem(SocketAddress sourceAddress, int unitHandleId, int cancelIndex);
 
-	void finishedTurn(SocketAddress sourceAddress, int gameTurnTick);
+	/**
+	 * @param latestReceivedTurnTick the last finished turn the client had from
+	 *                               us, for measuring its round trip time
+	 * @param checksums              the client's state hashes after the turn, see
+	 *                               CSimulationChecksum
+	 */
+	void finishedTurn(SocketAddress sourceAddress, int gameTurnTick, int latestReceivedTurnTick, long[] checksums);
 
 	void framesSkipped(int nFramesSkipped);
 
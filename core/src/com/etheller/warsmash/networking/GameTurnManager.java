@@ -7,6 +7,12 @@ public interface GameTurnManager {
 
 	void framesSkipped(float skippedCount);
 
+	/**
+	 * Called once per frame after the UI handled its input, to send the orders
+	 * given during the frame.
+	 */
+	void flushOrders();
+
 	GameTurnManager PAUSED = new GameTurnManager() {
 		@Override
 		public int getLatestCompletedTurn() {
@@ -21,6 +27,10 @@ public interface GameTurnManager {
 		@Override
 		public void framesSkipped(final float skippedCount) {
 		}
+
+		@Override
+		public void flushOrders() {
+		}
 	};
 
 	GameTurnManager LOCAL = new GameTurnManager() {
@@ -36,6 +46,10 @@ public interface GameTurnManager {
 		@Override
 		public void framesSkipped(final float skippedCount) {
 		}
+
+		@Override
+		public void flushOrders() {
+		}
 	};
 
 }
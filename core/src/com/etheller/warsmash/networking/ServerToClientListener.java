@@ -20,5 +20,11 @@ public interface ServerToClientListener {
 
 	void finishedTurn(int gameTurnTick);
 
+	/**
+	 * The server now lets the turns it finishes run this many turns ahead of the
+	 * slowest client, that is about how long an order takes to be played.
+	 */
+	void turnDelayChanged(int turnDelay);
+
 	void heartbeat();
 }
@@ -11,4 +11,5 @@ public class ServerToClientProtocol {
 	public static final int ACCEPT_JOIN = 7;
 	public static final int START_GAME = 8;
 	public static final int HEARTBEAT = 9;
+	public static final int TURN_DELAY_CHANGED = 10;
 }
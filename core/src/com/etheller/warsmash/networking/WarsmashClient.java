@@ -5,7 +5,6 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
 
-import com.badlogic.gdx.Gdx;
 import com.etheller.warsmash.networking.udp.OrderedUdpClient;
 import com.etheller.warsmash.util.WarsmashConstants;
 import com.etheller.warsmash.viewer5.handlers.w3x.War3MapViewer;
@@ -19,6 +18,7 @@ public class WarsmashClient implements ServerToClientListener, GameTurnManager {
 	private int latestLocallyRequestedTurn = -1;
 	private final WarsmashClientWriter writer;
 	private final Queue<QueuedMessage> queuedMessages = new ArrayDeque<>();
+	private volatile int turnDelay;
 
 	public WarsmashClient(final InetAddress serverAddress, final War3MapViewer game)
 			throws UnknownHostException, IOException {
@@ -50,12 +50,12 @@ public class WarsmashClient implements ServerToClientListener, GameTurnManager {
 	public void issueTargetOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
 			final int orderId, final int targetHandleId, final boolean queue) {
 		final CPlayerUnitOrderExecutor executor = getExecutor(playerIndex);
-		Gdx.app.postRunnable(new Runnable() {
+		this.game.postSimulationRunnable(new Runnable() {
 			@Override
 			public void run() {
 				int currentServerTurnInProgress = latestCompletedTurn + 1;
 				if(currentServerTurnInProgress > latestLocallyRequestedTurn) {
-					queuedMessages.add(new QueuedMessage(latestCompletedTurn) {
+					queuedMessages.add(new QueuedMessage(latestCompletedTurn + 1) {
 						@Override
 						public void run() {
 							executor.issueTargetOrder(unitHandleId, abilityHandleId, orderId, targetHandleId, queue);
@@ -74,12 +74,12 @@ public class WarsmashClient implements ServerToClientListener, GameTurnManager {
 	public void issuePointOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
 			final int orderId, final float x, final float y, final boolean queue) {
 		final CPlayerUnitOrderExecutor executor = getExecutor(playerIndex);
-		Gdx.app.postRunnable(new Runnable() {
+		this.game.postSimulationRunnable(new Runnable() {
 			@Override
 			public void run() {
 				int currentServerTurnInProgress = latestCompletedTurn + 1;
 				if(currentServerTurnInProgress > latestLocallyRequestedTurn) {
-					queuedMessages.add(new QueuedMessage(latestCompletedTurn) {
+					queuedMessages.add(new QueuedMessage(latestCompletedTurn + 1) {
 						@Override
 						public void run() {
 							executor.issuePointOrder(unitHandleId, abilityHandleId, orderId, x, y, queue);
@@ -99,12 +99,12 @@ public class WarsmashClient implements ServerToClientListener, GameTurnManager {
 	public void issueDropItemAtPointOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
 			final int orderId, final int targetHandleId, final float x, final float y, final boolean queue) {
 		final CPlayerUnitOrderExecutor executor = getExecutor(playerIndex);
-		Gdx.app.postRunnable(new Runnable() {
+		this.game.postSimulationRunnable(new Runnable() {
 			@Override
 			public void run() {
 				int currentServerTurnInProgress = latestCompletedTurn + 1;
 				if(currentServerTurnInProgress > latestLocallyRequestedTurn) {
-					queuedMessages.add(new QueuedMessage(latestCompletedTurn) {
+					queuedMessages.add(new QueuedMessage(latestCompletedTurn + 1) {
 						@Override
 						public void run() {
 							executor.issueDropItemAtPointOrder(unitHandleId, abilityHandleId, orderId, targetHandleId, x, y, queue);
@@ -123,12 +123,12 @@ public class WarsmashClient implements ServerToClientListener, GameTurnManager {
 	public void issueImmediateOrder(final int playerIndex, final int unitHandleId, final int abilityHandleId,
 			final int orderId, final boolean queue) {
 		final CPlayerUnitOrderExecutor executor = getExecutor(playerIndex);
-		Gdx.app.postRunnable(new Runnable() {
+		this.game.postSimulationRunnable(new Runnable() {
 			@Override
 			public void run() {
 				int currentServerTurnInProgress = latestCompletedTurn + 1;
 				if(currentServerTurnInProgress > latestLocallyRequestedTurn) {
-					queuedMessages.add(new QueuedMessage(latestCompletedTurn) {
+					queuedMessages.add(new QueuedMessage(latestCompletedTurn + 1) {
 						@Override
 						public void run() {
 							executor.issueImmediateOrder(unitHandleId, abilityHandleId, orderId, queue);
@@ -146,12 +146,12 @@ public class WarsmashClient implements ServerToClientListener, GameTurnManager {
 	@Override
 	public void unitCancelTrainingItem(final int playerIndex, final int unitHandleId, final int cancelIndex) {
 		final CPlayerUnitOrderExecutor executor = getExecutor(playerIndex);
-		Gdx.app.postRunnable(new Runnable() {
+		this.game.postSimulationRunnable(new Runnable() {
 			@Override
 			public void run() {
 				int currentServerTurnInProgress = latestCompletedTurn + 1;
 				if(currentServerTurnInProgress > latestLocallyRequestedTurn) {
-					queuedMessages.add(new QueuedMessage(latestCompletedTurn) {
+					queuedMessages.add(new QueuedMessage(latestCompletedTurn + 1) {
 						@Override
 						public void run() {
 							executor.unitCancelTrainingItem(unitHandleId, cancelIndex);
@@ -171,7 +171,7 @@ public class WarsmashClient implements ServerToClientListener, GameTurnManager {
 		if(WarsmashConstants.VERBOSE_LOGGING) {
 			System.out.println("finishedTurn " + gameTurnTick);
 		}
-		Gdx.app.postRunnable(new Runnable() {
+		this.game.postSimulationRunnable(new Runnable() {
 			@Override
 			public void run() {
 				WarsmashClient.this.latestCompletedTurn = gameTurnTick;
@@ -179,9 +179,18 @@ public class WarsmashClient implements ServerToClientListener, GameTurnManager {
 		});
 	}
 
+	@Override
+	public void turnDelayChanged(final int turnDelay) {
+		if(WarsmashConstants.VERBOSE_LOGGING) {
+			System.out.println("turnDelayChanged " + turnDelay);
+		}
+		this.turnDelay = turnDelay;
+	}
+
 	@Override
 	public void turnCompleted(final int gameTurnTick) {
-		this.writer.finishedTurn(gameTurnTick);
+		this.writer.finishedTurn(gameTurnTick, this.latestCompletedTurn,
+				this.game.simulation.getChecksum().getHashesForTurn(gameTurnTick));
 		this.writer.send();
 		latestLocallyRequestedTurn = gameTurnTick;
 		while(!queuedMessages.isEmpty() && queuedMessages.peek().messageTurnTick == latestLocallyRequestedTurn) {
@@ -189,9 +198,14 @@ public class WarsmashClient implements ServerToClientListener, GameTurnManager {
 		}
 	}
 
+	@Override
+	public void flushOrders() {
+		this.writer.flush();
+	}
+
 	@Override
 	public void startGame() {
-		Gdx.app.postRunnable(new Runnable() {
+		this.game.postSimulationRunnable(new Runnable() {
 			@Override
 			public void run() {
 				WarsmashClient.this.game.setGameTurnManager(WarsmashClient.this);
@@ -218,6 +232,14 @@ public class WarsmashClient implements ServerToClientListener, GameTurnManager {
 		return this.latestCompletedTurn;
 	}
 
+	/**
+	 * @return how many turns ahead the server schedules orders, 0 until it first
+	 *         tells us
+	 */
+	public int getTurnDelay() {
+		return this.turnDelay;
+	}
+
 	public WarsmashClientWriter getWriter() {
 		return this.writer;
 	}
@@ -85,6 +85,11 @@ public class WarsmashClientParser implements OrderedUdpClientListener {
 					this.listener.finishedTurn(gameTurnTick);
 					break;
 				}
+				case ServerToClientProtocol.TURN_DELAY_CHANGED: {
+					final int turnDelay = buffer.getInt();
+					this.listener.turnDelayChanged(turnDelay);
+					break;
+				}
 				case ServerToClientProtocol.ACCEPT_JOIN: {
 					final int playerIndex = buffer.getInt();
 					this.listener.acceptJoin(playerIndex);
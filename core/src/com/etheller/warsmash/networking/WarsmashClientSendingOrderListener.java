@@ -2,6 +2,10 @@ package com.etheller.warsmash.networking;
 
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CPlayerUnitOrderListener;
 
+/**
+ * Writes the orders of the local player for the server. They go out once per
+ * frame, see {@link WarsmashClient#flushOrders()}.
+ */
 public class WarsmashClientSendingOrderListener implements CPlayerUnitOrderListener {
 	private final WarsmashClientWriter writer;
 
@@ -13,34 +17,34 @@ public class WarsmashClientSendingOrderListener implements CPlayerUnitOrderListe
 	public void issueTargetOrder(final int unitHandleId, final int abilityHandleId, final int orderId,
 			final int targetHandleId, final boolean queue) {
 		this.writer.issueTargetOrder(unitHandleId, abilityHandleId, orderId, targetHandleId, queue);
-		this.writer.send();
+		this.writer.queue();
 	}
 
 	@Override
 	public void issuePointOrder(final int unitHandleId, final int abilityHandleId, final int orderId, final float x,
 			final float y, final boolean queue) {
 		this.writer.issuePointOrder(unitHandleId, abilityHandleId, orderId, x, y, queue);
-		this.writer.send();
+		this.writer.queue();
 	}
 
 	@Override
 	public void issueDropItemAtPointOrder(final int unitHandleId, final int abilityHandleId, final int orderId,
 			final int targetHandleId, final float x, final float y, final boolean queue) {
 		this.writer.issueDropItemAtPointOrder(unitHandleId, abilityHandleId, orderId, targetHandleId, x, y, queue);
-		this.writer.send();
+		this.writer.queue();
 	}
 
 	@Override
 	public void issueImmediateOrder(final int unitHandleId, final int abilityHandleId, final int orderId,
 			final boolean queue) {
 		this.writer.issueImmediateOrder(unitHandleId, abilityHandleId, orderId, queue);
-		this.writer.send();
+		this.writer.queue();
 	}
 
 	@Override
 	public void unitCancelTrainingItem(final int unitHandleId, final int cancelIndex) {
 		this.writer.unitCancelTrainingItem(unitHandleId, cancelIndex);
-		this.writer.send();
+		this.writer.queue();
 	}
 
 }
@@ -5,10 +5,14 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 import com.etheller.warsmash.networking.udp.OrderedUdpClient;
+import com.etheller.warsmash.networking.udp.OrderedUdpCommuncation;
 
 public class WarsmashClientWriter {
 	private final OrderedUdpClient client;
 	private final ByteBuffer sendBuffer = ByteBuffer.allocate(1024).order(ByteOrder.BIG_ENDIAN);
+	// messages waiting to go out to the server together, see queue()
+	private final ByteBuffer batchBuffer = ByteBuffer.allocate(OrderedUdpCommuncation.MAX_DATA_SIZE)
+			.order(ByteOrder.BIG_ENDIAN);
 
 	public WarsmashClientWriter(final OrderedUdpClient client) {
 		this.client = client;
@@ -72,11 +76,16 @@ public class WarsmashClientWriter {
 		this.sendBuffer.putInt(cancelIndex);
 	}
 
-	public void finishedTurn(final int gameTurnTick) {
+	public void finishedTurn(final int gameTurnTick, final int latestReceivedTurnTick, final long[] checksums) {
 		this.sendBuffer.clear();
-		this.sendBuffer.putInt(4 + 4);
+		this.sendBuffer.putInt(4 + 4 + 4 + 4 + (checksums.length * 8));
 		this.sendBuffer.putInt(ClientToServerProtocol.FINISHED_TURN);
 		this.sendBuffer.putInt(gameTurnTick);
+		this.sendBuffer.putInt(latestReceivedTurnTick);
+		this.sendBuffer.putInt(checksums.length);
+		for (final long checksum : checksums) {
+			this.sendBuffer.putLong(checksum);
+		}
 	}
 
 	public void framesSkipped(final int skippedCount) {
@@ -92,14 +101,41 @@ public class WarsmashClientWriter {
 		this.sendBuffer.putInt(ClientToServerProtocol.JOIN_GAME);
 	}
 
+	/**
+	 * Sends the message just written, together with the queued ones.
+	 */
 	public void send() {
+		queue();
+		flush();
+	}
+
+	/**
+	 * Holds on to the message just written until the next {@link #send()} or
+	 * {@link #flush()}, so that the orders given in one frame go out in one
+	 * datagram instead of one each.
+	 */
+	public void queue() {
 		this.sendBuffer.flip();
+		if (this.sendBuffer.remaining() > this.batchBuffer.remaining()) {
+			flush();
+		}
+		this.batchBuffer.put(this.sendBuffer);
+	}
+
+	public void flush() {
+		if (this.batchBuffer.position() == 0) {
+			return;
+		}
+		this.batchBuffer.flip();
 		try {
-			this.client.send(this.sendBuffer);
+			this.client.send(this.batchBuffer);
 		}
 		catch (final IOException e) {
 			throw new RuntimeException(e);
 		}
+		finally {
+			this.batchBuffer.clear();
+		}
 	}
 
 }
@@ -0,0 +1,123 @@
+package com.etheller.warsmash.networking;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the replays written by {@link WarsmashReplayWriter}, one record at a
+ * time.
+ */
+public class WarsmashReplayReader {
+	private final DataInputStream inputStream;
+	private final long mapChecksum;
+	private final long randomSeed;
+	private final int checksumInterval;
+	private final int[] playerIndices;
+
+	private ByteBuffer messages = ByteBuffer.allocate(1024).order(ByteOrder.BIG_ENDIAN);
+	private int checksumTurnTick;
+	private long[] checksums;
+
+	public WarsmashReplayReader(final File replayFile) throws IOException {
+		this.inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(replayFile)));
+		final int magic = this.inputStream.readInt();
+		if (magic != WarsmashReplayWriter.MAGIC) {
+			this.inputStream.close();
+			throw new IOException("Not a replay file: " + replayFile);
+		}
+		final int version = this.inputStream.readInt();
+		if (version != WarsmashReplayWriter.VERSION) {
+			this.inputStream.close();
+			throw new IOException("Unsupported replay version " + version + ": " + replayFile);
+		}
+		this.mapChecksum = this.inputStream.readLong();
+		this.randomSeed = this.inputStream.readLong();
+		this.checksumInterval = this.inputStream.readInt();
+		this.playerIndices = new int[this.inputStream.readInt()];
+		for (int i = 0; i < this.playerIndices.length; i++) {
+			this.playerIndices[i] = this.inputStream.readInt();
+		}
+	}
+
+	/**
+	 * Reads the next record. After {@link WarsmashReplayWriter#RECORD_MESSAGES},
+	 * the packet is in {@link #getMessages()}, and after
+	 * {@link WarsmashReplayWriter#RECORD_CHECKSUMS} the hashes are in
+	 * {@link #getChecksums()}.
+	 *
+	 * @return the record type
+	 */
+	public byte readRecord() throws IOException {
+		final byte recordType;
+		try {
+			recordType = this.inputStream.readByte();
+		}
+		catch (final EOFException e) {
+			// the server was killed before it could finish the file
+			return WarsmashReplayWriter.RECORD_END;
+		}
+		switch (recordType) {
+		case WarsmashReplayWriter.RECORD_MESSAGES: {
+			final int length = this.inputStream.readInt();
+			if (length > this.messages.capacity()) {
+				this.messages = ByteBuffer.allocate(length).order(ByteOrder.BIG_ENDIAN);
+			}
+			this.messages.clear();
+			this.inputStream.readFully(this.messages.array(), 0, length);
+			this.messages.limit(length);
+			break;
+		}
+		case WarsmashReplayWriter.RECORD_CHECKSUMS: {
+			this.checksumTurnTick = this.inputStream.readInt();
+			this.checksums = new long[this.inputStream.readInt()];
+			for (int i = 0; i < this.checksums.length; i++) {
+				this.checksums[i] = this.inputStream.readLong();
+			}
+			break;
+		}
+		case WarsmashReplayWriter.RECORD_END:
+			break;
+		default:
+			throw new IOException("Unknown replay record type " + recordType);
+		}
+		return recordType;
+	}
+
+	public void close() throws IOException {
+		this.inputStream.close();
+	}
+
+	public long getMapChecksum() {
+		return this.mapChecksum;
+	}
+
+	public long getRandomSeed() {
+		return this.randomSeed;
+	}
+
+	public int getChecksumInterval() {
+		return this.checksumInterval;
+	}
+
+	public int[] getPlayerIndices() {
+		return this.playerIndices;
+	}
+
+	public ByteBuffer getMessages() {
+		return this.messages;
+	}
+
+	public int getChecksumTurnTick() {
+		return this.checksumTurnTick;
+	}
+
+	public long[] getChecksums() {
+		return this.checksums;
+	}
+}
@@ -0,0 +1,126 @@
+package com.etheller.warsmash.networking;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulationChecksum;
+
+/**
+ * Writes a replay of a game as the server saw it. The server sends every player
+ * the same stream of orders and finished turns, and the game is deterministic,
+ * so saving that stream along with what the game started from is enough to play
+ * the whole game back.
+ *
+ * The file is big endian, like the network protocol:
+ * <ul>
+ * <li>header: magic, version, map checksum, random seed, checksum interval,
+ * player count, and each player's index</li>
+ * <li>then records, each starting with a record type byte:
+ * {@link #RECORD_MESSAGES} with the length and bytes of one packet sent to all
+ * players (readable by {@link WarsmashClientParser}), or
+ * {@link #RECORD_CHECKSUMS} with a turn tick, the count of hashes, and the
+ * hashes a client sent for it</li>
+ * <li>{@link #RECORD_END}</li>
+ * </ul>
+ */
+public class WarsmashReplayWriter {
+	public static final int MAGIC = 0x5752504C; // WRPL
+	public static final int VERSION = 1;
+	public static final byte RECORD_END = 0;
+	public static final byte RECORD_MESSAGES = 1;
+	public static final byte RECORD_CHECKSUMS = 2;
+	// every turn that clients send hashes for
+	public static final int DEFAULT_CHECKSUM_INTERVAL = CSimulationChecksum.INTERVAL;
+
+	private final DataOutputStream outputStream;
+	private final int checksumInterval;
+	private final byte[] messageBytes = new byte[1024];
+	private boolean closed;
+
+	public WarsmashReplayWriter(final File replayFile, final int checksumInterval) throws IOException {
+		this.outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(replayFile)));
+		this.checksumInterval = checksumInterval;
+	}
+
+	public synchronized void writeHeader(final long mapChecksum, final long randomSeed, final int[] playerIndices)
+			throws IOException {
+		this.outputStream.writeInt(MAGIC);
+		this.outputStream.writeInt(VERSION);
+		this.outputStream.writeLong(mapChecksum);
+		this.outputStream.writeLong(randomSeed);
+		this.outputStream.writeInt(this.checksumInterval);
+		this.outputStream.writeInt(playerIndices.length);
+		for (final int playerIndex : playerIndices) {
+			this.outputStream.writeInt(playerIndex);
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of a packet sent to all players, without moving
+	 * the buffer's position.
+	 */
+	public synchronized void writeMessages(final ByteBuffer buffer) throws IOException {
+		if (this.closed) {
+			return;
+		}
+		final int length = buffer.remaining();
+		final byte[] bytes = length <= this.messageBytes.length ? this.messageBytes : new byte[length];
+		buffer.duplicate().get(bytes, 0, length);
+		this.outputStream.writeByte(RECORD_MESSAGES);
+		this.outputStream.writeInt(length);
+		this.outputStream.write(bytes, 0, length);
+	}
+
+	/**
+	 * @return true if the checksums of the given turn go into the replay
+	 */
+	public boolean isChecksumTurn(final int gameTurnTick) {
+		return (this.checksumInterval > 0) && ((gameTurnTick % this.checksumInterval) == 0);
+	}
+
+	public synchronized void writeChecksums(final int gameTurnTick, final long[] checksums) throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.outputStream.writeByte(RECORD_CHECKSUMS);
+		this.outputStream.writeInt(gameTurnTick);
+		this.outputStream.writeInt(checksums.length);
+		for (final long checksum : checksums) {
+			this.outputStream.writeLong(checksum);
+		}
+	}
+
+	public synchronized void flush() throws IOException {
+		if (!this.closed) {
+			this.outputStream.flush();
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (!this.closed) {
+			this.closed = true;
+			this.outputStream.writeByte(RECORD_END);
+			this.outputStream.close();
+		}
+	}
+
+	/**
+	 * @return the checksum that replays use to tell whether they are being played
+	 *         on the map they were recorded on
+	 */
+	public static long computeMapChecksum(final InputStream mapStream) throws IOException {
+		final CRC32 crc = new CRC32();
+		final byte[] buffer = new byte[8192];
+		int bytesRead;
+		while ((bytesRead = mapStream.read(buffer)) != -1) {
+			crc.update(buffer, 0, bytesRead);
+		}
+		return crc.getValue();
+	}
+}
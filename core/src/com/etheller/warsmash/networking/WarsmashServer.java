@@ -1,24 +1,49 @@
 package com.etheller.warsmash.networking;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
+import com.etheller.warsmash.networking.udp.LoopbackNetwork;
 import com.etheller.warsmash.networking.udp.OrderedUdpServer;
+import com.etheller.warsmash.networking.udp.UdpServerTransport;
 import com.etheller.warsmash.util.WarsmashConstants;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulationChecksum;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulationChecksum.Subsystem;
 
 public class WarsmashServer implements ClientToServerListener {
-	private static final int MAGIC_DELAY_OFFSET = 4;
+	// how many turns ahead of the slowest client we finish turns, see updateTurnDelay()
+	private static final int INITIAL_TURN_DELAY = 4;
+	private static final int MIN_TURN_DELAY = 1;
+	private static final int MAX_TURN_DELAY = 20;
+	// the delay only goes down after this many turns in a row that needed less
+	private static final int TURN_DELAY_LOWERING_TURNS = 40;
 	private final OrderedUdpServer udpServer;
 	private final Map<SocketAddress, Integer> socketAddressToPlayerIndex = new HashMap<>();
 	private final Map<SocketAddress, Integer> clientToTurnFinished = new HashMap<>();
+	// the first state hashes we got for each turn that not every client has finished
+	private final Map<Integer, TurnChecksums> turnToChecksums = new HashMap<>();
+	private int firstDesyncTurnTick = -1;
+	private WarsmashReplayWriter replayWriter;
+	private long replayMapChecksum;
 	private final List<Runnable> turnActions = new ArrayList<>();
 	private final WarsmashServerWriter writer;
-	private int currentTurnTick = MAGIC_DELAY_OFFSET;
+	private final Map<SocketAddress, ClientLatency> clientLatencies = new HashMap<>();
+	// when we sent each finished turn that not every client has received yet
+	private final Map<Integer, Long> turnSendTimes = new HashMap<>();
+	private int turnDelay = INITIAL_TURN_DELAY;
+	private int turnsNeedingLessDelay = 0;
+	private int latestFinishedTurnTick = -1;
+	private int oldestTurnFinished = -1;
 	private boolean gameStarted = false;
 	private long lastServerHeartbeatTime = 0;
 
@@ -27,22 +52,86 @@ public class WarsmashServer implements ClientToServerListener {
 		this.writer = new WarsmashServerWriter(this.udpServer, this.socketAddressToPlayerIndex.keySet());
 	}
 
+	/**
+	 * Serves over something other than a real socket, such as a
+	 * {@link LoopbackNetwork}.
+	 */
+	public WarsmashServer(final UdpServerTransport.Factory transportFactory) throws IOException {
+		this.udpServer = new OrderedUdpServer(transportFactory, new WarsmashServerParser(this));
+		this.writer = new WarsmashServerWriter(this.udpServer, this.socketAddressToPlayerIndex.keySet());
+	}
+
 	public void startThread() {
 		new Thread(this.udpServer).start();
 	}
 
+	/**
+	 * Records the game to the given file, see {@link WarsmashReplayWriter}. Must
+	 * be called before the game starts.
+	 *
+	 * @param mapChecksum the checksum of the map that the clients are playing, or
+	 *                    0 if not known
+	 */
+	public void recordReplay(final File replayFile, final long mapChecksum) throws IOException {
+		this.replayWriter = new WarsmashReplayWriter(replayFile, WarsmashReplayWriter.DEFAULT_CHECKSUM_INTERVAL);
+		this.replayMapChecksum = mapChecksum;
+	}
+
+	public void stopReplay() {
+		if (this.replayWriter != null) {
+			try {
+				this.replayWriter.close();
+			}
+			catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	public void startGame() {
 		this.gameStarted = true;
+		if (this.replayWriter != null) {
+			final int[] playerIndices = new int[this.socketAddressToPlayerIndex.size()];
+			int i = 0;
+			for (final Integer playerIndex : this.socketAddressToPlayerIndex.values()) {
+				playerIndices[i++] = playerIndex;
+			}
+			Arrays.sort(playerIndices);
+			try {
+				this.replayWriter.writeHeader(this.replayMapChecksum, WarsmashConstants.SIMULATION_RANDOM_SEED,
+						playerIndices);
+			}
+			catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+			this.writer.setReplayWriter(this.replayWriter);
+		}
 		WarsmashServer.this.writer.startGame();
-		WarsmashServer.this.writer.send();
-		startTurn();
+		WarsmashServer.this.writer.queue();
+		WarsmashServer.this.writer.turnDelayChanged(this.turnDelay);
+		WarsmashServer.this.writer.queue();
+		startTurn(this.turnDelay);
+		// the clients take a while to get going, which is not their latency
+		this.turnSendTimes.clear();
 	}
 
-	private void startTurn() {
-		System.out.println("sending finishedTurn " + this.currentTurnTick);
-		WarsmashServer.this.writer.finishedTurn(this.currentTurnTick);
+	private void startTurn(final int gameTurnTick) {
+		if (WarsmashConstants.VERBOSE_LOGGING) {
+			System.out.println("sending finishedTurn " + gameTurnTick);
+		}
+		// goes out in the same datagram as the last of the turn's orders
+		WarsmashServer.this.writer.finishedTurn(gameTurnTick);
 		WarsmashServer.this.writer.send();
-		this.currentTurnTick++;
+		this.latestFinishedTurnTick = gameTurnTick;
+		this.turnSendTimes.put(gameTurnTick, System.nanoTime());
+		if (this.replayWriter != null) {
+			try {
+				this.replayWriter.flush();
+			}
+			catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
 	}
 
 	private int getPlayerIndex(final SocketAddress sourceAddress) {
@@ -56,7 +145,9 @@ public class WarsmashServer implements ClientToServerListener {
 
 	@Override
 	public void joinGame(final SocketAddress sourceAddress) {
-		System.out.println("joinGame " + sourceAddress);
+		if (WarsmashConstants.VERBOSE_LOGGING) {
+			System.out.println("joinGame " + sourceAddress);
+		}
 		final int playerIndex = getPlayerIndex(sourceAddress);
 		WarsmashServer.this.writer.acceptJoin(playerIndex);
 		WarsmashServer.this.writer.send(sourceAddress);
@@ -65,14 +156,16 @@ public class WarsmashServer implements ClientToServerListener {
 	@Override
 	public void issueTargetOrder(final SocketAddress sourceAddress, final int unitHandleId, final int abilityHandleId,
 			final int orderId, final int targetHandleId, final boolean queue) {
-		System.out.println("issueTargetOrder from " + sourceAddress);
+		if (WarsmashConstants.VERBOSE_LOGGING) {
+			System.out.println("issueTargetOrder from " + sourceAddress);
+		}
 		final int playerIndex = getPlayerIndex(sourceAddress);
 		this.turnActions.add(new Runnable() {
 			@Override
 			public void run() {
 				WarsmashServer.this.writer.issueTargetOrder(playerIndex, unitHandleId, abilityHandleId, orderId,
 						targetHandleId, queue);
-				WarsmashServer.this.writer.send();
+				WarsmashServer.this.writer.queue();
 			}
 		});
 	}
@@ -80,14 +173,16 @@ public class WarsmashServer implements ClientToServerListener {
 	@Override
 	public void issuePointOrder(final SocketAddress sourceAddress, final int unitHandleId, final int abilityHandleId,
 			final int orderId, final float x, final float y, final boolean queue) {
-		System.out.println("issuePointOrder from " + sourceAddress);
+		if (WarsmashConstants.VERBOSE_LOGGING) {
+			System.out.println("issuePointOrder from " + sourceAddress);
+		}
 		final int playerIndex = getPlayerIndex(sourceAddress);
 		this.turnActions.add(new Runnable() {
 			@Override
 			public void run() {
 				WarsmashServer.this.writer.issuePointOrder(playerIndex, unitHandleId, abilityHandleId, orderId, x, y,
 						queue);
-				WarsmashServer.this.writer.send();
+				WarsmashServer.this.writer.queue();
 			}
 		});
 	}
@@ -96,14 +191,16 @@ public class WarsmashServer implements ClientToServerListener {
 	public void issueDropItemAtPointOrder(final SocketAddress sourceAddress, final int unitHandleId,
 			final int abilityHandleId, final int orderId, final int targetHandleId, final float x, final float y,
 			final boolean queue) {
-		System.out.println("issueDropItemAtPointOrder from " + sourceAddress);
+		if (WarsmashConstants.VERBOSE_LOGGING) {
+			System.out.println("issueDropItemAtPointOrder from " + sourceAddress);
+		}
 		final int playerIndex = getPlayerIndex(sourceAddress);
 		this.turnActions.add(new Runnable() {
 			@Override
 			public void run() {
 				WarsmashServer.this.writer.issueDropItemAtPointOrder(playerIndex, unitHandleId, abilityHandleId,
 						orderId, targetHandleId, x, y, queue);
-				WarsmashServer.this.writer.send();
+				WarsmashServer.this.writer.queue();
 			}
 		});
 	}
@@ -111,14 +208,16 @@ public class WarsmashServer implements ClientToServerListener {
 	@Override
 	public void issueImmediateOrder(final SocketAddress sourceAddress, final int unitHandleId,
 			final int abilityHandleId, final int orderId, final boolean queue) {
-		System.out.println("issueImmediateOrder from " + sourceAddress);
+		if (WarsmashConstants.VERBOSE_LOGGING) {
+			System.out.println("issueImmediateOrder from " + sourceAddress);
+		}
 		final int playerIndex = getPlayerIndex(sourceAddress);
 		this.turnActions.add(new Runnable() {
 			@Override
 			public void run() {
 				WarsmashServer.this.writer.issueImmediateOrder(playerIndex, unitHandleId, abilityHandleId, orderId,
 						queue);
-				WarsmashServer.this.writer.send();
+				WarsmashServer.this.writer.queue();
 			}
 		});
 	}
@@ -126,44 +225,185 @@ public class WarsmashServer implements ClientToServerListener {
 	@Override
 	public void unitCancelTrainingItem(final SocketAddress sourceAddress, final int unitHandleId,
 			final int cancelIndex) {
-		System.out.println("unitCancelTrainingItem from " + sourceAddress);
+		if (WarsmashConstants.VERBOSE_LOGGING) {
+			System.out.println("unitCancelTrainingItem from " + sourceAddress);
+		}
 		final int playerIndex = getPlayerIndex(sourceAddress);
 		this.turnActions.add(new Runnable() {
 			@Override
 			public void run() {
 				WarsmashServer.this.writer.unitCancelTrainingItem(playerIndex, unitHandleId, cancelIndex);
-				WarsmashServer.this.writer.send();
+				WarsmashServer.this.writer.queue();
 			}
 		});
 	}
 
 	@Override
-	public void finishedTurn(final SocketAddress sourceAddress, final int clientGameTurnTick) {
-		final int gameTurnTick = clientGameTurnTick + MAGIC_DELAY_OFFSET;
+	public void finishedTurn(final SocketAddress sourceAddress, final int clientGameTurnTick,
+			final int latestReceivedTurnTick, final long[] checksums) {
 		if (WarsmashConstants.VERBOSE_LOGGING) {
-			System.out.println("finishedTurn(" + gameTurnTick + ") from " + sourceAddress);
+			System.out.println("finishedTurn(" + clientGameTurnTick + ") from " + sourceAddress);
 		}
 		if (!this.gameStarted) {
 			throw new IllegalStateException(
 					"Client should not send us finishedTurn() message when game has not started!");
 		}
 		this.clientToTurnFinished.put(sourceAddress, clientGameTurnTick);
-		boolean allDone = true;
+		measureRoundTrip(sourceAddress, latestReceivedTurnTick);
+		checkChecksums(sourceAddress, clientGameTurnTick, checksums);
+		final int oldestTurnFinished = getOldestTurnFinished();
+		if (oldestTurnFinished > this.oldestTurnFinished) {
+			this.oldestTurnFinished = oldestTurnFinished;
+			updateTurnDelay();
+			// when the delay just went down, wait for the slowest client to catch up
+			final int nextTurnTick = oldestTurnFinished + this.turnDelay;
+			if (nextTurnTick > this.latestFinishedTurnTick) {
+				for (final Runnable turnAction : this.turnActions) {
+					turnAction.run();
+				}
+				this.turnActions.clear();
+				startTurn(nextTurnTick);
+			}
+		}
+	}
+
+	/**
+	 * @return the last turn that every client has finished, or -1
+	 */
+	private int getOldestTurnFinished() {
+		int oldestTurnFinished = Integer.MAX_VALUE;
 		for (final SocketAddress clientAddress : this.socketAddressToPlayerIndex.keySet()) {
 			final Integer turnFinishedValue = this.clientToTurnFinished.get(clientAddress);
-			if ((turnFinishedValue == null) || (turnFinishedValue < clientGameTurnTick)) {
-				allDone = false;
+			oldestTurnFinished = Math.min(oldestTurnFinished, turnFinishedValue == null ? -1 : turnFinishedValue);
+		}
+		return oldestTurnFinished == Integer.MAX_VALUE ? -1 : oldestTurnFinished;
+	}
+
+	/**
+	 * The time from sending a finished turn until the client tells us that it
+	 * has it is the client's round trip time, plus however late the client ran
+	 * its next turn, so it covers both the network and a client that stutters.
+	 */
+	private void measureRoundTrip(final SocketAddress sourceAddress, final int latestReceivedTurnTick) {
+		ClientLatency latency = this.clientLatencies.get(sourceAddress);
+		if (latency == null) {
+			latency = new ClientLatency();
+			this.clientLatencies.put(sourceAddress, latency);
+		}
+		if (latestReceivedTurnTick <= latency.latestReceivedTurnTick) {
+			return;
+		}
+		final Long sendTime = this.turnSendTimes.get(latestReceivedTurnTick);
+		if (sendTime != null) {
+			latency.addSample((System.nanoTime() - sendTime) / 1000000f);
+		}
+		latency.latestReceivedTurnTick = latestReceivedTurnTick;
+
+		int oldestTurnReceived = Integer.MAX_VALUE;
+		for (final SocketAddress clientAddress : this.socketAddressToPlayerIndex.keySet()) {
+			final ClientLatency clientLatency = this.clientLatencies.get(clientAddress);
+			oldestTurnReceived = Math.min(oldestTurnReceived,
+					clientLatency == null ? -1 : clientLatency.latestReceivedTurnTick);
+		}
+		final Iterator<Integer> turnIterator = this.turnSendTimes.keySet().iterator();
+		while (turnIterator.hasNext()) {
+			if (turnIterator.next() <= oldestTurnReceived) {
+				turnIterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Picks the turn delay that the client with the worst round trip needs to not
+	 * wait on us. It goes up as soon as a client needs more, and only comes down
+	 * one turn at a time after every client needed less for a while, so that
+	 * latency near the edge of a turn does not flip it back and forth.
+	 */
+	private void updateTurnDelay() {
+		int neededTurnDelay = MIN_TURN_DELAY;
+		for (final SocketAddress clientAddress : this.socketAddressToPlayerIndex.keySet()) {
+			final ClientLatency latency = this.clientLatencies.get(clientAddress);
+			if (latency != null) {
+				neededTurnDelay = Math.max(neededTurnDelay, latency.getNeededTurnDelay());
+			}
+		}
+		neededTurnDelay = Math.min(neededTurnDelay, MAX_TURN_DELAY);
+		if (neededTurnDelay > this.turnDelay) {
+			setTurnDelay(neededTurnDelay);
+		}
+		else if (neededTurnDelay < this.turnDelay) {
+			this.turnsNeedingLessDelay++;
+			if (this.turnsNeedingLessDelay >= TURN_DELAY_LOWERING_TURNS) {
+				setTurnDelay(this.turnDelay - 1);
+			}
+		}
+		else {
+			this.turnsNeedingLessDelay = 0;
+		}
+	}
+
+	private void setTurnDelay(final int turnDelay) {
+		if (WarsmashConstants.VERBOSE_LOGGING) {
+			System.out.println("turn delay " + this.turnDelay + " -> " + turnDelay);
+		}
+		this.turnDelay = turnDelay;
+		this.turnsNeedingLessDelay = 0;
+		// goes out with the next finished turn
+		this.writer.turnDelayChanged(turnDelay);
+		this.writer.queue();
+	}
+
+	public int getTurnDelay() {
+		return this.turnDelay;
+	}
+
+	public long getRetransmitCount() {
+		return this.udpServer.getRetransmitCount();
+	}
+
+	private void checkChecksums(final SocketAddress sourceAddress, final int clientGameTurnTick,
+			final long[] checksums) {
+		if (checksums.length == 0) {
+			// not a checksum tick
+			return;
+		}
+		final TurnChecksums turnChecksums = this.turnToChecksums.get(clientGameTurnTick);
+		if (turnChecksums == null) {
+			this.turnToChecksums.put(clientGameTurnTick, new TurnChecksums(sourceAddress, checksums));
+			if ((this.replayWriter != null) && this.replayWriter.isChecksumTurn(clientGameTurnTick)) {
+				try {
+					this.replayWriter.writeChecksums(clientGameTurnTick, checksums);
+				}
+				catch (final IOException e) {
+					throw new RuntimeException(e);
+				}
 			}
 		}
-		if (allDone) {
-			for (final Runnable turnAction : this.turnActions) {
-				turnAction.run();
+		else if (this.firstDesyncTurnTick == -1) {
+			final Subsystem mismatch = CSimulationChecksum.findMismatch(turnChecksums.checksums, checksums);
+			if (mismatch != null) {
+				this.firstDesyncTurnTick = clientGameTurnTick;
+				System.err.println("Desync at turn " + clientGameTurnTick + ": " + mismatch.getDisplayName()
+						+ " differ between " + turnChecksums.sourceAddress + " and " + sourceAddress);
+			}
+		}
+		// turns every client has finished will not be reported again
+		final int oldestTurnFinished = getOldestTurnFinished();
+		final Iterator<Integer> turnIterator = this.turnToChecksums.keySet().iterator();
+		while (turnIterator.hasNext()) {
+			if (turnIterator.next() <= oldestTurnFinished) {
+				turnIterator.remove();
 			}
-			this.turnActions.clear();
-			startTurn();
 		}
 	}
 
+	/**
+	 * @return the first turn where two clients sent different state hashes, or -1
+	 */
+	public int getFirstDesyncTurnTick() {
+		return this.firstDesyncTurnTick;
+	}
+
 	@Override
 	public void framesSkipped(final int nFramesSkipped) {
 		// dont care for now
@@ -177,9 +417,66 @@ public class WarsmashServer implements ClientToServerListener {
 		}
 	}
 
+	private static final class TurnChecksums {
+		private final SocketAddress sourceAddress;
+		private final long[] checksums;
+
+		private TurnChecksums(final SocketAddress sourceAddress, final long[] checksums) {
+			this.sourceAddress = sourceAddress;
+			this.checksums = checksums;
+		}
+	}
+
+	private static final class ClientLatency {
+		private int latestReceivedTurnTick = -1;
+		private float smoothedRoundTripMillis = -1;
+		private float roundTripVarianceMillis;
+
+		// the same smoothing TCP uses for its retransmission timeout (RFC 6298)
+		private void addSample(final float roundTripMillis) {
+			if (this.smoothedRoundTripMillis < 0) {
+				this.smoothedRoundTripMillis = roundTripMillis;
+				this.roundTripVarianceMillis = roundTripMillis / 2;
+			}
+			else {
+				this.roundTripVarianceMillis = (0.75f * this.roundTripVarianceMillis)
+						+ (0.25f * Math.abs(this.smoothedRoundTripMillis - roundTripMillis));
+				this.smoothedRoundTripMillis = (0.875f * this.smoothedRoundTripMillis) + (0.125f * roundTripMillis);
+			}
+		}
+
+		/**
+		 * @return how many turns the client runs during a bad round trip, 0 if we
+		 *         have not measured one yet
+		 */
+		private int getNeededTurnDelay() {
+			if (this.smoothedRoundTripMillis < 0) {
+				return 0;
+			}
+			final float worstRoundTripMillis = this.smoothedRoundTripMillis + (4 * this.roundTripVarianceMillis);
+			return (int) Math.ceil(worstRoundTripMillis / (WarsmashConstants.SIMULATION_STEP_TIME * 1000));
+		}
+	}
+
 	public static void main(final String[] args) {
 		try {
 			final WarsmashServer server = new WarsmashServer();
+			if (args.length > 0) {
+				// WarsmashServer <replay file> [map file]
+				long mapChecksum = 0;
+				if (args.length > 1) {
+					try (InputStream mapStream = new FileInputStream(args[1])) {
+						mapChecksum = WarsmashReplayWriter.computeMapChecksum(mapStream);
+					}
+				}
+				server.recordReplay(new File(args[0]), mapChecksum);
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+					@Override
+					public void run() {
+						server.stopReplay();
+					}
+				}));
+			}
 			server.startThread();
 
 			final Scanner scanner = new Scanner(System.in);
@@ -76,7 +76,12 @@ public class WarsmashServerParser implements OrderedUdpServerListener {
 				}
 				case ClientToServerProtocol.FINISHED_TURN: {
 					final int gameTurnTick = buffer.getInt();
-					this.listener.finishedTurn(sourceAddress, gameTurnTick);
+					final int latestReceivedTurnTick = buffer.getInt();
+					final long[] checksums = new long[buffer.getInt()];
+					for (int i = 0; i < checksums.length; i++) {
+						checksums[i] = buffer.getLong();
+					}
+					this.listener.finishedTurn(sourceAddress, gameTurnTick, latestReceivedTurnTick, checksums);
 					break;
 				}
 				case ClientToServerProtocol.JOIN_GAME: {
@@ -6,12 +6,17 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Set;
 
+import com.etheller.warsmash.networking.udp.OrderedUdpCommuncation;
 import com.etheller.warsmash.networking.udp.OrderedUdpServer;
 
 public class WarsmashServerWriter implements ServerToClientListener {
 	private final OrderedUdpServer server;
 	private final ByteBuffer sendBuffer = ByteBuffer.allocate(1024).order(ByteOrder.BIG_ENDIAN);
+	// messages waiting to go out to all players together, see queue()
+	private final ByteBuffer batchBuffer = ByteBuffer.allocate(OrderedUdpCommuncation.MAX_DATA_SIZE)
+			.order(ByteOrder.BIG_ENDIAN);
 	private final Set<SocketAddress> allKnownAddressesToSend;
+	private WarsmashReplayWriter replayWriter;
 
 	public WarsmashServerWriter(final OrderedUdpServer server, final Set<SocketAddress> allKnownAddressesToSend) {
 		this.server = server;
@@ -79,7 +84,7 @@ public class WarsmashServerWriter implements ServerToClientListener {
 	@Override
 	public void unitCancelTrainingItem(final int playerIndex, final int unitHandleId, final int cancelIndex) {
 		this.sendBuffer.clear();
-		this.sendBuffer.putInt(4 + 4 + 4 + 4 + 4 + 1);
+		this.sendBuffer.putInt(4 + 4 + 4 + 4);
 		this.sendBuffer.putInt(ServerToClientProtocol.UNIT_CANCEL_TRAINING);
 		this.sendBuffer.putInt(playerIndex);
 		this.sendBuffer.putInt(unitHandleId);
@@ -94,6 +99,14 @@ public class WarsmashServerWriter implements ServerToClientListener {
 		this.sendBuffer.putInt(gameTurnTick);
 	}
 
+	@Override
+	public void turnDelayChanged(final int turnDelay) {
+		this.sendBuffer.clear();
+		this.sendBuffer.putInt(4 + 4);
+		this.sendBuffer.putInt(ServerToClientProtocol.TURN_DELAY_CHANGED);
+		this.sendBuffer.putInt(turnDelay);
+	}
+
 	@Override
 	public void heartbeat() {
 		this.sendBuffer.clear();
@@ -117,6 +130,7 @@ public class WarsmashServerWriter implements ServerToClientListener {
 	}
 
 	public void send(final SocketAddress sourceAddress) {
+		flush();
 		this.sendBuffer.flip();
 		try {
 			this.server.send(sourceAddress, this.sendBuffer);
@@ -126,20 +140,61 @@ public class WarsmashServerWriter implements ServerToClientListener {
 		}
 	}
 
+	/**
+	 * Everything sent to all players from now on also goes into the replay.
+	 */
+	public void setReplayWriter(final WarsmashReplayWriter replayWriter) {
+		this.replayWriter = replayWriter;
+	}
+
+	/**
+	 * Sends the message just written to all players, together with the queued
+	 * ones.
+	 */
 	public void send() {
+		queue();
+		flush();
+	}
+
+	/**
+	 * Holds on to the message just written until the next {@link #send()} or
+	 * {@link #flush()}, so that all the orders of a turn go out with its
+	 * finishedTurn in as few datagrams as they fit in, instead of one each.
+	 */
+	public void queue() {
 		this.sendBuffer.flip();
+		if (this.sendBuffer.remaining() > this.batchBuffer.remaining()) {
+			flush();
+		}
+		this.batchBuffer.put(this.sendBuffer);
+	}
+
+	/**
+	 * Sends the queued messages to all players.
+	 */
+	public void flush() {
+		if (this.batchBuffer.position() == 0) {
+			return;
+		}
+		this.batchBuffer.flip();
 		try {
+			if (this.replayWriter != null) {
+				this.replayWriter.writeMessages(this.batchBuffer);
+			}
 			for (final SocketAddress address : this.allKnownAddressesToSend) {
-				final int pos = this.sendBuffer.position();
-				final int limit = this.sendBuffer.limit();
-				this.server.send(address, this.sendBuffer);
-				this.sendBuffer.position(pos);
-				this.sendBuffer.limit(limit);
+				final int pos = this.batchBuffer.position();
+				final int limit = this.batchBuffer.limit();
+				this.server.send(address, this.batchBuffer);
+				this.batchBuffer.position(pos);
+				this.batchBuffer.limit(limit);
 			}
 		}
 		catch (final IOException e) {
 			throw new RuntimeException(e);
 		}
+		finally {
+			this.batchBuffer.clear();
+		}
 	}
 
 }
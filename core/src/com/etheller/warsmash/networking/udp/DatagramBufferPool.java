@@ -0,0 +1,69 @@
+package com.etheller.warsmash.networking.udp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Direct buffers for one datagram each, given out again once they come back,
+ * so that sending and receiving does not make garbage once the game is going.
+ * Direct, so that the channel does not copy them into a temporary direct
+ * buffer of its own on every send and receive.
+ */
+public final class DatagramBufferPool {
+	public static final int PACKET_SIZE = 1024;
+	// shared by the UDP clients and servers of the process
+	public static final DatagramBufferPool SHARED = new DatagramBufferPool(PACKET_SIZE, 4096);
+
+	private final int bufferSize;
+	private final int maxPooledBuffers;
+	private final ArrayDeque<ByteBuffer> pooledBuffers = new ArrayDeque<>();
+	private long hits;
+	private long misses;
+
+	public DatagramBufferPool(final int bufferSize, final int maxPooledBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxPooledBuffers = maxPooledBuffers;
+	}
+
+	/**
+	 * @return a cleared big endian buffer of the pool's size, to give back with
+	 *         {@link #release(ByteBuffer)} when done with it
+	 */
+	public synchronized ByteBuffer acquire() {
+		// the most recently released one is the most likely to still be in cache
+		final ByteBuffer buffer = this.pooledBuffers.pollLast();
+		if (buffer == null) {
+			this.misses++;
+			return ByteBuffer.allocateDirect(this.bufferSize).order(ByteOrder.BIG_ENDIAN);
+		}
+		this.hits++;
+		buffer.clear();
+		return buffer;
+	}
+
+	public synchronized void release(final ByteBuffer buffer) {
+		if ((buffer.capacity() == this.bufferSize) && buffer.isDirect()
+				&& (this.pooledBuffers.size() < this.maxPooledBuffers)) {
+			this.pooledBuffers.addLast(buffer);
+		}
+	}
+
+	/**
+	 * @return how many times {@link #acquire()} found a buffer in the pool
+	 */
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * @return how many times {@link #acquire()} had to allocate a new buffer
+	 */
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	public synchronized int getPooledBufferCount() {
+		return this.pooledBuffers.size();
+	}
+}
@@ -0,0 +1,300 @@
+package com.etheller.warsmash.networking.udp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import com.etheller.warsmash.util.WarsmashConstants;
+
+/**
+ * A network inside the process, for running a server and its clients under bad
+ * network conditions without a bad network. Every datagram is delayed by the
+ * latency plus or minus a random jitter, and can be lost, duplicated, or held
+ * back long enough for later ones to overtake it. The conditions can change
+ * while the game runs.
+ *
+ * Each end delivers what it receives on the thread that runs it, like
+ * {@link UdpServer} and {@link UdpClient} do, until {@link #close()}.
+ */
+public final class LoopbackNetwork {
+	private static final long POLL_MILLIS = 50;
+	// a held back datagram arrives up to this much later than the others
+	private static final float REORDER_EXTRA_DELAY_MILLIS = 50;
+
+	private final Random random;
+	private final DatagramBufferPool bufferPool = DatagramBufferPool.SHARED;
+	private final Map<SocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+	private final SocketAddress serverAddress;
+	private int nextClientPort = WarsmashConstants.PORT_NUMBER + 1;
+	private long nextDatagramSequence;
+	private volatile boolean closed;
+
+	private float latencyMillis;
+	private float jitterMillis;
+	private float lossChance;
+	private float duplicateChance;
+	private float reorderChance;
+
+	private long datagramsSent;
+	private long datagramsLost;
+	private long datagramsDuplicated;
+	private long datagramsReordered;
+	private long bytesSent;
+
+	public LoopbackNetwork(final long randomSeed) {
+		this.random = new Random(randomSeed);
+		this.serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), WarsmashConstants.PORT_NUMBER);
+	}
+
+	/**
+	 * @param latencyMillis   one way
+	 * @param jitterMillis    the most that a datagram arrives earlier or later
+	 *                        than the latency
+	 * @param lossChance      of each datagram, from 0 to 1
+	 * @param duplicateChance of each datagram arriving twice
+	 * @param reorderChance   of each datagram being held back behind later ones
+	 */
+	public synchronized void setConditions(final float latencyMillis, final float jitterMillis,
+			final float lossChance, final float duplicateChance, final float reorderChance) {
+		this.latencyMillis = latencyMillis;
+		this.jitterMillis = jitterMillis;
+		this.lossChance = lossChance;
+		this.duplicateChance = duplicateChance;
+		this.reorderChance = reorderChance;
+	}
+
+	/**
+	 * Makes the server end, there can only be one.
+	 */
+	public UdpServerTransport.Factory getServerFactory() {
+		return new UdpServerTransport.Factory() {
+			@Override
+			public UdpServerTransport create(final UdpServerListener listener) throws IOException {
+				final ServerEndpoint endpoint = new ServerEndpoint(LoopbackNetwork.this.serverAddress, listener);
+				if (LoopbackNetwork.this.endpoints.putIfAbsent(LoopbackNetwork.this.serverAddress,
+						endpoint) != null) {
+					throw new IOException("Loopback network already has a server");
+				}
+				return endpoint;
+			}
+		};
+	}
+
+	/**
+	 * Makes a client end with an address of its own each time it is used.
+	 */
+	public UdpClientTransport.Factory getClientFactory() {
+		return new UdpClientTransport.Factory() {
+			@Override
+			public UdpClientTransport create(final UdpClientListener listener) throws IOException {
+				final SocketAddress clientAddress;
+				synchronized (LoopbackNetwork.this) {
+					clientAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+							LoopbackNetwork.this.nextClientPort++);
+				}
+				final ClientEndpoint endpoint = new ClientEndpoint(clientAddress, listener);
+				LoopbackNetwork.this.endpoints.put(clientAddress, endpoint);
+				return endpoint;
+			}
+		};
+	}
+
+	/**
+	 * Stops every end from receiving, which ends the threads running them.
+	 */
+	public void close() {
+		this.closed = true;
+	}
+
+	private void route(final SocketAddress source, final SocketAddress destination, final ByteBuffer data) {
+		final int size = data.remaining();
+		final Endpoint endpoint = this.endpoints.get(destination);
+		final long currentTimeNanos = System.nanoTime();
+		final long firstDueNanos;
+		final long secondDueNanos;
+		final long firstSequence;
+		synchronized (this) {
+			this.datagramsSent++;
+			this.bytesSent += size;
+			if ((endpoint == null) || (this.random.nextFloat() < this.lossChance)) {
+				this.datagramsLost++;
+				data.position(data.limit());
+				return;
+			}
+			firstDueNanos = currentTimeNanos + pickDelayNanos();
+			if (this.random.nextFloat() < this.duplicateChance) {
+				this.datagramsDuplicated++;
+				secondDueNanos = currentTimeNanos + pickDelayNanos();
+			}
+			else {
+				secondDueNanos = -1;
+			}
+			firstSequence = this.nextDatagramSequence;
+			this.nextDatagramSequence += 2;
+		}
+		final ByteBuffer buffer = this.bufferPool.acquire();
+		buffer.put(data);
+		buffer.flip();
+		if (secondDueNanos != -1) {
+			final ByteBuffer duplicate = this.bufferPool.acquire();
+			duplicate.put(buffer);
+			duplicate.flip();
+			buffer.position(0);
+			endpoint.inbox.add(new Datagram(source, duplicate, secondDueNanos, firstSequence + 1));
+		}
+		endpoint.inbox.add(new Datagram(source, buffer, firstDueNanos, firstSequence));
+	}
+
+	private long pickDelayNanos() {
+		float delayMillis = this.latencyMillis + (((this.random.nextFloat() * 2) - 1) * this.jitterMillis);
+		if (this.random.nextFloat() < this.reorderChance) {
+			this.datagramsReordered++;
+			delayMillis += this.random.nextFloat() * (this.latencyMillis + REORDER_EXTRA_DELAY_MILLIS);
+		}
+		return (long) (Math.max(0, delayMillis) * 1000000);
+	}
+
+	public synchronized long getDatagramsSent() {
+		return this.datagramsSent;
+	}
+
+	public synchronized long getDatagramsLost() {
+		return this.datagramsLost;
+	}
+
+	public synchronized long getDatagramsDuplicated() {
+		return this.datagramsDuplicated;
+	}
+
+	public synchronized long getDatagramsReordered() {
+		return this.datagramsReordered;
+	}
+
+	public synchronized long getBytesSent() {
+		return this.bytesSent;
+	}
+
+	private static final class Datagram implements Delayed {
+		private final SocketAddress source;
+		private final ByteBuffer buffer;
+		private final long dueNanos;
+		// keeps datagrams due at the same time in the order they were sent
+		private final long sequence;
+
+		private Datagram(final SocketAddress source, final ByteBuffer buffer, final long dueNanos,
+				final long sequence) {
+			this.source = source;
+			this.buffer = buffer;
+			this.dueNanos = dueNanos;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public long getDelay(final TimeUnit unit) {
+			return unit.convert(this.dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(final Delayed other) {
+			final Datagram otherDatagram = (Datagram) other;
+			final int dueComparison = Long.compare(this.dueNanos, otherDatagram.dueNanos);
+			if (dueComparison != 0) {
+				return dueComparison;
+			}
+			return Long.compare(this.sequence, otherDatagram.sequence);
+		}
+	}
+
+	private abstract class Endpoint implements Runnable {
+		private final DelayQueue<Datagram> inbox = new DelayQueue<>();
+		protected final SocketAddress address;
+		private ByteBuffer readBuffer;
+
+		private Endpoint(final SocketAddress address) {
+			this.address = address;
+		}
+
+		protected abstract void deliver(SocketAddress source, ByteBuffer buffer);
+
+		public ByteBuffer takeReadBuffer(final ByteBuffer buffer) {
+			if ((buffer == null) || (buffer != this.readBuffer)) {
+				return null;
+			}
+			this.readBuffer = null;
+			return buffer;
+		}
+
+		@Override
+		public void run() {
+			while (!LoopbackNetwork.this.closed) {
+				final Datagram datagram;
+				try {
+					datagram = this.inbox.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				if (datagram == null) {
+					continue;
+				}
+				this.readBuffer = datagram.buffer;
+				try {
+					deliver(datagram.source, datagram.buffer);
+				}
+				finally {
+					if (this.readBuffer != null) {
+						LoopbackNetwork.this.bufferPool.release(this.readBuffer);
+						this.readBuffer = null;
+					}
+				}
+			}
+		}
+	}
+
+	private final class ServerEndpoint extends Endpoint implements UdpServerTransport {
+		private final UdpServerListener listener;
+
+		private ServerEndpoint(final SocketAddress address, final UdpServerListener listener) {
+			super(address);
+			this.listener = listener;
+		}
+
+		@Override
+		public void send(final SocketAddress destination, final ByteBuffer buffer) throws IOException {
+			route(this.address, destination, buffer);
+		}
+
+		@Override
+		protected void deliver(final SocketAddress source, final ByteBuffer buffer) {
+			this.listener.parse(source, buffer);
+		}
+	}
+
+	private final class ClientEndpoint extends Endpoint implements UdpClientTransport {
+		private final UdpClientListener listener;
+
+		private ClientEndpoint(final SocketAddress address, final UdpClientListener listener) {
+			super(address);
+			this.listener = listener;
+		}
+
+		@Override
+		public void send(final ByteBuffer data) throws IOException {
+			route(this.address, LoopbackNetwork.this.serverAddress, data);
+		}
+
+		@Override
+		protected void deliver(final SocketAddress source, final ByteBuffer buffer) {
+			this.listener.parse(buffer);
+		}
+	}
+}
@@ -6,7 +6,7 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 public class OrderedUdpClient extends OrderedUdpCommuncation implements Runnable {
-	private final UdpClient udpClient;
+	private final UdpClientTransport udpClient;
 
 	public OrderedUdpClient(final InetAddress serverAddress, final int portNumber,
 			final OrderedUdpClientListener listener) throws UnknownHostException, IOException {
@@ -14,6 +14,16 @@ public class OrderedUdpClient extends OrderedUdpCommuncation implements Runnable
 		this.udpClient = new UdpClient(serverAddress, portNumber, this);
 	}
 
+	/**
+	 * Talks over something other than a real socket, such as a
+	 * {@link LoopbackNetwork}.
+	 */
+	public OrderedUdpClient(final UdpClientTransport.Factory transportFactory,
+			final OrderedUdpClientListener listener) throws IOException {
+		super(listener);
+		this.udpClient = transportFactory.create(this);
+	}
+
 	@Override
 	protected void trySend(final ByteBuffer data) {
 		try {
@@ -24,8 +34,35 @@ public class OrderedUdpClient extends OrderedUdpCommuncation implements Runnable
 		}
 	}
 
+	@Override
+	protected ByteBuffer keepReceivedPacket(final ByteBuffer readBuffer) {
+		final ByteBuffer packet = this.udpClient.takeReadBuffer(readBuffer);
+		return packet != null ? packet : super.keepReceivedPacket(readBuffer);
+	}
+
 	@Override
 	public void run() {
-		this.udpClient.run();
+		final Thread timerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(TIMER_INTERVAL_MILLIS);
+					}
+					catch (final InterruptedException e) {
+						return;
+					}
+					checkRetransmits(System.nanoTime());
+				}
+			}
+		}, "OrderedUdpClient timer");
+		timerThread.setDaemon(true);
+		timerThread.start();
+		try {
+			this.udpClient.run();
+		}
+		finally {
+			timerThread.interrupt();
+		}
 	}
 }
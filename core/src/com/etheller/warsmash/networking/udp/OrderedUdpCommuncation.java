@@ -3,105 +3,378 @@ package com.etheller.warsmash.networking.udp;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayDeque;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Queue;
 
+/**
+ * Delivers what is sent through it to the other side in order and once each,
+ * over UDP.
+ *
+ * Every packet carries, besides its own seqNo, what we have received from the
+ * other side: the seqNo up to which we have everything, and a bitmap of which
+ * of the 32 after the next one we have too. That lets the other side let go of
+ * packets as soon as they arrive, and resend only the ones missing, once per
+ * round trip no matter how many acks report the same hole. Packets that do not
+ * get acked at all are resent on a timer that follows the measured round trip
+ * time. When we have nothing to send, acks go out on their own.
+ *
+ * Packets are kept in buffers from the {@link DatagramBufferPool}, which go back
+ * to the pool as soon as the packets are acked or delivered.
+ *
+ * Something has to call {@link #checkRetransmits(long)} every
+ * {@link #TIMER_INTERVAL_MILLIS} or so.
+ */
 public abstract class OrderedUdpCommuncation implements UdpClientListener {
-	private static final int MAX_STORED_SENT_DATA_SIZE = 10000;
+	private static final int PACKET_SIZE = DatagramBufferPool.PACKET_SIZE;
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 4;
+	// the most data that send() fits in one datagram, after our header
+	public static final int MAX_DATA_SIZE = PACKET_SIZE - HEADER_SIZE;
+	static final int TIMER_INTERVAL_MILLIS = 10;
 
 	private static final int ORDERED_UDP_MESSAGE = 'M';
-	private static final int ORDERED_UDP_REPLAY_REQUEST = 'R';
+	private static final int ORDERED_UDP_ACK = 'A';
 
-	private final Map<Integer, ByteBuffer> seqNoToDataSent;
-	private final Map<Integer, ByteBuffer> seqNoToDataReceived;
-	private final Queue<Integer> seqNosStored;
+	// window sizes are powers of two, so that seqNo & (size - 1) is the slot
+	private static final int INITIAL_SEND_WINDOW_SIZE = 256;
+	// the other side has not acked anything in minutes at this point
+	private static final int MAX_SEND_WINDOW_SIZE = 16384;
+	private static final int RECEIVE_WINDOW_SIZE = 256;
+	private static final int ACK_BITS = 32;
+
+	private static final long INITIAL_RETRANSMIT_TIMEOUT_NANOS = 200000000L;
+	private static final long MIN_RETRANSMIT_TIMEOUT_NANOS = 30000000L;
+	private static final long MAX_RETRANSMIT_TIMEOUT_NANOS = 2000000000L;
+	private static final int MAX_RETRANSMIT_BACKOFF_SHIFT = 4;
+	private static final long DELAYED_ACK_NANOS = 20000000L;
+
+	private final OrderedUdpClientListener delegate;
+	private final DatagramBufferPool bufferPool = DatagramBufferPool.SHARED;
+
+	// what we sent that is not acked yet, from oldestUnackedSeqNo to nextSendSeqNo
+	private ByteBuffer[] sentPackets;
+	private long[] sentTimes;
+	private int[] sendCounts;
+	private boolean[] sentAcked;
+	private int oldestUnackedSeqNo;
 	private int nextSendSeqNo;
+
+	// what arrived ahead of a packet that we are still missing
+	private final ByteBuffer[] receivedPackets;
+	private final boolean[] received;
+	private int receivedAheadCount;
 	private int nextReceiveSeqNo;
-	private final OrderedUdpClientListener delegate;
-	private final ByteBuffer sendBuffer;
+	private boolean ackPending;
+	private long ackPendingSince;
+
+	private long smoothedRoundTripNanos = -1;
+	private long roundTripVarianceNanos;
+	private long retransmitTimeoutNanos = INITIAL_RETRANSMIT_TIMEOUT_NANOS;
+	private long lastTimeoutNanos;
+	private long retransmitCount;
+
+	private final ByteBuffer ackBuffer;
 
 	public OrderedUdpCommuncation(final OrderedUdpClientListener delegate) {
-		this.seqNoToDataSent = new HashMap<>();
-		this.seqNoToDataReceived = new HashMap<>();
-		this.seqNosStored = new ArrayDeque<>();
-		this.sendBuffer = ByteBuffer.allocate(1024).order(ByteOrder.BIG_ENDIAN);
 		this.delegate = delegate;
+		this.sentPackets = new ByteBuffer[INITIAL_SEND_WINDOW_SIZE];
+		this.sentTimes = new long[INITIAL_SEND_WINDOW_SIZE];
+		this.sendCounts = new int[INITIAL_SEND_WINDOW_SIZE];
+		this.sentAcked = new boolean[INITIAL_SEND_WINDOW_SIZE];
+		this.receivedPackets = new ByteBuffer[RECEIVE_WINDOW_SIZE];
+		this.received = new boolean[RECEIVE_WINDOW_SIZE];
+		this.ackBuffer = ByteBuffer.allocateDirect(4 + 4 + 4).order(ByteOrder.BIG_ENDIAN);
+	}
+
+	public synchronized void send(final ByteBuffer data) throws IOException {
+		if ((this.nextSendSeqNo - this.oldestUnackedSeqNo) == this.sentPackets.length) {
+			growSendWindow();
+		}
+		final int seqNo = this.nextSendSeqNo++;
+		final int slot = seqNo & (this.sentPackets.length - 1);
+		final ByteBuffer packet = this.bufferPool.acquire();
+		this.sentPackets[slot] = packet;
+		packet.putInt(ORDERED_UDP_MESSAGE);
+		packet.putInt(seqNo);
+		// the ack is filled in each time the packet goes out
+		packet.putInt(0);
+		packet.putInt(0);
+		packet.put(data);
+		packet.flip();
+		this.sendCounts[slot] = 0;
+		this.sentAcked[slot] = false;
+		transmit(slot, System.nanoTime());
+	}
+
+	private void growSendWindow() {
+		final int windowSize = this.sentPackets.length;
+		if (windowSize == MAX_SEND_WINDOW_SIZE) {
+			final int droppedSeqNo = this.oldestUnackedSeqNo++;
+			releaseSentPacket(droppedSeqNo & (windowSize - 1));
+			System.err.println("Send window full, dropping unacked packet with seqNo=" + droppedSeqNo);
+			this.delegate.cantReplay(droppedSeqNo);
+			return;
+		}
+		final int newWindowSize = windowSize * 2;
+		final ByteBuffer[] newSentPackets = new ByteBuffer[newWindowSize];
+		final long[] newSentTimes = new long[newWindowSize];
+		final int[] newSendCounts = new int[newWindowSize];
+		final boolean[] newSentAcked = new boolean[newWindowSize];
+		for (int seqNo = this.oldestUnackedSeqNo; seqNo != this.nextSendSeqNo; seqNo++) {
+			final int slot = seqNo & (windowSize - 1);
+			final int newSlot = seqNo & (newWindowSize - 1);
+			newSentPackets[newSlot] = this.sentPackets[slot];
+			newSentTimes[newSlot] = this.sentTimes[slot];
+			newSendCounts[newSlot] = this.sendCounts[slot];
+			newSentAcked[newSlot] = this.sentAcked[slot];
+		}
+		this.sentPackets = newSentPackets;
+		this.sentTimes = newSentTimes;
+		this.sendCounts = newSendCounts;
+		this.sentAcked = newSentAcked;
+	}
+
+	private void releaseSentPacket(final int slot) {
+		final ByteBuffer packet = this.sentPackets[slot];
+		if (packet != null) {
+			this.bufferPool.release(packet);
+			this.sentPackets[slot] = null;
+		}
 	}
 
-	public void send(final ByteBuffer data) throws IOException {
-		final ByteBuffer writeBuffer = ByteBuffer.allocate(1024).order(ByteOrder.BIG_ENDIAN);
-		writeBuffer.clear();
-		final Integer seqNo = this.nextSendSeqNo; // only autobox once, would be ideal to not box at all
-		writeBuffer.putInt(ORDERED_UDP_MESSAGE);
-		writeBuffer.putInt(seqNo);
-		writeBuffer.put(data);
-		writeBuffer.flip();
-		final int position = writeBuffer.position();
-		trySend(writeBuffer);
-		writeBuffer.position(position);
-		if (this.seqNosStored.size() == MAX_STORED_SENT_DATA_SIZE) {
-			this.seqNoToDataSent.remove(this.seqNosStored.poll());
-		}
-		this.seqNosStored.offer(seqNo);
-		this.seqNoToDataSent.put(seqNo, writeBuffer);
-		this.nextSendSeqNo++;
+	private void transmit(final int slot, final long currentTimeNanos) {
+		final ByteBuffer packet = this.sentPackets[slot];
+		packet.putInt(8, this.nextReceiveSeqNo - 1);
+		packet.putInt(12, getAckBits());
+		this.sentTimes[slot] = currentTimeNanos;
+		if (++this.sendCounts[slot] > 1) {
+			this.retransmitCount++;
+		}
+		this.ackPending = false;
+		trySend(packet);
+		packet.position(0);
+	}
+
+	private void sendAck() {
+		this.ackBuffer.clear();
+		this.ackBuffer.putInt(ORDERED_UDP_ACK);
+		this.ackBuffer.putInt(this.nextReceiveSeqNo - 1);
+		this.ackBuffer.putInt(getAckBits());
+		this.ackBuffer.flip();
+		this.ackPending = false;
+		trySend(this.ackBuffer);
+	}
+
+	/**
+	 * @return bit i is set if we have the packet i + 1 after the next one we are
+	 *         waiting for
+	 */
+	private int getAckBits() {
+		if (this.receivedAheadCount == 0) {
+			return 0;
+		}
+		int ackBits = 0;
+		for (int i = 0; i < ACK_BITS; i++) {
+			if (this.received[(this.nextReceiveSeqNo + 1 + i) & (RECEIVE_WINDOW_SIZE - 1)]) {
+				ackBits |= 1 << i;
+			}
+		}
+		return ackBits;
 	}
 
 	// it's udp so we're just trying, we don't really know if it'll drop or not
 	protected abstract void trySend(final ByteBuffer data);
 
+	/**
+	 * Keeps a packet that arrived ahead of one we are missing, from its current
+	 * position, until we can deliver it. The buffer returned goes back to the
+	 * {@link DatagramBufferPool} after that. By default the packet is copied, a
+	 * subclass that owns the buffer it received into can hand that over instead.
+	 */
+	protected ByteBuffer keepReceivedPacket(final ByteBuffer readBuffer) {
+		final ByteBuffer packet = this.bufferPool.acquire();
+		packet.put(readBuffer);
+		packet.flip();
+		return packet;
+	}
+
 	@Override
-	public void parse(ByteBuffer readBuffer) {
+	public synchronized void parse(final ByteBuffer readBuffer) {
+		if (readBuffer.remaining() < 4) {
+			return;
+		}
+		final long currentTimeNanos = System.nanoTime();
 		final int messageType = readBuffer.getInt();
 		switch (messageType) {
 		case ORDERED_UDP_MESSAGE: {
-			final int serverSeqNo = readBuffer.getInt();
-			if (serverSeqNo > this.nextReceiveSeqNo) {
-				// ahead, need to queue it and request replay
-				for (int i = this.nextReceiveSeqNo; i < serverSeqNo; i++) {
-					requestReplay(i);
-				}
-				final ByteBuffer queuedReceivedData = ByteBuffer.allocate(readBuffer.remaining())
-						.order(ByteOrder.BIG_ENDIAN);
-				queuedReceivedData.put(readBuffer);
-				this.seqNoToDataReceived.put(serverSeqNo, queuedReceivedData);
+			if (readBuffer.remaining() < (HEADER_SIZE - 4)) {
+				return;
 			}
-			else if (serverSeqNo < this.nextReceiveSeqNo) {
-				// dup, ignore
+			final int seqNo = readBuffer.getInt();
+			final int ackSeqNo = readBuffer.getInt();
+			final int ackBits = readBuffer.getInt();
+			receiveAck(ackSeqNo, ackBits, currentTimeNanos);
+			receiveMessage(seqNo, readBuffer, currentTimeNanos);
+			break;
+		}
+		case ORDERED_UDP_ACK: {
+			if (readBuffer.remaining() < (4 + 4)) {
+				return;
 			}
-			else {
-				// exactly equal
-				do {
-					this.delegate.parse(readBuffer);
-					this.nextReceiveSeqNo++;
+			final int ackSeqNo = readBuffer.getInt();
+			final int ackBits = readBuffer.getInt();
+			receiveAck(ackSeqNo, ackBits, currentTimeNanos);
+			break;
+		}
+		}
+	}
+
+	private void receiveMessage(final int seqNo, final ByteBuffer readBuffer, final long currentTimeNanos) {
+		final int distance = seqNo - this.nextReceiveSeqNo;
+		if (distance < 0) {
+			// dup, they must have missed our ack
+			sendAck();
+			return;
+		}
+		if (distance >= RECEIVE_WINDOW_SIZE) {
+			// too far ahead to keep, they will send it again
+			return;
+		}
+		if (distance > 0) {
+			final int slot = seqNo & (RECEIVE_WINDOW_SIZE - 1);
+			if (!this.received[slot]) {
+				this.receivedPackets[slot] = keepReceivedPacket(readBuffer);
+				this.received[slot] = true;
+				this.receivedAheadCount++;
+			}
+			// there is a hole, tell them right away what we have
+			sendAck();
+			return;
+		}
+		// exactly equal; counted as received first, so replies from the delegate ack it
+		this.nextReceiveSeqNo++;
+		this.delegate.parse(readBuffer);
+		int slot;
+		while (this.received[slot = this.nextReceiveSeqNo & (RECEIVE_WINDOW_SIZE - 1)]) {
+			this.received[slot] = false;
+			this.receivedAheadCount--;
+			this.nextReceiveSeqNo++;
+			final ByteBuffer packet = this.receivedPackets[slot];
+			this.receivedPackets[slot] = null;
+			try {
+				this.delegate.parse(packet);
+			}
+			finally {
+				this.bufferPool.release(packet);
+			}
+		}
+		if (!this.ackPending) {
+			this.ackPending = true;
+			this.ackPendingSince = currentTimeNanos;
+		}
+	}
+
+	private void receiveAck(final int ackSeqNo, final int ackBits, final long currentTimeNanos) {
+		final int windowMask = this.sentPackets.length - 1;
+		// only packets sent once time the round trip, we can't tell which send of the others got acked
+		long newestSentTime = Long.MIN_VALUE;
+		while ((this.oldestUnackedSeqNo != this.nextSendSeqNo) && ((ackSeqNo - this.oldestUnackedSeqNo) >= 0)) {
+			final int slot = this.oldestUnackedSeqNo & windowMask;
+			if (!this.sentAcked[slot] && (this.sendCounts[slot] == 1)) {
+				newestSentTime = Math.max(newestSentTime, this.sentTimes[slot]);
+			}
+			releaseSentPacket(slot);
+			this.oldestUnackedSeqNo++;
+		}
+		int highestAckedSeqNo = ackSeqNo;
+		for (int i = 0; i < ACK_BITS; i++) {
+			if ((ackBits & (1 << i)) == 0) {
+				continue;
+			}
+			final int seqNo = ackSeqNo + 2 + i;
+			if (((seqNo - this.oldestUnackedSeqNo) < 0) || ((seqNo - this.nextSendSeqNo) >= 0)) {
+				continue;
+			}
+			final int slot = seqNo & windowMask;
+			if (!this.sentAcked[slot]) {
+				this.sentAcked[slot] = true;
+				if (this.sendCounts[slot] == 1) {
+					newestSentTime = Math.max(newestSentTime, this.sentTimes[slot]);
 				}
-				while ((readBuffer = this.seqNoToDataReceived.remove(this.nextReceiveSeqNo)) != null);
+				releaseSentPacket(slot);
 			}
-			break;
+			highestAckedSeqNo = seqNo;
+		}
+		if (newestSentTime != Long.MIN_VALUE) {
+			updateRoundTrip(currentTimeNanos - newestSentTime);
+		}
+
+		// what they are missing below something they have is most likely lost, resend it now instead of
+		// waiting for the timer, but only once per round trip since every ack until it arrives repeats the hole
+		final long resendAfterNanos = this.smoothedRoundTripNanos < 0 ? this.retransmitTimeoutNanos
+				: this.smoothedRoundTripNanos;
+		for (int seqNo = this.oldestUnackedSeqNo; (highestAckedSeqNo - seqNo) > 0; seqNo++) {
+			final int slot = seqNo & windowMask;
+			if (!this.sentAcked[slot] && ((currentTimeNanos - this.sentTimes[slot]) >= resendAfterNanos)) {
+				transmit(slot, currentTimeNanos);
+			}
+		}
+	}
+
+	// RFC 6298, the way TCP times its retransmits
+	private void updateRoundTrip(final long roundTripNanos) {
+		if (this.smoothedRoundTripNanos < 0) {
+			this.smoothedRoundTripNanos = roundTripNanos;
+			this.roundTripVarianceNanos = roundTripNanos / 2;
 		}
-		case ORDERED_UDP_REPLAY_REQUEST:
-			final int requestedSeqNo = readBuffer.getInt();
-			final ByteBuffer replayData = this.seqNoToDataSent.get(requestedSeqNo);
-			if (replayData == null) {
-				this.delegate.cantReplay(requestedSeqNo);
+		else {
+			this.roundTripVarianceNanos = ((3 * this.roundTripVarianceNanos)
+					+ Math.abs(this.smoothedRoundTripNanos - roundTripNanos)) / 4;
+			this.smoothedRoundTripNanos = ((7 * this.smoothedRoundTripNanos) + roundTripNanos) / 8;
+		}
+		this.retransmitTimeoutNanos = Math.max(MIN_RETRANSMIT_TIMEOUT_NANOS, Math.min(MAX_RETRANSMIT_TIMEOUT_NANOS,
+				this.smoothedRoundTripNanos + (4 * this.roundTripVarianceNanos)));
+	}
+
+	/**
+	 * Resends what has not been acked in time, backing off for packets that were
+	 * already resent, and sends the ack for what we received if no packet of ours
+	 * carried it for a while.
+	 */
+	public synchronized void checkRetransmits(final long currentTimeNanos) {
+		final int windowMask = this.sentPackets.length - 1;
+		boolean timedOut = false;
+		for (int seqNo = this.oldestUnackedSeqNo; seqNo != this.nextSendSeqNo; seqNo++) {
+			final int slot = seqNo & windowMask;
+			if (this.sentAcked[slot]) {
+				continue;
 			}
-			else {
-				System.err.println("Replay requested for packet with seqNo=" + requestedSeqNo + ", we will send it!");
-				final int position = replayData.position();
-				trySend(replayData);
-				replayData.position(position);
+			final int backoffShift = Math.min(this.sendCounts[slot] - 1, MAX_RETRANSMIT_BACKOFF_SHIFT);
+			if ((currentTimeNanos - this.sentTimes[slot]) >= (this.retransmitTimeoutNanos << backoffShift)) {
+				transmit(slot, currentTimeNanos);
+				timedOut = true;
 			}
-			break;
 		}
+		// if the round trip grew past the timeout, every packet gets resent before its ack comes back and none
+		// of them can time the round trip, so the timeout stays backed off until one can (RFC 6298 5.5)
+		if (timedOut && ((currentTimeNanos - this.lastTimeoutNanos) >= this.retransmitTimeoutNanos)) {
+			this.lastTimeoutNanos = currentTimeNanos;
+			this.retransmitTimeoutNanos = Math.min(MAX_RETRANSMIT_TIMEOUT_NANOS, this.retransmitTimeoutNanos * 2);
+		}
+		if (this.ackPending && ((currentTimeNanos - this.ackPendingSince) >= DELAYED_ACK_NANOS)) {
+			sendAck();
+		}
+	}
+
+	/**
+	 * @return how many packets we sent again, because of the timer or a hole
+	 */
+	public synchronized long getRetransmitCount() {
+		return this.retransmitCount;
 	}
 
-	private void requestReplay(final int i) {
-		this.sendBuffer.clear();
-		this.sendBuffer.putInt(ORDERED_UDP_REPLAY_REQUEST);
-		this.sendBuffer.putInt(i);
-		this.sendBuffer.flip();
-		trySend(this.sendBuffer);
+	/**
+	 * @return the smoothed round trip time to the other side, or -1 if nothing
+	 *         has been acked yet
+	 */
+	public synchronized long getRoundTripNanos() {
+		return this.smoothedRoundTripNanos;
 	}
 }
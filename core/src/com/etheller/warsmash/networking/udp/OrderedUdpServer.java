@@ -4,18 +4,43 @@ import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class OrderedUdpServer implements UdpServerListener, Runnable {
 	private final OrderedUdpServerListener listener;
-	private final UdpServer udpServer;
+	private final UdpServerTransport udpServer;
 	private final Map<SocketAddress, OrderedKnownClient> addrToClient = new HashMap<>();
+	// for the timer thread to go through without holding up the others
+	private final List<OrderedKnownClient> clients = new CopyOnWriteArrayList<>();
 
 	public OrderedUdpServer(final int port, final OrderedUdpServerListener listener) throws IOException {
 		this.listener = listener;
 		this.udpServer = new UdpServer(port, this);
 	}
 
+	/**
+	 * Talks over something other than a real socket, such as a
+	 * {@link LoopbackNetwork}.
+	 */
+	public OrderedUdpServer(final UdpServerTransport.Factory transportFactory,
+			final OrderedUdpServerListener listener) throws IOException {
+		this.listener = listener;
+		this.udpServer = transportFactory.create(this);
+	}
+
+	/**
+	 * @return how many packets we sent again to any client
+	 */
+	public long getRetransmitCount() {
+		long retransmitCount = 0;
+		for (final OrderedKnownClient client : this.clients) {
+			retransmitCount += client.getRetransmitCount();
+		}
+		return retransmitCount;
+	}
+
 	@Override
 	public void parse(final SocketAddress sourceAddress, final ByteBuffer buffer) {
 		getClient(sourceAddress).parse(buffer);
@@ -25,11 +50,12 @@ public class OrderedUdpServer implements UdpServerListener, Runnable {
 		getClient(destination).send(buffer);
 	}
 
-	private OrderedKnownClient getClient(final SocketAddress sourceAddress) {
+	private synchronized OrderedKnownClient getClient(final SocketAddress sourceAddress) {
 		OrderedKnownClient orderedKnownClient = this.addrToClient.get(sourceAddress);
 		if (orderedKnownClient == null) {
 			orderedKnownClient = new OrderedKnownClient(sourceAddress, new OrderedAddressedSender(sourceAddress));
 			this.addrToClient.put(sourceAddress, orderedKnownClient);
+			this.clients.add(orderedKnownClient);
 		}
 		return orderedKnownClient;
 	}
@@ -53,6 +79,12 @@ public class OrderedUdpServer implements UdpServerListener, Runnable {
 			}
 		}
 
+		@Override
+		protected ByteBuffer keepReceivedPacket(final ByteBuffer readBuffer) {
+			final ByteBuffer packet = OrderedUdpServer.this.udpServer.takeReadBuffer(readBuffer);
+			return packet != null ? packet : super.keepReceivedPacket(readBuffer);
+		}
+
 	}
 
 	private class OrderedAddressedSender implements OrderedUdpClientListener {
@@ -76,6 +108,30 @@ public class OrderedUdpServer implements UdpServerListener, Runnable {
 
 	@Override
 	public void run() {
-		this.udpServer.run();
+		final Thread timerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(OrderedUdpCommuncation.TIMER_INTERVAL_MILLIS);
+					}
+					catch (final InterruptedException e) {
+						return;
+					}
+					final long currentTimeNanos = System.nanoTime();
+					for (final OrderedKnownClient client : OrderedUdpServer.this.clients) {
+						client.checkRetransmits(currentTimeNanos);
+					}
+				}
+			}
+		}, "OrderedUdpServer timer");
+		timerThread.setDaemon(true);
+		timerThread.start();
+		try {
+			this.udpServer.run();
+		}
+		finally {
+			timerThread.interrupt();
+		}
 	}
 }
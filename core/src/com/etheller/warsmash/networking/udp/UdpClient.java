@@ -5,14 +5,13 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.DatagramChannel;
 
 import com.etheller.warsmash.util.WarsmashConstants;
 
-public class UdpClient implements Runnable {
+public class UdpClient implements UdpClientTransport {
 	private final DatagramChannel channel;
-	private final ByteBuffer readBuffer;
+	private ByteBuffer readBuffer;
 	private boolean running;
 	private final UdpClientListener clientListener;
 
@@ -20,15 +19,31 @@ public class UdpClient implements Runnable {
 			throws UnknownHostException, IOException {
 		this.channel = DatagramChannel.open().connect(new InetSocketAddress(serverAddress, portNumber));
 		this.channel.configureBlocking(true);
-		this.readBuffer = ByteBuffer.allocate(1024);
+		this.readBuffer = DatagramBufferPool.SHARED.acquire();
 		this.clientListener = clientListener;
-		this.readBuffer.order(ByteOrder.BIG_ENDIAN);
 	}
 
+	@Override
 	public void send(final ByteBuffer data) throws IOException {
 		this.channel.write(data);
 	}
 
+	/**
+	 * Hands the buffer that the datagram being parsed is in over to the caller,
+	 * who gives it back to the {@link DatagramBufferPool} when done with it. Only
+	 * works from inside the listener's parse, for the buffer it was given.
+	 *
+	 * @return null if the buffer is not the one we are parsing
+	 */
+	@Override
+	public ByteBuffer takeReadBuffer(final ByteBuffer buffer) {
+		if (buffer != this.readBuffer) {
+			return null;
+		}
+		this.readBuffer = DatagramBufferPool.SHARED.acquire();
+		return buffer;
+	}
+
 	public void setRunning(final boolean running) {
 		this.running = running;
 	}
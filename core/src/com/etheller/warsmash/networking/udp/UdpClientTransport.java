@@ -0,0 +1,22 @@
+package com.etheller.warsmash.networking.udp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * What {@link OrderedUdpClient} needs from the network: sending datagrams to
+ * the server, and a run loop that hands every datagram it receives to a
+ * {@link UdpClientListener}. {@link UdpClient} is the real one.
+ */
+public interface UdpClientTransport extends Runnable {
+	void send(ByteBuffer data) throws IOException;
+
+	/**
+	 * See {@link UdpClient#takeReadBuffer(ByteBuffer)}.
+	 */
+	ByteBuffer takeReadBuffer(ByteBuffer buffer);
+
+	public static interface Factory {
+		UdpClientTransport create(UdpClientListener listener) throws IOException;
+	}
+}
@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -13,12 +12,12 @@ import java.util.Set;
 
 import com.etheller.warsmash.util.WarsmashConstants;
 
-public class UdpServer implements Runnable {
+public class UdpServer implements UdpServerTransport {
 
 	private final Selector selector;
 	private boolean running;
 	private final SelectionKey key;
-	private final ByteBuffer readBuffer;
+	private ByteBuffer readBuffer;
 	private final UdpServerListener serverListener;
 
 	public UdpServer(final int portNumber, final UdpServerListener serverListener) throws IOException {
@@ -27,14 +26,30 @@ public class UdpServer implements Runnable {
 		this.channel = DatagramChannel.open().bind(new InetSocketAddress(portNumber));
 		this.channel.configureBlocking(false);
 		this.key = this.channel.register(this.selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-		this.readBuffer = ByteBuffer.allocate(1024);
-		this.readBuffer.order(ByteOrder.BIG_ENDIAN);
+		this.readBuffer = DatagramBufferPool.SHARED.acquire();
 	}
 
+	@Override
 	public void send(final SocketAddress destination, final ByteBuffer buffer) throws IOException {
 		this.channel.send(buffer, destination);
 	}
 
+	/**
+	 * Hands the buffer that the datagram being parsed is in over to the caller,
+	 * who gives it back to the {@link DatagramBufferPool} when done with it. Only
+	 * works from inside the listener's parse, for the buffer it was given.
+	 *
+	 * @return null if the buffer is not the one we are parsing
+	 */
+	@Override
+	public ByteBuffer takeReadBuffer(final ByteBuffer buffer) {
+		if (buffer != this.readBuffer) {
+			return null;
+		}
+		this.readBuffer = DatagramBufferPool.SHARED.acquire();
+		return buffer;
+	}
+
 	@Override
 	public void run() {
 		this.running = true;
@@ -0,0 +1,23 @@
+package com.etheller.warsmash.networking.udp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * What {@link OrderedUdpServer} needs from the network: sending datagrams to
+ * addresses, and a run loop that hands every datagram it receives to a
+ * {@link UdpServerListener}. {@link UdpServer} is the real one.
+ */
+public interface UdpServerTransport extends Runnable {
+	void send(SocketAddress destination, ByteBuffer buffer) throws IOException;
+
+	/**
+	 * See {@link UdpServer#takeReadBuffer(ByteBuffer)}.
+	 */
+	ByteBuffer takeReadBuffer(ByteBuffer buffer);
+
+	public static interface Factory {
+		UdpServerTransport create(UdpServerListener listener) throws IOException;
+	}
+}
@@ -1322,13 +1322,10 @@ public class Jass2 {
 					final String unitname = arguments.get(1).visit(StringJassValueVisitor.getInstance());
 					final TriggerBooleanExpression filter = arguments.get(2)
 							.visit(ObjectJassValueVisitor.<TriggerBooleanExpression>getInstance());
-					for (final CUnit unit : simulation.getUnits()) {
-						if (unitname.equals(unit.getUnitType().getLegacyName())) {
-							if (filter.evaluate(globalScope,
-									CommonTriggerExecutionScope.filterScope(triggerScope, unit))) {
-								// TODO the trigger scope for evaluation here might need to be a clean one?
-								group.add(unit);
-							}
+					for (final CUnit unit : simulation.getUnitIndex().getUnitsOfLegacyName(unitname)) {
+						if (filter.evaluate(globalScope, CommonTriggerExecutionScope.filterScope(triggerScope, unit))) {
+							// TODO the trigger scope for evaluation here might need to be a clean one?
+							group.add(unit);
 						}
 					}
 					return null;
@@ -1343,13 +1340,10 @@ public class Jass2 {
 							.visit(ObjectJassValueVisitor.<CPlayerJass>getInstance());
 					final TriggerBooleanExpression filter = arguments.get(2)
 							.visit(ObjectJassValueVisitor.<TriggerBooleanExpression>getInstance());
-					for (final CUnit unit : simulation.getUnits()) {
-						if (unit.getPlayerIndex() == player.getId()) {
-							if (filter.evaluate(globalScope,
-									CommonTriggerExecutionScope.filterScope(triggerScope, unit))) {
-								// TODO the trigger scope for evaluation here might need to be a clean one?
-								group.add(unit);
-							}
+					for (final CUnit unit : simulation.getUnitIndex().getUnitsOfPlayer(player.getId())) {
+						if (filter.evaluate(globalScope, CommonTriggerExecutionScope.filterScope(triggerScope, unit))) {
+							// TODO the trigger scope for evaluation here might need to be a clean one?
+							group.add(unit);
 						}
 					}
 					return null;
@@ -1365,16 +1359,13 @@ public class Jass2 {
 							.visit(ObjectJassValueVisitor.<TriggerBooleanExpression>getInstance());
 					final Integer countLimit = arguments.get(3).visit(IntegerJassValueVisitor.getInstance());
 					int count = 0;
-					for (final CUnit unit : simulation.getUnits()) {
-						if (unitname.equals(unit.getUnitType().getLegacyName())) {
-							if (filter.evaluate(globalScope,
-									CommonTriggerExecutionScope.filterScope(triggerScope, unit))) {
-								// TODO the trigger scope for evaluation here might need to be a clean one?
-								group.add(unit);
-								count++;
-								if (count >= countLimit) {
-									break;
-								}
+					for (final CUnit unit : simulation.getUnitIndex().getUnitsOfLegacyName(unitname)) {
+						if (filter.evaluate(globalScope, CommonTriggerExecutionScope.filterScope(triggerScope, unit))) {
+							// TODO the trigger scope for evaluation here might need to be a clean one?
+							group.add(unit);
+							count++;
+							if (count >= countLimit) {
+								break;
 							}
 						}
 					}
@@ -1,14 +1,19 @@
 package com.etheller.warsmash.util;
 
-import java.util.function.Consumer;
-
 import com.badlogic.gdx.math.Rectangle;
 import com.badlogic.gdx.utils.Array;
 
-public class Quadtree<T> {
+/**
+ * Nodes and child trees are kept in pools shared by the whole tree, so once the
+ * tree has grown to its working size, moving things around in it does not
+ * allocate. Objects that move without leaving their leaf only have their
+ * bounds updated.
+ */
+public class Quadtree<T> implements SpatialIndex<T> {
 	private static final int MAX_DEPTH = 9; // 2^9 = 512, and 512 is the biggest map size...
 	private static final int SPLIT_THRESHOLD = 6;
 
+	private final Pools<T> pools;
 	private final Rectangle bounds;
 	private Quadtree<T> northeast;
 	private Quadtree<T> northwest;
@@ -16,29 +21,107 @@ public class Quadtree<T> {
 	private Quadtree<T> southeast;
 	private final Array<Node<T>> nodes = new Array<>();
 	private boolean leaf = true;
-	private final NodeAdder nodeAdder = new NodeAdder();
-	private final UniqueNodeAdder uniqueNodeAdder = new UniqueNodeAdder();
 
 	public Quadtree(final Rectangle bounds) {
+		this(bounds, new Pools<T>());
+	}
+
+	private Quadtree(final Rectangle bounds, final Pools<T> pools) {
 		this.bounds = bounds;
+		this.pools = pools;
 	}
 
+	@Override
 	public void add(final T object, final Rectangle bounds) {
-		final Node<T> node = new Node<T>(object, bounds);
+		final Node<T> node = this.pools.obtainNode(object, bounds);
 		add(node, 0);
 	}
 
+	@Override
 	public void remove(final T object, final Rectangle bounds) {
-		remove(object, bounds, null);
+		final Node<T> node = remove(object, bounds, null);
+		if (node != null) {
+			this.pools.freeNode(node);
+		}
 	}
 
+	@Override
 	public void translate(final T object, final Rectangle prevBoundsToUpdate, final float xShift, final float yShift) {
+		final Quadtree<T> prevLeaf = getOnlyLeafOverlapping(prevBoundsToUpdate);
+		prevBoundsToUpdate.x += xShift;
+		prevBoundsToUpdate.y += yShift;
+		if ((prevLeaf != null) && (getOnlyLeafOverlapping(prevBoundsToUpdate) == prevLeaf)) {
+			// still in the same single leaf, so the tree does not change
+			for (int i = 0; i < prevLeaf.nodes.size; i++) {
+				final Node<T> node = prevLeaf.nodes.get(i);
+				if (node.object == object) {
+					node.bounds = prevBoundsToUpdate;
+					return;
+				}
+			}
+		}
+		prevBoundsToUpdate.x -= xShift;
+		prevBoundsToUpdate.y -= yShift;
 		final Node<T> node = remove(object, prevBoundsToUpdate, null);
 		prevBoundsToUpdate.x += xShift;
 		prevBoundsToUpdate.y += yShift;
 		add(node, 0);
 	}
 
+	/**
+	 * Removes everything, keeping the nodes and child trees for reuse, for when it
+	 * is cheaper to add everything again than to move it all.
+	 */
+	public void clear() {
+		if (this.leaf) {
+			for (int i = 0; i < this.nodes.size; i++) {
+				final Node<T> node = this.nodes.get(i);
+				// nodes in several leaves are freed by the first one that has them
+				if (node.object != null) {
+					this.pools.freeNode(node);
+				}
+			}
+			this.nodes.clear();
+		}
+		else {
+			this.northeast.clear();
+			this.northwest.clear();
+			this.southwest.clear();
+			this.southeast.clear();
+			freeChildren();
+		}
+	}
+
+	private Quadtree<T> getOnlyLeafOverlapping(final Rectangle bounds) {
+		Quadtree<T> tree = this;
+		while (!tree.leaf) {
+			Quadtree<T> overlappingChild = null;
+			int overlappingChildren = 0;
+			if (tree.northeast.bounds.overlaps(bounds)) {
+				overlappingChild = tree.northeast;
+				overlappingChildren++;
+			}
+			if (tree.northwest.bounds.overlaps(bounds)) {
+				overlappingChild = tree.northwest;
+				overlappingChildren++;
+			}
+			if (tree.southwest.bounds.overlaps(bounds)) {
+				overlappingChild = tree.southwest;
+				overlappingChildren++;
+			}
+			if (tree.southeast.bounds.overlaps(bounds)) {
+				overlappingChild = tree.southeast;
+				overlappingChildren++;
+			}
+			if (overlappingChildren != 1) {
+				return null;
+			}
+			tree = overlappingChild;
+		}
+		return tree;
+	}
+
+	@Override
 	public boolean intersect(final Rectangle bounds, final QuadtreeIntersector<T> intersector) {
 		if (this.leaf) {
 			for (int i = 0; i < this.nodes.size; i++) {
@@ -154,15 +237,26 @@ public class Quadtree<T> {
 		final float halfHeight = this.bounds.height / 2;
 		final float y = this.bounds.y;
 		final float yMidpoint = y + halfHeight;
-		this.northeast = new Quadtree<>(new Rectangle(xMidpoint, yMidpoint, halfWidth, halfHeight));
-		this.northwest = new Quadtree<>(new Rectangle(x, yMidpoint, halfWidth, halfHeight));
-		this.southwest = new Quadtree<>(new Rectangle(x, y, halfWidth, halfHeight));
-		this.southeast = new Quadtree<>(new Rectangle(xMidpoint, y, halfWidth, halfHeight));
+		this.northeast = this.pools.obtainTree(xMidpoint, yMidpoint, halfWidth, halfHeight);
+		this.northwest = this.pools.obtainTree(x, yMidpoint, halfWidth, halfHeight);
+		this.southwest = this.pools.obtainTree(x, y, halfWidth, halfHeight);
+		this.southeast = this.pools.obtainTree(xMidpoint, y, halfWidth, halfHeight);
 		this.leaf = false;
-		this.nodes.forEach(this.nodeAdder.reset(splitDepth));
+		for (int i = 0; i < this.nodes.size; i++) {
+			add(this.nodes.get(i), splitDepth);
+		}
 		this.nodes.clear();
 	}
 
+	private void freeChildren() {
+		this.pools.freeTree(this.northeast);
+		this.pools.freeTree(this.northwest);
+		this.pools.freeTree(this.southwest);
+		this.pools.freeTree(this.southeast);
+		this.northeast = this.northwest = this.southwest = this.southeast = null;
+		this.leaf = true;
+	}
+
 	private Node<T> remove(final T object, final Rectangle bounds, final Quadtree<T> parent) {
 		Node<T> returnValue = null;
 		if (this.leaf) {
@@ -175,79 +269,82 @@ public class Quadtree<T> {
 		}
 		else {
 			if (this.northeast.bounds.overlaps(bounds)) {
-				returnValue = this.northeast.remove(object, bounds, this);
+				returnValue = firstNonNull(returnValue, this.northeast.remove(object, bounds, this));
 			}
 			if (this.northwest.bounds.overlaps(bounds)) {
-				returnValue = this.northwest.remove(object, bounds, this);
+				returnValue = firstNonNull(returnValue, this.northwest.remove(object, bounds, this));
 			}
 			if (this.southwest.bounds.overlaps(bounds)) {
-				returnValue = this.southwest.remove(object, bounds, this);
+				returnValue = firstNonNull(returnValue, this.southwest.remove(object, bounds, this));
 			}
 			if (this.southeast.bounds.overlaps(bounds)) {
-				returnValue = this.southeast.remove(object, bounds, this);
+				returnValue = firstNonNull(returnValue, this.southeast.remove(object, bounds, this));
 			}
 			mergeIfNecessary();
 		}
 		return returnValue;
 	}
 
+	private static <T> Node<T> firstNonNull(final Node<T> node, final Node<T> otherNode) {
+		return node != null ? node : otherNode;
+	}
+
 	private void mergeIfNecessary() {
 		if (this.northeast.leaf && this.northwest.leaf && this.southwest.leaf && this.southeast.leaf) {
 			final int children = this.northeast.nodes.size + this.northwest.nodes.size + this.southwest.nodes.size
 					+ this.southeast.nodes.size; // might include duplicates
 			if (children <= SPLIT_THRESHOLD) {
-				this.leaf = true;
 				addAllUnique(this.northeast.nodes);
 				addAllUnique(this.northwest.nodes);
 				addAllUnique(this.southwest.nodes);
 				addAllUnique(this.southeast.nodes);
-				this.northeast = this.northwest = this.southwest = this.southeast = null;
+				freeChildren();
 			}
 		}
 	}
 
 	private void addAllUnique(final Array<Node<T>> nodes) {
-		nodes.forEach(this.uniqueNodeAdder);
+		for (int i = 0; i < nodes.size; i++) {
+			final Node<T> node = nodes.get(i);
+			if (!this.nodes.contains(node, true)) {
+				this.nodes.add(node);
+			}
+		}
 	}
 
 	private static final class Node<T> {
-		private final T object;
-		private final Rectangle bounds;
-
-		public Node(final T object, final Rectangle bounds) {
-			this.object = object;
-			this.bounds = bounds;
-		}
+		private T object;
+		private Rectangle bounds;
 	}
 
-	private final class NodeAdder implements Consumer<Node<T>> {
-		private int splitDepth;
+	private static final class Pools<T> {
+		private final Array<Node<T>> freeNodes = new Array<>();
+		private final Array<Quadtree<T>> freeTrees = new Array<>();
 
-		private NodeAdder reset(final int splitDepth) {
-			this.splitDepth = splitDepth;
-			return this;
+		private Node<T> obtainNode(final T object, final Rectangle bounds) {
+			final Node<T> node = this.freeNodes.size > 0 ? this.freeNodes.pop() : new Node<T>();
+			node.object = object;
+			node.bounds = bounds;
+			return node;
 		}
 
-		@Override
-		public void accept(final Node<T> node) {
-			add(node, this.splitDepth);
+		private void freeNode(final Node<T> node) {
+			node.object = null;
+			node.bounds = null;
+			this.freeNodes.add(node);
 		}
-	}
-
-	private final class UniqueNodeAdder implements Consumer<Node<T>> {
 
-		private UniqueNodeAdder reset() {
-			return this;
+		private Quadtree<T> obtainTree(final float x, final float y, final float width, final float height) {
+			final Quadtree<T> tree = this.freeTrees.size > 0 ? this.freeTrees.pop()
+					: new Quadtree<>(new Rectangle(), this);
+			tree.bounds.set(x, y, width, height);
+			return tree;
 		}
 
-		@Override
-		public void accept(final Node<T> node) {
-			for (int i = 0; i < Quadtree.this.nodes.size; i++) {
-				if (Quadtree.this.nodes.get(i) == node) {
-					return;
-				}
-			}
-			Quadtree.this.nodes.add(node);
+		private void freeTree(final Quadtree<T> tree) {
+			// only leaves are freed, and their nodes have moved to the parent or were freed
+			tree.nodes.clear();
+			this.freeTrees.add(tree);
 		}
 	}
 }
@@ -0,0 +1,187 @@
+package com.etheller.warsmash.util;
+
+import java.util.Arrays;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.ObjectIntMap;
+
+/**
+ * Uniform grid over the map where each cell lists the objects overlapping it,
+ * as an alternative to the {@link Quadtree} for things that move around a lot.
+ * With the cell size at least as big as the largest object, every object is in
+ * at most four cells, and moving an object that stays in the same cells only
+ * changes its bounds.
+ *
+ * Objects are looked up by hashCode/equals, which for units is identity.
+ * Queries do not change anything, so several threads can query at once as long
+ * as nothing is added, removed or moved meanwhile.
+ */
+public class SpatialHash<T> implements SpatialIndex<T> {
+	private final float minX;
+	private final float minY;
+	private final float cellSize;
+	private final int cellsWide;
+	private final int cellsHigh;
+	// slots of the objects overlapping each cell, allocated on first use
+	private final int[][] cellSlots;
+	private final int[] cellSizes;
+	private Object[] slotObjects = new Object[16];
+	private Rectangle[] slotBounds = new Rectangle[16];
+	// min x, min y, max x, max y of the cells each slot is listed in
+	private int[] slotCells = new int[16 * 4];
+	private int slotCount;
+	private final IntArray freeSlots = new IntArray();
+	private final ObjectIntMap<T> objectSlots = new ObjectIntMap<>();
+
+	public SpatialHash(final Rectangle bounds, final float cellSize) {
+		this.minX = bounds.x;
+		this.minY = bounds.y;
+		this.cellSize = cellSize;
+		this.cellsWide = Math.max(1, (int) Math.ceil(bounds.width / cellSize));
+		this.cellsHigh = Math.max(1, (int) Math.ceil(bounds.height / cellSize));
+		this.cellSlots = new int[this.cellsWide * this.cellsHigh][];
+		this.cellSizes = new int[this.cellsWide * this.cellsHigh];
+	}
+
+	@Override
+	public void add(final T object, final Rectangle bounds) {
+		final int slot;
+		if (this.freeSlots.size > 0) {
+			slot = this.freeSlots.pop();
+		}
+		else {
+			if (this.slotCount == this.slotObjects.length) {
+				final int newLength = this.slotCount * 2;
+				this.slotObjects = Arrays.copyOf(this.slotObjects, newLength);
+				this.slotBounds = Arrays.copyOf(this.slotBounds, newLength);
+				this.slotCells = Arrays.copyOf(this.slotCells, newLength * 4);
+			}
+			slot = this.slotCount++;
+		}
+		this.slotObjects[slot] = object;
+		this.slotBounds[slot] = bounds;
+		this.objectSlots.put(object, slot);
+		addToCells(slot, getCellX(bounds.x), getCellY(bounds.y), getCellX(bounds.x + bounds.width),
+				getCellY(bounds.y + bounds.height));
+	}
+
+	@Override
+	public void remove(final T object, final Rectangle bounds) {
+		final int slot = this.objectSlots.remove(object, -1);
+		if (slot == -1) {
+			return;
+		}
+		removeFromCells(slot);
+		this.slotObjects[slot] = null;
+		this.slotBounds[slot] = null;
+		this.freeSlots.add(slot);
+	}
+
+	@Override
+	public void translate(final T object, final Rectangle prevBoundsToUpdate, final float xShift,
+			final float yShift) {
+		final int slot = this.objectSlots.get(object, -1);
+		if (slot == -1) {
+			throw new IllegalArgumentException("Cannot translate an object that was never added");
+		}
+		prevBoundsToUpdate.x += xShift;
+		prevBoundsToUpdate.y += yShift;
+		this.slotBounds[slot] = prevBoundsToUpdate;
+		final int minCellX = getCellX(prevBoundsToUpdate.x);
+		final int minCellY = getCellY(prevBoundsToUpdate.y);
+		final int maxCellX = getCellX(prevBoundsToUpdate.x + prevBoundsToUpdate.width);
+		final int maxCellY = getCellY(prevBoundsToUpdate.y + prevBoundsToUpdate.height);
+		final int cellsIndex = slot * 4;
+		if ((this.slotCells[cellsIndex] != minCellX) || (this.slotCells[cellsIndex + 1] != minCellY)
+				|| (this.slotCells[cellsIndex + 2] != maxCellX) || (this.slotCells[cellsIndex + 3] != maxCellY)) {
+			removeFromCells(slot);
+			addToCells(slot, minCellX, minCellY, maxCellX, maxCellY);
+		}
+	}
+
+	@Override
+	public boolean intersect(final Rectangle bounds, final QuadtreeIntersector<T> intersector) {
+		final int minCellX = getCellX(bounds.x);
+		final int minCellY = getCellY(bounds.y);
+		final int maxCellX = getCellX(bounds.x + bounds.width);
+		final int maxCellY = getCellY(bounds.y + bounds.height);
+		for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+			for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+				final int cell = (cellY * this.cellsWide) + cellX;
+				final int[] slots = this.cellSlots[cell];
+				for (int i = 0; i < this.cellSizes[cell]; i++) {
+					final int slot = slots[i];
+					// an object in several cells is only looked at in the first of them that we
+					// visit
+					final int cellsIndex = slot * 4;
+					if ((cellX != Math.max(minCellX, this.slotCells[cellsIndex]))
+							|| (cellY != Math.max(minCellY, this.slotCells[cellsIndex + 1]))) {
+						continue;
+					}
+					if (this.slotBounds[slot].overlaps(bounds)) {
+						@SuppressWarnings("unchecked")
+						final T object = (T) this.slotObjects[slot];
+						if (intersector.onIntersect(object)) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private void addToCells(final int slot, final int minCellX, final int minCellY, final int maxCellX,
+			final int maxCellY) {
+		final int cellsIndex = slot * 4;
+		this.slotCells[cellsIndex] = minCellX;
+		this.slotCells[cellsIndex + 1] = minCellY;
+		this.slotCells[cellsIndex + 2] = maxCellX;
+		this.slotCells[cellsIndex + 3] = maxCellY;
+		for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+			for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+				final int cell = (cellY * this.cellsWide) + cellX;
+				int[] slots = this.cellSlots[cell];
+				if (slots == null) {
+					slots = new int[4];
+					this.cellSlots[cell] = slots;
+				}
+				else if (this.cellSizes[cell] == slots.length) {
+					slots = Arrays.copyOf(slots, slots.length * 2);
+					this.cellSlots[cell] = slots;
+				}
+				slots[this.cellSizes[cell]++] = slot;
+			}
+		}
+	}
+
+	private void removeFromCells(final int slot) {
+		final int cellsIndex = slot * 4;
+		final int maxCellX = this.slotCells[cellsIndex + 2];
+		final int maxCellY = this.slotCells[cellsIndex + 3];
+		for (int cellY = this.slotCells[cellsIndex + 1]; cellY <= maxCellY; cellY++) {
+			for (int cellX = this.slotCells[cellsIndex]; cellX <= maxCellX; cellX++) {
+				final int cell = (cellY * this.cellsWide) + cellX;
+				final int[] slots = this.cellSlots[cell];
+				final int size = this.cellSizes[cell];
+				for (int i = 0; i < size; i++) {
+					if (slots[i] == slot) {
+						// keep the others in the order they were added, same as the quadtree
+						System.arraycopy(slots, i + 1, slots, i, size - i - 1);
+						this.cellSizes[cell] = size - 1;
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	private int getCellX(final float x) {
+		return Math.max(0, Math.min(this.cellsWide - 1, (int) Math.floor((x - this.minX) / this.cellSize)));
+	}
+
+	private int getCellY(final float y) {
+		return Math.max(0, Math.min(this.cellsHigh - 1, (int) Math.floor((y - this.minY) / this.cellSize)));
+	}
+}
@@ -0,0 +1,25 @@
+package com.etheller.warsmash.util;
+
+import com.badlogic.gdx.math.Rectangle;
+
+/**
+ * Something that can find the objects overlapping a rectangle, like a
+ * {@link Quadtree} or a {@link SpatialHash}. The bounds passed in are kept by
+ * reference, so callers must only move an object with
+ * {@link #translate(Object, Rectangle, float, float)}.
+ */
+public interface SpatialIndex<T> {
+	void add(T object, Rectangle bounds);
+
+	void remove(T object, Rectangle bounds);
+
+	/**
+	 * Moves the object, shifting its bounds by the given amount.
+	 */
+	void translate(T object, Rectangle prevBoundsToUpdate, float xShift, float yShift);
+
+	/**
+	 * @return true if the intersector asked to stop
+	 */
+	boolean intersect(Rectangle bounds, QuadtreeIntersector<T> intersector);
+}
@@ -10,9 +10,46 @@ public class WarsmashConstants {
 	public static final int REPLACEABLE_TEXTURE_LIMIT = 64;
 	public static final float SIMULATION_STEP_TIME = 1 / 20f;
 	public static final int PORT_NUMBER = 6115;
+	// Every game starts its random number generator from this, so replays record it
+	public static final long SIMULATION_RANDOM_SEED = 1337L;
 	public static final float BUILDING_CONSTRUCT_START_LIFE = 0.1f;
 	public static final int BUILD_QUEUE_SIZE = 7;
 	public static final int MAX_SELECTION_SIZE = 12;
+	// Path searches run on this many background threads (0 to run them on the game
+	// thread). Results come back on the next game tick no matter what, so this
+	// does not need to match between players in a multiplayer game
+	public static int PATHFINDING_WORKER_THREADS = Math.max(0,
+			Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+	// When at least this many units are ordered to the same spot on the same tick,
+	// they follow one shared flow field instead of each doing their own path
+	// search (0 to never do that). Changes pathing results, so all players in a
+	// multiplayer game must use the same value
+	public static int PATHFINDING_FLOW_FIELD_GROUP_SIZE = 24;
+	// Keep unit collision in a uniform grid instead of a quadtree, see
+	// SpatialIndexBenchmark. Changes the order units are found in, so all players
+	// in a multiplayer game must use the same value
+	public static boolean SPATIAL_HASH_UNIT_COLLISION = false;
+	// Time each phase of the game tick, see CSimulationProfiler
+	public static boolean ENABLE_SIMULATION_PROFILER = false;
+	// Draw the profiler numbers under the FPS counter, which also turns on the
+	// profiler
+	public static boolean SHOW_SIMULATION_PROFILER = false;
+	// Run the game ticks on their own thread and draw units in between ticks,
+	// instead of running them from the render loop. Can be switched while the
+	// game runs
+	public static boolean ENABLE_SIMULATION_THREAD = false;
+	// Pick auto attack targets for all units at the start of the tick, in parallel
+	// when there are many units. Changes which targets units pick, so all players
+	// in a multiplayer game must use the same value
+	public static boolean ENABLE_UNIT_THINK_PHASE = false;
+	// Idle units look for something to auto attack once every this many ticks, or
+	// right away when an enemy moves near them (1 to look every tick). Changes
+	// when units start attacking, so all players in a multiplayer game must use
+	// the same value
+	public static int AUTO_ACQUIRE_IDLE_SCAN_TICKS = 10;
+	// Hash the game state once a second and send it to the server with that
+	// finished turn, so the server can tell when clients go out of sync
+	public static boolean ENABLE_STATE_CHECKSUM = true;
 	// It looks like in Patch 1.22, "Particle" in video settings will change this
 	// factor:
 	// Low - unknown ?
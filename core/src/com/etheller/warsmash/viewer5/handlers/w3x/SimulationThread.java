@@ -0,0 +1,712 @@
+package com.etheller.warsmash.viewer5.handlers.w3x;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.etheller.warsmash.util.War3ID;
+import com.etheller.warsmash.util.WarsmashConstants;
+import com.etheller.warsmash.viewer5.handlers.w3x.AnimationTokens.PrimaryTag;
+import com.etheller.warsmash.viewer5.handlers.w3x.AnimationTokens.SecondaryTag;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CDestructable;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CItem;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CPlayerStateListener;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulation;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnit;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnitAnimationListener;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnitStateListener;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CWidget;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.targeting.AbilityTarget;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.attacks.CUnitAttackInstant;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.attacks.CUnitAttackListener;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.attacks.CUnitAttackMissile;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.projectile.CAttackProjectile;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.util.ResourceType;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.util.SimulationRenderController;
+
+/**
+ * Runs the game ticks of a {@link War3MapViewer} on their own thread, so that a
+ * slow frame does not hold up the simulation and a slow tick does not hold up
+ * the frame.
+ *
+ * The simulation is guarded by one lock. The simulation thread holds it for
+ * each tick, and the render thread takes it (with
+ * {@link #lockForRenderThread()}) around anything that reads or changes the
+ * simulation: input, UI, and copying unit state over to the render peers.
+ * Updating and drawing the scene happens without the lock, so the two threads
+ * overlap there.
+ *
+ * Anything the simulation does to the render side (models, sounds, UI) has to
+ * happen on the render thread, so the forwarders in here queue those calls up
+ * for the next time the render thread takes the lock. The few calls that have to
+ * return something, like creating a unit with its render peer, make the
+ * simulation thread wait until the render thread has run them.
+ *
+ * When the thread is not running, everything just runs right away on the
+ * calling thread, same as before.
+ */
+public class SimulationThread implements Runnable {
+	private static final long MAX_SLEEP_NANOS = (long) (WarsmashConstants.SIMULATION_STEP_TIME * 1000000000L);
+
+	private final War3MapViewer viewer;
+	private final ReentrantLock simulationLock = new ReentrantLock();
+	private final ArrayDeque<Runnable> renderThreadTasks = new ArrayDeque<>();
+	// tasks in the queue that the simulation thread is blocked on
+	private int renderThreadTasksWaitedOn;
+	private final List<Runnable> tasksToRun = new ArrayList<>();
+	private Thread thread;
+	private Thread renderThread;
+	private volatile boolean running;
+
+	public SimulationThread(final War3MapViewer viewer) {
+		this.viewer = viewer;
+	}
+
+	/**
+	 * Starts ticking the simulation on its own thread. Must be called from the
+	 * render thread.
+	 */
+	public void start() {
+		if (this.thread != null) {
+			return;
+		}
+		this.renderThread = Thread.currentThread();
+		this.running = true;
+		this.thread = new Thread(this, "Simulation");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the simulation thread, and goes back to running everything on the
+	 * render thread. Must be called from the render thread.
+	 */
+	public void stop() {
+		if (this.thread == null) {
+			return;
+		}
+		this.running = false;
+		try {
+			while (this.thread.isAlive()) {
+				// the last tick may be waiting on us
+				runRenderThreadTasks(true);
+				this.thread.join(1);
+			}
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.thread = null;
+		runRenderThreadTasks(false);
+	}
+
+	public boolean isRunning() {
+		return this.thread != null;
+	}
+
+	@Override
+	public void run() {
+		long lastTime = System.nanoTime();
+		while (this.running) {
+			final long currentTime = System.nanoTime();
+			final float deltaTime = (currentTime - lastTime) / 1000000000f;
+			lastTime = currentTime;
+			final float timeUntilNextStep;
+			this.simulationLock.lock();
+			try {
+				timeUntilNextStep = this.viewer.advanceSimulation(deltaTime);
+			}
+			finally {
+				this.simulationLock.unlock();
+			}
+			final long sleepNanos = Math.max(1000000L,
+					Math.min(MAX_SLEEP_NANOS, (long) (timeUntilNextStep * 1000000000L)));
+			try {
+				Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+			}
+			catch (final InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes the simulation lock from the render thread, running whatever the
+	 * simulation queued up for the render thread first. Calls can nest.
+	 */
+	public void lockForRenderThread() {
+		if (this.simulationLock.isHeldByCurrentThread()) {
+			this.simulationLock.lock();
+			return;
+		}
+		try {
+			while (!this.simulationLock.tryLock(1, TimeUnit.MILLISECONDS)) {
+				// the tick holding the lock might be waiting on us to create something
+				runRenderThreadTasks(true);
+			}
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.simulationLock.lock();
+		}
+		runRenderThreadTasks(false);
+	}
+
+	public void unlock() {
+		this.simulationLock.unlock();
+	}
+
+	private void runRenderThreadTasks(final boolean onlyIfWaitedOn) {
+		synchronized (this.renderThreadTasks) {
+			if (onlyIfWaitedOn && (this.renderThreadTasksWaitedOn == 0)) {
+				return;
+			}
+			this.tasksToRun.addAll(this.renderThreadTasks);
+			this.renderThreadTasks.clear();
+			this.renderThreadTasksWaitedOn = 0;
+		}
+		for (int i = 0; i < this.tasksToRun.size(); i++) {
+			this.tasksToRun.get(i).run();
+		}
+		this.tasksToRun.clear();
+	}
+
+	private boolean isOffRenderThread() {
+		return (this.thread != null) && (Thread.currentThread() != this.renderThread);
+	}
+
+	/**
+	 * Runs the task on the render thread, right away if we are on it, otherwise
+	 * the next time it takes the simulation lock.
+	 */
+	public void postToRenderThread(final Runnable task) {
+		if (isOffRenderThread()) {
+			synchronized (this.renderThreadTasks) {
+				this.renderThreadTasks.add(task);
+			}
+		}
+		else {
+			task.run();
+		}
+	}
+
+	/**
+	 * Runs the task on the render thread and waits for the result. The caller is
+	 * expected to hold the simulation lock, which the render thread can not take
+	 * meanwhile, so this is only for things that can not be done any other way.
+	 */
+	public <T> T callOnRenderThread(final Callable<T> task) {
+		final FutureTask<T> futureTask = new FutureTask<>(task);
+		if (isOffRenderThread()) {
+			synchronized (this.renderThreadTasks) {
+				this.renderThreadTasks.add(futureTask);
+				this.renderThreadTasksWaitedOn++;
+			}
+		}
+		else {
+			futureTask.run();
+		}
+		try {
+			return futureTask.get();
+		}
+		catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the render thread", e);
+		}
+		catch (final ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	public SimulationRenderController forwardRenderController(final SimulationRenderController delegate) {
+		return new ForwardingRenderController(delegate);
+	}
+
+	public CUnitAnimationListener forwardAnimationListener(final CUnitAnimationListener delegate) {
+		return new ForwardingAnimationListener(delegate);
+	}
+
+	public CUnitStateListener forwardUnitStateListener(final CUnitStateListener delegate) {
+		return new ForwardingUnitStateListener(delegate);
+	}
+
+	public CPlayerStateListener forwardPlayerStateListener(final CPlayerStateListener delegate) {
+		return new ForwardingPlayerStateListener(delegate);
+	}
+
+	/**
+	 * Passes everything on to the render thread. createAttackProjectile is passed
+	 * through as is, since it happens all the time and should not make the
+	 * simulation wait, so the delegate must post its render work itself.
+	 */
+	private final class ForwardingRenderController implements SimulationRenderController {
+		private final SimulationRenderController delegate;
+
+		private ForwardingRenderController(final SimulationRenderController delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public CAttackProjectile createAttackProjectile(final CSimulation simulation, final float launchX,
+				final float launchY, final float launchFacing, final CUnit source, final CUnitAttackMissile attack,
+				final AbilityTarget target, final float damage, final int bounceIndex,
+				final CUnitAttackListener attackListener) {
+			return this.delegate.createAttackProjectile(simulation, launchX, launchY, launchFacing, source, attack,
+					target, damage, bounceIndex, attackListener);
+		}
+
+		@Override
+		public CUnit createUnit(final CSimulation simulation, final War3ID typeId, final int playerIndex,
+				final float x, final float y, final float facing) {
+			return callOnRenderThread(new Callable<CUnit>() {
+				@Override
+				public CUnit call() {
+					return ForwardingRenderController.this.delegate.createUnit(simulation, typeId, playerIndex, x, y,
+							facing);
+				}
+			});
+		}
+
+		@Override
+		public void createInstantAttackEffect(final CSimulation cSimulation, final CUnit source,
+				final CUnitAttackInstant attack, final CWidget target) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.createInstantAttackEffect(cSimulation, source, attack,
+							target);
+				}
+			});
+		}
+
+		@Override
+		public void spawnDamageSound(final CWidget damagedDestructable, final String weaponSound,
+				final String armorType) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnDamageSound(damagedDestructable, weaponSound,
+							armorType);
+				}
+			});
+		}
+
+		@Override
+		public void spawnUnitConstructionSound(final CUnit constructingUnit, final CUnit constructedStructure) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnUnitConstructionSound(constructingUnit,
+							constructedStructure);
+				}
+			});
+		}
+
+		@Override
+		public void removeUnit(final CUnit unit) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.removeUnit(unit);
+				}
+			});
+		}
+
+		@Override
+		public void removeDestructable(final CDestructable dest) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.removeDestructable(dest);
+				}
+			});
+		}
+
+		@Override
+		public BufferedImage getBuildingPathingPixelMap(final War3ID rawcode) {
+			// reads from the map archive, which the render thread also reads models from
+			return callOnRenderThread(new Callable<BufferedImage>() {
+				@Override
+				public BufferedImage call() {
+					return ForwardingRenderController.this.delegate.getBuildingPathingPixelMap(rawcode);
+				}
+			});
+		}
+
+		@Override
+		public BufferedImage getDestructablePathingPixelMap(final War3ID rawcode) {
+			return callOnRenderThread(new Callable<BufferedImage>() {
+				@Override
+				public BufferedImage call() {
+					return ForwardingRenderController.this.delegate.getDestructablePathingPixelMap(rawcode);
+				}
+			});
+		}
+
+		@Override
+		public BufferedImage getDestructablePathingDeathPixelMap(final War3ID rawcode) {
+			return callOnRenderThread(new Callable<BufferedImage>() {
+				@Override
+				public BufferedImage call() {
+					return ForwardingRenderController.this.delegate.getDestructablePathingDeathPixelMap(rawcode);
+				}
+			});
+		}
+
+		@Override
+		public void spawnUnitConstructionFinishSound(final CUnit constructedStructure) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnUnitConstructionFinishSound(constructedStructure);
+				}
+			});
+		}
+
+		@Override
+		public void spawnBuildingDeathEffect(final CUnit cUnit) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnBuildingDeathEffect(cUnit);
+				}
+			});
+		}
+
+		@Override
+		public void spawnGainLevelEffect(final CUnit cUnit) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnGainLevelEffect(cUnit);
+				}
+			});
+		}
+
+		@Override
+		public void spawnUnitReadySound(final CUnit trainedUnit) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnUnitReadySound(trainedUnit);
+				}
+			});
+		}
+
+		@Override
+		public void unitRepositioned(final CUnit cUnit) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.unitRepositioned(cUnit);
+				}
+			});
+		}
+
+		@Override
+		public void spawnGainResourceTextTag(final CUnit gainingUnit, final ResourceType resourceType,
+				final int amount) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnGainResourceTextTag(gainingUnit, resourceType,
+							amount);
+				}
+			});
+		}
+
+		@Override
+		public void spawnEffectOnUnit(final CUnit unit, final String effectPath) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnEffectOnUnit(unit, effectPath);
+				}
+			});
+		}
+
+		@Override
+		public void spawnSpellEffectOnUnit(final CUnit unit, final War3ID alias) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnSpellEffectOnUnit(unit, alias);
+				}
+			});
+		}
+
+		@Override
+		public void spawnUIUnitGetItemSound(final CUnit cUnit, final CItem item) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnUIUnitGetItemSound(cUnit, item);
+				}
+			});
+		}
+
+		@Override
+		public void spawnUIUnitDropItemSound(final CUnit cUnit, final CItem item) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnUIUnitDropItemSound(cUnit, item);
+				}
+			});
+		}
+
+		@Override
+		public void spawnAbilitySoundEffect(final CUnit caster, final War3ID alias) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.spawnAbilitySoundEffect(caster, alias);
+				}
+			});
+		}
+
+		@Override
+		public void unitPreferredSelectionReplacement(final CUnit unit, final CUnit newUnit) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.unitPreferredSelectionReplacement(unit, newUnit);
+				}
+			});
+		}
+
+		@Override
+		public void heroRevived(final CUnit trainedUnit) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.heroRevived(trainedUnit);
+				}
+			});
+		}
+
+		@Override
+		public void heroDeathEvent(final CUnit cUnit) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingRenderController.this.delegate.heroDeathEvent(cUnit);
+				}
+			});
+		}
+	}
+
+	private final class ForwardingAnimationListener implements CUnitAnimationListener {
+		private final CUnitAnimationListener delegate;
+
+		private ForwardingAnimationListener(final CUnitAnimationListener delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void playAnimation(final boolean force, final PrimaryTag animationName,
+				final EnumSet<SecondaryTag> secondaryAnimationTags, final float speedRatio,
+				final boolean allowRarityVariations) {
+			// the simulation may keep changing its tag set after this
+			final EnumSet<SecondaryTag> secondaryAnimationTagsCopy = EnumSet.copyOf(secondaryAnimationTags);
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingAnimationListener.this.delegate.playAnimation(force, animationName,
+							secondaryAnimationTagsCopy, speedRatio, allowRarityVariations);
+				}
+			});
+		}
+
+		@Override
+		public void playWalkAnimation(final boolean force, final float currentMovementSpeed,
+				final boolean allowRarityVariations) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingAnimationListener.this.delegate.playWalkAnimation(force, currentMovementSpeed,
+							allowRarityVariations);
+				}
+			});
+		}
+
+		@Override
+		public void queueAnimation(final PrimaryTag animationName, final EnumSet<SecondaryTag> secondaryAnimationTags,
+				final boolean allowRarityVariations) {
+			final EnumSet<SecondaryTag> secondaryAnimationTagsCopy = EnumSet.copyOf(secondaryAnimationTags);
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingAnimationListener.this.delegate.queueAnimation(animationName, secondaryAnimationTagsCopy,
+							allowRarityVariations);
+				}
+			});
+		}
+
+		@Override
+		public void addSecondaryTag(final SecondaryTag secondaryTag) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingAnimationListener.this.delegate.addSecondaryTag(secondaryTag);
+				}
+			});
+		}
+
+		@Override
+		public void removeSecondaryTag(final SecondaryTag secondaryTag) {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingAnimationListener.this.delegate.removeSecondaryTag(secondaryTag);
+				}
+			});
+		}
+	}
+
+	private final class ForwardingUnitStateListener implements CUnitStateListener {
+		private final CUnitStateListener delegate;
+
+		private ForwardingUnitStateListener(final CUnitStateListener delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void lifeChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingUnitStateListener.this.delegate.lifeChanged();
+				}
+			});
+		}
+
+		@Override
+		public void ordersChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingUnitStateListener.this.delegate.ordersChanged();
+				}
+			});
+		}
+
+		@Override
+		public void queueChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingUnitStateListener.this.delegate.queueChanged();
+				}
+			});
+		}
+
+		@Override
+		public void rallyPointChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingUnitStateListener.this.delegate.rallyPointChanged();
+				}
+			});
+		}
+
+		@Override
+		public void waypointsChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingUnitStateListener.this.delegate.waypointsChanged();
+				}
+			});
+		}
+
+		@Override
+		public void heroStatsChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingUnitStateListener.this.delegate.heroStatsChanged();
+				}
+			});
+		}
+
+		@Override
+		public void inventoryChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingUnitStateListener.this.delegate.inventoryChanged();
+				}
+			});
+		}
+	}
+
+	private final class ForwardingPlayerStateListener implements CPlayerStateListener {
+		private final CPlayerStateListener delegate;
+
+		private ForwardingPlayerStateListener(final CPlayerStateListener delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void goldChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingPlayerStateListener.this.delegate.goldChanged();
+				}
+			});
+		}
+
+		@Override
+		public void lumberChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingPlayerStateListener.this.delegate.lumberChanged();
+				}
+			});
+		}
+
+		@Override
+		public void foodChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingPlayerStateListener.this.delegate.foodChanged();
+				}
+			});
+		}
+
+		@Override
+		public void upkeepChanged() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingPlayerStateListener.this.delegate.upkeepChanged();
+				}
+			});
+		}
+
+		@Override
+		public void heroDeath() {
+			postToRenderThread(new Runnable() {
+				@Override
+				public void run() {
+					ForwardingPlayerStateListener.this.delegate.heroDeath();
+				}
+			});
+		}
+	}
+}
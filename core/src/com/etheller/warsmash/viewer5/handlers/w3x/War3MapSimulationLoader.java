@@ -0,0 +1,218 @@
+package com.etheller.warsmash.viewer5.handlers.w3x;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import com.etheller.warsmash.datasources.DataSource;
+import com.etheller.warsmash.parsers.w3x.doo.Doodad;
+import com.etheller.warsmash.parsers.w3x.objectdata.Warcraft3MapObjectData;
+import com.etheller.warsmash.units.DataTable;
+import com.etheller.warsmash.units.Element;
+import com.etheller.warsmash.units.manager.MutableObjectData.MutableGameObject;
+import com.etheller.warsmash.util.War3ID;
+import com.etheller.warsmash.util.WorldEditStrings;
+import com.etheller.warsmash.viewer5.handlers.tga.TgaFile;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.RemovablePathingMapInstance;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CDestructable;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulation;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnit;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.targeting.AbilityTarget;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.attacks.CUnitAttackListener;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.attacks.CUnitAttackMissile;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.projectile.CAttackProjectile;
+
+/**
+ * The parts of loading a map that decide what the simulation sees: misc data,
+ * pathing textures, where buildings snap to, destructables and units, and where
+ * projectiles launch from. Shared by War3MapViewer and HeadlessSimulationHost,
+ * so that a game comes out the same whether or not anyone is watching it.
+ */
+public class War3MapSimulationLoader {
+	private static final War3ID UNIT_PATHING = War3ID.fromString("upat");
+	private static final War3ID DESTRUCTABLE_PATHING = War3ID.fromString("bptx");
+	private static final War3ID DESTRUCTABLE_PATHING_DEATH = War3ID.fromString("bptd");
+	private static final String[] MISC_DATA_PATHS = { "UI\\MiscData.txt", "Units\\MiscData.txt",
+			"Units\\MiscGame.txt", "UI\\MiscUI.txt", "UI\\SoundInfo\\MiscData.txt" };
+	private static final String MAP_MISC_DATA_PATH = "war3mapMisc.txt";
+
+	private final DataSource mapDataSource;
+	private final Warcraft3MapObjectData allObjectData;
+	private final PathingGrid pathingGrid;
+	private final Map<String, BufferedImage> filePathToPathingMap = new HashMap<>();
+	private CSimulation simulation;
+
+	public War3MapSimulationLoader(final DataSource mapDataSource, final Warcraft3MapObjectData allObjectData,
+			final PathingGrid pathingGrid) {
+		this.mapDataSource = mapDataSource;
+		this.allObjectData = allObjectData;
+		this.pathingGrid = pathingGrid;
+	}
+
+	/**
+	 * Must be called before creating destructables or units, the simulation is
+	 * made after the loader because its render controller needs the pathing
+	 * textures.
+	 */
+	public void setSimulation(final CSimulation simulation) {
+		this.simulation = simulation;
+	}
+
+	public static DataTable loadMiscData(final DataSource dataSource, final WorldEditStrings worldEditStrings)
+			throws IOException {
+		final DataTable miscData = new DataTable(worldEditStrings);
+		for (final String miscDataPath : MISC_DATA_PATHS) {
+			try (InputStream miscDataTxtStream = dataSource.getResourceAsStream(miscDataPath)) {
+				miscData.readTXT(miscDataTxtStream, true);
+			}
+		}
+		if (dataSource.has(MAP_MISC_DATA_PATH)) {
+			try (InputStream miscDataTxtStream = dataSource.getResourceAsStream(MAP_MISC_DATA_PATH)) {
+				miscData.readTXT(miscDataTxtStream, true);
+			}
+		}
+		final Element misc = miscData.get("Misc");
+		// TODO Find the upkeep constants inside the assets files ?????
+		if (!misc.hasField("UpkeepUsage")) {
+			misc.setField("UpkeepUsage", "50,80,10000,10000,10000,10000,10000,10000,10000,10000");
+		}
+		if (!misc.hasField("UpkeepGoldTax")) {
+			misc.setField("UpkeepGoldTax", "0.00,0.30,0.60,0.60,0.60,0.60,0.60,0.60,0.60,0.60");
+		}
+		if (!misc.hasField("UpkeepLumberTax")) {
+			misc.setField("UpkeepLumberTax", "0.00,0.00,0.00,0.00,0.00,0.00,0.00,0.00,0.00,0.00");
+		}
+		return miscData;
+	}
+
+	/**
+	 * Makes the simulation side of a missile attack, offset from the launching
+	 * unit by its projectile launch X and Y.
+	 */
+	public static CAttackProjectile createAttackProjectile(final CSimulation simulation, final float launchX,
+			final float launchY, final float launchFacing, final CUnit source, final CUnitAttackMissile unitAttack,
+			final AbilityTarget target, final float damage, final int bounceIndex,
+			final CUnitAttackListener attackListener) {
+		final War3ID typeId = source.getTypeId();
+		final float projectileLaunchX = simulation.getUnitData().getProjectileLaunchX(typeId);
+		final float projectileLaunchY = simulation.getUnitData().getProjectileLaunchY(typeId);
+		final float sinFacing = (float) Math.sin(launchFacing);
+		final float cosFacing = (float) Math.cos(launchFacing);
+		final float x = (launchX + (projectileLaunchY * cosFacing)) + (projectileLaunchX * sinFacing);
+		final float y = (launchY + (projectileLaunchY * sinFacing)) - (projectileLaunchX * cosFacing);
+		return new CAttackProjectile(x, y, unitAttack.getProjectileSpeed(), target, source, damage, unitAttack,
+				bounceIndex, attackListener);
+	}
+
+	/**
+	 * Creates a destructable placed in the map's doodads layer, with its pathing
+	 * and the life it was given in the editor.
+	 */
+	public CDestructable createDestructable(final MutableGameObject row, final Doodad doodad) {
+		final float x = doodad.getLocation()[0];
+		final float y = doodad.getLocation()[1];
+		final int angle = (int) Math.toDegrees(doodad.getAngle());
+		RemovablePathingMapInstance destructablePathing = null;
+		RemovablePathingMapInstance destructablePathingDeath = null;
+		final BufferedImage destructablePathingPixelMap = getDestructablePathingPixelMap(row);
+		if (destructablePathingPixelMap != null) {
+			destructablePathing = this.pathingGrid.createRemovablePathingOverlayTexture(x, y, angle,
+					destructablePathingPixelMap);
+			if (doodad.getLife() > 0) {
+				destructablePathing.add();
+			}
+		}
+		final BufferedImage destructablePathingDeathPixelMap = getDestructablePathingDeathPixelMap(row);
+		if (destructablePathingDeathPixelMap != null) {
+			destructablePathingDeath = this.pathingGrid.createRemovablePathingOverlayTexture(x, y, angle,
+					destructablePathingDeathPixelMap);
+			if (doodad.getLife() <= 0) {
+				destructablePathingDeath.add();
+			}
+		}
+		final CDestructable simulationDestructable = this.simulation.createDestructable(row.getAlias(), x, y,
+				destructablePathing, destructablePathingDeath);
+		simulationDestructable.setLife(this.simulation, simulationDestructable.getLife() * (doodad.getLife() / 100f));
+		return simulationDestructable;
+	}
+
+	/**
+	 * Creates a unit, snapping buildings to the 64 unit grid so that they block
+	 * whole pathing cells.
+	 *
+	 * @param facing in degrees
+	 */
+	public CUnit createUnit(final MutableGameObject row, final int playerIndex, float unitX, float unitY,
+			final float facing) {
+		final BufferedImage buildingPathingPixelMap = getBuildingPathingPixelMap(row);
+		RemovablePathingMapInstance pathingInstance = null;
+		if (buildingPathingPixelMap != null) {
+			unitX = (float) Math.floor(unitX / 64f) * 64f;
+			unitY = (float) Math.floor(unitY / 64f) * 64f;
+			if (((buildingPathingPixelMap.getWidth() / 2) % 2) == 1) {
+				unitX += 32f;
+			}
+			if (((buildingPathingPixelMap.getHeight() / 2) % 2) == 1) {
+				unitY += 32f;
+			}
+			pathingInstance = this.pathingGrid.blitRemovablePathingOverlayTexture(unitX, unitY, (int) facing,
+					buildingPathingPixelMap);
+		}
+		return this.simulation.internalCreateUnit(row.getAlias(), playerIndex, unitX, unitY, facing,
+				buildingPathingPixelMap, pathingInstance);
+	}
+
+	public BufferedImage getBuildingPathingPixelMap(final War3ID rawcode) {
+		return getBuildingPathingPixelMap(this.allObjectData.getUnits().get(rawcode));
+	}
+
+	public BufferedImage getDestructablePathingPixelMap(final War3ID rawcode) {
+		return getDestructablePathingPixelMap(this.allObjectData.getDestructibles().get(rawcode));
+	}
+
+	public BufferedImage getDestructablePathingDeathPixelMap(final War3ID rawcode) {
+		return getDestructablePathingDeathPixelMap(this.allObjectData.getDestructibles().get(rawcode));
+	}
+
+	public BufferedImage getBuildingPathingPixelMap(final MutableGameObject row) {
+		return loadPathingTexture(row.getFieldAsString(UNIT_PATHING, 0));
+	}
+
+	public BufferedImage getDestructablePathingPixelMap(final MutableGameObject row) {
+		return loadPathingTexture(row.getFieldAsString(DESTRUCTABLE_PATHING, 0));
+	}
+
+	public BufferedImage getDestructablePathingDeathPixelMap(final MutableGameObject row) {
+		return loadPathingTexture(row.getFieldAsString(DESTRUCTABLE_PATHING_DEATH, 0));
+	}
+
+	private BufferedImage loadPathingTexture(final String pathingTexture) {
+		BufferedImage pathingPixelMap = null;
+		if ((pathingTexture != null) && (pathingTexture.length() > 0) && !"_".equals(pathingTexture)) {
+			pathingPixelMap = this.filePathToPathingMap.get(pathingTexture.toLowerCase());
+			if (pathingPixelMap == null) {
+				try {
+					if (pathingTexture.toLowerCase().endsWith(".tga")) {
+						pathingPixelMap = TgaFile.readTGA(pathingTexture,
+								this.mapDataSource.getResourceAsStream(pathingTexture));
+					}
+					else {
+						try (InputStream stream = this.mapDataSource.getResourceAsStream(pathingTexture)) {
+							pathingPixelMap = ImageIO.read(stream);
+						}
+					}
+					this.filePathToPathingMap.put(pathingTexture.toLowerCase(), pathingPixelMap);
+				}
+				catch (final Exception exc) {
+					System.err.println("Failure to get pathing: " + exc.getClass() + ":" + exc.getMessage());
+				}
+			}
+		}
+		return pathingPixelMap;
+	}
+}
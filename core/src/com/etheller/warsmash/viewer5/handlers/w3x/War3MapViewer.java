@@ -5,6 +5,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
@@ -14,12 +15,9 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.function.Consumer;
 
-import javax.imageio.ImageIO;
-
 import org.apache.commons.compress.utils.IOUtils;
 import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 
@@ -82,7 +80,6 @@ import com.etheller.warsmash.viewer5.handlers.mdx.SequenceLoopMode;
 import com.etheller.warsmash.viewer5.handlers.tga.TgaFile;
 import com.etheller.warsmash.viewer5.handlers.w3x.SplatModel.SplatMover;
 import com.etheller.warsmash.viewer5.handlers.w3x.environment.BuildingShadow;
-import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.RemovablePathingMapInstance;
 import com.etheller.warsmash.viewer5.handlers.w3x.environment.Terrain;
 import com.etheller.warsmash.viewer5.handlers.w3x.environment.Terrain.Splat;
 import com.etheller.warsmash.viewer5.handlers.w3x.rendersim.RenderAttackInstant;
@@ -99,6 +96,8 @@ import com.etheller.warsmash.viewer5.handlers.w3x.rendersim.ability.AbilityUI;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CDestructable;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CItem;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulation;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulationRandom;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulationSnapshot;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnit;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnitClassification;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CWidget;
@@ -141,9 +140,6 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 	public static final War3ID UNIT_SELECT_SCALE = War3ID.fromString("ussc");
 	private static final War3ID UNIT_SOUNDSET = War3ID.fromString("usnd");
 	private static final War3ID ITEM_FILE = War3ID.fromString("ifil");
-	private static final War3ID UNIT_PATHING = War3ID.fromString("upat");
-	private static final War3ID DESTRUCTABLE_PATHING = War3ID.fromString("bptx");
-	private static final War3ID DESTRUCTABLE_PATHING_DEATH = War3ID.fromString("bptd");
 	private static final War3ID ELEVATION_SAMPLE_RADIUS = War3ID.fromString("uerd");
 	private static final War3ID MAX_PITCH = War3ID.fromString("umxp");
 	private static final War3ID ALLOW_CUSTOM_TEAM_COLOR = War3ID.fromString("utcc");
@@ -179,6 +175,7 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 	public List<TerrainDoodad> terrainDoodads = new ArrayList<>();
 	public boolean doodadsReady;
 	public boolean unitsAndItemsLoaded;
+	private CSimulationSnapshot snapshotToRestore;
 	public MappedData unitsData = new MappedData();
 	public MappedData unitMetaData = new MappedData();
 	public List<RenderWidget> widgets = new ArrayList<>();
@@ -208,14 +205,18 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 	public MdxComplexInstance dncTerrain;
 	public MdxComplexInstance dncTarget;
 	public CSimulation simulation;
+	private War3MapSimulationLoader simulationLoader;
 	private float updateTime;
+	private final SimulationThread simulationThread = new SimulationThread(this);
+	private volatile long lastSimulationTickTime;
 
 	// for World Editor, I think
 	public Vector2[] startLocations = new Vector2[WarsmashConstants.MAX_PLAYERS];
 
 	private final DynamicShadowManager dynamicShadowManager = new DynamicShadowManager();
 
-	private final Random seededRandom = new Random(1337L);
+	private final CSimulationRandom seededRandom = new CSimulationRandom(
+			WarsmashConstants.SIMULATION_RANDOM_SEED);
 
 	private final Map<String, BufferedImage> filePathToPathingMap = new HashMap<>();
 
@@ -323,38 +324,7 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 				.getResourceAsStream("UI\\SoundInfo\\UnitCombatSounds.slk")) {
 			this.unitCombatSoundsTable.readSLK(terrainSlkStream);
 		}
-		this.miscData = new DataTable(worldEditStrings);
-		try (InputStream miscDataTxtStream = this.dataSource.getResourceAsStream("UI\\MiscData.txt")) {
-			this.miscData.readTXT(miscDataTxtStream, true);
-		}
-		try (InputStream miscDataTxtStream = this.dataSource.getResourceAsStream("Units\\MiscData.txt")) {
-			this.miscData.readTXT(miscDataTxtStream, true);
-		}
-		try (InputStream miscDataTxtStream = this.dataSource.getResourceAsStream("Units\\MiscGame.txt")) {
-			this.miscData.readTXT(miscDataTxtStream, true);
-		}
-		try (InputStream miscDataTxtStream = this.dataSource.getResourceAsStream("UI\\MiscUI.txt")) {
-			this.miscData.readTXT(miscDataTxtStream, true);
-		}
-		try (InputStream miscDataTxtStream = this.dataSource.getResourceAsStream("UI\\SoundInfo\\MiscData.txt")) {
-			this.miscData.readTXT(miscDataTxtStream, true);
-		}
-		if (this.dataSource.has("war3mapMisc.txt")) {
-			try (InputStream miscDataTxtStream = this.dataSource.getResourceAsStream("war3mapMisc.txt")) {
-				this.miscData.readTXT(miscDataTxtStream, true);
-			}
-		}
-		final Element misc = this.miscData.get("Misc");
-		// TODO Find the upkeep constants inside the assets files ?????
-		if (!misc.hasField("UpkeepUsage")) {
-			misc.setField("UpkeepUsage", "50,80,10000,10000,10000,10000,10000,10000,10000,10000");
-		}
-		if (!misc.hasField("UpkeepGoldTax")) {
-			misc.setField("UpkeepGoldTax", "0.00,0.30,0.60,0.60,0.60,0.60,0.60,0.60,0.60,0.60");
-		}
-		if (!misc.hasField("UpkeepLumberTax")) {
-			misc.setField("UpkeepLumberTax", "0.00,0.00,0.00,0.00,0.00,0.00,0.00,0.00,0.00,0.00");
-		}
+		this.miscData = War3MapSimulationLoader.loadMiscData(this.dataSource, worldEditStrings);
 		final Element light = this.miscData.get("Light");
 		final float lightX = light.getFieldFloatValue("Direction", 0);
 		final float lightY = light.getFieldFloatValue("Direction", 1);
@@ -533,9 +503,11 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 		else {
 			this.allObjectData = this.mapMpq.readModifications();
 		}
+		this.simulationLoader = new War3MapSimulationLoader(this.mapMpq, this.allObjectData,
+				this.terrain.pathingGrid);
 		this.simulation = new CSimulation(this.mapConfig, this.miscData, this.allObjectData.getUnits(),
 				this.allObjectData.getItems(), this.allObjectData.getDestructibles(), this.allObjectData.getAbilities(),
-				new SimulationRenderController() {
+				this.simulationThread.forwardRenderController(new SimulationRenderController() {
 					private final Map<String, UnitSound> keyToCombatSound = new HashMap<>();
 
 					@Override
@@ -544,41 +516,44 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 							final CUnitAttackMissile unitAttack, final AbilityTarget target, final float damage,
 							final int bounceIndex, final CUnitAttackListener attackListener) {
 						final War3ID typeId = source.getTypeId();
-						final int projectileSpeed = unitAttack.getProjectileSpeed();
 						final float projectileArc = unitAttack.getProjectileArc();
 						String missileArt = unitAttack.getProjectileArt();
-						final float projectileLaunchX = simulation.getUnitData().getProjectileLaunchX(typeId);
-						final float projectileLaunchY = simulation.getUnitData().getProjectileLaunchY(typeId);
 						final float projectileLaunchZ = simulation.getUnitData().getProjectileLaunchZ(typeId);
 
 						missileArt = mdx(missileArt);
-						final float facing = launchFacing;
-						final float sinFacing = (float) Math.sin(facing);
-						final float cosFacing = (float) Math.cos(facing);
-						final float x = (launchX + (projectileLaunchY * cosFacing)) + (projectileLaunchX * sinFacing);
-						final float y = (launchY + (projectileLaunchY * sinFacing)) - (projectileLaunchX * cosFacing);
+						final CAttackProjectile simulationAttackProjectile = War3MapSimulationLoader
+								.createAttackProjectile(simulation, launchX, launchY, launchFacing, source, unitAttack,
+										target, damage, bounceIndex, attackListener);
+						final float x = simulationAttackProjectile.getX();
+						final float y = simulationAttackProjectile.getY();
 
 						final float height = War3MapViewer.this.terrain.getGroundHeight(x, y) + source.getFlyHeight()
 								+ projectileLaunchZ;
-						final CAttackProjectile simulationAttackProjectile = new CAttackProjectile(x, y,
-								projectileSpeed, target, source, damage, unitAttack, bounceIndex, attackListener);
 
-						final MdxModel model = (MdxModel) load(missileArt, War3MapViewer.this.mapPathSolver,
-								War3MapViewer.this.solverParams);
-						final MdxComplexInstance modelInstance = (MdxComplexInstance) model.addInstance();
-						modelInstance.setTeamColor(source.getPlayerIndex());
-						modelInstance.setScene(War3MapViewer.this.worldScene);
-						if (bounceIndex == 0) {
-							SequenceUtils.randomBirthSequence(modelInstance);
-						}
-						else {
-							SequenceUtils.randomStandSequence(modelInstance);
-						}
-						modelInstance.setLocation(x, y, height);
-						final RenderAttackProjectile renderAttackProjectile = new RenderAttackProjectile(
-								simulationAttackProjectile, modelInstance, height, projectileArc, War3MapViewer.this);
+						// the simulation does not wait on the model, so this is not forwarded
+						final String projectileModelPath = missileArt;
+						War3MapViewer.this.simulationThread.postToRenderThread(new Runnable() {
+							@Override
+							public void run() {
+								final MdxModel model = (MdxModel) load(projectileModelPath,
+										War3MapViewer.this.mapPathSolver, War3MapViewer.this.solverParams);
+								final MdxComplexInstance modelInstance = (MdxComplexInstance) model.addInstance();
+								modelInstance.setTeamColor(source.getPlayerIndex());
+								modelInstance.setScene(War3MapViewer.this.worldScene);
+								if (bounceIndex == 0) {
+									SequenceUtils.randomBirthSequence(modelInstance);
+								}
+								else {
+									SequenceUtils.randomStandSequence(modelInstance);
+								}
+								modelInstance.setLocation(x, y, height);
+								final RenderAttackProjectile renderAttackProjectile = new RenderAttackProjectile(
+										simulationAttackProjectile, modelInstance, height, projectileArc,
+										War3MapViewer.this);
 
-						War3MapViewer.this.projectiles.add(renderAttackProjectile);
+								War3MapViewer.this.projectiles.add(renderAttackProjectile);
+							}
+						});
 
 						return simulationAttackProjectile;
 					}
@@ -670,20 +645,17 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 
 					@Override
 					public BufferedImage getBuildingPathingPixelMap(final War3ID rawcode) {
-						return War3MapViewer.this
-								.getBuildingPathingPixelMap(War3MapViewer.this.allObjectData.getUnits().get(rawcode));
+						return War3MapViewer.this.simulationLoader.getBuildingPathingPixelMap(rawcode);
 					}
 
 					@Override
 					public BufferedImage getDestructablePathingDeathPixelMap(final War3ID rawcode) {
-						return War3MapViewer.this.getDestructablePathingDeathPixelMap(
-								War3MapViewer.this.allObjectData.getDestructibles().get(rawcode));
+						return War3MapViewer.this.simulationLoader.getDestructablePathingDeathPixelMap(rawcode);
 					}
 
 					@Override
 					public BufferedImage getDestructablePathingPixelMap(final War3ID rawcode) {
-						return War3MapViewer.this.getDestructablePathingPixelMap(
-								War3MapViewer.this.allObjectData.getDestructibles().get(rawcode));
+						return War3MapViewer.this.simulationLoader.getDestructablePathingPixelMap(rawcode);
 					}
 
 					@Override
@@ -860,7 +832,9 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 						oldRenderPeer.setPreferredSelectionReplacement(newRenderPeer);
 
 					}
-				}, this.terrain.pathingGrid, this.terrain.getEntireMap(), this.seededRandom, this.commandErrorListener);
+				}), this.terrain.pathingGrid, this.terrain.getEntireMap(), this.seededRandom,
+				this.commandErrorListener);
+		this.simulationLoader.setSimulation(this.simulation);
 
 		this.walkableObjectsTree = new Quadtree<>(this.terrain.getEntireMap());
 		if (this.doodadsAndDestructiblesLoaded) {
@@ -907,14 +881,6 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 		}
 	}
 
-	protected BufferedImage getDestructablePathingPixelMap(final MutableGameObject row) {
-		return loadPathingTexture(row.getFieldAsString(DESTRUCTABLE_PATHING, 0));
-	}
-
-	protected BufferedImage getDestructablePathingDeathPixelMap(final MutableGameObject row) {
-		return loadPathingTexture(row.getFieldAsString(DESTRUCTABLE_PATHING_DEATH, 0));
-	}
-
 	private void loadSounds() {
 		this.uiSounds = new KeyedSounds(this.uiSoundsTable, this.mapMpq);
 	}
@@ -968,8 +934,7 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 			}
 			if (row != null) {
 				BuildingShadow destructableShadow = null;
-				RemovablePathingMapInstance destructablePathing = null;
-				RemovablePathingMapInstance destructablePathingDeath = null;
+				CDestructable simulationDestructable = null;
 				String file = row.readSLKTag("file");
 				final int numVar = row.readSLKTagInt("numVar");
 
@@ -996,24 +961,7 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 								doodad.getLocation()[1]);
 					}
 
-					final BufferedImage destructablePathingPixelMap = getDestructablePathingPixelMap(row);
-					if (destructablePathingPixelMap != null) {
-						destructablePathing = this.terrain.pathingGrid.createRemovablePathingOverlayTexture(
-								doodad.getLocation()[0], doodad.getLocation()[1],
-								(int) Math.toDegrees(doodad.getAngle()), destructablePathingPixelMap);
-						if (doodad.getLife() > 0) {
-							destructablePathing.add();
-						}
-					}
-					final BufferedImage destructablePathingDeathPixelMap = getDestructablePathingDeathPixelMap(row);
-					if (destructablePathingDeathPixelMap != null) {
-						destructablePathingDeath = this.terrain.pathingGrid.createRemovablePathingOverlayTexture(
-								doodad.getLocation()[0], doodad.getLocation()[1],
-								(int) Math.toDegrees(doodad.getAngle()), destructablePathingDeathPixelMap);
-						if (doodad.getLife() <= 0) {
-							destructablePathingDeath.add();
-						}
-					}
+					simulationDestructable = this.simulationLoader.createDestructable(row, doodad);
 				}
 				// First see if the model is local.
 				// Doodads referring to local models may have invalid variations, so if the
@@ -1037,10 +985,6 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 				if (type == WorldEditorDataType.DESTRUCTIBLES) {
 					final float x = doodad.getLocation()[0];
 					final float y = doodad.getLocation()[1];
-					final CDestructable simulationDestructable = this.simulation.createDestructable(row.getAlias(), x,
-							y, destructablePathing, destructablePathingDeath);
-					simulationDestructable.setLife(this.simulation,
-							simulationDestructable.getLife() * (doodad.getLife() / 100f));
 					final RenderDestructable renderDestructable = new RenderDestructable(this, model, row, doodad, type,
 							maxPitch, maxRoll, doodad.getLife(), destructableShadow, simulationDestructable);
 					if (row.readSLKTagBoolean("walkable")) {
@@ -1170,7 +1114,10 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 
 		this.soundsetNameToSoundset = new HashMap<>();
 
-		if (this.dataSource.has("war3mapUnits.doo")) {
+		if (this.snapshotToRestore != null) {
+			restoreSnapshot(mpq, modifications);
+		}
+		else if (this.dataSource.has("war3mapUnits.doo")) {
 			final War3MapUnitsDoo dooFile = mpq.readUnits();
 
 			// Collect the units and items data.
@@ -1196,8 +1143,11 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 					}
 				}
 			}
+			this.simulation.unitsLoaded();
+		}
+		else {
+			this.simulation.unitsLoaded();
 		}
-		this.simulation.unitsLoaded();
 
 		this.terrain.loadSplats();
 
@@ -1214,9 +1164,8 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 		SplatMover unitShadowSplatDynamicIngame = null;
 		Splat buildingUberSplat = null;
 		SplatMover buildingUberSplatDynamicIngame = null;
-		BufferedImage buildingPathingPixelMap = null;
 		final float unitVertexScale = 1.0f;
-		RemovablePathingMapInstance pathingInstance = null;
+		CUnit simulationUnit = null;
 		BuildingShadow buildingShadowInstance = null;
 
 		// Hardcoded?
@@ -1269,19 +1218,11 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 				type = WorldEditorDataType.UNITS;
 				path = getUnitModelPath(row);
 
-				buildingPathingPixelMap = getBuildingPathingPixelMap(row);
-				if (buildingPathingPixelMap != null) {
-					unitX = (float) Math.floor(unitX / 64f) * 64f;
-					unitY = (float) Math.floor(unitY / 64f) * 64f;
-					if (((buildingPathingPixelMap.getWidth() / 2) % 2) == 1) {
-						unitX += 32f;
-					}
-					if (((buildingPathingPixelMap.getHeight() / 2) % 2) == 1) {
-						unitY += 32f;
-					}
-					pathingInstance = this.terrain.pathingGrid.blitRemovablePathingOverlayTexture(unitX, unitY,
-							(int) Math.toDegrees(unitAngle), buildingPathingPixelMap);
-				}
+				simulationUnit = this.simulationLoader.createUnit(row, playerIndex, unitX, unitY,
+						(float) Math.toDegrees(unitAngle));
+				// buildings snap to the pathing grid
+				unitX = simulationUnit.getX();
+				unitY = simulationUnit.getY();
 
 				final String uberSplat = row.getFieldAsString(UBER_SPLAT, 0);
 				if (uberSplat != null) {
@@ -1375,9 +1316,6 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 				portraitModel = model;
 			}
 			if (type == WorldEditorDataType.UNITS) {
-				final float angle = (float) Math.toDegrees(unitAngle);
-				final CUnit simulationUnit = this.simulation.internalCreateUnit(row.getAlias(), playerIndex, unitX,
-						unitY, angle, buildingPathingPixelMap, pathingInstance);
 				final RenderUnitTypeData typeData = getUnitTypeData(unitId, row);
 				if (!typeData.isAllowCustomTeamColor() || (customTeamColor == -1)) {
 					if (typeData.getTeamColor() != -1) {
@@ -1461,38 +1399,6 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 		return path;
 	}
 
-	private BufferedImage getBuildingPathingPixelMap(final MutableGameObject row) {
-		final String pathingTexture = row.getFieldAsString(UNIT_PATHING, 0);
-		final BufferedImage buildingPathingPixelMap = loadPathingTexture(pathingTexture);
-		return buildingPathingPixelMap;
-	}
-
-	private BufferedImage loadPathingTexture(final String pathingTexture) {
-		BufferedImage buildingPathingPixelMap = null;
-		if ((pathingTexture != null) && (pathingTexture.length() > 0) && !"_".equals(pathingTexture)) {
-			buildingPathingPixelMap = this.filePathToPathingMap.get(pathingTexture.toLowerCase());
-			if (buildingPathingPixelMap == null) {
-				try {
-					if (pathingTexture.toLowerCase().endsWith(".tga")) {
-						buildingPathingPixelMap = TgaFile.readTGA(pathingTexture,
-								this.mapMpq.getResourceAsStream(pathingTexture));
-					}
-					else {
-						try (InputStream stream = this.mapMpq.getResourceAsStream(pathingTexture)) {
-							buildingPathingPixelMap = ImageIO.read(stream);
-							System.out.println("LOADING BLP PATHING: " + pathingTexture);
-						}
-					}
-					this.filePathToPathingMap.put(pathingTexture.toLowerCase(), buildingPathingPixelMap);
-				}
-				catch (final Exception exc) {
-					System.err.println("Failure to get pathing: " + exc.getClass() + ":" + exc.getMessage());
-				}
-			}
-		}
-		return buildingPathingPixelMap;
-	}
-
 	public RenderUnitTypeData getUnitTypeData(final War3ID key, final MutableGameObject row) {
 		RenderUnitTypeData unitTypeData = this.unitIdToTypeData.get(key);
 		if (unitTypeData == null) {
@@ -1505,6 +1411,136 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 		return unitTypeData;
 	}
 
+	/**
+	 * Runs as many game ticks as the elapsed time calls for, and the game turn
+	 * manager allows. Called from the simulation thread when that is running,
+	 * otherwise from {@link #update()}.
+	 *
+	 * @return the time left until the next tick is due
+	 */
+	public float advanceSimulation(final float deltaTime) {
+		this.updateTime += deltaTime;
+		while (this.updateTime >= WarsmashConstants.SIMULATION_STEP_TIME) {
+			if (this.gameTurnManager.getLatestCompletedTurn() >= this.simulation.getGameTurnTick()) {
+				this.updateTime -= WarsmashConstants.SIMULATION_STEP_TIME;
+				this.simulation.update();
+				simulationTicked();
+				this.gameTurnManager.turnCompleted(this.simulation.getGameTurnTick());
+			}
+			else {
+				if (this.updateTime > (WarsmashConstants.SIMULATION_STEP_TIME * 3)) {
+					this.gameTurnManager.framesSkipped(this.updateTime / WarsmashConstants.SIMULATION_STEP_TIME);
+					this.updateTime = 0;
+				}
+				break;
+			}
+		}
+		return WarsmashConstants.SIMULATION_STEP_TIME - this.updateTime;
+	}
+
+	private void simulationTicked() {
+		for (final RenderUnit unit : this.units) {
+			unit.simulationTicked();
+		}
+		this.lastSimulationTickTime = System.nanoTime();
+	}
+
+	/**
+	 * @return how far along we are from the last game tick to the next one, from 0
+	 *         to 1, for drawing units in between
+	 */
+	public float getSimulationTickAlpha() {
+		final float sinceLastTick = (System.nanoTime() - this.lastSimulationTickTime) / 1000000000f;
+		return Math.min(1f, sinceLastTick / WarsmashConstants.SIMULATION_STEP_TIME);
+	}
+
+	public boolean isSimulationThreaded() {
+		return this.simulationThread.isRunning();
+	}
+
+	public SimulationThread getSimulationThread() {
+		return this.simulationThread;
+	}
+
+	/**
+	 * Makes loading the units start the game from the snapshot, instead of from
+	 * the units placed on the map. Must be set before {@link #loadAfterUI()}.
+	 */
+	public void setSnapshotToRestore(final CSimulationSnapshot snapshot) {
+		this.snapshotToRestore = snapshot;
+	}
+
+	private void restoreSnapshot(final War3Map mpq, final Warcraft3MapObjectData modifications)
+			throws IOException {
+		// the start locations are not units, but they are in the units layer
+		if (this.dataSource.has("war3mapUnits.doo")) {
+			for (final com.etheller.warsmash.parsers.w3x.unitsdoo.Unit unit : mpq.readUnits().getUnits()) {
+				if (sloc.equals(unit.getId())) {
+					this.startLocations[unit.getPlayer()] = new Vector2(unit.getLocation()[0], unit.getLocation()[1]);
+				}
+			}
+		}
+		this.snapshotToRestore.restore(this.simulation, new CSimulationSnapshot.WidgetCreator() {
+			@Override
+			public CUnit createUnit(final War3ID typeId, final int playerIndex, final float x, final float y,
+					final float facing) {
+				return createNewUnit(modifications, typeId, x, y, 0f, playerIndex, playerIndex,
+						(float) Math.toRadians(facing));
+			}
+
+			@Override
+			public void createItem(final War3ID typeId, final float x, final float y) {
+				final int neutralPassive = WarsmashConstants.MAX_PLAYERS - 1;
+				createNewUnit(modifications, typeId, x, y, 0f, neutralPassive, neutralPassive, 0f);
+			}
+		});
+		this.snapshotToRestore = null;
+	}
+
+	/**
+	 * Saves the game as of its last tick, see {@link CSimulationSnapshot}.
+	 */
+	public void writeSnapshot(final OutputStream outputStream) throws IOException {
+		lockSimulation();
+		try {
+			CSimulationSnapshot.write(this.simulation, outputStream);
+		}
+		finally {
+			unlockSimulation();
+		}
+	}
+
+	/**
+	 * Takes the simulation lock, for reading or changing the simulation from the
+	 * render thread while the simulation thread is running.
+	 */
+	public void lockSimulation() {
+		this.simulationThread.lockForRenderThread();
+	}
+
+	public void unlockSimulation() {
+		this.simulationThread.unlock();
+	}
+
+	/**
+	 * Runs the task on the render thread with the simulation lock held, for
+	 * messages from the network that change the simulation.
+	 */
+	public void postSimulationRunnable(final Runnable runnable) {
+		Gdx.app.postRunnable(new Runnable() {
+			@Override
+			public void run() {
+				lockSimulation();
+				try {
+					runnable.run();
+				}
+				finally {
+					unlockSimulation();
+				}
+			}
+		});
+	}
+
 	@Override
 	public void update() {
 		if (this.anyReady) {
@@ -1519,16 +1555,31 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 					textTagIterator.remove();
 				}
 			}
-			for (final RenderWidget unit : this.widgets) {
-				unit.updateAnimations(this);
+			if (WarsmashConstants.ENABLE_SIMULATION_THREAD) {
+				this.simulationThread.start();
 			}
-			final Iterator<RenderEffect> projectileIterator = this.projectiles.iterator();
-			while (projectileIterator.hasNext()) {
-				final RenderEffect projectile = projectileIterator.next();
-				if (projectile.updateAnimations(this, Gdx.graphics.getDeltaTime())) {
-					projectileIterator.remove();
+			else {
+				this.simulationThread.stop();
+				advanceSimulation(Gdx.graphics.getRawDeltaTime());
+			}
+
+			// the render peers read from the simulation
+			this.simulationThread.lockForRenderThread();
+			try {
+				for (final RenderWidget unit : this.widgets) {
+					unit.updateAnimations(this);
+				}
+				final Iterator<RenderEffect> projectileIterator = this.projectiles.iterator();
+				while (projectileIterator.hasNext()) {
+					final RenderEffect projectile = projectileIterator.next();
+					if (projectile.updateAnimations(this, Gdx.graphics.getDeltaTime())) {
+						projectileIterator.remove();
+					}
 				}
 			}
+			finally {
+				this.simulationThread.unlock();
+			}
 			for (final RenderDoodad item : this.doodads) {
 				final ModelInstance instance = item.instance;
 				if (instance instanceof MdxComplexInstance) {
@@ -1545,21 +1596,6 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 			}
 
 			final float rawDeltaTime = Gdx.graphics.getRawDeltaTime();
-			this.updateTime += rawDeltaTime;
-			while (this.updateTime >= WarsmashConstants.SIMULATION_STEP_TIME) {
-				if (this.gameTurnManager.getLatestCompletedTurn() >= this.simulation.getGameTurnTick()) {
-					this.updateTime -= WarsmashConstants.SIMULATION_STEP_TIME;
-					this.simulation.update();
-					this.gameTurnManager.turnCompleted(this.simulation.getGameTurnTick());
-				}
-				else {
-					if (this.updateTime > (WarsmashConstants.SIMULATION_STEP_TIME * 3)) {
-						this.gameTurnManager.framesSkipped(this.updateTime / WarsmashConstants.SIMULATION_STEP_TIME);
-						this.updateTime = 0;
-					}
-					break;
-				}
-			}
 			this.dncTerrain.setFrameByRatio(
 					this.simulation.getGameTimeOfDay() / this.simulation.getGameplayConstants().getGameDayHours());
 			this.dncTerrain.update(rawDeltaTime, null);
@@ -2243,6 +2279,14 @@ public class War3MapViewer extends AbstractMdxModelViewer {
 		this.localPlayerIndex = playerIndex;
 	}
 
+	/**
+	 * Sends the orders that the UI gave since the last call, see
+	 * {@link GameTurnManager#flushOrders()}.
+	 */
+	public void flushOrders() {
+		this.gameTurnManager.flushOrders();
+	}
+
 	public void setGameTurnManager(final GameTurnManager gameTurnManager) {
 		this.gameTurnManager = gameTurnManager;
 	}
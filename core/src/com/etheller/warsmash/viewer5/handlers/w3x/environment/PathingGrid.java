@@ -2,7 +2,6 @@ package com.etheller.warsmash.viewer5.handlers.w3x.environment;
 
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
@@ -16,6 +15,12 @@ import com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing.CBuildingPa
 
 public class PathingGrid {
 	private static final Map<String, MovementType> movetpToMovementType = new HashMap<>();
+	private static final int[] OVERLAY_FLAGS = { PathingFlags.UNWALKABLE, PathingFlags.UNFLYABLE,
+			PathingFlags.UNBUILDABLE, PathingFlags.UNSWIMABLE };
+	// one movement type for each different rule of what is pathable
+	private static final MovementType[] CLEARANCE_LAYERS = { MovementType.FOOT, MovementType.FLY,
+			MovementType.FLOAT, MovementType.AMPHIBIOUS };
+	private static final int MAX_CLEARANCE = 8;
 	static {
 		for (final MovementType movementType : MovementType.values()) {
 			if (!movementType.typeKey.isEmpty()) {
@@ -26,23 +31,109 @@ public class PathingGrid {
 
 	private final short[] pathingGrid;
 	private final short[] dynamicPathingOverlay; // for buildings and trees
+	// how many buildings and trees set each of the OVERLAY_FLAGS on each cell, so
+	// that removing one only has to look at its own footprint
+	private final short[] dynamicPathingFlagCounts;
+	// for each of the CLEARANCE_LAYERS, the distance in cells from each cell to the
+	// closest cell that is not pathable or is off the map, counting diagonal steps
+	// as 1 and capped at MAX_CLEARANCE, so that big units can usually skip checking
+	// all around themselves
+	private final byte[][] clearance;
 	private final int[] pathingGridSizes;
 	private final float[] centerOffset;
-	private final List<RemovablePathingMapInstance> dynamicPathingInstances;
+	private final List<DynamicPathingListener> dynamicPathingListeners;
 
 	public PathingGrid(final War3MapWpm terrainPathing, final float[] centerOffset) {
 		this.centerOffset = centerOffset;
 		this.pathingGrid = terrainPathing.getPathing();
 		this.pathingGridSizes = terrainPathing.getSize();
 		this.dynamicPathingOverlay = new short[this.pathingGrid.length];
-		this.dynamicPathingInstances = new ArrayList<>();
+		this.dynamicPathingFlagCounts = new short[this.pathingGrid.length * OVERLAY_FLAGS.length];
+		this.dynamicPathingListeners = new ArrayList<>();
+		this.clearance = new byte[CLEARANCE_LAYERS.length][this.pathingGrid.length];
+		updateClearance(0, 0, getWidth() - 1, getHeight() - 1);
+	}
+
+	private PathingGrid(final PathingGrid source) {
+		this.centerOffset = source.centerOffset;
+		this.pathingGrid = source.pathingGrid;
+		this.pathingGridSizes = source.pathingGridSizes;
+		this.dynamicPathingOverlay = source.dynamicPathingOverlay.clone();
+		// nothing is ever blitted onto a snapshot
+		this.dynamicPathingFlagCounts = null;
+		this.dynamicPathingListeners = new ArrayList<>();
+		this.clearance = new byte[CLEARANCE_LAYERS.length][];
+		for (int i = 0; i < CLEARANCE_LAYERS.length; i++) {
+			this.clearance[i] = source.clearance[i].clone();
+		}
+	}
+
+	/**
+	 * Creates a copy of this grid for reading from other threads. The terrain
+	 * pathing never changes so it is shared, but the dynamic pathing is copied and
+	 * will only change when {@link #copyDynamicPathingInto(PathingGrid)} is called.
+	 * Do not blit anything onto the snapshot.
+	 */
+	public PathingGrid createSnapshot() {
+		return new PathingGrid(this);
+	}
+
+	public void copyDynamicPathingInto(final PathingGrid snapshot) {
+		System.arraycopy(this.dynamicPathingOverlay, 0, snapshot.dynamicPathingOverlay, 0,
+				this.dynamicPathingOverlay.length);
+		for (int i = 0; i < CLEARANCE_LAYERS.length; i++) {
+			System.arraycopy(this.clearance[i], 0, snapshot.clearance[i], 0, this.clearance[i].length);
+		}
+	}
+
+	/**
+	 * Same as {@link #copyDynamicPathingInto(PathingGrid)}, but only for the
+	 * inclusive cell bounds given by a {@link DynamicPathingListener}.
+	 */
+	public void copyDynamicPathingInto(final PathingGrid snapshot, final int minCellX, final int minCellY,
+			final int maxCellX, final int maxCellY) {
+		final int width = this.pathingGridSizes[0];
+		for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+			System.arraycopy(this.dynamicPathingOverlay, (cellY * width) + minCellX, snapshot.dynamicPathingOverlay,
+					(cellY * width) + minCellX, (maxCellX - minCellX) + 1);
+		}
+		// the clearance changes a bit further out than the pathing itself
+		final int clearanceMinX = Math.max(0, minCellX - MAX_CLEARANCE);
+		final int clearanceMaxX = Math.min(width - 1, maxCellX + MAX_CLEARANCE);
+		final int clearanceMaxY = Math.min(getHeight() - 1, maxCellY + MAX_CLEARANCE);
+		for (int cellY = Math.max(0, minCellY - MAX_CLEARANCE); cellY <= clearanceMaxY; cellY++) {
+			for (int i = 0; i < CLEARANCE_LAYERS.length; i++) {
+				System.arraycopy(this.clearance[i], (cellY * width) + clearanceMinX, snapshot.clearance[i],
+						(cellY * width) + clearanceMinX, (clearanceMaxX - clearanceMinX) + 1);
+			}
+		}
+	}
+
+	public void addDynamicPathingListener(final DynamicPathingListener listener) {
+		this.dynamicPathingListeners.add(listener);
+	}
+
+	public void removeDynamicPathingListener(final DynamicPathingListener listener) {
+		this.dynamicPathingListeners.remove(listener);
+	}
+
+	private void dynamicPathingChanged(final int minCellX, final int minCellY, final int maxCellX,
+			final int maxCellY) {
+		if ((minCellX > maxCellX) || (minCellY > maxCellY)) {
+			return;
+		}
+		updateClearance(minCellX, minCellY, maxCellX, maxCellY);
+		for (int i = 0; i < this.dynamicPathingListeners.size(); i++) {
+			this.dynamicPathingListeners.get(i).dynamicPathingChanged(minCellX, minCellY, maxCellX, maxCellY);
+		}
 	}
 
 	// this blit function is basically copied from HiveWE, maybe remember to mention
 	// that in credits as well:
 	// https://github.com/stijnherfst/HiveWE/blob/master/Base/PathingMap.cpp
+	// delta is 1 to add the texture and -1 to remove it
 	private void blitPathingOverlayTexture(final float positionX, final float positionY, final int rotationInput,
-			final BufferedImage pathingTextureTga) {
+			final BufferedImage pathingTextureTga, final int delta) {
 		final int rotation = (rotationInput + 450) % 360;
 		final int divW = ((rotation % 180) != 0) ? pathingTextureTga.getHeight() : pathingTextureTga.getWidth();
 		final int divH = ((rotation % 180) != 0) ? pathingTextureTga.getWidth() : pathingTextureTga.getHeight();
@@ -85,11 +176,125 @@ public class PathingGrid {
 				if (((rgb & 0xFF0000) >>> 16) > 127) {
 					data |= PathingFlags.UNWALKABLE | PathingFlags.UNSWIMABLE;
 				}
-				this.dynamicPathingOverlay[(yy * this.pathingGridSizes[0]) + xx] |= data;
+				if (data != 0) {
+					updateDynamicPathingFlagCounts((yy * this.pathingGridSizes[0]) + xx, data, delta);
+				}
+			}
+		}
+	}
+
+	private void updateDynamicPathingFlagCounts(final int index, final byte data, final int delta) {
+		short overlay = 0;
+		for (int i = 0; i < OVERLAY_FLAGS.length; i++) {
+			final int countIndex = (index * OVERLAY_FLAGS.length) + i;
+			if ((data & OVERLAY_FLAGS[i]) != 0) {
+				this.dynamicPathingFlagCounts[countIndex] += delta;
+			}
+			if (this.dynamicPathingFlagCounts[countIndex] > 0) {
+				overlay |= OVERLAY_FLAGS[i];
+			}
+		}
+		this.dynamicPathingOverlay[index] = overlay;
+	}
+
+	/**
+	 * Recomputes the clearance around cells whose pathing changed. Only cells
+	 * within MAX_CLEARANCE of the change can get a different value, and those only
+	 * depend on cells within MAX_CLEARANCE of themselves, so that is all we look
+	 * at. Two passes of a chessboard distance transform over that area, one from
+	 * the top left and one from the bottom right.
+	 */
+	private void updateClearance(final int minCellX, final int minCellY, final int maxCellX, final int maxCellY) {
+		final int width = getWidth();
+		final int height = getHeight();
+		final int writeMinX = Math.max(0, minCellX - MAX_CLEARANCE);
+		final int writeMinY = Math.max(0, minCellY - MAX_CLEARANCE);
+		final int writeMaxX = Math.min(width - 1, maxCellX + MAX_CLEARANCE);
+		final int writeMaxY = Math.min(height - 1, maxCellY + MAX_CLEARANCE);
+		final int readMinX = Math.max(0, writeMinX - MAX_CLEARANCE);
+		final int readMinY = Math.max(0, writeMinY - MAX_CLEARANCE);
+		final int readMaxX = Math.min(width - 1, writeMaxX + MAX_CLEARANCE);
+		final int readMaxY = Math.min(height - 1, writeMaxY + MAX_CLEARANCE);
+		final int readWidth = (readMaxX - readMinX) + 1;
+		final int readHeight = (readMaxY - readMinY) + 1;
+		final byte[] distances = new byte[readWidth * readHeight];
+		for (int layer = 0; layer < CLEARANCE_LAYERS.length; layer++) {
+			final MovementType movementType = CLEARANCE_LAYERS[layer];
+			for (int y = 0; y < readHeight; y++) {
+				for (int x = 0; x < readWidth; x++) {
+					final boolean pathable = movementType.isPathable(getCellPathing(readMinX + x, readMinY + y));
+					distances[(y * readWidth) + x] = pathable ? (byte) MAX_CLEARANCE : 0;
+				}
+			}
+			for (int y = 0; y < readHeight; y++) {
+				for (int x = 0; x < readWidth; x++) {
+					int distance = distances[(y * readWidth) + x];
+					distance = Math.min(distance, getClearanceDistance(distances, readMinX, readMinY, readWidth,
+							readHeight, x - 1, y) + 1);
+					distance = Math.min(distance, getClearanceDistance(distances, readMinX, readMinY, readWidth,
+							readHeight, x - 1, y - 1) + 1);
+					distance = Math.min(distance, getClearanceDistance(distances, readMinX, readMinY, readWidth,
+							readHeight, x, y - 1) + 1);
+					distance = Math.min(distance, getClearanceDistance(distances, readMinX, readMinY, readWidth,
+							readHeight, x + 1, y - 1) + 1);
+					distances[(y * readWidth) + x] = (byte) distance;
+				}
+			}
+			for (int y = readHeight - 1; y >= 0; y--) {
+				for (int x = readWidth - 1; x >= 0; x--) {
+					int distance = distances[(y * readWidth) + x];
+					distance = Math.min(distance, getClearanceDistance(distances, readMinX, readMinY, readWidth,
+							readHeight, x + 1, y) + 1);
+					distance = Math.min(distance, getClearanceDistance(distances, readMinX, readMinY, readWidth,
+							readHeight, x + 1, y + 1) + 1);
+					distance = Math.min(distance, getClearanceDistance(distances, readMinX, readMinY, readWidth,
+							readHeight, x, y + 1) + 1);
+					distance = Math.min(distance, getClearanceDistance(distances, readMinX, readMinY, readWidth,
+							readHeight, x - 1, y + 1) + 1);
+					distances[(y * readWidth) + x] = (byte) distance;
+				}
+			}
+			final byte[] layerClearance = this.clearance[layer];
+			for (int cellY = writeMinY; cellY <= writeMaxY; cellY++) {
+				System.arraycopy(distances, ((cellY - readMinY) * readWidth) + (writeMinX - readMinX), layerClearance,
+						(cellY * width) + writeMinX, (writeMaxX - writeMinX) + 1);
 			}
 		}
 	}
 
+	private int getClearanceDistance(final byte[] distances, final int readMinX, final int readMinY,
+			final int readWidth, final int readHeight, final int x, final int y) {
+		if ((x < 0) || (y < 0) || (x >= readWidth) || (y >= readHeight)) {
+			final int cellX = readMinX + x;
+			final int cellY = readMinY + y;
+			if ((cellX < 0) || (cellY < 0) || (cellX >= getWidth()) || (cellY >= getHeight())) {
+				// off the map, which nobody can stand on
+				return 0;
+			}
+			// too far away from what we are updating to matter
+			return MAX_CLEARANCE;
+		}
+		return distances[(y * readWidth) + x];
+	}
+
+	private static int getClearanceLayer(final MovementType movementType) {
+		switch (movementType) {
+		case FOOT:
+		case FOOT_NO_COLLISION:
+		case HORSE:
+		case HOVER:
+			return 0;
+		case FLY:
+			return 1;
+		case FLOAT:
+			return 2;
+		case AMPHIBIOUS:
+			return 3;
+		default:
+			return -1;
+		}
+	}
+
 	public boolean checkPathingTexture(final float positionX, final float positionY, final int rotationInput,
 			final BufferedImage pathingTextureTga, final EnumSet<CBuildingPathingType> preventPathingTypes,
 			final EnumSet<CBuildingPathingType> requirePathingTypes, final CWorldCollision cWorldCollision,
@@ -175,8 +380,7 @@ public class PathingGrid {
 			final int rotationInput, final BufferedImage pathingTextureTga) {
 		final RemovablePathingMapInstance removablePathingMapInstance = new RemovablePathingMapInstance(positionX,
 				positionY, rotationInput, pathingTextureTga);
-		removablePathingMapInstance.blit();
-		this.dynamicPathingInstances.add(removablePathingMapInstance);
+		removablePathingMapInstance.add();
 		return removablePathingMapInstance;
 	}
 
@@ -261,6 +465,16 @@ public class PathingGrid {
 		if (collisionSize == 0f) {
 			return pathingType.isPathable(getPathing(unitX, unitY));
 		}
+		final int clearanceLayer = getClearanceLayer(pathingType);
+		if ((clearanceLayer != -1) && contains(unitX, unitY)) {
+			// every point checked below is within this many cells of the unit's cell, so
+			// if everything that close is pathable we are done
+			final int cellRadius = (int) Math.ceil(collisionSize / 32f);
+			final int index = (getCellY(unitY) * this.pathingGridSizes[0]) + getCellX(unitX);
+			if (this.clearance[clearanceLayer][index] > cellRadius) {
+				return true;
+			}
+		}
 		for (int i = -1; i <= 1; i++) {
 			for (int j = -1; j <= 1; j++) {
 				final float unitPathingX = unitX + (i * collisionSize);
@@ -428,11 +642,25 @@ public class PathingGrid {
 		}
 	}
 
+	/**
+	 * Notified when buildings or trees change the dynamic pathing overlay, with the
+	 * inclusive cell bounds of the footprint that changed. Pathfinding caches use
+	 * this to repair only the part of their data that could have been affected.
+	 */
+	public static interface DynamicPathingListener {
+		void dynamicPathingChanged(int minCellX, int minCellY, int maxCellX, int maxCellY);
+	}
+
 	public final class RemovablePathingMapInstance {
 		private final float positionX;
 		private final float positionY;
 		private final int rotationInput;
 		private final BufferedImage pathingTextureTga;
+		private final int minCellX;
+		private final int minCellY;
+		private final int maxCellX;
+		private final int maxCellY;
+		private boolean added;
 
 		public RemovablePathingMapInstance(final float positionX, final float positionY, final int rotationInput,
 				final BufferedImage pathingTextureTga) {
@@ -440,23 +668,38 @@ public class PathingGrid {
 			this.positionY = positionY;
 			this.rotationInput = rotationInput;
 			this.pathingTextureTga = pathingTextureTga;
+			final int rotation = (rotationInput + 450) % 360;
+			final int divW = ((rotation % 180) != 0) ? pathingTextureTga.getHeight() : pathingTextureTga.getWidth();
+			final int divH = ((rotation % 180) != 0) ? pathingTextureTga.getWidth() : pathingTextureTga.getHeight();
+			final int footprintX = getCellX(positionX) - (divW / 2);
+			final int footprintY = getCellY(positionY) - (divH / 2);
+			this.minCellX = Math.max(0, footprintX);
+			this.minCellY = Math.max(0, footprintY);
+			this.maxCellX = Math.min(getWidth() - 1, (footprintX + divW) - 1);
+			this.maxCellY = Math.min(getHeight() - 1, (footprintY + divH) - 1);
 		}
 
-		private void blit() {
-			blitPathingOverlayTexture(this.positionX, this.positionY, this.rotationInput, this.pathingTextureTga);
+		private void blit(final int delta) {
+			blitPathingOverlayTexture(this.positionX, this.positionY, this.rotationInput, this.pathingTextureTga,
+					delta);
 		}
 
 		public void remove() {
-			PathingGrid.this.dynamicPathingInstances.remove(this);
-			Arrays.fill(PathingGrid.this.dynamicPathingOverlay, (short) 0);
-			for (final RemovablePathingMapInstance instance : PathingGrid.this.dynamicPathingInstances) {
-				instance.blit();
+			if (!this.added) {
+				return;
 			}
+			this.added = false;
+			blit(-1);
+			dynamicPathingChanged(this.minCellX, this.minCellY, this.maxCellX, this.maxCellY);
 		}
 
 		public void add() {
-			PathingGrid.this.dynamicPathingInstances.add(this);
-			blit();
+			if (this.added) {
+				return;
+			}
+			this.added = true;
+			blit(1);
+			dynamicPathingChanged(this.minCellX, this.minCellY, this.maxCellX, this.maxCellY);
 		}
 	}
 }
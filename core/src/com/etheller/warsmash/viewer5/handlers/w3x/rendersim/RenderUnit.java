@@ -54,6 +54,13 @@ public class RenderUnit implements RenderWidget {
 	public SplatMover selectionPreviewHighlight;
 
 	private float facing;
+	// where the unit was at the last two game ticks, for drawing it in between when
+	// the simulation runs on its own thread
+	private float previousTickX;
+	private float previousTickY;
+	private float tickX;
+	private float tickY;
+	private float tickFacing;
 
 	private boolean swimming;
 	private boolean working;
@@ -96,7 +103,9 @@ public class RenderUnit implements RenderWidget {
 		instance.setTeamColor(this.playerIndex);
 		instance.setScene(map.worldScene);
 		this.unitAnimationListenerImpl = new UnitAnimationListenerImpl(instance, animationWalkSpeed, animationRunSpeed);
-		simulationUnit.setUnitAnimationListener(this.unitAnimationListenerImpl);
+		simulationUnit.setUnitAnimationListener(
+				map.getSimulationThread().forwardAnimationListener(this.unitAnimationListenerImpl));
+		resetTickSnapshots();
 		final String requiredAnimationNames = row.getFieldAsString(ANIM_PROPS, 0);
 		TokenLoop: for (final String animationName : requiredAnimationNames.split(",")) {
 			final String upperCaseToken = animationName.toUpperCase();
@@ -187,23 +196,33 @@ public class RenderUnit implements RenderWidget {
 		}
 		final float prevX = this.location[0];
 		final float prevY = this.location[1];
-		final float simulationX = this.simulationUnit.getX();
-		final float simulationY = this.simulationUnit.getY();
 		final float deltaTime = Gdx.graphics.getDeltaTime();
-		final float simDx = simulationX - this.location[0];
-		final float simDy = simulationY - this.location[1];
-		final float distanceToSimulation = (float) Math.sqrt((simDx * simDx) + (simDy * simDy));
-		final int speed = this.simulationUnit.getSpeed();
-		final float speedDelta = speed * deltaTime;
-		if ((distanceToSimulation > speedDelta) && (deltaTime < 1.0)) {
-			// The 1.0 here says that after 1 second of lag, units just teleport to show
-			// where they actually are
-			this.location[0] += (speedDelta * simDx) / distanceToSimulation;
-			this.location[1] += (speedDelta * simDy) / distanceToSimulation;
+		final boolean simulationThreaded = map.isSimulationThreaded();
+		if (simulationThreaded) {
+			// ticks come in at a steady rate, so just draw the unit part way between the
+			// last two
+			final float alpha = map.getSimulationTickAlpha();
+			this.location[0] = this.previousTickX + ((this.tickX - this.previousTickX) * alpha);
+			this.location[1] = this.previousTickY + ((this.tickY - this.previousTickY) * alpha);
 		}
 		else {
-			this.location[0] = simulationX;
-			this.location[1] = simulationY;
+			final float simulationX = this.simulationUnit.getX();
+			final float simulationY = this.simulationUnit.getY();
+			final float simDx = simulationX - this.location[0];
+			final float simDy = simulationY - this.location[1];
+			final float distanceToSimulation = (float) Math.sqrt((simDx * simDx) + (simDy * simDy));
+			final int speed = this.simulationUnit.getSpeed();
+			final float speedDelta = speed * deltaTime;
+			if ((distanceToSimulation > speedDelta) && (deltaTime < 1.0)) {
+				// The 1.0 here says that after 1 second of lag, units just teleport to show
+				// where they actually are
+				this.location[0] += (speedDelta * simDx) / distanceToSimulation;
+				this.location[1] += (speedDelta * simDy) / distanceToSimulation;
+			}
+			else {
+				this.location[0] = simulationX;
+				this.location[1] = simulationY;
+			}
 		}
 		final float dx = this.location[0] - prevX;
 		final float dy = this.location[1] - prevY;
@@ -288,7 +307,7 @@ public class RenderUnit implements RenderWidget {
 		this.location[2] = this.simulationUnit.getFlyHeight() + groundHeight;
 		final float selectionCircleHeight = this.selectionHeight + groundHeight;
 		this.instance.moveTo(this.location);
-		float simulationFacing = this.simulationUnit.getFacing();
+		float simulationFacing = simulationThreaded ? this.tickFacing : this.simulationUnit.getFacing();
 		if (simulationFacing < 0) {
 			simulationFacing += 360;
 		}
@@ -479,6 +498,26 @@ public class RenderUnit implements RenderWidget {
 		}
 		this.location[0] = this.simulationUnit.getX();
 		this.location[1] = this.simulationUnit.getY();
+		resetTickSnapshots();
+	}
+
+	/**
+	 * Called after each game tick, from whichever thread runs the simulation.
+	 */
+	public void simulationTicked() {
+		this.previousTickX = this.tickX;
+		this.previousTickY = this.tickY;
+		this.tickX = this.simulationUnit.getX();
+		this.tickY = this.simulationUnit.getY();
+		this.tickFacing = this.simulationUnit.getFacing();
+	}
+
+	private void resetTickSnapshots() {
+		this.tickX = this.simulationUnit.getX();
+		this.tickY = this.simulationUnit.getY();
+		this.previousTickX = this.tickX;
+		this.previousTickY = this.tickY;
+		this.tickFacing = this.simulationUnit.getFacing();
 	}
 
 	@Override
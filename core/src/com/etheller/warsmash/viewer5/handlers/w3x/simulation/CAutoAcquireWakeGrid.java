@@ -0,0 +1,91 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation;
+
+import java.util.Arrays;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.etheller.warsmash.util.WarsmashConstants;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CAllianceType;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CPlayer;
+
+/**
+ * Remembers, for each cell of a coarse grid over the map and for each player,
+ * the last tick that one of the player's units moved in or appeared in the
+ * cell. Idle units use it to skip looking for something to attack until an
+ * enemy comes near them, so that armies standing around cost next to nothing.
+ */
+public final class CAutoAcquireWakeGrid {
+	// about an acquisition range, so a unit only has to check a few cells
+	private static final float CELL_SIZE = 512f;
+	private static final int PLAYER_COUNT = WarsmashConstants.MAX_PLAYERS;
+
+	private final float minX;
+	private final float minY;
+	private final int columns;
+	private final int rows;
+	private final int[] cellMoveTicks;
+	private final int[] cellPlayerMoveTicks;
+	private int currentTick;
+
+	public CAutoAcquireWakeGrid(final Rectangle entireMapBounds) {
+		this.minX = entireMapBounds.x;
+		this.minY = entireMapBounds.y;
+		this.columns = Math.max(1, (int) Math.ceil(entireMapBounds.width / CELL_SIZE));
+		this.rows = Math.max(1, (int) Math.ceil(entireMapBounds.height / CELL_SIZE));
+		this.cellMoveTicks = new int[this.columns * this.rows];
+		this.cellPlayerMoveTicks = new int[this.columns * this.rows * PLAYER_COUNT];
+		Arrays.fill(this.cellMoveTicks, -1);
+		Arrays.fill(this.cellPlayerMoveTicks, -1);
+	}
+
+	public void setCurrentTick(final int currentTick) {
+		this.currentTick = currentTick;
+	}
+
+	public void unitMoved(final CUnit unit) {
+		final int playerIndex = unit.getPlayerIndex();
+		if ((playerIndex < 0) || (playerIndex >= PLAYER_COUNT)) {
+			return;
+		}
+		final int cell = (getRow(unit.getY()) * this.columns) + getColumn(unit.getX());
+		this.cellMoveTicks[cell] = this.currentTick;
+		this.cellPlayerMoveTicks[(cell * PLAYER_COUNT) + playerIndex] = this.currentTick;
+	}
+
+	/**
+	 * @return true if a unit of a player that the given player is not passive
+	 *         towards moved in any cell touching the rect on or after the given
+	 *         tick
+	 */
+	public boolean isEnemyMovedSince(final CSimulation game, final int playerIndex, final Rectangle rect,
+			final int sinceTick) {
+		final CPlayer player = game.getPlayer(playerIndex);
+		final int minColumn = getColumn(rect.x);
+		final int maxColumn = getColumn(rect.x + rect.width);
+		final int minRow = getRow(rect.y);
+		final int maxRow = getRow(rect.y + rect.height);
+		for (int row = minRow; row <= maxRow; row++) {
+			for (int column = minColumn; column <= maxColumn; column++) {
+				final int cell = (row * this.columns) + column;
+				if (this.cellMoveTicks[cell] < sinceTick) {
+					continue;
+				}
+				final int playerTicksStart = cell * PLAYER_COUNT;
+				for (int otherPlayerIndex = 0; otherPlayerIndex < PLAYER_COUNT; otherPlayerIndex++) {
+					if ((this.cellPlayerMoveTicks[playerTicksStart + otherPlayerIndex] >= sinceTick)
+							&& !player.hasAlliance(otherPlayerIndex, CAllianceType.PASSIVE)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private int getColumn(final float x) {
+		return Math.max(0, Math.min(this.columns - 1, (int) ((x - this.minX) / CELL_SIZE)));
+	}
+
+	private int getRow(final float y) {
+		return Math.max(0, Math.min(this.rows - 1, (int) ((y - this.minY) / CELL_SIZE)));
+	}
+}
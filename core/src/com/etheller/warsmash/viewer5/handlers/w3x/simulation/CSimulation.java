@@ -5,11 +5,11 @@ import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.badlogic.gdx.math.Rectangle;
 import com.etheller.interpreter.ast.scope.GlobalScope;
@@ -23,6 +23,7 @@ import com.etheller.warsmash.util.War3ID;
 import com.etheller.warsmash.util.WarsmashConstants;
 import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid;
 import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.RemovablePathingMapInstance;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnit.CUnitThinker;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.CAbility;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.targeting.AbilityTarget;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.behaviors.CBehaviorMove;
@@ -38,18 +39,22 @@ import com.etheller.warsmash.viewer5.handlers.w3x.simulation.data.CAbilityData;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.data.CDestructableData;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.data.CItemData;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.data.CUnitData;
-import com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing.CPathfindingProcessor;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing.CPathfindingService;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CAllianceType;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CPlayer;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CPlayerJass;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CRace;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.region.CRegionManager;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.timers.CTimer;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.timers.CTimerQueue;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.util.ResourceType;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.util.SimulationRenderController;
 import com.etheller.warsmash.viewer5.handlers.w3x.ui.command.CommandErrorListener;
 
 public class CSimulation implements CPlayerAPI {
+	// below this many units, thinking on other threads costs more than it saves
+	private static final int PARALLEL_THINK_MIN_UNITS = 256;
+	private static final int THINK_CHUNK_SIZE = 64;
 	private final CAbilityData abilityData;
 	private final CUnitData unitData;
 	private final CDestructableData destructableData;
@@ -67,15 +72,20 @@ public class CSimulation implements CPlayerAPI {
 	private int gameTurnTick = 0;
 	private final PathingGrid pathingGrid;
 	private final CWorldCollision worldCollision;
-	private final CPathfindingProcessor[] pathfindingProcessors;
+	private final CPathfindingService pathfindingService;
 	private final CGameplayConstants gameplayConstants;
-	private final Random seededRandom;
+	private final CSimulationRandom seededRandom;
 	private float currentGameDayTimeElapsed;
 	private final Map<Integer, CUnit> handleIdToUnit = new HashMap<>();
+	private final CUnitIndex unitIndex = new CUnitIndex();
 	private final Map<Integer, CDestructable> handleIdToDestructable = new HashMap<>();
 	private final Map<Integer, CItem> handleIdToItem = new HashMap<>();
 	private final Map<Integer, CAbility> handleIdToAbility = new HashMap<>();
-	private final LinkedList<CTimer> activeTimers = new LinkedList<>();
+	private final CTimerQueue activeTimers = new CTimerQueue();
+	private int timersFiredLastTick;
+	private final CSimulationProfiler profiler = new CSimulationProfiler();
+	private final CUnitThinker unitThinker = new CUnitThinker();
+	private final CSimulationChecksum checksum = new CSimulationChecksum();
 	private transient CommandErrorListener commandErrorListener;
 	private final CRegionManager regionManager;
 	private final List<TimeOfDayVariableEvent> timeOfDayVariableEvents = new ArrayList<>();
@@ -83,7 +93,7 @@ public class CSimulation implements CPlayerAPI {
 	public CSimulation(final War3MapConfig config, final DataTable miscData, final MutableObjectData parsedUnitData,
 			final MutableObjectData parsedItemData, final MutableObjectData parsedDestructableData,
 			final MutableObjectData parsedAbilityData, final SimulationRenderController simulationRenderController,
-			final PathingGrid pathingGrid, final Rectangle entireMapBounds, final Random seededRandom,
+			final PathingGrid pathingGrid, final Rectangle entireMapBounds, final CSimulationRandom seededRandom,
 			final CommandErrorListener commandErrorListener) {
 		this.gameplayConstants = new CGameplayConstants(miscData);
 		this.simulationRenderController = simulationRenderController;
@@ -103,10 +113,8 @@ public class CSimulation implements CPlayerAPI {
 		this.handleIdAllocator = new HandleIdAllocator();
 		this.worldCollision = new CWorldCollision(entireMapBounds, this.gameplayConstants.getMaxCollisionRadius());
 		this.regionManager = new CRegionManager(entireMapBounds, pathingGrid);
-		this.pathfindingProcessors = new CPathfindingProcessor[WarsmashConstants.MAX_PLAYERS];
-		for (int i = 0; i < WarsmashConstants.MAX_PLAYERS; i++) {
-			this.pathfindingProcessors[i] = new CPathfindingProcessor(pathingGrid, this.worldCollision);
-		}
+		this.pathfindingService = new CPathfindingService(pathingGrid, entireMapBounds,
+				WarsmashConstants.PATHFINDING_WORKER_THREADS);
 		this.seededRandom = seededRandom;
 		this.players = new ArrayList<>();
 		for (int i = 0; i < WarsmashConstants.MAX_PLAYERS; i++) {
@@ -157,15 +165,24 @@ public class CSimulation implements CPlayerAPI {
 		return this.destructables;
 	}
 
+	/**
+	 * @return the units by player, type and so on, for finding units of one kind
+	 *         without going through all of them
+	 */
+	public CUnitIndex getUnitIndex() {
+		return this.unitIndex;
+	}
+
+	public List<CItem> getItems() {
+		return this.items;
+	}
+
+	// units created since the last tick finished adding them, by timers and such
+	List<CUnit> getNewUnits() {
+		return this.newUnits;
+	}
+
 	public void registerTimer(final CTimer timer) {
-		final ListIterator<CTimer> listIterator = this.activeTimers.listIterator();
-		while (listIterator.hasNext()) {
-			final CTimer nextTimer = listIterator.next();
-			if (nextTimer.getEngineFireTick() > timer.getEngineFireTick()) {
-				listIterator.previous();
-				listIterator.add(timer);
-			}
-		}
 		this.activeTimers.add(timer);
 	}
 
@@ -173,6 +190,18 @@ public class CSimulation implements CPlayerAPI {
 		this.activeTimers.remove(time);
 	}
 
+	public int getActiveTimerCount() {
+		return this.activeTimers.size();
+	}
+
+	public int getTimersFiredLastTick() {
+		return this.timersFiredLastTick;
+	}
+
+	public CSimulationProfiler getProfiler() {
+		return this.profiler;
+	}
+
 	public CUnit internalCreateUnit(final War3ID typeId, final int playerIndex, final float x, final float y,
 			final float facing, final BufferedImage buildingPathingPixelMap,
 			final RemovablePathingMapInstance pathingInstance) {
@@ -246,23 +275,33 @@ public class CSimulation implements CPlayerAPI {
 			final CUnit ignoreIntersectionsWithThisSecondUnit, final float startX, final float startY,
 			final Point2D.Float goal, final PathingGrid.MovementType movementType, final float collisionSize,
 			final boolean allowSmoothing, final CBehaviorMove queueItem) {
-		final int playerIndex = queueItem.getUnit().getPlayerIndex();
-		this.pathfindingProcessors[playerIndex].findNaiveSlowPath(ignoreIntersectionsWithThisUnit,
+		this.pathfindingService.findNaiveSlowPath(ignoreIntersectionsWithThisUnit,
 				ignoreIntersectionsWithThisSecondUnit, startX, startY, goal, movementType, collisionSize,
 				allowSmoothing, queueItem);
 	}
 
 	public void removeFromPathfindingQueue(final CBehaviorMove behaviorMove) {
-		final int playerIndex = behaviorMove.getUnit().getPlayerIndex();
-		this.pathfindingProcessors[playerIndex].removeFromPathfindingQueue(behaviorMove);
+		this.pathfindingService.removeFromPathfindingQueue(behaviorMove);
+	}
+
+	public CPathfindingService getPathfindingService() {
+		return this.pathfindingService;
 	}
 
 	public void update() {
+		this.profiler.beginTick();
+		this.worldCollision.getAutoAcquireWakeGrid().setCurrentTick(this.gameTurnTick);
+		if (WarsmashConstants.ENABLE_UNIT_THINK_PHASE) {
+			think();
+		}
+		this.profiler.endPhase(CSimulationProfiler.Phase.THINK);
+		// units are in the order they were created, which is also handle id order
 		final Iterator<CUnit> unitIterator = this.units.iterator();
 		while (unitIterator.hasNext()) {
 			final CUnit unit = unitIterator.next();
 			if (unit.update(this)) {
 				unitIterator.remove();
+				this.unitIndex.remove(unit);
 				for (final CAbility ability : unit.getAbilities()) {
 					this.handleIdToAbility.remove(ability.getHandleId());
 				}
@@ -272,7 +311,9 @@ public class CSimulation implements CPlayerAPI {
 				unit.onRemove(this);
 			}
 		}
+		this.profiler.endPhase(CSimulationProfiler.Phase.UNITS);
 		finishAddingNewUnits();
+		this.profiler.endPhase(CSimulationProfiler.Phase.REMOVED_UNITS);
 		final Iterator<CAttackProjectile> projectileIterator = this.projectiles.iterator();
 		while (projectileIterator.hasNext()) {
 			final CAttackProjectile projectile = projectileIterator.next();
@@ -282,23 +323,79 @@ public class CSimulation implements CPlayerAPI {
 		}
 		this.projectiles.addAll(this.newProjectiles);
 		this.newProjectiles.clear();
-		for (final CPathfindingProcessor pathfindingProcessor : this.pathfindingProcessors) {
-			pathfindingProcessor.update(this);
-		}
+		this.profiler.endPhase(CSimulationProfiler.Phase.PROJECTILES);
+		this.pathfindingService.update(this);
+		this.profiler.endPhase(CSimulationProfiler.Phase.PATHFINDING);
 		this.gameTurnTick++;
 		final float timeOfDayBefore = getGameTimeOfDay();
 		this.currentGameDayTimeElapsed = (this.currentGameDayTimeElapsed + WarsmashConstants.SIMULATION_STEP_TIME)
 				% this.gameplayConstants.getGameDayLength();
 		final float timeOfDayAfter = getGameTimeOfDay();
+		this.timersFiredLastTick = 0;
 		while (!this.activeTimers.isEmpty() && (this.activeTimers.peek().getEngineFireTick() <= this.gameTurnTick)) {
-			this.activeTimers.pop().fire(this);
+			this.activeTimers.poll().fire(this);
+			this.timersFiredLastTick++;
 		}
+		this.profiler.endPhase(CSimulationProfiler.Phase.TIMERS);
 		for (final TimeOfDayVariableEvent timeOfDayEvent : this.timeOfDayVariableEvents) {
 			if (!timeOfDayEvent.isMatching(timeOfDayBefore) && timeOfDayEvent.isMatching(timeOfDayAfter)) {
 				timeOfDayEvent.fire();
 			}
 		}
+		this.profiler.endPhase(CSimulationProfiler.Phase.TIME_OF_DAY_EVENTS);
+		if (WarsmashConstants.ENABLE_STATE_CHECKSUM) {
+			if (CSimulationChecksum.isChecksumTick(this.gameTurnTick)) {
+				this.checksum.update(this.units, this.players, this.projectiles, this.seededRandom);
+			}
+		}
+		else {
+			this.checksum.clear();
+		}
+		this.profiler.endPhase(CSimulationProfiler.Phase.CHECKSUM);
+		this.profiler.endTick();
+	}
+
+	/**
+	 * Lets every unit make up its mind from the world as it is at the start of the
+	 * tick, on several threads if there are enough units. Each unit only writes
+	 * its own think state, and what it picks does not depend on which thread did
+	 * the thinking, so the outcome is the same on every machine.
+	 */
+	private void think() {
+		final int unitCount = this.units.size();
+		if (unitCount < PARALLEL_THINK_MIN_UNITS) {
+			for (int i = 0; i < unitCount; i++) {
+				this.units.get(i).think(this, this.unitThinker);
+			}
+		}
+		else {
+			ForkJoinPool.commonPool().invoke(new ThinkTask(0, unitCount));
+		}
+	}
+
+	private final class ThinkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int startIndex;
+		private final int endIndex;
+
+		private ThinkTask(final int startIndex, final int endIndex) {
+			this.startIndex = startIndex;
+			this.endIndex = endIndex;
+		}
 
+		@Override
+		protected void compute() {
+			if ((this.endIndex - this.startIndex) <= THINK_CHUNK_SIZE) {
+				final CUnitThinker thinker = new CUnitThinker();
+				for (int i = this.startIndex; i < this.endIndex; i++) {
+					CSimulation.this.units.get(i).think(CSimulation.this, thinker);
+				}
+			}
+			else {
+				final int middleIndex = (this.startIndex + this.endIndex) >>> 1;
+				invokeAll(new ThinkTask(this.startIndex, middleIndex), new ThinkTask(middleIndex, this.endIndex));
+			}
+		}
 	}
 
 	public void removeUnit(final CUnit unit) {
@@ -307,9 +404,13 @@ public class CSimulation implements CPlayerAPI {
 
 	private void finishAddingNewUnits() {
 		this.units.addAll(this.newUnits);
+		for (final CUnit unit : this.newUnits) {
+			this.unitIndex.add(unit);
+		}
 		this.newUnits.clear();
 		for (final CUnit unit : this.removedUnits) {
 			this.units.remove(unit);
+			this.unitIndex.remove(unit);
 			for (final CAbility ability : unit.getAbilities()) {
 				this.handleIdToAbility.remove(ability.getHandleId());
 			}
@@ -342,10 +443,36 @@ public class CSimulation implements CPlayerAPI {
 		return this.gameplayConstants;
 	}
 
+	float getGameDayTimeElapsed() {
+		return this.currentGameDayTimeElapsed;
+	}
+
+	/**
+	 * Puts the clock back to where a {@link CSimulationSnapshot} was taken. Timers
+	 * that are already running, from loading the map, move along with it.
+	 */
+	void restoreTime(final int gameTurnTick, final float gameDayTimeElapsed) {
+		this.activeTimers.shiftTicks(gameTurnTick - this.gameTurnTick);
+		this.gameTurnTick = gameTurnTick;
+		this.currentGameDayTimeElapsed = gameDayTimeElapsed;
+	}
+
+	CSimulationRandom getSimulationRandom() {
+		return this.seededRandom;
+	}
+
 	public Random getSeededRandom() {
 		return this.seededRandom;
 	}
 
+	/**
+	 * @return the state hashes of the last tick, for telling whether lockstep
+	 *         clients are still in sync
+	 */
+	public CSimulationChecksum getChecksum() {
+		return this.checksum;
+	}
+
 	public void unitDamageEvent(final CUnit damagedUnit, final String weaponSound, final String armorType) {
 		this.simulationRenderController.spawnDamageSound(damagedUnit, weaponSound, armorType);
 	}
@@ -363,6 +490,10 @@ public class CSimulation implements CPlayerAPI {
 		this.simulationRenderController.spawnUnitConstructionSound(constructingUnit, constructedStructure);
 	}
 
+	List<CPlayer> getPlayers() {
+		return this.players;
+	}
+
 	@Override
 	public CPlayer getPlayer(final int index) {
 		return this.players.get(index);
@@ -0,0 +1,132 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.behaviors.CBehavior;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.combat.projectile.CAttackProjectile;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CPlayer;
+
+/**
+ * Hashes of the game state, one per {@link Subsystem}, so that lockstep
+ * clients can send them along with their finished turns and the server can tell
+ * when, and in what, two clients stopped agreeing. Floats are hashed by their
+ * bits, so any difference at all shows up.
+ *
+ * Hashing goes over every unit, so it is only done on the ticks that are a
+ * multiple of {@link #INTERVAL}, and only those turns carry hashes.
+ */
+public final class CSimulationChecksum {
+	// one second of game time
+	public static final int INTERVAL = 20;
+	private static final Subsystem[] SUBSYSTEMS = Subsystem.values();
+	private static final long[] NO_HASHES = new long[0];
+	private static final long INITIAL_HASH = 0xcbf29ce484222325L;
+	private static final long HASH_MULTIPLIER = 0x100000001b3L;
+
+	public static enum Subsystem {
+		// position, facing, life, mana and current order of every unit
+		UNITS("Units"),
+		// gold, lumber and food of every player
+		PLAYERS("Players"),
+		PROJECTILES("Projectiles"),
+		RANDOM("Random");
+
+		private final String displayName;
+
+		private Subsystem(final String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return this.displayName;
+		}
+	}
+
+	private final long[] hashes = new long[SUBSYSTEMS.length];
+
+	public void update(final List<CUnit> units, final List<CPlayer> players,
+			final List<CAttackProjectile> projectiles, final CSimulationRandom random) {
+		long hash = INITIAL_HASH;
+		for (int i = 0; i < units.size(); i++) {
+			final CUnit unit = units.get(i);
+			hash = mix(hash, unit.getHandleId());
+			hash = mix(hash, unit.getX());
+			hash = mix(hash, unit.getY());
+			hash = mix(hash, unit.getFacing());
+			hash = mix(hash, unit.getLife());
+			hash = mix(hash, unit.getMana());
+			final CBehavior behavior = unit.getCurrentBehavior();
+			hash = mix(hash, behavior == null ? -1 : behavior.getHighlightOrderId());
+		}
+		this.hashes[Subsystem.UNITS.ordinal()] = hash;
+
+		hash = INITIAL_HASH;
+		for (int i = 0; i < players.size(); i++) {
+			final CPlayer player = players.get(i);
+			hash = mix(hash, player.getGold());
+			hash = mix(hash, player.getLumber());
+			hash = mix(hash, player.getFoodUsed());
+			hash = mix(hash, player.getFoodCap());
+		}
+		this.hashes[Subsystem.PLAYERS.ordinal()] = hash;
+
+		hash = INITIAL_HASH;
+		for (int i = 0; i < projectiles.size(); i++) {
+			final CAttackProjectile projectile = projectiles.get(i);
+			hash = mix(hash, projectile.getX());
+			hash = mix(hash, projectile.getY());
+		}
+		this.hashes[Subsystem.PROJECTILES.ordinal()] = hash;
+
+		this.hashes[Subsystem.RANDOM.ordinal()] = mix(INITIAL_HASH, random.getDrawCount());
+	}
+
+	public void clear() {
+		Arrays.fill(this.hashes, 0);
+	}
+
+	private static long mix(final long hash, final long value) {
+		return (hash ^ value) * HASH_MULTIPLIER;
+	}
+
+	private static long mix(final long hash, final float value) {
+		return mix(hash, Float.floatToRawIntBits(value));
+	}
+
+	/**
+	 * @return the hashes of the last checksum tick, one for each subsystem in
+	 *         order
+	 */
+	public long[] getHashes() {
+		return this.hashes;
+	}
+
+	/**
+	 * @return the hashes to send with the given finished turn, which are none on
+	 *         turns that are not checksum ticks
+	 */
+	public long[] getHashesForTurn(final int gameTurnTick) {
+		return isChecksumTick(gameTurnTick) ? this.hashes : NO_HASHES;
+	}
+
+	public static boolean isChecksumTick(final int gameTurnTick) {
+		return (gameTurnTick % INTERVAL) == 0;
+	}
+
+	public static int getSubsystemCount() {
+		return SUBSYSTEMS.length;
+	}
+
+	/**
+	 * @return the first subsystem whose hashes differ, or null if they all match
+	 */
+	public static Subsystem findMismatch(final long[] hashes, final long[] otherHashes) {
+		for (int i = 0; i < SUBSYSTEMS.length; i++) {
+			if ((i >= hashes.length) || (i >= otherHashes.length) || (hashes[i] != otherHashes[i])) {
+				return SUBSYSTEMS[i];
+			}
+		}
+		return null;
+	}
+}
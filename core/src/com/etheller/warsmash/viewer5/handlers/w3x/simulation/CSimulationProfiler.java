@@ -0,0 +1,319 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.etheller.warsmash.util.WarsmashConstants;
+
+/**
+ * Times the game tick: how long each phase of {@link CSimulation#update} took,
+ * a rolling window and histogram of whole tick times, and how long each kind of
+ * behavior and ability spends in its update.
+ *
+ * Phase times only take a System.nanoTime call per phase, so they are always
+ * on while {@link WarsmashConstants#ENABLE_SIMULATION_PROFILER} is set. Timing
+ * every behavior and ability would cost more than some of them do, so those
+ * are only timed on one tick out of {@link #CLASS_SAMPLE_INTERVAL}, and their
+ * counts are counts over the sampled ticks.
+ *
+ * Only meant to be used from the game thread.
+ */
+public final class CSimulationProfiler {
+	public static final int CLASS_SAMPLE_INTERVAL = 16;
+	public static final int WINDOW_TICKS = 256;
+	// bucket i counts ticks of less than 2^i microseconds, the last bucket also
+	// counts anything longer
+	public static final int HISTOGRAM_BUCKETS = 20;
+	private static final Phase[] PHASES = Phase.values();
+
+	public static enum Phase {
+		THINK("Think"),
+		UNITS("Units"),
+		REMOVED_UNITS("Removed units"),
+		PROJECTILES("Projectiles"),
+		PATHFINDING("Pathfinding"),
+		// includes the JASS callbacks of the timers; triggers fired by unit events are
+		// counted under the phase they were fired from
+		TIMERS("Timers"),
+		TIME_OF_DAY_EVENTS("Time of day events"),
+		CHECKSUM("Checksum");
+
+		private final String displayName;
+
+		private Phase(final String displayName) {
+			this.displayName = displayName;
+		}
+
+		public String getDisplayName() {
+			return this.displayName;
+		}
+	}
+
+	private boolean enabled;
+	private boolean samplingClasses;
+	private long tickStartTime;
+	private long phaseStartTime;
+	private final long[] lastPhaseNanos = new long[PHASES.length];
+	private long lastTickNanos;
+
+	// the last WINDOW_TICKS ticks, and their phases
+	private final long[] windowTickNanos = new long[WINDOW_TICKS];
+	private final long[][] windowPhaseNanos = new long[PHASES.length][WINDOW_TICKS];
+	private final long[] windowPhaseTotals = new long[PHASES.length];
+	private long windowTickTotal;
+	private int windowIndex;
+	private int windowSize;
+	private final int[] histogram = new int[HISTOGRAM_BUCKETS];
+	private long maxTickNanos;
+	private long profiledTicks;
+
+	private final Map<Class<?>, ClassStats> behaviorStats = new HashMap<>();
+	private final Map<Class<?>, ClassStats> abilityStats = new HashMap<>();
+
+	public void beginTick() {
+		this.enabled = WarsmashConstants.ENABLE_SIMULATION_PROFILER;
+		if (!this.enabled) {
+			this.samplingClasses = false;
+			return;
+		}
+		this.samplingClasses = (this.profiledTicks % CLASS_SAMPLE_INTERVAL) == 0;
+		this.tickStartTime = System.nanoTime();
+		this.phaseStartTime = this.tickStartTime;
+	}
+
+	/**
+	 * Ends the phase that started when the previous phase ended, or when the tick
+	 * began.
+	 */
+	public void endPhase(final Phase phase) {
+		if (!this.enabled) {
+			return;
+		}
+		final long currentTime = System.nanoTime();
+		this.lastPhaseNanos[phase.ordinal()] = currentTime - this.phaseStartTime;
+		this.phaseStartTime = currentTime;
+	}
+
+	public void endTick() {
+		if (!this.enabled) {
+			return;
+		}
+		final long tickNanos = System.nanoTime() - this.tickStartTime;
+		this.lastTickNanos = tickNanos;
+		this.maxTickNanos = Math.max(this.maxTickNanos, tickNanos);
+		this.profiledTicks++;
+
+		final int index = this.windowIndex;
+		if (this.windowSize == WINDOW_TICKS) {
+			final long oldTickNanos = this.windowTickNanos[index];
+			this.windowTickTotal -= oldTickNanos;
+			this.histogram[getHistogramBucket(oldTickNanos)]--;
+			for (int i = 0; i < PHASES.length; i++) {
+				this.windowPhaseTotals[i] -= this.windowPhaseNanos[i][index];
+			}
+		}
+		else {
+			this.windowSize++;
+		}
+		this.windowTickNanos[index] = tickNanos;
+		this.windowTickTotal += tickNanos;
+		this.histogram[getHistogramBucket(tickNanos)]++;
+		for (int i = 0; i < PHASES.length; i++) {
+			this.windowPhaseNanos[i][index] = this.lastPhaseNanos[i];
+			this.windowPhaseTotals[i] += this.lastPhaseNanos[i];
+			this.lastPhaseNanos[i] = 0;
+		}
+		this.windowIndex = (index + 1) % WINDOW_TICKS;
+	}
+
+	/**
+	 * @return true if behaviors and abilities should be timed on this tick
+	 */
+	public boolean isSamplingClasses() {
+		return this.samplingClasses;
+	}
+
+	public void behaviorUpdated(final Class<?> behaviorClass, final long nanos) {
+		record(this.behaviorStats, behaviorClass, nanos);
+	}
+
+	public void abilityTicked(final Class<?> abilityClass, final long nanos) {
+		record(this.abilityStats, abilityClass, nanos);
+	}
+
+	private static void record(final Map<Class<?>, ClassStats> statsByClass, final Class<?> type,
+			final long nanos) {
+		ClassStats stats = statsByClass.get(type);
+		if (stats == null) {
+			stats = new ClassStats(type);
+			statsByClass.put(type, stats);
+		}
+		stats.count++;
+		stats.totalNanos += nanos;
+		stats.maxNanos = Math.max(stats.maxNanos, nanos);
+	}
+
+	private static int getHistogramBucket(final long nanos) {
+		final long micros = nanos / 1000;
+		return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	/**
+	 * @return the longest tick time that counts towards the histogram bucket, in
+	 *         microseconds (the last bucket has no upper bound)
+	 */
+	public static long getHistogramBucketUpperMicros(final int bucket) {
+		if (bucket >= (HISTOGRAM_BUCKETS - 1)) {
+			return Long.MAX_VALUE;
+		}
+		return (1L << bucket) - 1;
+	}
+
+	public void reset() {
+		Arrays.fill(this.windowTickNanos, 0);
+		for (int i = 0; i < PHASES.length; i++) {
+			Arrays.fill(this.windowPhaseNanos[i], 0);
+		}
+		Arrays.fill(this.windowPhaseTotals, 0);
+		Arrays.fill(this.histogram, 0);
+		this.windowTickTotal = 0;
+		this.windowIndex = 0;
+		this.windowSize = 0;
+		this.maxTickNanos = 0;
+		this.behaviorStats.clear();
+		this.abilityStats.clear();
+	}
+
+	public long getLastTickNanos() {
+		return this.lastTickNanos;
+	}
+
+	public long getMaxTickNanos() {
+		return this.maxTickNanos;
+	}
+
+	public long getProfiledTicks() {
+		return this.profiledTicks;
+	}
+
+	public long getLastPhaseNanos(final Phase phase) {
+		return this.windowSize == 0 ? 0
+				: this.windowPhaseNanos[phase.ordinal()][((this.windowIndex + WINDOW_TICKS) - 1) % WINDOW_TICKS];
+	}
+
+	public long getAverageTickNanos() {
+		return this.windowSize == 0 ? 0 : this.windowTickTotal / this.windowSize;
+	}
+
+	public long getAveragePhaseNanos(final Phase phase) {
+		return this.windowSize == 0 ? 0 : this.windowPhaseTotals[phase.ordinal()] / this.windowSize;
+	}
+
+	/**
+	 * @return the tick time that the given fraction (0 to 1) of the ticks in the
+	 *         window are at or under
+	 */
+	public long getTickPercentileNanos(final float percentile) {
+		if (this.windowSize == 0) {
+			return 0;
+		}
+		final long[] sorted = Arrays.copyOf(this.windowTickNanos, this.windowSize);
+		Arrays.sort(sorted);
+		final int index = Math.min(this.windowSize - 1, (int) (percentile * this.windowSize));
+		return sorted[index];
+	}
+
+	/**
+	 * @return a copy of how many ticks in the window fell into each bucket
+	 */
+	public int[] getTickHistogram() {
+		return Arrays.copyOf(this.histogram, this.histogram.length);
+	}
+
+	/**
+	 * @return the behavior classes, slowest in total first
+	 */
+	public List<ClassStats> getBehaviorStats() {
+		return sortByTotal(this.behaviorStats);
+	}
+
+	/**
+	 * @return the ability classes, slowest in total first
+	 */
+	public List<ClassStats> getAbilityStats() {
+		return sortByTotal(this.abilityStats);
+	}
+
+	private static List<ClassStats> sortByTotal(final Map<Class<?>, ClassStats> statsByClass) {
+		final List<ClassStats> stats = new ArrayList<>(statsByClass.values());
+		Collections.sort(stats, new Comparator<ClassStats>() {
+			@Override
+			public int compare(final ClassStats o1, final ClassStats o2) {
+				return Long.compare(o2.totalNanos, o1.totalNanos);
+			}
+		});
+		return stats;
+	}
+
+	/**
+	 * @return a few lines of text with the averages over the window and the
+	 *         slowest behaviors and abilities
+	 */
+	public List<String> getSummaryLines(final int maxClassesEach) {
+		final List<String> lines = new ArrayList<>();
+		lines.add(String.format("Tick: avg %.2fms, p99 %.2fms, max %.2fms", getAverageTickNanos() / 1000000.0,
+				getTickPercentileNanos(0.99f) / 1000000.0, this.maxTickNanos / 1000000.0));
+		for (final Phase phase : PHASES) {
+			lines.add(String.format("  %s: %.3fms", phase.getDisplayName(), getAveragePhaseNanos(phase) / 1000000.0));
+		}
+		addClassLines(lines, "Behaviors", getBehaviorStats(), maxClassesEach);
+		addClassLines(lines, "Abilities", getAbilityStats(), maxClassesEach);
+		return lines;
+	}
+
+	private static void addClassLines(final List<String> lines, final String title, final List<ClassStats> stats,
+			final int maxClasses) {
+		lines.add(title + ":");
+		for (int i = 0; (i < stats.size()) && (i < maxClasses); i++) {
+			final ClassStats classStats = stats.get(i);
+			lines.add(String.format("  %s: %d calls, avg %.1fus, max %.1fus", classStats.getType().getSimpleName(),
+					classStats.count, classStats.getAverageNanos() / 1000.0, classStats.maxNanos / 1000.0));
+		}
+	}
+
+	public static final class ClassStats {
+		private final Class<?> type;
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+
+		private ClassStats(final Class<?> type) {
+			this.type = type;
+		}
+
+		public Class<?> getType() {
+			return this.type;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+
+		public long getTotalNanos() {
+			return this.totalNanos;
+		}
+
+		public long getMaxNanos() {
+			return this.maxNanos;
+		}
+
+		public double getAverageNanos() {
+			return this.count == 0 ? 0 : this.totalNanos / (double) this.count;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation;
+
+import java.util.Random;
+
+/**
+ * The game's random number generator. Draws the same numbers as a
+ * java.util.Random with the same seed, but keeps the seed where we can get at
+ * it, so that it can go into a {@link CSimulationSnapshot}. Also counts the
+ * numbers drawn: two of these created with the same seed are in the same state
+ * exactly when they have drawn the same count of numbers, which is cheaper for
+ * the {@link CSimulationChecksum} to compare.
+ */
+public class CSimulationRandom extends Random {
+	private static final long serialVersionUID = 1L;
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+	// no initializer, Random's constructor sets it through setSeed
+	private long seed;
+	private long drawCount;
+
+	public CSimulationRandom(final long seed) {
+		super(seed);
+	}
+
+	@Override
+	public synchronized void setSeed(final long seed) {
+		super.setSeed(seed);
+		this.seed = (seed ^ MULTIPLIER) & MASK;
+	}
+
+	@Override
+	protected int next(final int bits) {
+		this.drawCount++;
+		this.seed = ((this.seed * MULTIPLIER) + ADDEND) & MASK;
+		return (int) (this.seed >>> (48 - bits));
+	}
+
+	public long getDrawCount() {
+		return this.drawCount;
+	}
+
+	/**
+	 * @return the scrambled seed that the next number is drawn from, see
+	 *         {@link #restoreState(long, long)}
+	 */
+	public long getState() {
+		return this.seed;
+	}
+
+	public void restoreState(final long state, final long drawCount) {
+		this.seed = state & MASK;
+		this.drawCount = drawCount;
+	}
+}
@@ -0,0 +1,328 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.etheller.warsmash.util.War3ID;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.players.CPlayer;
+
+/**
+ * An approximate picture of a running game between two ticks, for starting
+ * benchmarks and soak tests from the middle of a game instead of from an empty
+ * map. It is not a save game: a restored game does not carry on the way the
+ * original would have, so it cannot be used to bring a client back into a
+ * lockstep game.
+ *
+ * A snapshot does not carry the map: it is restored while the same map loads,
+ * in place of the map's own units layer, and keeps the handle ids of the units
+ * and items so that orders can be given to them the same way.
+ *
+ * What is kept: the clock, the random number generator, the handle ids, each
+ * player's resources and food, the life of every destructable, and the type,
+ * owner, position, facing, life, mana and gold of every living unit and of the
+ * items on the ground. What is not: the orders and behaviors of the units (they
+ * come back idle), abilities and levels gained during the game, items being
+ * carried, corpses, projectiles in flight, and the timers and triggers of the
+ * map script.
+ *
+ * The file is big endian: magic, version, then the sections in the order that
+ * {@link #write} writes them, each made of counts and fixed size records.
+ */
+public final class CSimulationSnapshot {
+	public static final int MAGIC = 0x57534E50; // WSNP
+	public static final int VERSION = 1;
+
+	private int gameTurnTick;
+	private float gameDayTimeElapsed;
+	private int nextHandleId;
+	private long randomState;
+	private long randomDrawCount;
+	private PlayerState[] players;
+	private int[] destructableHandleIds;
+	private float[] destructableLives;
+	private final List<UnitState> units = new ArrayList<>();
+	private final List<ItemState> items = new ArrayList<>();
+
+	private CSimulationSnapshot() {
+	}
+
+	/**
+	 * Writes the state of the simulation as of the end of its last tick, one
+	 * record at a time. Must not be called while the simulation is updating.
+	 */
+	public static void write(final CSimulation simulation, final OutputStream outputStream) throws IOException {
+		final DataOutputStream dataStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+		dataStream.writeInt(MAGIC);
+		dataStream.writeInt(VERSION);
+		dataStream.writeInt(simulation.getGameTurnTick());
+		dataStream.writeFloat(simulation.getGameDayTimeElapsed());
+		dataStream.writeInt(simulation.getHandleIdAllocator().getNextId());
+		final CSimulationRandom random = simulation.getSimulationRandom();
+		dataStream.writeLong(random.getState());
+		dataStream.writeLong(random.getDrawCount());
+
+		final List<CPlayer> players = simulation.getPlayers();
+		dataStream.writeInt(players.size());
+		for (final CPlayer player : players) {
+			dataStream.writeInt(player.getGold());
+			dataStream.writeInt(player.getLumber());
+			dataStream.writeInt(player.getFoodUsed());
+			dataStream.writeInt(player.getFoodCap());
+		}
+
+		final List<CDestructable> destructables = simulation.getDestructables();
+		dataStream.writeInt(destructables.size());
+		for (final CDestructable destructable : destructables) {
+			dataStream.writeInt(destructable.getHandleId());
+			dataStream.writeFloat(destructable.getLife());
+		}
+
+		dataStream.writeInt(countLivingUnits(simulation.getUnits()) + countLivingUnits(simulation.getNewUnits()));
+		writeUnits(dataStream, simulation.getUnits());
+		writeUnits(dataStream, simulation.getNewUnits());
+
+		int groundItemCount = 0;
+		for (final CItem item : simulation.getItems()) {
+			if (!item.isHidden()) {
+				groundItemCount++;
+			}
+		}
+		dataStream.writeInt(groundItemCount);
+		for (final CItem item : simulation.getItems()) {
+			if (!item.isHidden()) {
+				dataStream.writeInt(item.getHandleId());
+				dataStream.writeInt(item.getTypeId().getValue());
+				dataStream.writeFloat(item.getX());
+				dataStream.writeFloat(item.getY());
+				dataStream.writeFloat(item.getLife());
+			}
+		}
+		dataStream.flush();
+	}
+
+	private static int countLivingUnits(final List<CUnit> units) {
+		int count = 0;
+		for (final CUnit unit : units) {
+			if (!unit.isDead()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void writeUnits(final DataOutputStream dataStream, final List<CUnit> units) throws IOException {
+		for (final CUnit unit : units) {
+			if (unit.isDead()) {
+				continue;
+			}
+			dataStream.writeInt(unit.getHandleId());
+			dataStream.writeInt(unit.getTypeId().getValue());
+			dataStream.writeInt(unit.getPlayerIndex());
+			dataStream.writeFloat(unit.getX());
+			dataStream.writeFloat(unit.getY());
+			dataStream.writeFloat(unit.getFacing());
+			dataStream.writeFloat(unit.getLife());
+			dataStream.writeFloat(unit.getMana());
+			dataStream.writeInt(unit.getGold());
+		}
+	}
+
+	public static CSimulationSnapshot read(final InputStream inputStream) throws IOException {
+		final DataInputStream dataStream = new DataInputStream(new BufferedInputStream(inputStream));
+		if (dataStream.readInt() != MAGIC) {
+			throw new IOException("Not a simulation snapshot");
+		}
+		final int version = dataStream.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported simulation snapshot version " + version);
+		}
+		final CSimulationSnapshot snapshot = new CSimulationSnapshot();
+		snapshot.gameTurnTick = dataStream.readInt();
+		snapshot.gameDayTimeElapsed = dataStream.readFloat();
+		snapshot.nextHandleId = dataStream.readInt();
+		snapshot.randomState = dataStream.readLong();
+		snapshot.randomDrawCount = dataStream.readLong();
+
+		snapshot.players = new PlayerState[dataStream.readInt()];
+		for (int i = 0; i < snapshot.players.length; i++) {
+			snapshot.players[i] = new PlayerState(dataStream.readInt(), dataStream.readInt(), dataStream.readInt(),
+					dataStream.readInt());
+		}
+
+		final int destructableCount = dataStream.readInt();
+		snapshot.destructableHandleIds = new int[destructableCount];
+		snapshot.destructableLives = new float[destructableCount];
+		for (int i = 0; i < destructableCount; i++) {
+			snapshot.destructableHandleIds[i] = dataStream.readInt();
+			snapshot.destructableLives[i] = dataStream.readFloat();
+		}
+
+		final int unitCount = dataStream.readInt();
+		for (int i = 0; i < unitCount; i++) {
+			snapshot.units.add(new UnitState(dataStream.readInt(), new War3ID(dataStream.readInt()),
+					dataStream.readInt(), dataStream.readFloat(), dataStream.readFloat(), dataStream.readFloat(),
+					dataStream.readFloat(), dataStream.readFloat(), dataStream.readInt()));
+		}
+
+		final int itemCount = dataStream.readInt();
+		for (int i = 0; i < itemCount; i++) {
+			snapshot.items.add(new ItemState(dataStream.readInt(), new War3ID(dataStream.readInt()),
+					dataStream.readFloat(), dataStream.readFloat(), dataStream.readFloat()));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Restores the snapshot onto a simulation that has just loaded the map it was
+	 * taken on, with its destructables, but without any units or items yet. This
+	 * takes the place of loading the map's units layer, including the call to
+	 * {@link CSimulation#unitsLoaded()}. The clock is set first, so that timers
+	 * started by the restored units count from the snapshot's tick.
+	 *
+	 * @param widgetCreator creates units and items the way the host loads them
+	 *                      from the map, so that they get render peers and
+	 *                      pathing
+	 */
+	public void restore(final CSimulation simulation, final WidgetCreator widgetCreator) {
+		final List<CDestructable> destructables = simulation.getDestructables();
+		if (destructables.size() != this.destructableHandleIds.length) {
+			throw new IllegalStateException("Snapshot has " + this.destructableHandleIds.length
+					+ " destructables, but the map has " + destructables.size());
+		}
+		for (int i = 0; i < this.destructableHandleIds.length; i++) {
+			final CDestructable destructable = destructables.get(i);
+			if (destructable.getHandleId() != this.destructableHandleIds[i]) {
+				throw new IllegalStateException("Snapshot was not taken on this map");
+			}
+			if (destructable.getLife() != this.destructableLives[i]) {
+				destructable.setLife(simulation, this.destructableLives[i]);
+			}
+		}
+
+		simulation.restoreTime(this.gameTurnTick, this.gameDayTimeElapsed);
+
+		final HandleIdAllocator handleIdAllocator = simulation.getHandleIdAllocator();
+		for (final UnitState unitState : this.units) {
+			handleIdAllocator.setNextId(unitState.handleId);
+			final CUnit unit = widgetCreator.createUnit(unitState.typeId, unitState.playerIndex, unitState.x,
+					unitState.y, unitState.facing);
+			if ((unit == null) || (unit.getHandleId() != unitState.handleId)) {
+				throw new IllegalStateException("Unable to restore unit " + unitState.typeId + " with handle id "
+						+ unitState.handleId);
+			}
+			unit.setLife(simulation, unitState.life);
+			unit.setMana(unitState.mana);
+			if (unitState.gold != 0) {
+				unit.setGold(unitState.gold);
+			}
+		}
+		for (final ItemState itemState : this.items) {
+			handleIdAllocator.setNextId(itemState.handleId);
+			widgetCreator.createItem(itemState.typeId, itemState.x, itemState.y);
+			final CWidget item = simulation.getWidget(itemState.handleId);
+			if (!(item instanceof CItem)) {
+				throw new IllegalStateException("Unable to restore item " + itemState.typeId + " with handle id "
+						+ itemState.handleId);
+			}
+			item.setLife(simulation, itemState.life);
+		}
+		handleIdAllocator.setNextId(this.nextHandleId);
+		simulation.unitsLoaded();
+
+		// after unitsLoaded, which counts the food of the units again
+		for (int i = 0; (i < this.players.length) && (i < simulation.getPlayers().size()); i++) {
+			final CPlayer player = simulation.getPlayer(i);
+			final PlayerState playerState = this.players[i];
+			player.setGold(playerState.gold);
+			player.setLumber(playerState.lumber);
+			player.setFoodUsed(playerState.foodUsed);
+			player.setFoodCap(playerState.foodCap);
+		}
+		// last, creating the units draws from it
+		simulation.getSimulationRandom().restoreState(this.randomState, this.randomDrawCount);
+	}
+
+	public int getGameTurnTick() {
+		return this.gameTurnTick;
+	}
+
+	public int getUnitCount() {
+		return this.units.size();
+	}
+
+	public int getItemCount() {
+		return this.items.size();
+	}
+
+	/**
+	 * Creates widgets for {@link CSimulationSnapshot#restore}, the same way the
+	 * host creates the ones placed on the map.
+	 */
+	public static interface WidgetCreator {
+		CUnit createUnit(War3ID typeId, int playerIndex, float x, float y, float facing);
+
+		void createItem(War3ID typeId, float x, float y);
+	}
+
+	private static final class PlayerState {
+		private final int gold;
+		private final int lumber;
+		private final int foodUsed;
+		private final int foodCap;
+
+		public PlayerState(final int gold, final int lumber, final int foodUsed, final int foodCap) {
+			this.gold = gold;
+			this.lumber = lumber;
+			this.foodUsed = foodUsed;
+			this.foodCap = foodCap;
+		}
+	}
+
+	private static final class UnitState {
+		private final int handleId;
+		private final War3ID typeId;
+		private final int playerIndex;
+		private final float x;
+		private final float y;
+		private final float facing;
+		private final float life;
+		private final float mana;
+		private final int gold;
+
+		public UnitState(final int handleId, final War3ID typeId, final int playerIndex, final float x,
+				final float y, final float facing, final float life, final float mana, final int gold) {
+			this.handleId = handleId;
+			this.typeId = typeId;
+			this.playerIndex = playerIndex;
+			this.x = x;
+			this.y = y;
+			this.facing = facing;
+			this.life = life;
+			this.mana = mana;
+			this.gold = gold;
+		}
+	}
+
+	private static final class ItemState {
+		private final int handleId;
+		private final War3ID typeId;
+		private final float x;
+		private final float y;
+		private final float life;
+
+		public ItemState(final int handleId, final War3ID typeId, final float x, final float y, final float life) {
+			this.handleId = handleId;
+			this.typeId = typeId;
+			this.x = x;
+			this.y = y;
+			this.life = life;
+		}
+	}
+}
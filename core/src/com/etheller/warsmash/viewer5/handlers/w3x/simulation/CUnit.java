@@ -18,6 +18,7 @@ import com.etheller.warsmash.viewer5.handlers.w3x.SequenceUtils;
 import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid;
 import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.RemovablePathingMapInstance;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnitStateListener.CUnitStateNotifier;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CWorldCollision.EachUnitOnlyOnceIntersector;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.CAbility;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.CAbilityVisitor;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.build.CAbilityBuildInProgress;
@@ -96,6 +97,13 @@ public class CUnit extends CWidget {
 	private transient List<StateListenerUpdate> stateListenersUpdates = new ArrayList<>();
 	private final float acquisitionRange;
 	private transient static AutoAttackTargetFinderEnum autoAttackTargetFinderEnum = new AutoAttackTargetFinderEnum();
+	// what this unit picked to auto attack in the think phase of the tick, see
+	// CSimulation.update
+	private transient int thinkTick = -1;
+	private transient CUnit thinkAutoAcquireTarget;
+	// last tick this unit looked for something to auto attack while idle, -1 to
+	// look on the next tick
+	private transient int idleAcquireScanTick = -1;
 
 	private transient CBehaviorMove moveBehavior;
 	private transient CBehaviorAttack attackBehavior;
@@ -457,13 +465,29 @@ public class CUnit extends CWidget {
 						}
 					}
 				}
+				final CSimulationProfiler profiler = game.getProfiler();
+				final boolean profileClasses = profiler.isSamplingClasses();
 				for (final CAbility ability : this.abilities) {
-					ability.onTick(game, this);
+					if (profileClasses) {
+						final long abilityStartTime = System.nanoTime();
+						ability.onTick(game, this);
+						profiler.abilityTicked(ability.getClass(), System.nanoTime() - abilityStartTime);
+					}
+					else {
+						ability.onTick(game, this);
+					}
 				}
 				if (this.currentBehavior != null) {
 					final CBehavior lastBehavior = this.currentBehavior;
 					final int lastBehaviorHighlightOrderId = lastBehavior.getHighlightOrderId();
-					this.currentBehavior = this.currentBehavior.update(game);
+					if (profileClasses) {
+						final long behaviorStartTime = System.nanoTime();
+						this.currentBehavior = this.currentBehavior.update(game);
+						profiler.behaviorUpdated(lastBehavior.getClass(), System.nanoTime() - behaviorStartTime);
+					}
+					else {
+						this.currentBehavior = this.currentBehavior.update(game);
+					}
 					if (lastBehavior != this.currentBehavior) {
 						lastBehavior.end(game, false);
 						this.currentBehavior.begin(game);
@@ -493,18 +517,29 @@ public class CUnit extends CWidget {
 	}
 
 	public boolean autoAcquireAttackTargets(final CSimulation game, final boolean disableMove) {
-		if (!this.getAttacks().isEmpty() && !this.unitType.getClassifications().contains(CUnitClassification.PEON)) {
-			if (this.collisionRectangle != null) {
-				tempRect.set(this.collisionRectangle);
+		if (isAutoAcquiringUnit()) {
+			setAcquisitionRect(tempRect);
+			if (!isAutoAcquireScanDue(game, tempRect)) {
+				return false;
 			}
-			else {
-				tempRect.set(this.getX(), this.getY(), 0, 0);
+			if (isIdleForAutoAcquire()) {
+				this.idleAcquireScanTick = game.getGameTurnTick();
+			}
+			if (this.thinkTick == game.getGameTurnTick()) {
+				final CUnit target = this.thinkAutoAcquireTarget;
+				this.thinkTick = -1;
+				this.thinkAutoAcquireTarget = null;
+				if (target == null) {
+					return false;
+				}
+				final CUnitAttack attack = getAutoAcquireAttack(game, target);
+				if (attack != null) {
+					beginAutoAttack(game, attack, target, disableMove);
+					return true;
+				}
+				// something earlier in the tick changed the target, so look again
 			}
-			final float halfSize = this.acquisitionRange;
-			tempRect.x -= halfSize;
-			tempRect.y -= halfSize;
-			tempRect.width += halfSize * 2;
-			tempRect.height += halfSize * 2;
+			setAcquisitionRect(tempRect);
 			game.getWorldCollision().enumUnitsInRect(tempRect,
 					autoAttackTargetFinderEnum.reset(game, this, disableMove));
 			return autoAttackTargetFinderEnum.foundAnyTarget;
@@ -512,6 +547,110 @@ public class CUnit extends CWidget {
 		return false;
 	}
 
+	private boolean isIdleForAutoAcquire() {
+		final CBehavior behavior = this.currentBehavior;
+		return (behavior == null) || (behavior == this.stopBehavior) || (behavior == this.holdPositionBehavior);
+	}
+
+	/**
+	 * Units that are moving look for targets every tick. Idle units only look
+	 * once every {@link WarsmashConstants#AUTO_ACQUIRE_IDLE_SCAN_TICKS}, spread
+	 * over the ticks by handle id, or on the next tick after an enemy moves near
+	 * them or they go idle. Only reads the game, so it is safe in the think phase.
+	 *
+	 * @param acquisitionRect this unit's acquisition rect
+	 */
+	private boolean isAutoAcquireScanDue(final CSimulation game, final Rectangle acquisitionRect) {
+		final int scanTicks = WarsmashConstants.AUTO_ACQUIRE_IDLE_SCAN_TICKS;
+		if ((scanTicks <= 1) || !isIdleForAutoAcquire() || (this.idleAcquireScanTick < 0)) {
+			return true;
+		}
+		final int gameTurnTick = game.getGameTurnTick();
+		if (((gameTurnTick + getHandleId()) % scanTicks) == 0) {
+			return true;
+		}
+		return game.getWorldCollision().getAutoAcquireWakeGrid().isEnemyMovedSince(game, this.playerIndex,
+				acquisitionRect, this.idleAcquireScanTick);
+	}
+
+	/**
+	 * Makes this unit look for something to attack on its next tick, for when it
+	 * has just gone idle.
+	 */
+	public void wakeAutoAcquire() {
+		this.idleAcquireScanTick = -1;
+	}
+
+	private boolean isAutoAcquiringUnit() {
+		return !this.getAttacks().isEmpty() && !this.unitType.getClassifications().contains(CUnitClassification.PEON);
+	}
+
+	private void setAcquisitionRect(final Rectangle rect) {
+		if (this.collisionRectangle != null) {
+			rect.set(this.collisionRectangle);
+		}
+		else {
+			rect.set(this.getX(), this.getY(), 0, 0);
+		}
+		final float halfSize = this.acquisitionRange;
+		rect.x -= halfSize;
+		rect.y -= halfSize;
+		rect.width += halfSize * 2;
+		rect.height += halfSize * 2;
+	}
+
+	/**
+	 * Think phase of the tick: if this unit is idle, or in a behavior that looks
+	 * for something to attack, picks what it would auto attack from the world as
+	 * it was at the start of the tick. Only reads the game, so all units can think
+	 * at once on different threads, each with its own thinker.
+	 */
+	public void think(final CSimulation game, final CUnitThinker thinker) {
+		if (isDead() || this.paused || this.constructing || !isAutoAcquiringUnit()) {
+			return;
+		}
+		final CBehavior behavior = this.currentBehavior;
+		if ((behavior != null) && (behavior != this.stopBehavior) && (behavior != this.holdPositionBehavior)
+				&& (behavior != this.attackMoveBehavior) && (behavior != this.patrolBehavior)
+				&& (behavior != this.followBehavior)) {
+			return;
+		}
+		setAcquisitionRect(thinker.rect);
+		if (!isAutoAcquireScanDue(game, thinker.rect)) {
+			return;
+		}
+		this.thinkAutoAcquireTarget = thinker.findAutoAcquireTarget(game, this);
+		this.thinkTick = game.getGameTurnTick();
+	}
+
+	/**
+	 * @return the first of our attacks that we would auto attack the target with,
+	 *         or null
+	 */
+	private CUnitAttack getAutoAcquireAttack(final CSimulation game, final CUnit unit) {
+		if (!game.getPlayer(this.playerIndex).hasAlliance(unit.getPlayerIndex(), CAllianceType.PASSIVE)
+				&& !unit.isDead() && !unit.isInvulnerable()) {
+			for (final CUnitAttack attack : this.getAttacks()) {
+				if (this.canReach(unit, this.acquisitionRange)
+						&& unit.canBeTargetedBy(game, this, attack.getTargetsAllowed())
+						&& (this.distance(unit) >= this.getUnitType().getMinimumAttackRange())) {
+					return attack;
+				}
+			}
+		}
+		return null;
+	}
+
+	private void beginAutoAttack(final CSimulation game, final CUnitAttack attack, final CUnit target,
+			final boolean disableMove) {
+		if (this.currentBehavior != null) {
+			this.currentBehavior.end(game, false);
+		}
+		this.currentBehavior = this.getAttackBehavior().reset(OrderIds.attack, attack, target, disableMove,
+				CBehaviorAttackListener.DO_NOTHING);
+		this.currentBehavior.begin(game);
+	}
+
 	public float getEndingDecayTime(final CSimulation game) {
 		if (this.isBuilding()) {
 			return game.getGameplayConstants().getStructureDecayTime();
@@ -698,8 +837,10 @@ public class CUnit extends CWidget {
 		return this.playerIndex;
 	}
 
-	public void setPlayerIndex(final int playerIndex) {
+	public void setPlayerIndex(final CSimulation simulation, final int playerIndex) {
+		final int previousPlayerIndex = this.playerIndex;
 		this.playerIndex = playerIndex;
+		simulation.getUnitIndex().ownerChanged(this, previousPlayerIndex);
 	}
 
 	public CUnitType getUnitType() {
@@ -1168,22 +1309,42 @@ public class CUnit extends CWidget {
 
 		@Override
 		public boolean call(final CUnit unit) {
-			if (!this.game.getPlayer(this.source.getPlayerIndex()).hasAlliance(unit.getPlayerIndex(),
-					CAllianceType.PASSIVE) && !unit.isDead() && !unit.isInvulnerable()) {
-				for (final CUnitAttack attack : this.source.getAttacks()) {
-					if (this.source.canReach(unit, this.source.acquisitionRange)
-							&& unit.canBeTargetedBy(this.game, this.source, attack.getTargetsAllowed())
-							&& (this.source.distance(unit) >= this.source.getUnitType().getMinimumAttackRange())) {
-						if (this.source.currentBehavior != null) {
-							this.source.currentBehavior.end(this.game, false);
-						}
-						this.source.currentBehavior = this.source.getAttackBehavior().reset(OrderIds.attack, attack,
-								unit, this.disableMove, CBehaviorAttackListener.DO_NOTHING);
-						this.source.currentBehavior.begin(this.game);
-						this.foundAnyTarget = true;
-						return true;
-					}
-				}
+			final CUnitAttack attack = this.source.getAutoAcquireAttack(this.game, unit);
+			if (attack != null) {
+				this.source.beginAutoAttack(this.game, attack, unit, this.disableMove);
+				this.foundAnyTarget = true;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * What one thread needs to run {@link CUnit#think}, so that threads thinking
+	 * at the same time do not share anything.
+	 */
+	public static final class CUnitThinker implements CUnitEnumFunction {
+		private final Rectangle rect = new Rectangle();
+		private final EachUnitOnlyOnceIntersector intersector = new EachUnitOnlyOnceIntersector();
+		private CSimulation game;
+		private CUnit source;
+		private CUnit target;
+
+		private CUnit findAutoAcquireTarget(final CSimulation game, final CUnit source) {
+			this.game = game;
+			this.source = source;
+			this.target = null;
+			game.getWorldCollision().enumUnitsInRect(this.rect, this, this.intersector);
+			this.game = null;
+			this.source = null;
+			return this.target;
+		}
+
+		@Override
+		public boolean call(final CUnit unit) {
+			if (this.source.getAutoAcquireAttack(this.game, unit) != null) {
+				this.target = unit;
+				return true;
 			}
 			return false;
 		}
@@ -0,0 +1,13 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.MovementType;
+
+/**
+ * The part of the unit collision that pathfinding needs, so that searches can
+ * run against either the live {@link CWorldCollision} or a frozen copy of it.
+ */
+public interface CUnitCollisionQuery {
+	boolean intersectsAnythingOtherThan(Rectangle newPossibleRectangle, CUnit sourceUnitToIgnore,
+			CUnit sourceSecondUnitToIgnore, MovementType movementType);
+}
@@ -0,0 +1,170 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.etheller.warsmash.util.War3ID;
+import com.etheller.warsmash.util.WarsmashConstants;
+
+/**
+ * The units of the simulation by player, by type, by classification, and the
+ * buildings, so that looking for the units of one kind costs as much as there
+ * are units of that kind instead of as much as there are units.
+ *
+ * Each list is in handle id order, which is the order units are in the
+ * simulation's unit list, so going through one of these finds the same units in
+ * the same order as going through all units and skipping the others.
+ */
+public final class CUnitIndex {
+	private final List<List<CUnit>> unitsByPlayer = new ArrayList<>();
+	private final Map<War3ID, List<CUnit>> unitsByType = new HashMap<>();
+	private final Map<String, List<CUnit>> unitsByLegacyName = new HashMap<>();
+	private final EnumMap<CUnitClassification, List<CUnit>> unitsByClassification = new EnumMap<>(
+			CUnitClassification.class);
+	private final List<CUnit> buildings = new ArrayList<>();
+
+	public CUnitIndex() {
+		for (int i = 0; i < WarsmashConstants.MAX_PLAYERS; i++) {
+			this.unitsByPlayer.add(new ArrayList<CUnit>());
+		}
+	}
+
+	public void add(final CUnit unit) {
+		insert(getPlayerUnits(unit.getPlayerIndex()), unit);
+		insert(getOrCreate(this.unitsByType, unit.getTypeId()), unit);
+		final String legacyName = unit.getUnitType().getLegacyName();
+		if (legacyName != null) {
+			insert(getOrCreate(this.unitsByLegacyName, legacyName), unit);
+		}
+		for (final CUnitClassification classification : unit.getClassifications()) {
+			List<CUnit> classificationUnits = this.unitsByClassification.get(classification);
+			if (classificationUnits == null) {
+				classificationUnits = new ArrayList<>();
+				this.unitsByClassification.put(classification, classificationUnits);
+			}
+			insert(classificationUnits, unit);
+		}
+		if (unit.isBuilding()) {
+			insert(this.buildings, unit);
+		}
+	}
+
+	public void remove(final CUnit unit) {
+		remove(getPlayerUnits(unit.getPlayerIndex()), unit);
+		remove(this.unitsByType.get(unit.getTypeId()), unit);
+		final String legacyName = unit.getUnitType().getLegacyName();
+		if (legacyName != null) {
+			remove(this.unitsByLegacyName.get(legacyName), unit);
+		}
+		for (final CUnitClassification classification : unit.getClassifications()) {
+			remove(this.unitsByClassification.get(classification), unit);
+		}
+		if (unit.isBuilding()) {
+			remove(this.buildings, unit);
+		}
+	}
+
+	/**
+	 * Moves the unit to its new player's list, if it is in the index.
+	 */
+	public void ownerChanged(final CUnit unit, final int previousPlayerIndex) {
+		if (remove(getPlayerUnits(previousPlayerIndex), unit)) {
+			insert(getPlayerUnits(unit.getPlayerIndex()), unit);
+		}
+	}
+
+	public List<CUnit> getUnitsOfPlayer(final int playerIndex) {
+		return readOnly(getPlayerUnits(playerIndex));
+	}
+
+	public List<CUnit> getUnitsOfType(final War3ID typeId) {
+		return readOnly(this.unitsByType.get(typeId));
+	}
+
+	/**
+	 * @param legacyName the unit type's name in JASS, like "footman"
+	 */
+	public List<CUnit> getUnitsOfLegacyName(final String legacyName) {
+		return readOnly(this.unitsByLegacyName.get(legacyName));
+	}
+
+	public List<CUnit> getUnitsOfClassification(final CUnitClassification classification) {
+		return readOnly(this.unitsByClassification.get(classification));
+	}
+
+	public List<CUnit> getBuildings() {
+		return readOnly(this.buildings);
+	}
+
+	private List<CUnit> getPlayerUnits(final int playerIndex) {
+		if ((playerIndex < 0) || (playerIndex >= this.unitsByPlayer.size())) {
+			return null;
+		}
+		return this.unitsByPlayer.get(playerIndex);
+	}
+
+	private static <K> List<CUnit> getOrCreate(final Map<K, List<CUnit>> unitsByKey, final K key) {
+		List<CUnit> units = unitsByKey.get(key);
+		if (units == null) {
+			units = new ArrayList<>();
+			unitsByKey.put(key, units);
+		}
+		return units;
+	}
+
+	private static List<CUnit> readOnly(final List<CUnit> units) {
+		if (units == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(units);
+	}
+
+	private static void insert(final List<CUnit> units, final CUnit unit) {
+		if (units == null) {
+			return;
+		}
+		final int index = indexOf(units, unit.getHandleId());
+		if (index < 0) {
+			units.add(-(index + 1), unit);
+		}
+	}
+
+	private static boolean remove(final List<CUnit> units, final CUnit unit) {
+		if (units == null) {
+			return false;
+		}
+		final int index = indexOf(units, unit.getHandleId());
+		if ((index >= 0) && (units.get(index) == unit)) {
+			units.remove(index);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Binary search by handle id, same return value as
+	 * {@link Collections#binarySearch}.
+	 */
+	private static int indexOf(final List<CUnit> units, final int handleId) {
+		int low = 0;
+		int high = units.size() - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int middleHandleId = units.get(middle).getHandleId();
+			if (middleHandleId < handleId) {
+				low = middle + 1;
+			}
+			else if (middleHandleId > handleId) {
+				high = middle - 1;
+			}
+			else {
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+}
@@ -6,26 +6,47 @@ import java.util.Set;
 import com.badlogic.gdx.math.Rectangle;
 import com.etheller.warsmash.util.Quadtree;
 import com.etheller.warsmash.util.QuadtreeIntersector;
+import com.etheller.warsmash.util.SpatialHash;
+import com.etheller.warsmash.util.SpatialIndex;
+import com.etheller.warsmash.util.WarsmashConstants;
 import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.MovementType;
 
-public class CWorldCollision {
+public class CWorldCollision implements CUnitCollisionQuery {
 	private static final float MINIMUM_COLLISION_SIZE = 0.001f /* THIS IS TO STOP QUADTREE FROM BUSTING */;
-	private final Quadtree<CUnit> groundUnitCollision;
-	private final Quadtree<CUnit> airUnitCollision;
-	private final Quadtree<CUnit> seaUnitCollision;
-	private final Quadtree<CUnit> buildingUnitCollision;
+	private static final float MINIMUM_SPATIAL_HASH_CELL_SIZE = 64f;
+	private final SpatialIndex<CUnit> groundUnitCollision;
+	private final SpatialIndex<CUnit> airUnitCollision;
+	private final SpatialIndex<CUnit> seaUnitCollision;
+	private final SpatialIndex<CUnit> buildingUnitCollision;
 	private final float maxCollisionRadius;
 	private final AnyUnitExceptTwoIntersector anyUnitExceptTwoIntersector;
 	private final EachUnitOnlyOnceIntersector eachUnitOnlyOnceIntersector;
+	private final CAutoAcquireWakeGrid autoAcquireWakeGrid;
 
 	public CWorldCollision(final Rectangle entireMapBounds, final float maxCollisionRadius) {
-		this.groundUnitCollision = new Quadtree<>(entireMapBounds);
-		this.airUnitCollision = new Quadtree<>(entireMapBounds);
-		this.seaUnitCollision = new Quadtree<>(entireMapBounds);
-		this.buildingUnitCollision = new Quadtree<>(entireMapBounds);
+		this.groundUnitCollision = createSpatialIndex(entireMapBounds, maxCollisionRadius);
+		this.airUnitCollision = createSpatialIndex(entireMapBounds, maxCollisionRadius);
+		this.seaUnitCollision = createSpatialIndex(entireMapBounds, maxCollisionRadius);
+		this.buildingUnitCollision = createSpatialIndex(entireMapBounds, maxCollisionRadius);
 		this.maxCollisionRadius = maxCollisionRadius;
 		this.anyUnitExceptTwoIntersector = new AnyUnitExceptTwoIntersector();
 		this.eachUnitOnlyOnceIntersector = new EachUnitOnlyOnceIntersector();
+		this.autoAcquireWakeGrid = new CAutoAcquireWakeGrid(entireMapBounds);
+	}
+
+	public CAutoAcquireWakeGrid getAutoAcquireWakeGrid() {
+		return this.autoAcquireWakeGrid;
+	}
+
+	private static SpatialIndex<CUnit> createSpatialIndex(final Rectangle entireMapBounds,
+			final float maxCollisionRadius) {
+		if (WarsmashConstants.SPATIAL_HASH_UNIT_COLLISION) {
+			// unit collision is clamped to the max radius, so no unit is in more than 4
+			// cells
+			return new SpatialHash<>(entireMapBounds,
+					Math.max(MINIMUM_SPATIAL_HASH_CELL_SIZE, maxCollisionRadius * 2));
+		}
+		return new Quadtree<>(entireMapBounds);
 	}
 
 	public void addUnit(final CUnit unit) {
@@ -37,6 +58,7 @@ public class CWorldCollision {
 					collisionSize * 2);
 			unit.setCollisionRectangle(bounds);
 		}
+		this.autoAcquireWakeGrid.unitMoved(unit);
 		if (unit.isBuilding()) {
 			// buildings are here so that we can include them when enumerating all units in
 			// a rect, but they don't really move dynamically, this is kind of pointless
@@ -107,11 +129,21 @@ public class CWorldCollision {
 	}
 
 	public void enumUnitsInRect(final Rectangle rect, final CUnitEnumFunction callback) {
-		this.eachUnitOnlyOnceIntersector.reset(callback);
-		this.groundUnitCollision.intersect(rect, this.eachUnitOnlyOnceIntersector);
-		this.airUnitCollision.intersect(rect, this.eachUnitOnlyOnceIntersector);
-		this.seaUnitCollision.intersect(rect, this.eachUnitOnlyOnceIntersector);
-		this.buildingUnitCollision.intersect(rect, this.eachUnitOnlyOnceIntersector);
+		enumUnitsInRect(rect, callback, this.eachUnitOnlyOnceIntersector);
+	}
+
+	/**
+	 * Same as {@link #enumUnitsInRect(Rectangle, CUnitEnumFunction)}, but with an
+	 * intersector of the caller's, so that several threads can enumerate at once
+	 * while no unit is added, removed or moved.
+	 */
+	public void enumUnitsInRect(final Rectangle rect, final CUnitEnumFunction callback,
+			final EachUnitOnlyOnceIntersector intersector) {
+		intersector.reset(callback);
+		this.groundUnitCollision.intersect(rect, intersector);
+		this.airUnitCollision.intersect(rect, intersector);
+		this.seaUnitCollision.intersect(rect, intersector);
+		this.buildingUnitCollision.intersect(rect, intersector);
 	}
 
 	public boolean intersectsAnythingOtherThan(final Rectangle newPossibleRectangle, final CUnit sourceUnitToIgnore,
@@ -119,6 +151,7 @@ public class CWorldCollision {
 		return intersectsAnythingOtherThan(newPossibleRectangle, sourceUnitToIgnore, null, movementType);
 	}
 
+	@Override
 	public boolean intersectsAnythingOtherThan(final Rectangle newPossibleRectangle, final CUnit sourceUnitToIgnore,
 			final CUnit sourceSecondUnitToIgnore, final MovementType movementType) {
 		if (movementType != null) {
@@ -157,6 +190,7 @@ public class CWorldCollision {
 		if (unit.isBuilding()) {
 			throw new IllegalArgumentException("Cannot add building to the CWorldCollision");
 		}
+		this.autoAcquireWakeGrid.unitMoved(unit);
 		final MovementType movementType = unit.getUnitType().getMovementType();
 		final Rectangle bounds = unit.getCollisionRectangle();
 		if (movementType != null) {
@@ -207,7 +241,7 @@ public class CWorldCollision {
 		}
 	}
 
-	private static final class EachUnitOnlyOnceIntersector implements QuadtreeIntersector<CUnit> {
+	public static final class EachUnitOnlyOnceIntersector implements QuadtreeIntersector<CUnit> {
 		private CUnitEnumFunction consumerDelegate;
 		private final Set<CUnit> intersectedUnits = new HashSet<>();
 		private boolean done;
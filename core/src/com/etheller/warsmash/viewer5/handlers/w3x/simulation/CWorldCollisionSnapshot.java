@@ -0,0 +1,192 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.MovementType;
+
+/**
+ * Frozen copy of the unit collision rectangles, taken on the game thread and
+ * then only read, so that pathfinding threads can check for units in the way
+ * while the game keeps moving the real ones. Units are sorted into a plain grid
+ * of buckets instead of a quadtree, since the whole thing is rebuilt every time
+ * a snapshot is taken.
+ *
+ * Same layers and rules as {@link CWorldCollision#intersectsAnythingOtherThan},
+ * with hidden units left out when the snapshot is taken.
+ */
+public final class CWorldCollisionSnapshot implements CUnitCollisionQuery {
+	private static final float BUCKET_SIZE = 256f;
+
+	private final float minX;
+	private final float minY;
+	private final int bucketsWide;
+	private final int bucketsHigh;
+	private final Layer groundUnitCollision;
+	private final Layer airUnitCollision;
+	private final Layer seaUnitCollision;
+
+	public CWorldCollisionSnapshot(final Rectangle entireMapBounds) {
+		this.minX = entireMapBounds.x;
+		this.minY = entireMapBounds.y;
+		this.bucketsWide = Math.max(1, (int) Math.ceil(entireMapBounds.width / BUCKET_SIZE));
+		this.bucketsHigh = Math.max(1, (int) Math.ceil(entireMapBounds.height / BUCKET_SIZE));
+		this.groundUnitCollision = new Layer();
+		this.airUnitCollision = new Layer();
+		this.seaUnitCollision = new Layer();
+	}
+
+	public void rebuild(final List<CUnit> units) {
+		this.groundUnitCollision.clear();
+		this.airUnitCollision.clear();
+		this.seaUnitCollision.clear();
+		for (int i = 0; i < units.size(); i++) {
+			final CUnit unit = units.get(i);
+			final Rectangle bounds = unit.getCollisionRectangle();
+			if ((bounds == null) || unit.isBuilding() || unit.isHidden()) {
+				continue;
+			}
+			final MovementType movementType = unit.getUnitType().getMovementType();
+			if (movementType != null) {
+				switch (movementType) {
+				case AMPHIBIOUS:
+					this.seaUnitCollision.add(unit, bounds);
+					this.groundUnitCollision.add(unit, bounds);
+					break;
+				case FLOAT:
+					this.seaUnitCollision.add(unit, bounds);
+					break;
+				case FLY:
+					this.airUnitCollision.add(unit, bounds);
+					break;
+				case DISABLED:
+					break;
+				default:
+				case FOOT:
+				case FOOT_NO_COLLISION:
+				case HORSE:
+				case HOVER:
+					this.groundUnitCollision.add(unit, bounds);
+					break;
+				}
+			}
+		}
+	}
+
+	@Override
+	public boolean intersectsAnythingOtherThan(final Rectangle newPossibleRectangle, final CUnit sourceUnitToIgnore,
+			final CUnit sourceSecondUnitToIgnore, final MovementType movementType) {
+		if (movementType != null) {
+			switch (movementType) {
+			case AMPHIBIOUS:
+				return this.seaUnitCollision.intersects(newPossibleRectangle, sourceUnitToIgnore,
+						sourceSecondUnitToIgnore)
+						|| this.groundUnitCollision.intersects(newPossibleRectangle, sourceUnitToIgnore,
+								sourceSecondUnitToIgnore);
+			case FLOAT:
+				return this.seaUnitCollision.intersects(newPossibleRectangle, sourceUnitToIgnore,
+						sourceSecondUnitToIgnore);
+			case FLY:
+				return this.airUnitCollision.intersects(newPossibleRectangle, sourceUnitToIgnore,
+						sourceSecondUnitToIgnore);
+			case DISABLED:
+			case FOOT_NO_COLLISION:
+				return false;
+			default:
+			case FOOT:
+			case HORSE:
+			case HOVER:
+				return this.groundUnitCollision.intersects(newPossibleRectangle, sourceUnitToIgnore,
+						sourceSecondUnitToIgnore);
+			}
+		}
+		return false;
+	}
+
+	private int getBucketX(final float x) {
+		return Math.max(0, Math.min(this.bucketsWide - 1, (int) ((x - this.minX) / BUCKET_SIZE)));
+	}
+
+	private int getBucketY(final float y) {
+		return Math.max(0, Math.min(this.bucketsHigh - 1, (int) ((y - this.minY) / BUCKET_SIZE)));
+	}
+
+	private final class Layer {
+		private CUnit[] units = new CUnit[16];
+		// x, y, width, height of each unit
+		private float[] bounds = new float[16 * 4];
+		private int unitCount;
+		// unit indices of each bucket, as a linked list through entryNext
+		private final int[] bucketHeads = new int[CWorldCollisionSnapshot.this.bucketsWide
+				* CWorldCollisionSnapshot.this.bucketsHigh];
+		private int[] entryUnits = new int[16];
+		private int[] entryNext = new int[16];
+		private int entryCount;
+
+		private Layer() {
+			Arrays.fill(this.bucketHeads, -1);
+		}
+
+		private void clear() {
+			Arrays.fill(this.units, 0, this.unitCount, null);
+			this.unitCount = 0;
+			this.entryCount = 0;
+			Arrays.fill(this.bucketHeads, -1);
+		}
+
+		private void add(final CUnit unit, final Rectangle rect) {
+			if (this.unitCount == this.units.length) {
+				this.units = Arrays.copyOf(this.units, this.unitCount * 2);
+				this.bounds = Arrays.copyOf(this.bounds, this.unitCount * 2 * 4);
+			}
+			final int unitIndex = this.unitCount++;
+			this.units[unitIndex] = unit;
+			this.bounds[(unitIndex * 4)] = rect.x;
+			this.bounds[(unitIndex * 4) + 1] = rect.y;
+			this.bounds[(unitIndex * 4) + 2] = rect.width;
+			this.bounds[(unitIndex * 4) + 3] = rect.height;
+			final int maxBucketX = getBucketX(rect.x + rect.width);
+			final int maxBucketY = getBucketY(rect.y + rect.height);
+			for (int bucketY = getBucketY(rect.y); bucketY <= maxBucketY; bucketY++) {
+				for (int bucketX = getBucketX(rect.x); bucketX <= maxBucketX; bucketX++) {
+					final int bucket = (bucketY * CWorldCollisionSnapshot.this.bucketsWide) + bucketX;
+					if (this.entryCount == this.entryUnits.length) {
+						this.entryUnits = Arrays.copyOf(this.entryUnits, this.entryCount * 2);
+						this.entryNext = Arrays.copyOf(this.entryNext, this.entryCount * 2);
+					}
+					this.entryUnits[this.entryCount] = unitIndex;
+					this.entryNext[this.entryCount] = this.bucketHeads[bucket];
+					this.bucketHeads[bucket] = this.entryCount++;
+				}
+			}
+		}
+
+		private boolean intersects(final Rectangle rect, final CUnit firstUnitToIgnore,
+				final CUnit secondUnitToIgnore) {
+			final int maxBucketX = getBucketX(rect.x + rect.width);
+			final int maxBucketY = getBucketY(rect.y + rect.height);
+			for (int bucketY = getBucketY(rect.y); bucketY <= maxBucketY; bucketY++) {
+				for (int bucketX = getBucketX(rect.x); bucketX <= maxBucketX; bucketX++) {
+					int entry = this.bucketHeads[(bucketY * CWorldCollisionSnapshot.this.bucketsWide) + bucketX];
+					while (entry != -1) {
+						final int unitIndex = this.entryUnits[entry];
+						final CUnit unit = this.units[unitIndex];
+						if ((unit != firstUnitToIgnore) && (unit != secondUnitToIgnore)) {
+							final float x = this.bounds[(unitIndex * 4)];
+							final float y = this.bounds[(unitIndex * 4) + 1];
+							// same test as Rectangle.overlaps
+							if ((x < (rect.x + rect.width)) && ((x + this.bounds[(unitIndex * 4) + 2]) > rect.x)
+									&& (y < (rect.y + rect.height))
+									&& ((y + this.bounds[(unitIndex * 4) + 3]) > rect.y)) {
+								return true;
+							}
+						}
+						entry = this.entryNext[entry];
+					}
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -11,4 +11,16 @@ public class HandleIdAllocator {
 	public int createId() {
 		return this.next++;
 	}
+
+	public int getNextId() {
+		return this.next;
+	}
+
+	/**
+	 * Only for restoring a {@link CSimulationSnapshot}, so that the restored
+	 * widgets get back the handle ids that orders refer to them by.
+	 */
+	public void setNextId(final int next) {
+		this.next = next;
+	}
 }
@@ -31,7 +31,7 @@ public class CBehaviorHoldPosition implements CBehavior {
 
 	@Override
 	public void begin(final CSimulation game) {
-
+		this.unit.wakeAutoAcquire();
 	}
 
 	@Override
@@ -19,8 +19,9 @@ import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.targeting
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.targeting.AbilityTarget;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.abilities.targeting.AbilityTargetVisitor;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing.CPathfindingProcessor;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing.CPathfindingResultHandler;
 
-public class CBehaviorMove implements CBehavior {
+public class CBehaviorMove implements CBehavior, CPathfindingResultHandler {
 	private static boolean ALWAYS_INTERRUPT_MOVE = false;
 
 	private static final Rectangle tempRect = new Rectangle();
@@ -402,6 +403,7 @@ public class CBehaviorMove implements CBehavior {
 		return this.unit;
 	}
 
+	@Override
 	public void pathFound(final List<Point2D.Float> waypoints, final CSimulation simulation) {
 		this.pathfindingActive = false;
 
@@ -30,7 +30,7 @@ public class CBehaviorStop implements CBehavior {
 
 	@Override
 	public void begin(final CSimulation game) {
-
+		this.unit.wakeAutoAcquire();
 	}
 
 	@Override
@@ -0,0 +1,190 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.MovementType;
+
+/**
+ * Remembers recently found paths so that a group of units ordered to the same
+ * place does not search the same route once per unit. Paths are keyed by the
+ * connected region of the sector graph that the start is in, the one that the
+ * goal is in, the movement type, and a rough collision size class, so any unit
+ * starting and ending in the same regions can reuse the route and only swaps the
+ * last waypoint for its own goal. Keying on the sector alone would hand a unit
+ * on the wrong side of a cliff or wall within that sector a route that it cannot
+ * get onto.
+ *
+ * Entries expire after a short while, since units moving around can make an old
+ * route worse, and are thrown away right away if buildings or trees change the
+ * pathing anywhere near them.
+ */
+public class CPathfindingCache {
+	public static final long NOT_CACHEABLE = -1;
+	private static final int ENTRY_LIFETIME_TICKS = 40;
+	private static final int MAX_ENTRIES = 256;
+	private static final float COLLISION_SIZE_CLASS_STEP = 16f;
+	private static final long MAX_KEY_REGION = (1 << 24) - 1;
+
+	private final PathingGrid pathingGrid;
+	private final CPathfindingSectorGraph sectorGraph;
+	private final Map<Long, Entry> entries = new HashMap<>();
+	private int hits;
+	private int misses;
+
+	public CPathfindingCache(final PathingGrid pathingGrid, final CPathfindingSectorGraph sectorGraph) {
+		this.pathingGrid = pathingGrid;
+		this.sectorGraph = sectorGraph;
+	}
+
+	public long getKey(final float startX, final float startY, final float goalX, final float goalY,
+			final MovementType movementType, final float collisionSize) {
+		if ((movementType == null) || (movementType == MovementType.DISABLED)) {
+			return NOT_CACHEABLE;
+		}
+		final long startRegion = this.sectorGraph.getSectorRegion(movementType, startX, startY);
+		final long goalRegion = this.sectorGraph.getSectorRegion(movementType, goalX, goalY);
+		if ((startRegion < 0) || (startRegion > MAX_KEY_REGION) || (goalRegion < 0) || (goalRegion > MAX_KEY_REGION)
+				|| (movementType.ordinal() > 15)) {
+			return NOT_CACHEABLE;
+		}
+		return (startRegion << 36) | (goalRegion << 12) | (movementType.ordinal() << 8)
+				| getCollisionSizeClass(collisionSize);
+	}
+
+	/**
+	 * @return the collision size rounded up to a step of a half cell, 0 to 255
+	 */
+	public static int getCollisionSizeClass(final float collisionSize) {
+		return Math.min(255, (int) Math.ceil(collisionSize / COLLISION_SIZE_CLASS_STEP));
+	}
+
+	/**
+	 * @return the cached path for the key, which the caller must not change, or
+	 *         null
+	 */
+	public List<Point2D.Float> get(final long key, final int gameTick) {
+		if (key != NOT_CACHEABLE) {
+			final Entry entry = this.entries.get(key);
+			if (entry != null) {
+				if ((gameTick - entry.createdTick) <= ENTRY_LIFETIME_TICKS) {
+					this.hits++;
+					return entry.waypoints;
+				}
+				this.entries.remove(key);
+			}
+		}
+		this.misses++;
+		return null;
+	}
+
+	/**
+	 * Counts a request that reused the path of another request searched in the
+	 * same batch.
+	 */
+	public void countHit() {
+		this.hits++;
+	}
+
+	/**
+	 * @return the copy of the path that was stored, which the caller must not
+	 *         change, or null if nothing was stored
+	 */
+	public List<Point2D.Float> put(final long key, final float startX, final float startY,
+			final List<Point2D.Float> waypoints, final int gameTick) {
+		if ((key == NOT_CACHEABLE) || waypoints.isEmpty()) {
+			return null;
+		}
+		if (this.entries.size() >= MAX_ENTRIES) {
+			removeExpired(gameTick);
+			if (this.entries.size() >= MAX_ENTRIES) {
+				this.entries.clear();
+			}
+		}
+		final List<Point2D.Float> waypointsCopy = new ArrayList<>(waypoints);
+		// the last waypoint may be the goal object of whoever asked first, which they
+		// are free to move around
+		final Point2D.Float lastWaypoint = waypointsCopy.get(waypointsCopy.size() - 1);
+		waypointsCopy.set(waypointsCopy.size() - 1, new Point2D.Float(lastWaypoint.x, lastWaypoint.y));
+		final Entry entry = new Entry(waypointsCopy, gameTick);
+		entry.include(this.pathingGrid.getCellX(startX), this.pathingGrid.getCellY(startY));
+		for (final Point2D.Float waypoint : waypoints) {
+			entry.include(this.pathingGrid.getCellX(waypoint.x), this.pathingGrid.getCellY(waypoint.y));
+		}
+		this.entries.put(key, entry);
+		return waypointsCopy;
+	}
+
+	public void removeExpired(final int gameTick) {
+		final Iterator<Entry> iterator = this.entries.values().iterator();
+		while (iterator.hasNext()) {
+			if ((gameTick - iterator.next().createdTick) > ENTRY_LIFETIME_TICKS) {
+				iterator.remove();
+			}
+		}
+	}
+
+	public void dynamicPathingChanged(final int minCellX, final int minCellY, final int maxCellX,
+			final int maxCellY) {
+		final Iterator<Entry> iterator = this.entries.values().iterator();
+		while (iterator.hasNext()) {
+			final Entry entry = iterator.next();
+			// a path runs between its waypoints, not through them, and the unit has some
+			// size, so we look a sector around the waypoints to be safe
+			final int margin = CPathfindingSectorGraph.SECTOR_SIZE;
+			if ((minCellX <= (entry.maxCellX + margin)) && (maxCellX >= (entry.minCellX - margin))
+					&& (minCellY <= (entry.maxCellY + margin)) && (maxCellY >= (entry.minCellY - margin))) {
+				iterator.remove();
+			}
+		}
+	}
+
+	public int getHits() {
+		return this.hits;
+	}
+
+	public int getMisses() {
+		return this.misses;
+	}
+
+	public int getSize() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Makes a path for one unit out of a shared one: same route, but ending on the
+	 * unit's own goal.
+	 */
+	public static List<Point2D.Float> adaptPath(final List<Point2D.Float> sharedWaypoints,
+			final Point2D.Float goal) {
+		final List<Point2D.Float> waypoints = new ArrayList<>(sharedWaypoints);
+		waypoints.set(waypoints.size() - 1, goal);
+		return waypoints;
+	}
+
+	private static final class Entry {
+		private final List<Point2D.Float> waypoints;
+		private final int createdTick;
+		private int minCellX = Integer.MAX_VALUE;
+		private int minCellY = Integer.MAX_VALUE;
+		private int maxCellX = Integer.MIN_VALUE;
+		private int maxCellY = Integer.MIN_VALUE;
+
+		private Entry(final List<Point2D.Float> waypoints, final int createdTick) {
+			this.waypoints = waypoints;
+			this.createdTick = createdTick;
+		}
+
+		private void include(final int cellX, final int cellY) {
+			this.minCellX = Math.min(this.minCellX, cellX);
+			this.minCellY = Math.min(this.minCellY, cellY);
+			this.maxCellX = Math.max(this.maxCellX, cellX);
+			this.maxCellY = Math.max(this.maxCellY, cellY);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.MovementType;
+
+/**
+ * Flow field towards one goal, for moving a big group of units without one A*
+ * search per unit. A single Dijkstra pass out from the goal cell fills in the
+ * integration field (the cost of getting from each cell to the goal) and the
+ * direction field (which neighbour to step to from each cell), and then the
+ * path of any unit in the field is just read off by following the directions.
+ *
+ * The field only covers a window of the pathing grid around the group and the
+ * goal, and only looks at static and dynamic pathing, not at units, same as
+ * the sector graph. Units that turn out to be outside of what the field reached
+ * get an empty path and are expected to do a normal search instead.
+ *
+ * Meant to be kept around and rebuilt for each goal, so that it does not
+ * allocate once it has grown to the largest window it was asked for.
+ */
+public final class CPathfindingFlowField {
+	public static final byte NO_DIRECTION = -1;
+	private static final int[] DIRECTION_X = { 1, 0, -1, 0, 1, -1, -1, 1 };
+	private static final int[] DIRECTION_Y = { 0, 1, 0, -1, 1, 1, -1, -1 };
+	private static final float[] DIRECTION_COST = { 1f, 1f, 1f, 1f, 1.4142135f, 1.4142135f, 1.4142135f,
+			1.4142135f };
+	private static final byte PATHABILITY_UNKNOWN = 0;
+	private static final byte PATHABLE = 1;
+	private static final byte NOT_PATHABLE = 2;
+
+	private final PathingGrid pathingGrid;
+	private final CPathfindingOpenSet openSet;
+	private float[] integration;
+	private byte[] direction;
+	private byte[] pathability;
+	private int minCellX;
+	private int minCellY;
+	private int windowWidth;
+	private int windowHeight;
+	private int goalCellX;
+	private int goalCellY;
+	private MovementType movementType;
+	private float collisionSize;
+
+	public CPathfindingFlowField(final PathingGrid pathingGrid) {
+		this.pathingGrid = pathingGrid;
+		this.openSet = new CPathfindingOpenSet(0);
+		this.integration = new float[0];
+		this.direction = new byte[0];
+		this.pathability = new byte[0];
+	}
+
+	/**
+	 * Fills in the field towards the goal, over the given cell window (inclusive)
+	 * clamped to the grid. The goal should be inside the window.
+	 */
+	public void build(final float goalX, final float goalY, final MovementType movementType,
+			final float collisionSize, final int minCellX, final int minCellY, final int maxCellX,
+			final int maxCellY) {
+		this.minCellX = Math.max(0, minCellX);
+		this.minCellY = Math.max(0, minCellY);
+		this.windowWidth = (Math.min(this.pathingGrid.getWidth() - 1, maxCellX) - this.minCellX) + 1;
+		this.windowHeight = (Math.min(this.pathingGrid.getHeight() - 1, maxCellY) - this.minCellY) + 1;
+		this.movementType = movementType;
+		this.collisionSize = collisionSize;
+		final int cellCount = this.windowWidth * this.windowHeight;
+		if (this.integration.length < cellCount) {
+			this.integration = new float[cellCount];
+			this.direction = new byte[cellCount];
+			this.pathability = new byte[cellCount];
+			this.openSet.ensureIdCapacity(cellCount);
+		}
+		Arrays.fill(this.integration, 0, cellCount, Float.POSITIVE_INFINITY);
+		Arrays.fill(this.direction, 0, cellCount, NO_DIRECTION);
+		Arrays.fill(this.pathability, 0, cellCount, PATHABILITY_UNKNOWN);
+		this.openSet.clear();
+
+		this.goalCellX = this.pathingGrid.getCellX(goalX);
+		this.goalCellY = this.pathingGrid.getCellY(goalY);
+		if (!isInWindow(this.goalCellX, this.goalCellY)) {
+			return;
+		}
+		// the goal itself is allowed to be blocked (a building being attacked, and
+		// so on), units just head for the cells next to it
+		final int goalIndex = getIndex(this.goalCellX, this.goalCellY);
+		this.integration[goalIndex] = 0;
+		this.openSet.addOrUpdate(goalIndex, 0);
+		while (!this.openSet.isEmpty()) {
+			final int index = this.openSet.poll();
+			final int cellX = this.minCellX + (index % this.windowWidth);
+			final int cellY = this.minCellY + (index / this.windowWidth);
+			final float cost = this.integration[index];
+			for (byte i = 0; i < DIRECTION_X.length; i++) {
+				final int neighborX = cellX + DIRECTION_X[i];
+				final int neighborY = cellY + DIRECTION_Y[i];
+				if (!isPathable(neighborX, neighborY)) {
+					continue;
+				}
+				if ((i >= 4) && (!isPathable(cellX + DIRECTION_X[i], cellY) || !isPathable(cellX, neighborY))) {
+					// no cutting corners
+					continue;
+				}
+				final int neighborIndex = getIndex(neighborX, neighborY);
+				final float neighborCost = cost + DIRECTION_COST[i];
+				if (neighborCost < this.integration[neighborIndex]) {
+					this.integration[neighborIndex] = neighborCost;
+					// from the neighbour, we step back the way we came
+					this.direction[neighborIndex] = (byte) (i ^ 2);
+					this.openSet.addOrUpdate(neighborIndex, neighborCost);
+				}
+			}
+		}
+	}
+
+	public float getIntegration(final int cellX, final int cellY) {
+		if (!isInWindow(cellX, cellY)) {
+			return Float.POSITIVE_INFINITY;
+		}
+		return this.integration[getIndex(cellX, cellY)];
+	}
+
+	public byte getDirection(final int cellX, final int cellY) {
+		if (!isInWindow(cellX, cellY)) {
+			return NO_DIRECTION;
+		}
+		return this.direction[getIndex(cellX, cellY)];
+	}
+
+	/**
+	 * Reads a path from the start to the goal off the direction field, with a
+	 * waypoint wherever the direction changes and the goal itself as the last
+	 * waypoint.
+	 *
+	 * @return the path, or an empty list if the field does not reach the start
+	 */
+	public List<Point2D.Float> trace(final float startX, final float startY, final Point2D.Float goal) {
+		int cellX = this.pathingGrid.getCellX(startX);
+		int cellY = this.pathingGrid.getCellY(startY);
+		if (getIntegration(cellX, cellY) == Float.POSITIVE_INFINITY) {
+			// units standing close to a wall are often on a cell that is not pathable for
+			// their collision size, so we let them start from the best cell next to them
+			int bestX = cellX;
+			int bestY = cellY;
+			float bestIntegration = Float.POSITIVE_INFINITY;
+			for (int i = 0; i < DIRECTION_X.length; i++) {
+				final float neighborIntegration = getIntegration(cellX + DIRECTION_X[i], cellY + DIRECTION_Y[i]);
+				if (neighborIntegration < bestIntegration) {
+					bestIntegration = neighborIntegration;
+					bestX = cellX + DIRECTION_X[i];
+					bestY = cellY + DIRECTION_Y[i];
+				}
+			}
+			if (bestIntegration == Float.POSITIVE_INFINITY) {
+				return Collections.emptyList();
+			}
+			cellX = bestX;
+			cellY = bestY;
+		}
+		final List<Point2D.Float> waypoints = new ArrayList<>();
+		byte lastDirection = NO_DIRECTION;
+		final int maxSteps = this.windowWidth * this.windowHeight;
+		for (int step = 0; ((cellX != this.goalCellX) || (cellY != this.goalCellY)) && (step < maxSteps); step++) {
+			final byte direction = this.direction[getIndex(cellX, cellY)];
+			if ((direction != lastDirection) && (lastDirection != NO_DIRECTION)) {
+				waypoints.add(new Point2D.Float(this.pathingGrid.getWorldX(cellX), this.pathingGrid.getWorldY(cellY)));
+			}
+			lastDirection = direction;
+			cellX += DIRECTION_X[direction];
+			cellY += DIRECTION_Y[direction];
+		}
+		waypoints.add(goal);
+		return waypoints;
+	}
+
+	private boolean isInWindow(final int cellX, final int cellY) {
+		return (cellX >= this.minCellX) && (cellY >= this.minCellY) && (cellX < (this.minCellX + this.windowWidth))
+				&& (cellY < (this.minCellY + this.windowHeight));
+	}
+
+	private int getIndex(final int cellX, final int cellY) {
+		return ((cellY - this.minCellY) * this.windowWidth) + (cellX - this.minCellX);
+	}
+
+	private boolean isPathable(final int cellX, final int cellY) {
+		if (!isInWindow(cellX, cellY)) {
+			return false;
+		}
+		final int index = getIndex(cellX, cellY);
+		if (this.pathability[index] == PATHABILITY_UNKNOWN) {
+			this.pathability[index] = this.pathingGrid.isCellPathable(cellX, cellY, this.movementType,
+					this.collisionSize) ? PATHABLE : NOT_PATHABLE;
+		}
+		return this.pathability[index] == PATHABLE;
+	}
+}
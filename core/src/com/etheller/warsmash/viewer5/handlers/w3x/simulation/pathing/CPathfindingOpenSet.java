@@ -0,0 +1,130 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of integer ids with double priorities, used as the open set
+ * of our A* searches. Unlike java.util.PriorityQueue, it remembers where each
+ * id sits in the heap, so checking if an id is queued is O(1) and lowering the
+ * priority of a queued id is O(log n) instead of a linear scan.
+ *
+ * Meant to be kept around and cleared between searches, so that a search does
+ * not allocate.
+ */
+public final class CPathfindingOpenSet {
+	private static final int NOT_QUEUED = -1;
+
+	private int[] heap;
+	private double[] heapPriorities;
+	// heap slot of each id, or NOT_QUEUED
+	private int[] slots;
+	private int size;
+
+	public CPathfindingOpenSet(final int idCapacity) {
+		this.heap = new int[16];
+		this.heapPriorities = new double[16];
+		this.slots = new int[idCapacity];
+		Arrays.fill(this.slots, NOT_QUEUED);
+	}
+
+	public void ensureIdCapacity(final int idCapacity) {
+		if (this.slots.length < idCapacity) {
+			final int oldLength = this.slots.length;
+			this.slots = Arrays.copyOf(this.slots, idCapacity);
+			Arrays.fill(this.slots, oldLength, idCapacity, NOT_QUEUED);
+		}
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean contains(final int id) {
+		return this.slots[id] != NOT_QUEUED;
+	}
+
+	public void clear() {
+		for (int i = 0; i < this.size; i++) {
+			this.slots[this.heap[i]] = NOT_QUEUED;
+		}
+		this.size = 0;
+	}
+
+	/**
+	 * Queues the id, or moves it to its new priority if it was already queued.
+	 * Callers of A* only ever lower the priority of a queued id, but raising it is
+	 * handled too.
+	 */
+	public void addOrUpdate(final int id, final double priority) {
+		final int slot = this.slots[id];
+		if (slot == NOT_QUEUED) {
+			if (this.size == this.heap.length) {
+				final int newCapacity = this.size * 2;
+				this.heap = Arrays.copyOf(this.heap, newCapacity);
+				this.heapPriorities = Arrays.copyOf(this.heapPriorities, newCapacity);
+			}
+			siftUp(this.size++, id, priority);
+		}
+		else if (priority < this.heapPriorities[slot]) {
+			siftUp(slot, id, priority);
+		}
+		else {
+			siftDown(slot, id, priority);
+		}
+	}
+
+	public double peekPriority() {
+		return this.heapPriorities[0];
+	}
+
+	/**
+	 * @return the id with the lowest priority, removing it from the open set
+	 */
+	public int poll() {
+		final int result = this.heap[0];
+		this.slots[result] = NOT_QUEUED;
+		this.size--;
+		if (this.size > 0) {
+			siftDown(0, this.heap[this.size], this.heapPriorities[this.size]);
+		}
+		return result;
+	}
+
+	private void siftUp(int slot, final int id, final double priority) {
+		while (slot > 0) {
+			final int parent = (slot - 1) >>> 1;
+			if (this.heapPriorities[parent] <= priority) {
+				break;
+			}
+			place(slot, this.heap[parent], this.heapPriorities[parent]);
+			slot = parent;
+		}
+		place(slot, id, priority);
+	}
+
+	private void siftDown(int slot, final int id, final double priority) {
+		final int half = this.size >>> 1;
+		while (slot < half) {
+			int child = (slot * 2) + 1;
+			if (((child + 1) < this.size) && (this.heapPriorities[child + 1] < this.heapPriorities[child])) {
+				child++;
+			}
+			if (this.heapPriorities[child] >= priority) {
+				break;
+			}
+			place(slot, this.heap[child], this.heapPriorities[child]);
+			slot = child;
+		}
+		place(slot, id, priority);
+	}
+
+	private void place(final int slot, final int id, final double priority) {
+		this.heap[slot] = id;
+		this.heapPriorities[slot] = priority;
+		this.slots[id] = slot;
+	}
+}
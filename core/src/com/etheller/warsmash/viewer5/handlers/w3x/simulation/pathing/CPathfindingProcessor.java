@@ -1,52 +1,63 @@
 package com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing;
 
 import java.awt.geom.Point2D;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.PriorityQueue;
 
 import com.badlogic.gdx.math.Rectangle;
 import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid;
 import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.MovementType;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulation;
 import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnit;
-import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CWorldCollision;
-import com.etheller.warsmash.viewer5.handlers.w3x.simulation.behaviors.CBehaviorMove;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnitCollisionQuery;
 
 public class CPathfindingProcessor {
-	private static final Rectangle tempRect = new Rectangle();
+	private static final int DEFAULT_WORK_ITERATIONS_PER_UPDATE = 1500;
+	// how many sectors of the abstract route are covered by one leg of the fine
+	// search
+	private static final int LEG_ROUTE_STEPS = 3;
 	private final PathingGrid pathingGrid;
-	private final CWorldCollision worldCollision;
+	private final CUnitCollisionQuery worldCollision;
+	private final Rectangle tempRect = new Rectangle();
+	private final CPathfindingSectorGraph sectorGraph;
+	private final CPathfindingSectorGraph.Corridor corridor;
 	private final LinkedList<PathfindingJob> moveQueue = new LinkedList<>();
-	// things with modified state per current job:
-	private final Node[][] nodes;
-	private final Node[][] cornerNodes;
-	private final Node[] goalSet = new Node[4];
+	private final CPathfindingSearchStatePool searchStatePool;
+	// things with modified state per current job, only held while a job is in
+	// progress:
+	private CPathfindingSearchState searchState;
+	private final int[] goalSet = new int[4];
+	private final float[] goalSetX = new float[4];
+	private final float[] goalSetY = new float[4];
 	private int goals = 0;
-	private int pathfindJobId = 0;
 	private int totalIterations = 0;
 	private int totalJobLoops = 0;
+	private int workIterationsPerUpdate = DEFAULT_WORK_ITERATIONS_PER_UPDATE;
 
-	public CPathfindingProcessor(final PathingGrid pathingGrid, final CWorldCollision worldCollision) {
+	public CPathfindingProcessor(final PathingGrid pathingGrid, final CUnitCollisionQuery worldCollision,
+			final CPathfindingSectorGraph sectorGraph, final CPathfindingSearchStatePool searchStatePool) {
 		this.pathingGrid = pathingGrid;
 		this.worldCollision = worldCollision;
-		this.nodes = new Node[pathingGrid.getHeight()][pathingGrid.getWidth()];
-		this.cornerNodes = new Node[pathingGrid.getHeight() + 1][pathingGrid.getWidth() + 1];
-		System.out.println("pathing size: ");
-		for (int i = 0; i < this.nodes.length; i++) {
-			for (int j = 0; j < this.nodes[i].length; j++) {
-				this.nodes[i][j] = new Node(new Point2D.Float(pathingGrid.getWorldX(j), pathingGrid.getWorldY(i)));
-			}
-		}
-		for (int i = 0; i < this.cornerNodes.length; i++) {
-			for (int j = 0; j < this.cornerNodes[i].length; j++) {
-				this.cornerNodes[i][j] = new Node(
-						new Point2D.Float(pathingGrid.getWorldXFromCorner(j), pathingGrid.getWorldYFromCorner(i)));
-			}
-		}
+		this.sectorGraph = sectorGraph;
+		this.corridor = sectorGraph.createCorridor();
+		this.searchStatePool = searchStatePool;
+	}
+
+	/**
+	 * Sets how much searching a single call to {@link #update(CSimulation)} may do
+	 * before it stops and leaves the rest for the next call.
+	 */
+	public void setWorkIterationsPerUpdate(final int workIterationsPerUpdate) {
+		this.workIterationsPerUpdate = workIterationsPerUpdate;
+	}
+
+	/**
+	 * @return how many nodes a search state needs to hold to search either graph
+	 *         of the given pathing grid
+	 */
+	public static int getSearchNodeCount(final PathingGrid pathingGrid) {
+		return GridMapping.CORNERS.getWidth(pathingGrid) * GridMapping.CORNERS.getHeight(pathingGrid);
 	}
 
 	/**
@@ -56,6 +67,12 @@ public class CPathfindingProcessor {
 	 * the wikipedia article on A* to jog my memory from data structures class back
 	 * in college, and is meant only as a first draft to get things working.
 	 *
+	 * Before the A* runs, the sector graph is searched for a route of sectors
+	 * between the start and the goal. The A* then runs as a series of short legs
+	 * from portal to portal along that route, each one not allowed to leave the
+	 * few sectors that it covers. If any leg cannot find a clean path inside of its
+	 * sectors, the job is restarted on the whole grid.
+	 *
 	 * @param collisionSize
 	 *
 	 *
@@ -68,12 +85,12 @@ public class CPathfindingProcessor {
 	public void findNaiveSlowPath(final CUnit ignoreIntersectionsWithThisUnit,
 			final CUnit ignoreIntersectionsWithThisSecondUnit, final float startX, final float startY,
 			final Point2D.Float goal, final PathingGrid.MovementType movementType, final float collisionSize,
-			final boolean allowSmoothing, final CBehaviorMove queueItem) {
+			final boolean allowSmoothing, final CPathfindingResultHandler queueItem) {
 		this.moveQueue.offer(new PathfindingJob(ignoreIntersectionsWithThisUnit, ignoreIntersectionsWithThisSecondUnit,
 				startX, startY, goal, movementType, collisionSize, allowSmoothing, queueItem));
 	}
 
-	public void removeFromPathfindingQueue(final CBehaviorMove behaviorMove) {
+	public void removeFromPathfindingQueue(final CPathfindingResultHandler behaviorMove) {
 		// TODO because of silly java things, this remove is O(N) for now,
 		// we could do some refactors to make it O(1) but do we care?
 		final Iterator<PathfindingJob> iterator = this.moveQueue.iterator();
@@ -102,7 +119,7 @@ public class CPathfindingProcessor {
 
 	private boolean isPathableDynamically(final float x, final float y, final CUnit ignoreIntersectionsWithThisUnit,
 			final CUnit ignoreIntersectionsWithThisSecondUnit, final PathingGrid.MovementType movementType) {
-		return !this.worldCollision.intersectsAnythingOtherThan(tempRect.setCenter(x, y),
+		return !this.worldCollision.intersectsAnythingOtherThan(this.tempRect.setCenter(x, y),
 				ignoreIntersectionsWithThisUnit, ignoreIntersectionsWithThisSecondUnit, movementType);
 	}
 
@@ -110,27 +127,19 @@ public class CPathfindingProcessor {
 		return (((2 * (int) collisionSize) / 32) % 2) == 1;
 	}
 
-	public double f(final Node n) {
-		return n.g + h(n);
-	}
-
-	public double g(final Node n) {
-		return n.g;
-	}
-
-	private boolean isGoal(final Node n) {
+	private boolean isGoal(final int node) {
 		for (int i = 0; i < this.goals; i++) {
-			if (n == this.goalSet[i]) {
+			if (node == this.goalSet[i]) {
 				return true;
 			}
 		}
 		return false;
 	}
 
-	public float h(final Node n) {
+	public float h(final float x, final float y) {
 		float bestDistance = 0;
 		for (int i = 0; i < this.goals; i++) {
-			final float possibleDistance = (float) n.point.distance(this.goalSet[i].point);
+			final float possibleDistance = (float) Point2D.distance(x, y, this.goalSetX[i], this.goalSetY[i]);
 			if (possibleDistance > bestDistance) {
 				bestDistance = possibleDistance; // always overestimate
 			}
@@ -138,29 +147,6 @@ public class CPathfindingProcessor {
 		return bestDistance;
 	}
 
-	public static final class Node {
-		public Direction cameFromDirection;
-		private final Point2D.Float point;
-		private double f;
-		private double g;
-		private Node cameFrom;
-		private int pathfindJobId;
-
-		private Node(final Point2D.Float point) {
-			this.point = point;
-		}
-
-		private void touch(final int pathfindJobId) {
-			if (pathfindJobId != this.pathfindJobId) {
-				this.g = Float.POSITIVE_INFINITY;
-				this.f = Float.POSITIVE_INFINITY;
-				this.cameFrom = null;
-				this.cameFromDirection = null;
-				this.pathfindJobId = pathfindJobId;
-			}
-		}
-	}
-
 	private static enum Direction {
 		NORTH_WEST(-1, 1),
 		NORTH(0, 1),
@@ -190,6 +176,14 @@ public class CPathfindingProcessor {
 
 		int getY(PathingGrid grid, float worldY);
 
+		float getWorldX(PathingGrid grid, int x);
+
+		float getWorldY(PathingGrid grid, int y);
+
+		int getWidth(PathingGrid grid);
+
+		int getHeight(PathingGrid grid);
+
 		public static final GridMapping CELLS = new GridMapping() {
 			@Override
 			public int getX(final PathingGrid grid, final float worldX) {
@@ -201,6 +195,26 @@ public class CPathfindingProcessor {
 				return grid.getCellY(worldY);
 			}
 
+			@Override
+			public float getWorldX(final PathingGrid grid, final int x) {
+				return grid.getWorldX(x);
+			}
+
+			@Override
+			public float getWorldY(final PathingGrid grid, final int y) {
+				return grid.getWorldY(y);
+			}
+
+			@Override
+			public int getWidth(final PathingGrid grid) {
+				return grid.getWidth();
+			}
+
+			@Override
+			public int getHeight(final PathingGrid grid) {
+				return grid.getHeight();
+			}
+
 		};
 
 		public static final GridMapping CORNERS = new GridMapping() {
@@ -214,16 +228,43 @@ public class CPathfindingProcessor {
 				return grid.getCornerY(worldY);
 			}
 
+			@Override
+			public float getWorldX(final PathingGrid grid, final int x) {
+				return grid.getWorldXFromCorner(x);
+			}
+
+			@Override
+			public float getWorldY(final PathingGrid grid, final int y) {
+				return grid.getWorldYFromCorner(y);
+			}
+
+			@Override
+			public int getWidth(final PathingGrid grid) {
+				return grid.getWidth() + 1;
+			}
+
+			@Override
+			public int getHeight(final PathingGrid grid) {
+				return grid.getHeight() + 1;
+			}
+
 		};
 	}
 
+	private float nodeX(final PathfindingJob job, final int node) {
+		return job.gridMapping.getWorldX(this.pathingGrid, node % job.graphWidth);
+	}
+
+	private float nodeY(final PathfindingJob job, final int node) {
+		return job.gridMapping.getWorldY(this.pathingGrid, node / job.graphWidth);
+	}
+
 	public void update(final CSimulation simulation) {
 		int workIterations = 0;
 		JobsLoop: while (!this.moveQueue.isEmpty()) {
 			this.totalJobLoops++;
 			final PathfindingJob job = this.moveQueue.peek();
 			if (!job.jobStarted) {
-				this.pathfindJobId++;
 				this.totalIterations = 0;
 				this.totalJobLoops = 0;
 				job.jobStarted = true;
@@ -231,12 +272,6 @@ public class CPathfindingProcessor {
 				workIterations += 5; // setup of job predicted cost
 				job.goalX = job.goal.x;
 				job.goalY = job.goal.y;
-				job.weightForHittingWalls = 1E9f;
-				if (!this.pathingGrid.isPathable(job.goalX, job.goalY, job.movementType, job.collisionSize)
-						|| !isPathableDynamically(job.goalX, job.goalY, job.ignoreIntersectionsWithThisUnit,
-								job.ignoreIntersectionsWithThisSecondUnit, job.movementType)) {
-					job.weightForHittingWalls = 5E2f;
-				}
 				System.out.println("beginning findNaiveSlowPath for  " + job.startX + "," + job.startY + "," + job.goalX
 						+ "," + job.goalY);
 				if ((job.startX == job.goalX) && (job.startY == job.goalY)) {
@@ -244,49 +279,96 @@ public class CPathfindingProcessor {
 					this.moveQueue.poll();
 					continue JobsLoop;
 				}
-				tempRect.set(0, 0, job.collisionSize * 2, job.collisionSize * 2);
 				if (isCollisionSizeBetterSuitedForCorners(job.collisionSize)) {
-					job.searchGraph = this.cornerNodes;
 					job.gridMapping = GridMapping.CORNERS;
 					System.out.println("using corners");
 				}
 				else {
-					job.searchGraph = this.nodes;
 					job.gridMapping = GridMapping.CELLS;
 					System.out.println("using cells");
 				}
-				final int goalCellY = job.gridMapping.getY(this.pathingGrid, job.goalY);
-				final int goalCellX = job.gridMapping.getX(this.pathingGrid, job.goalX);
-				final Node mostLikelyGoal = job.searchGraph[goalCellY][goalCellX];
-				mostLikelyGoal.touch(this.pathfindJobId);
-				final double bestGoalDistance = mostLikelyGoal.point.distance(job.goalX, job.goalY);
-				Arrays.fill(this.goalSet, null);
+				job.graphWidth = job.gridMapping.getWidth(this.pathingGrid);
+				job.graphHeight = job.gridMapping.getHeight(this.pathingGrid);
+				job.corridorRestricted = !job.corridorDisabled && this.sectorGraph.findCorridor(job.movementType,
+						job.startX, job.startY, job.goalX, job.goalY, this.corridor);
+				job.routeIndex = 0;
+				job.legStartX = job.startX;
+				job.legStartY = job.startY;
+				job.completedLegsPath = new LinkedList<>();
+				job.legStarted = false;
+			}
+			if (this.searchState == null) {
+				this.searchState = this.searchStatePool.obtain();
+			}
+			final CPathfindingSearchState searchState = this.searchState;
+			final CPathfindingOpenSet openSet = searchState.getOpenSet();
+			if (!job.legStarted) {
+				searchState.beginSearch();
+				job.legStarted = true;
+				this.tempRect.set(0, 0, job.collisionSize * 2, job.collisionSize * 2);
+				if (job.corridorRestricted) {
+					final int routeLength = this.corridor.getRouteLength();
+					final int legEndIndex = Math.min(job.routeIndex + LEG_ROUTE_STEPS, routeLength - 1);
+					this.corridor.restrictTo(job.routeIndex, legEndIndex);
+					job.finalLeg = legEndIndex == (routeLength - 1);
+					job.routeIndex = legEndIndex;
+				}
+				else {
+					job.finalLeg = true;
+				}
+				if (job.finalLeg) {
+					job.legGoal = job.goal;
+					job.weightForHittingWalls = 1E9f;
+					if (!this.pathingGrid.isPathable(job.goalX, job.goalY, job.movementType, job.collisionSize)
+							|| !isPathableDynamically(job.goalX, job.goalY, job.ignoreIntersectionsWithThisUnit,
+									job.ignoreIntersectionsWithThisSecondUnit, job.movementType)) {
+						job.weightForHittingWalls = 5E2f;
+					}
+				}
+				else {
+					job.legGoal = new Point2D.Float(this.corridor.getEntryX(job.routeIndex),
+							this.corridor.getEntryY(job.routeIndex));
+					job.weightForHittingWalls = 1E9f;
+					if (!this.pathingGrid.isPathable(job.legGoal.x, job.legGoal.y, job.movementType,
+							job.collisionSize)) {
+						// the portal is too narrow for this unit
+						restartWithoutCorridor(job);
+						continue JobsLoop;
+					}
+				}
+				final int goalCellY = job.gridMapping.getY(this.pathingGrid, job.legGoal.y);
+				final int goalCellX = job.gridMapping.getX(this.pathingGrid, job.legGoal.x);
+				final double bestGoalDistance = Point2D.distance(job.gridMapping.getWorldX(this.pathingGrid, goalCellX),
+						job.gridMapping.getWorldY(this.pathingGrid, goalCellY), job.legGoal.x, job.legGoal.y);
 				this.goals = 0;
 				for (int i = goalCellX - 1; i <= (goalCellX + 1); i++) {
 					for (int j = goalCellY - 1; j <= (goalCellY + 1); j++) {
-						final Node possibleGoal = job.searchGraph[j][i];
-						possibleGoal.touch(this.pathfindJobId);
-						if (possibleGoal.point.distance(job.goalX, job.goalY) <= bestGoalDistance) {
-							this.goalSet[this.goals++] = possibleGoal;
+						if ((i < 0) || (j < 0) || (i >= job.graphWidth) || (j >= job.graphHeight)) {
+							continue;
+						}
+						final float possibleGoalX = job.gridMapping.getWorldX(this.pathingGrid, i);
+						final float possibleGoalY = job.gridMapping.getWorldY(this.pathingGrid, j);
+						if (Point2D.distance(possibleGoalX, possibleGoalY, job.legGoal.x,
+								job.legGoal.y) <= bestGoalDistance) {
+							final int possibleGoal = (j * job.graphWidth) + i;
+							searchState.touch(possibleGoal);
+							this.goalSet[this.goals] = possibleGoal;
+							this.goalSetX[this.goals] = possibleGoalX;
+							this.goalSetY[this.goals] = possibleGoalY;
+							this.goals++;
 						}
 					}
 				}
-				final int startGridY = job.gridMapping.getY(this.pathingGrid, job.startY);
-				final int startGridX = job.gridMapping.getX(this.pathingGrid, job.startX);
-				job.openSet = new PriorityQueue<>(new Comparator<Node>() {
-					@Override
-					public int compare(final Node a, final Node b) {
-						return Double.compare(f(a), f(b));
-					}
-				});
-
-				job.start = job.searchGraph[startGridY][startGridX];
-				job.start.touch(this.pathfindJobId);
-				if (job.startX > job.start.point.x) {
+				job.startedInsideWall = false;
+				final int startGridY = job.gridMapping.getY(this.pathingGrid, job.legStartY);
+				final int startGridX = job.gridMapping.getX(this.pathingGrid, job.legStartX);
+				final float startNodeX = job.gridMapping.getWorldX(this.pathingGrid, startGridX);
+				final float startNodeY = job.gridMapping.getWorldY(this.pathingGrid, startGridY);
+				if (job.legStartX > startNodeX) {
 					job.startGridMinX = startGridX;
 					job.startGridMaxX = startGridX + 1;
 				}
-				else if (job.startX < job.start.point.x) {
+				else if (job.legStartX < startNodeX) {
 					job.startGridMinX = startGridX - 1;
 					job.startGridMaxX = startGridX;
 				}
@@ -294,11 +376,11 @@ public class CPathfindingProcessor {
 					job.startGridMinX = startGridX;
 					job.startGridMaxX = startGridX;
 				}
-				if (job.startY > job.start.point.y) {
+				if (job.legStartY > startNodeY) {
 					job.startGridMinY = startGridY;
 					job.startGridMaxY = startGridY + 1;
 				}
-				else if (job.startY < job.start.point.y) {
+				else if (job.legStartY < startNodeY) {
 					job.startGridMinY = startGridY - 1;
 					job.startGridMaxY = startGridY;
 				}
@@ -310,120 +392,141 @@ public class CPathfindingProcessor {
 					for (int cellY = job.startGridMinY; cellY <= job.startGridMaxY; cellY++) {
 						if ((cellX >= 0) && (cellX < this.pathingGrid.getWidth()) && (cellY >= 0)
 								&& (cellY < this.pathingGrid.getHeight())) {
-							final Node possibleNode = job.searchGraph[cellY][cellX];
-							possibleNode.touch(this.pathfindJobId);
-							final float x = possibleNode.point.x;
-							final float y = possibleNode.point.y;
+							final int possibleNode = (cellY * job.graphWidth) + cellX;
+							searchState.touch(possibleNode);
+							final float x = job.gridMapping.getWorldX(this.pathingGrid, cellX);
+							final float y = job.gridMapping.getWorldY(this.pathingGrid, cellY);
+							final double tentativeScore;
 							if (pathableBetween(job.ignoreIntersectionsWithThisUnit,
-									job.ignoreIntersectionsWithThisSecondUnit, job.startX, job.startY, job.movementType,
-									job.collisionSize, x, y)) {
-
-								final double tentativeScore = possibleNode.point.distance(job.startX, job.startY);
-								possibleNode.g = tentativeScore;
-								possibleNode.f = tentativeScore + h(possibleNode);
-								job.openSet.add(possibleNode);
-
+									job.ignoreIntersectionsWithThisSecondUnit, job.legStartX, job.legStartY,
+									job.movementType, job.collisionSize, x, y)) {
+								tentativeScore = Point2D.distance(x, y, job.legStartX, job.legStartY);
 							}
 							else {
-								final double tentativeScore = job.weightForHittingWalls;
-								possibleNode.g = tentativeScore;
-								possibleNode.f = tentativeScore + h(possibleNode);
-								job.openSet.add(possibleNode);
-
+								tentativeScore = job.weightForHittingWalls;
+								job.startedInsideWall = true;
 							}
+							searchState.set(possibleNode, tentativeScore, -1, CPathfindingSearchState.NO_DIRECTION);
+							openSet.addOrUpdate(possibleNode, tentativeScore + h(x, y));
 						}
 					}
 				}
 			}
 
-			while (!job.openSet.isEmpty()) {
-				Node current = job.openSet.poll();
-				current.touch(this.pathfindJobId);
+			while (!openSet.isEmpty()) {
+				int current = openSet.poll();
+				searchState.touch(current);
+				float currentX = nodeX(job, current);
+				float currentY = nodeY(job, current);
+				final double currentG = searchState.getG(current);
 				if (isGoal(current)) {
+					if (job.corridorRestricted && !job.startedInsideWall && (currentG >= job.weightForHittingWalls)) {
+						// the corridor ignores collision size, so it may have sent us through a gap
+						// that is too small for this unit; let the whole grid have a try
+						restartWithoutCorridor(job);
+						continue JobsLoop;
+					}
 					final LinkedList<Point2D.Float> totalPath = new LinkedList<>();
-					Direction lastCameFromDirection = null;
+					byte lastCameFromDirection = CPathfindingSearchState.NO_DIRECTION;
 
-					if ((current.cameFrom != null)
+					int cameFrom = searchState.getCameFrom(current);
+					if ((cameFrom != -1)
 							&& pathableBetween(job.ignoreIntersectionsWithThisUnit,
-									job.ignoreIntersectionsWithThisSecondUnit, current.point.x, current.point.y,
-									job.movementType, job.collisionSize, job.goalX, job.goalY)
+									job.ignoreIntersectionsWithThisSecondUnit, currentX, currentY, job.movementType,
+									job.collisionSize, job.legGoal.x, job.legGoal.y)
 							&& pathableBetween(job.ignoreIntersectionsWithThisUnit,
-									job.ignoreIntersectionsWithThisSecondUnit, current.cameFrom.point.x,
-									current.cameFrom.point.y, job.movementType, job.collisionSize, current.point.x,
-									current.point.y)
+									job.ignoreIntersectionsWithThisSecondUnit, nodeX(job, cameFrom),
+									nodeY(job, cameFrom), job.movementType, job.collisionSize, currentX, currentY)
 							&& pathableBetween(job.ignoreIntersectionsWithThisUnit,
-									job.ignoreIntersectionsWithThisSecondUnit, current.cameFrom.point.x,
-									current.cameFrom.point.y, job.movementType, job.collisionSize, job.goalX, job.goalY)
+									job.ignoreIntersectionsWithThisSecondUnit, nodeX(job, cameFrom),
+									nodeY(job, cameFrom), job.movementType, job.collisionSize, job.legGoal.x,
+									job.legGoal.y)
 							&& job.allowSmoothing) {
 						// do some basic smoothing to walk straight to the goal if it is not obstructed,
 						// skipping the last grid location
-						totalPath.addFirst(job.goal);
-						current = current.cameFrom;
+						totalPath.addFirst(job.legGoal);
+						current = cameFrom;
+						currentX = nodeX(job, current);
+						currentY = nodeY(job, current);
 					}
 					else {
-						totalPath.addFirst(job.goal);
-						totalPath.addFirst(current.point);
+						totalPath.addFirst(job.legGoal);
+						totalPath.addFirst(new Point2D.Float(currentX, currentY));
 					}
-					lastCameFromDirection = current.cameFromDirection;
-					Node lastNode = null;
-					while (current.cameFrom != null) {
+					lastCameFromDirection = searchState.getCameFromDirection(current);
+					int lastNode = -1;
+					float lastNodeX = 0;
+					float lastNodeY = 0;
+					while ((cameFrom = searchState.getCameFrom(current)) != -1) {
 						lastNode = current;
-						current = current.cameFrom;
-						if ((lastCameFromDirection == null) || (current.cameFromDirection != lastCameFromDirection)
-								|| (current.cameFromDirection == null)) {
-							if ((current.cameFromDirection != null) || (lastNode == null)
+						lastNodeX = currentX;
+						lastNodeY = currentY;
+						current = cameFrom;
+						currentX = nodeX(job, current);
+						currentY = nodeY(job, current);
+						final byte currentCameFromDirection = searchState.getCameFromDirection(current);
+						if ((lastCameFromDirection == CPathfindingSearchState.NO_DIRECTION)
+								|| (currentCameFromDirection != lastCameFromDirection)
+								|| (currentCameFromDirection == CPathfindingSearchState.NO_DIRECTION)) {
+							if ((currentCameFromDirection != CPathfindingSearchState.NO_DIRECTION) || (lastNode == -1)
 									|| !pathableBetween(job.ignoreIntersectionsWithThisUnit,
-											job.ignoreIntersectionsWithThisSecondUnit, job.startX, job.startY,
-											job.movementType, job.collisionSize, current.point.x, current.point.y)
+											job.ignoreIntersectionsWithThisSecondUnit, job.legStartX, job.legStartY,
+											job.movementType, job.collisionSize, currentX, currentY)
 									|| !pathableBetween(job.ignoreIntersectionsWithThisUnit,
-											job.ignoreIntersectionsWithThisSecondUnit, current.point.x, current.point.y,
-											job.movementType, job.collisionSize, lastNode.point.x, lastNode.point.y)
+											job.ignoreIntersectionsWithThisSecondUnit, currentX, currentY,
+											job.movementType, job.collisionSize, lastNodeX, lastNodeY)
 									|| !pathableBetween(job.ignoreIntersectionsWithThisUnit,
-											job.ignoreIntersectionsWithThisSecondUnit, job.startX, job.startY,
-											job.movementType, job.collisionSize, lastNode.point.x, lastNode.point.y)
+											job.ignoreIntersectionsWithThisSecondUnit, job.legStartX, job.legStartY,
+											job.movementType, job.collisionSize, lastNodeX, lastNodeY)
 									|| !job.allowSmoothing) {
 								// Add the point if it's not the first one, or if we can only complete
 								// the journey by specifically walking to the first one
-								totalPath.addFirst(current.point);
-								lastCameFromDirection = current.cameFromDirection;
+								totalPath.addFirst(new Point2D.Float(currentX, currentY));
+								lastCameFromDirection = currentCameFromDirection;
 							}
 						}
 					}
-					job.queueItem.pathFound(totalPath, simulation);
+					job.completedLegsPath.addAll(totalPath);
+					if (!job.finalLeg) {
+						// continue with the next leg from the portal that we just reached
+						job.legStartX = job.legGoal.x;
+						job.legStartY = job.legGoal.y;
+						job.legStarted = false;
+						continue JobsLoop;
+					}
+					job.queueItem.pathFound(job.completedLegsPath, simulation);
 					this.moveQueue.poll();
-					System.out.println("Task " + this.pathfindJobId + " took " + this.totalIterations
+					System.out.println("Task " + searchState.getSearchId() + " took " + this.totalIterations
 							+ " iterations and " + this.totalJobLoops + " job loops!");
 					continue JobsLoop;
 				}
 
+				final byte currentCameFromDirection = searchState.getCameFromDirection(current);
 				for (final Direction direction : Direction.VALUES) {
-					final float x = current.point.x + (direction.xOffset * 32);
-					final float y = current.point.y + (direction.yOffset * 32);
-					if (this.pathingGrid.contains(x, y)) {
+					final float x = currentX + (direction.xOffset * 32);
+					final float y = currentY + (direction.yOffset * 32);
+					if (this.pathingGrid.contains(x, y)
+							&& (!job.corridorRestricted || this.corridor.contains(x, y))) {
 						double turnCost;
-						if ((current.cameFromDirection != null) && (direction != current.cameFromDirection)) {
+						if ((currentCameFromDirection != CPathfindingSearchState.NO_DIRECTION)
+								&& (direction.ordinal() != currentCameFromDirection)) {
 							turnCost = 0.25;
 						}
 						else {
 							turnCost = 0;
 						}
-						double tentativeScore = current.g + ((direction.length + turnCost) * 32);
+						double tentativeScore = currentG + ((direction.length + turnCost) * 32);
 						if (!pathableBetween(job.ignoreIntersectionsWithThisUnit,
-								job.ignoreIntersectionsWithThisSecondUnit, current.point.x, current.point.y,
-								job.movementType, job.collisionSize, x, y)) {
+								job.ignoreIntersectionsWithThisSecondUnit, currentX, currentY, job.movementType,
+								job.collisionSize, x, y)) {
 							tentativeScore += (direction.length) * job.weightForHittingWalls;
 						}
-						final Node neighbor = job.searchGraph[job.gridMapping.getY(this.pathingGrid, y)][job.gridMapping
-								.getX(this.pathingGrid, x)];
-						neighbor.touch(this.pathfindJobId);
-						if (tentativeScore < neighbor.g) {
-							neighbor.cameFrom = current;
-							neighbor.cameFromDirection = direction;
-							neighbor.g = tentativeScore;
-							neighbor.f = tentativeScore + h(neighbor);
-							if (!job.openSet.contains(neighbor)) {
-								job.openSet.add(neighbor);
-							}
+						final int neighbor = (job.gridMapping.getY(this.pathingGrid, y) * job.graphWidth)
+								+ job.gridMapping.getX(this.pathingGrid, x);
+						searchState.touch(neighbor);
+						if (tentativeScore < searchState.getG(neighbor)) {
+							searchState.set(neighbor, tentativeScore, current, (byte) direction.ordinal());
+							openSet.addOrUpdate(neighbor, tentativeScore + h(x, y));
 						}
 					}
 				}
@@ -432,18 +535,33 @@ public class CPathfindingProcessor {
 				if (this.totalIterations > 20000) {
 					break;
 				}
-				if (workIterations >= 1500) {
+				if (workIterations >= this.workIterationsPerUpdate) {
 					// breaking jobs loop will implicitly exit without calling pathFound() below
 					break JobsLoop;
 				}
 			}
+			if (job.corridorRestricted) {
+				restartWithoutCorridor(job);
+				continue JobsLoop;
+			}
 			job.queueItem.pathFound(Collections.emptyList(), simulation);
 			this.moveQueue.poll();
-			System.out.println("Task " + this.pathfindJobId + " took " + this.totalIterations + " iterations and "
-					+ this.totalJobLoops + " job loops!");
+			System.out.println("Task " + searchState.getSearchId() + " took " + this.totalIterations
+					+ " iterations and " + this.totalJobLoops + " job loops!");
+		}
+		if ((this.searchState != null) && (this.moveQueue.isEmpty() || !this.moveQueue.peek().jobStarted)) {
+			// nothing is in the middle of a search, so let other processors use the state
+			this.searchStatePool.free(this.searchState);
+			this.searchState = null;
 		}
 	}
 
+	private static void restartWithoutCorridor(final PathfindingJob job) {
+		job.corridorDisabled = true;
+		job.jobStarted = false;
+		job.legStarted = false;
+	}
+
 	public static final class PathfindingJob {
 		private final CUnit ignoreIntersectionsWithThisUnit;
 		private final CUnit ignoreIntersectionsWithThisSecondUnit;
@@ -453,24 +571,33 @@ public class CPathfindingProcessor {
 		private final MovementType movementType;
 		private final float collisionSize;
 		private final boolean allowSmoothing;
-		private final CBehaviorMove queueItem;
+		private final CPathfindingResultHandler queueItem;
 		private boolean jobStarted;
 		public float goalY;
 		public float goalX;
 		public float weightForHittingWalls;
-		Node[][] searchGraph;
 		GridMapping gridMapping;
-		PriorityQueue<Node> openSet;
-		Node start;
+		int graphWidth;
+		int graphHeight;
 		int startGridMinX;
 		int startGridMinY;
 		int startGridMaxX;
 		int startGridMaxY;
+		boolean corridorRestricted;
+		boolean corridorDisabled;
+		boolean startedInsideWall;
+		boolean legStarted;
+		boolean finalLeg;
+		int routeIndex;
+		float legStartX;
+		float legStartY;
+		Point2D.Float legGoal;
+		LinkedList<Point2D.Float> completedLegsPath;
 
 		public PathfindingJob(final CUnit ignoreIntersectionsWithThisUnit,
 				final CUnit ignoreIntersectionsWithThisSecondUnit, final float startX, final float startY,
 				final Point2D.Float goal, final PathingGrid.MovementType movementType, final float collisionSize,
-				final boolean allowSmoothing, final CBehaviorMove queueItem) {
+				final boolean allowSmoothing, final CPathfindingResultHandler queueItem) {
 			this.ignoreIntersectionsWithThisUnit = ignoreIntersectionsWithThisUnit;
 			this.ignoreIntersectionsWithThisSecondUnit = ignoreIntersectionsWithThisSecondUnit;
 			this.startX = startX;
@@ -0,0 +1,10 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing;
+
+import java.awt.geom.Point2D;
+import java.util.List;
+
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulation;
+
+public interface CPathfindingResultHandler {
+	void pathFound(List<Point2D.Float> waypoints, CSimulation simulation);
+}
@@ -0,0 +1,74 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing;
+
+/**
+ * Scratch data of one A* search, kept as flat arrays indexed by node id instead
+ * of one object per cell. A node id is gridY * graphWidth + gridX, where the
+ * graph is either the cells or the corners of the pathing grid, so the arrays
+ * are sized for the corner graph which is the larger of the two. World positions
+ * are computed from the id when needed rather than stored.
+ *
+ * Each entry is only valid if its search id matches the current search, so
+ * starting a new search does not need to clear anything.
+ */
+public final class CPathfindingSearchState {
+	public static final byte NO_DIRECTION = -1;
+
+	private final double[] g;
+	private final int[] cameFrom;
+	private final byte[] cameFromDirection;
+	private final int[] searchIds;
+	private final CPathfindingOpenSet openSet;
+	private int searchId = 0;
+
+	public CPathfindingSearchState(final int nodeCount) {
+		this.g = new double[nodeCount];
+		this.cameFrom = new int[nodeCount];
+		this.cameFromDirection = new byte[nodeCount];
+		this.searchIds = new int[nodeCount];
+		this.openSet = new CPathfindingOpenSet(nodeCount);
+	}
+
+	public int getNodeCount() {
+		return this.g.length;
+	}
+
+	public int beginSearch() {
+		this.openSet.clear();
+		return ++this.searchId;
+	}
+
+	public int getSearchId() {
+		return this.searchId;
+	}
+
+	public CPathfindingOpenSet getOpenSet() {
+		return this.openSet;
+	}
+
+	public void touch(final int node) {
+		if (this.searchIds[node] != this.searchId) {
+			this.g[node] = Double.POSITIVE_INFINITY;
+			this.cameFrom[node] = -1;
+			this.cameFromDirection[node] = NO_DIRECTION;
+			this.searchIds[node] = this.searchId;
+		}
+	}
+
+	public double getG(final int node) {
+		return this.g[node];
+	}
+
+	public int getCameFrom(final int node) {
+		return this.cameFrom[node];
+	}
+
+	public byte getCameFromDirection(final int node) {
+		return this.cameFromDirection[node];
+	}
+
+	public void set(final int node, final double g, final int cameFrom, final byte cameFromDirection) {
+		this.g[node] = g;
+		this.cameFrom[node] = cameFrom;
+		this.cameFromDirection[node] = cameFromDirection;
+	}
+}
@@ -0,0 +1,30 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing;
+
+import com.badlogic.gdx.utils.Array;
+
+/**
+ * Search states are big (a few arrays the size of the corner graph), so instead
+ * of every pathfinding processor owning one, processors borrow one while they
+ * have a search in progress and give it back once they are idle. Usually only
+ * one or two players are pathing across a game tick boundary at once, so the
+ * pool stays small.
+ */
+public final class CPathfindingSearchStatePool {
+	private final int nodeCount;
+	private final Array<CPathfindingSearchState> freeStates = new Array<>();
+
+	public CPathfindingSearchStatePool(final int nodeCount) {
+		this.nodeCount = nodeCount;
+	}
+
+	public CPathfindingSearchState obtain() {
+		if (this.freeStates.size > 0) {
+			return this.freeStates.pop();
+		}
+		return new CPathfindingSearchState(this.nodeCount);
+	}
+
+	public void free(final CPathfindingSearchState searchState) {
+		this.freeStates.add(searchState);
+	}
+}
@@ -0,0 +1,603 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing;
+
+import java.util.Arrays;
+
+import com.badlogic.gdx.utils.IntArray;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.MovementType;
+
+/**
+ * Abstraction of the pathing grid used to speed up long paths. The grid is cut
+ * into square sectors, and each sector is cut into the connected regions of
+ * pathable cells that it contains. Regions in neighboring sectors that touch
+ * along the shared border are linked through a portal cell in the middle of
+ * the widest opening between them, which gives us a small graph we can search
+ * before running A* on the real grid. The result of that abstract search is a
+ * route of sectors with the portals between them, so the fine grained search
+ * can be done as a few short legs from portal to portal, each only looking
+ * inside of a handful of sectors.
+ *
+ * Collision size is ignored here, so the corridor is optimistic: callers must
+ * be ready to retry without the corridor when the fine search fails inside of
+ * it.
+ *
+ * When buildings or trees change the dynamic pathing, the touched sectors are
+ * marked dirty and rebuilt the next time somebody asks for a corridor.
+ */
+public class CPathfindingSectorGraph implements PathingGrid.DynamicPathingListener {
+	public static final int SECTOR_SIZE = 16;
+	private static final int MAX_LOCAL_REGIONS = SECTOR_SIZE * SECTOR_SIZE;
+	private static final short NO_REGION = -1;
+	private static final int CORRIDOR_SECTOR_MARGIN = 1;
+	private static final int EDGE_STRIDE = 4;
+
+	private static final int LAYER_WALK = 0;
+	private static final int LAYER_FLY = 1;
+	private static final int LAYER_SWIM = 2;
+	private static final int LAYER_AMPHIBIOUS = 3;
+	private static final MovementType[] LAYER_MOVEMENT_TYPES = { MovementType.FOOT, MovementType.FLY,
+			MovementType.FLOAT, MovementType.AMPHIBIOUS };
+
+	private final PathingGrid pathingGrid;
+	private final int width;
+	private final int height;
+	private final int sectorsWide;
+	private final int sectorsHigh;
+	private final SectorLayer[] layers = new SectorLayer[LAYER_MOVEMENT_TYPES.length];
+	private final boolean[] dirtySectors;
+	private final IntArray dirtySectorList = new IntArray();
+	private final int[] floodFillStack = new int[MAX_LOCAL_REGIONS];
+
+	public CPathfindingSectorGraph(final PathingGrid pathingGrid) {
+		this.pathingGrid = pathingGrid;
+		this.width = pathingGrid.getWidth();
+		this.height = pathingGrid.getHeight();
+		this.sectorsWide = ((this.width + SECTOR_SIZE) - 1) / SECTOR_SIZE;
+		this.sectorsHigh = ((this.height + SECTOR_SIZE) - 1) / SECTOR_SIZE;
+		this.dirtySectors = new boolean[this.sectorsWide * this.sectorsHigh];
+		pathingGrid.addDynamicPathingListener(this);
+	}
+
+	public int getSectorCount() {
+		return this.sectorsWide * this.sectorsHigh;
+	}
+
+	public int getSectorIndex(final float worldX, final float worldY) {
+		final int cellX = Math.max(0, Math.min(this.width - 1, this.pathingGrid.getCellX(worldX)));
+		final int cellY = Math.max(0, Math.min(this.height - 1, this.pathingGrid.getCellY(worldY)));
+		return ((cellY / SECTOR_SIZE) * this.sectorsWide) + (cellX / SECTOR_SIZE);
+	}
+
+	@Override
+	public void dynamicPathingChanged(final int minCellX, final int minCellY, final int maxCellX,
+			final int maxCellY) {
+		final int minSectorX = Math.max(0, minCellX / SECTOR_SIZE);
+		final int minSectorY = Math.max(0, minCellY / SECTOR_SIZE);
+		final int maxSectorX = Math.min(this.sectorsWide - 1, maxCellX / SECTOR_SIZE);
+		final int maxSectorY = Math.min(this.sectorsHigh - 1, maxCellY / SECTOR_SIZE);
+		for (int sectorY = minSectorY; sectorY <= maxSectorY; sectorY++) {
+			for (int sectorX = minSectorX; sectorX <= maxSectorX; sectorX++) {
+				final int sector = (sectorY * this.sectorsWide) + sectorX;
+				if (!this.dirtySectors[sector]) {
+					this.dirtySectors[sector] = true;
+					this.dirtySectorList.add(sector);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds any sectors whose dynamic pathing changed since the last call.
+	 */
+	public void repairDirtySectors() {
+		if (this.dirtySectorList.size == 0) {
+			return;
+		}
+		for (final SectorLayer layer : this.layers) {
+			if (layer != null) {
+				for (int i = 0; i < this.dirtySectorList.size; i++) {
+					layer.buildSectorRegions(this.dirtySectorList.get(i));
+				}
+				for (int i = 0; i < this.dirtySectorList.size; i++) {
+					final int sector = this.dirtySectorList.get(i);
+					final int sectorX = sector % this.sectorsWide;
+					final int sectorY = sector / this.sectorsWide;
+					layer.buildSectorEdges(sector);
+					if (sectorX > 0) {
+						layer.buildSectorEdges(sector - 1);
+					}
+					if (sectorX < (this.sectorsWide - 1)) {
+						layer.buildSectorEdges(sector + 1);
+					}
+					if (sectorY > 0) {
+						layer.buildSectorEdges(sector - this.sectorsWide);
+					}
+					if (sectorY < (this.sectorsHigh - 1)) {
+						layer.buildSectorEdges(sector + this.sectorsWide);
+					}
+				}
+				layer.buildRegionIndex();
+			}
+		}
+		for (int i = 0; i < this.dirtySectorList.size; i++) {
+			this.dirtySectors[this.dirtySectorList.get(i)] = false;
+		}
+		this.dirtySectorList.clear();
+	}
+
+	/**
+	 * Searches the sector graph for a route between the two points, and stores the
+	 * sectors and portals along that route into the corridor. The whole route
+	 * (plus a small margin) is marked as the allowed area until the caller narrows
+	 * it with {@link Corridor#restrictTo(int, int)}.
+	 *
+	 * @return false if no corridor could be found, in which case the caller should
+	 *         search the whole grid like before
+	 */
+	public boolean findCorridor(final MovementType movementType, final float startX, final float startY,
+			final float goalX, final float goalY, final Corridor corridor) {
+		final int layerIndex = getLayerIndex(movementType);
+		if (layerIndex == -1) {
+			return false;
+		}
+		repairDirtySectors();
+		final SectorLayer layer = getLayer(layerIndex);
+		final int startCell = layer.findCellNear(startX, startY);
+		final int goalCell = layer.findCellNear(goalX, goalY);
+		if ((startCell == -1) || (goalCell == -1)) {
+			return false;
+		}
+		return corridor.search(layer, startCell, goalCell);
+	}
+
+	/**
+	 * Builds the layer for the given movement type now instead of on the first
+	 * search that needs it, and repairs dirty sectors. After this, searches for
+	 * that movement type only read from the graph, so several threads can search
+	 * at once as long as nothing changes the graph in the meantime.
+	 */
+	public void prepareForSearches(final MovementType movementType) {
+		final int layerIndex = getLayerIndex(movementType);
+		if (layerIndex != -1) {
+			getLayer(layerIndex);
+		}
+		repairDirtySectors();
+	}
+
+	/**
+	 * @return the sector and the connected region within it of the pathable cell
+	 *         at or next to the given point, packed into one number, or -1 if there
+	 *         is no such cell. The number stays the same until the pathing of that
+	 *         sector changes.
+	 */
+	public int getSectorRegion(final MovementType movementType, final float worldX, final float worldY) {
+		final int layerIndex = getLayerIndex(movementType);
+		if (layerIndex == -1) {
+			return -1;
+		}
+		final SectorLayer layer = getLayer(layerIndex);
+		final int cellIndex = layer.findCellNear(worldX, worldY);
+		if (cellIndex == -1) {
+			return -1;
+		}
+		final int cellX = cellIndex % this.width;
+		final int cellY = cellIndex / this.width;
+		final int sector = ((cellY / SECTOR_SIZE) * this.sectorsWide) + (cellX / SECTOR_SIZE);
+		return (sector * MAX_LOCAL_REGIONS) + layer.cellRegions[cellIndex];
+	}
+
+	public Corridor createCorridor() {
+		return new Corridor();
+	}
+
+	private SectorLayer getLayer(final int layerIndex) {
+		SectorLayer layer = this.layers[layerIndex];
+		if (layer == null) {
+			layer = new SectorLayer(LAYER_MOVEMENT_TYPES[layerIndex]);
+			layer.buildAll();
+			this.layers[layerIndex] = layer;
+		}
+		return layer;
+	}
+
+	private static int getLayerIndex(final MovementType movementType) {
+		if (movementType == null) {
+			return -1;
+		}
+		switch (movementType) {
+		case FLY:
+			return LAYER_FLY;
+		case FLOAT:
+			return LAYER_SWIM;
+		case AMPHIBIOUS:
+			return LAYER_AMPHIBIOUS;
+		case DISABLED:
+			return -1;
+		default:
+		case FOOT:
+		case FOOT_NO_COLLISION:
+		case HORSE:
+		case HOVER:
+			return LAYER_WALK;
+		}
+	}
+
+	private final class SectorLayer {
+		private final MovementType movementType;
+		private final short[] cellRegions;
+		private final int[] sectorRegionCounts;
+		// per sector, flattened records of (local region, neighbor sector *
+		// MAX_LOCAL_REGIONS + neighbor local region, portal cell on the neighbor side,
+		// width of the opening)
+		private final IntArray[] sectorEdges;
+		private final int[] sectorRegionOffsets;
+		private int[] regionSectors = new int[0];
+		private int regionCount;
+
+		private SectorLayer(final MovementType movementType) {
+			this.movementType = movementType;
+			this.cellRegions = new short[CPathfindingSectorGraph.this.width * CPathfindingSectorGraph.this.height];
+			final int sectorCount = getSectorCount();
+			this.sectorRegionCounts = new int[sectorCount];
+			this.sectorEdges = new IntArray[sectorCount];
+			for (int i = 0; i < sectorCount; i++) {
+				this.sectorEdges[i] = new IntArray();
+			}
+			this.sectorRegionOffsets = new int[sectorCount];
+		}
+
+		private void buildAll() {
+			final int sectorCount = getSectorCount();
+			for (int sector = 0; sector < sectorCount; sector++) {
+				buildSectorRegions(sector);
+			}
+			for (int sector = 0; sector < sectorCount; sector++) {
+				buildSectorEdges(sector);
+			}
+			buildRegionIndex();
+		}
+
+		private boolean isCellPathable(final int cellX, final int cellY) {
+			return this.movementType.isPathable(CPathfindingSectorGraph.this.pathingGrid.getCellPathing(cellX, cellY));
+		}
+
+		private void buildSectorRegions(final int sector) {
+			final int width = CPathfindingSectorGraph.this.width;
+			final int minX = (sector % CPathfindingSectorGraph.this.sectorsWide) * SECTOR_SIZE;
+			final int minY = (sector / CPathfindingSectorGraph.this.sectorsWide) * SECTOR_SIZE;
+			final int maxX = Math.min(width, minX + SECTOR_SIZE) - 1;
+			final int maxY = Math.min(CPathfindingSectorGraph.this.height, minY + SECTOR_SIZE) - 1;
+			for (int cellY = minY; cellY <= maxY; cellY++) {
+				Arrays.fill(this.cellRegions, (cellY * width) + minX, (cellY * width) + maxX + 1, NO_REGION);
+			}
+			final int[] stack = CPathfindingSectorGraph.this.floodFillStack;
+			short regionCount = 0;
+			for (int cellY = minY; cellY <= maxY; cellY++) {
+				for (int cellX = minX; cellX <= maxX; cellX++) {
+					final int cellIndex = (cellY * width) + cellX;
+					if ((this.cellRegions[cellIndex] != NO_REGION) || !isCellPathable(cellX, cellY)) {
+						continue;
+					}
+					// 4-connected flood fill, because the A* does not allow cutting corners
+					// diagonally between two blocked cells
+					final short region = regionCount++;
+					int stackSize = 0;
+					this.cellRegions[cellIndex] = region;
+					stack[stackSize++] = cellIndex;
+					while (stackSize > 0) {
+						final int current = stack[--stackSize];
+						final int currentX = current % width;
+						final int currentY = current / width;
+						if ((currentX > minX) && claim(currentX - 1, currentY, region)) {
+							stack[stackSize++] = current - 1;
+						}
+						if ((currentX < maxX) && claim(currentX + 1, currentY, region)) {
+							stack[stackSize++] = current + 1;
+						}
+						if ((currentY > minY) && claim(currentX, currentY - 1, region)) {
+							stack[stackSize++] = current - width;
+						}
+						if ((currentY < maxY) && claim(currentX, currentY + 1, region)) {
+							stack[stackSize++] = current + width;
+						}
+					}
+				}
+			}
+			this.sectorRegionCounts[sector] = regionCount;
+		}
+
+		private boolean claim(final int cellX, final int cellY, final short region) {
+			final int cellIndex = (cellY * CPathfindingSectorGraph.this.width) + cellX;
+			if ((this.cellRegions[cellIndex] == NO_REGION) && isCellPathable(cellX, cellY)) {
+				this.cellRegions[cellIndex] = region;
+				return true;
+			}
+			return false;
+		}
+
+		private void buildSectorEdges(final int sector) {
+			final IntArray edges = this.sectorEdges[sector];
+			edges.clear();
+			final int width = CPathfindingSectorGraph.this.width;
+			final int sectorsWide = CPathfindingSectorGraph.this.sectorsWide;
+			final int sectorX = sector % sectorsWide;
+			final int sectorY = sector / sectorsWide;
+			final int minX = sectorX * SECTOR_SIZE;
+			final int minY = sectorY * SECTOR_SIZE;
+			final int maxX = Math.min(width, minX + SECTOR_SIZE) - 1;
+			final int maxY = Math.min(CPathfindingSectorGraph.this.height, minY + SECTOR_SIZE) - 1;
+			if (sectorX > 0) {
+				addBorderEdges(edges, (minY * width) + minX, -1, width, (maxY - minY) + 1, sector - 1);
+			}
+			if (sectorX < (sectorsWide - 1)) {
+				addBorderEdges(edges, (minY * width) + maxX, 1, width, (maxY - minY) + 1, sector + 1);
+			}
+			if (sectorY > 0) {
+				addBorderEdges(edges, (minY * width) + minX, -width, 1, (maxX - minX) + 1, sector - sectorsWide);
+			}
+			if (sectorY < (CPathfindingSectorGraph.this.sectorsHigh - 1)) {
+				addBorderEdges(edges, (maxY * width) + minX, width, 1, (maxX - minX) + 1, sector + sectorsWide);
+			}
+		}
+
+		/**
+		 * Walks along one border of a sector, finding each run of touching cells that
+		 * link the same pair of regions, and records an edge through the middle of the
+		 * widest run.
+		 */
+		private void addBorderEdges(final IntArray edges, final int firstCell, final int neighborOffset,
+				final int step, final int length, final int neighborSector) {
+			int runStart = 0;
+			short runRegion = NO_REGION;
+			short runNeighborRegion = NO_REGION;
+			for (int i = 0; i <= length; i++) {
+				short region = NO_REGION;
+				short neighborRegion = NO_REGION;
+				if (i < length) {
+					final int cell = firstCell + (i * step);
+					region = this.cellRegions[cell];
+					neighborRegion = this.cellRegions[cell + neighborOffset];
+					if ((region == NO_REGION) || (neighborRegion == NO_REGION)) {
+						region = NO_REGION;
+						neighborRegion = NO_REGION;
+					}
+				}
+				if ((region != runRegion) || (neighborRegion != runNeighborRegion)) {
+					if (runRegion != NO_REGION) {
+						final int runLength = i - runStart;
+						final int portalCell = firstCell + ((runStart + (runLength / 2)) * step) + neighborOffset;
+						addEdge(edges, runRegion, (neighborSector * MAX_LOCAL_REGIONS) + runNeighborRegion,
+								portalCell, runLength);
+					}
+					runStart = i;
+					runRegion = region;
+					runNeighborRegion = neighborRegion;
+				}
+			}
+		}
+
+		private void addEdge(final IntArray edges, final short region, final int packedNeighbor,
+				final int portalCell, final int openingWidth) {
+			for (int i = 0; i < edges.size; i += EDGE_STRIDE) {
+				if ((edges.get(i) == region) && (edges.get(i + 1) == packedNeighbor)) {
+					if (openingWidth > edges.get(i + 3)) {
+						edges.set(i + 2, portalCell);
+						edges.set(i + 3, openingWidth);
+					}
+					return;
+				}
+			}
+			edges.add(region);
+			edges.add(packedNeighbor);
+			edges.add(portalCell);
+			edges.add(openingWidth);
+		}
+
+		private void buildRegionIndex() {
+			int regionCount = 0;
+			for (int sector = 0; sector < this.sectorRegionCounts.length; sector++) {
+				this.sectorRegionOffsets[sector] = regionCount;
+				regionCount += this.sectorRegionCounts[sector];
+			}
+			if (this.regionSectors.length < regionCount) {
+				this.regionSectors = new int[regionCount];
+			}
+			for (int sector = 0; sector < this.sectorRegionCounts.length; sector++) {
+				final int offset = this.sectorRegionOffsets[sector];
+				for (int i = 0; i < this.sectorRegionCounts[sector]; i++) {
+					this.regionSectors[offset + i] = sector;
+				}
+			}
+			this.regionCount = regionCount;
+		}
+
+		/**
+		 * @return the index of the pathable cell at or next to the given point, or -1
+		 *         if there is none
+		 */
+		private int findCellNear(final float worldX, final float worldY) {
+			final PathingGrid pathingGrid = CPathfindingSectorGraph.this.pathingGrid;
+			final int centerCellX = pathingGrid.getCellX(worldX);
+			final int centerCellY = pathingGrid.getCellY(worldY);
+			for (int radius = 0; radius <= 1; radius++) {
+				for (int cellY = centerCellY - radius; cellY <= (centerCellY + radius); cellY++) {
+					for (int cellX = centerCellX - radius; cellX <= (centerCellX + radius); cellX++) {
+						if ((cellX < 0) || (cellY < 0) || (cellX >= CPathfindingSectorGraph.this.width)
+								|| (cellY >= CPathfindingSectorGraph.this.height)) {
+							continue;
+						}
+						final int cellIndex = (cellY * CPathfindingSectorGraph.this.width) + cellX;
+						if (this.cellRegions[cellIndex] != NO_REGION) {
+							return cellIndex;
+						}
+					}
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return the global region id of a pathable cell
+		 */
+		private int getRegion(final int cellIndex) {
+			final int width = CPathfindingSectorGraph.this.width;
+			final int sector = (((cellIndex / width) / SECTOR_SIZE) * CPathfindingSectorGraph.this.sectorsWide)
+					+ ((cellIndex % width) / SECTOR_SIZE);
+			return this.sectorRegionOffsets[sector] + this.cellRegions[cellIndex];
+		}
+	}
+
+	/**
+	 * Scratch state for the abstract search, plus the route that the last
+	 * successful search found and the set of sectors that we are currently allowed
+	 * to walk through. Each user of the graph needs its own.
+	 */
+	public final class Corridor {
+		private final int[] sectorStamps = new int[getSectorCount()];
+		private int stamp = 0;
+		private float[] regionScores = new float[0];
+		private int[] regionCameFrom = new int[0];
+		private int[] regionEntryCells = new int[0];
+		private int[] regionStamps = new int[0];
+		private final CPathfindingOpenSet openSet = new CPathfindingOpenSet(0);
+		// route step i is the sector we walk through, entered at the given portal cell
+		// (the first step is entered at the start cell)
+		private final IntArray routeSectors = new IntArray();
+		private final IntArray routeEntryCells = new IntArray();
+
+		public boolean contains(final float worldX, final float worldY) {
+			return this.sectorStamps[getSectorIndex(worldX, worldY)] == this.stamp;
+		}
+
+		public int getRouteLength() {
+			return this.routeSectors.size;
+		}
+
+		/**
+		 * @return world X of the center of the cell where the route enters the given
+		 *         step
+		 */
+		public float getEntryX(final int routeIndex) {
+			return CPathfindingSectorGraph.this.pathingGrid
+					.getWorldX(this.routeEntryCells.get(routeIndex) % CPathfindingSectorGraph.this.width);
+		}
+
+		/**
+		 * @return world Y of the center of the cell where the route enters the given
+		 *         step
+		 */
+		public float getEntryY(final int routeIndex) {
+			return CPathfindingSectorGraph.this.pathingGrid
+					.getWorldY(this.routeEntryCells.get(routeIndex) / CPathfindingSectorGraph.this.width);
+		}
+
+		/**
+		 * Narrows the allowed area down to the sectors of the given route steps (both
+		 * inclusive) plus a small margin.
+		 */
+		public void restrictTo(final int fromRouteIndex, final int toRouteIndex) {
+			this.stamp++;
+			for (int i = fromRouteIndex; i <= toRouteIndex; i++) {
+				markSector(this.routeSectors.get(i));
+			}
+		}
+
+		private boolean search(final SectorLayer layer, final int startCell, final int goalCell) {
+			ensureCapacity(layer.regionCount);
+			this.stamp++;
+			final int startRegion = layer.getRegion(startCell);
+			final int goalRegion = layer.getRegion(goalCell);
+			final int width = CPathfindingSectorGraph.this.width;
+			final float goalX = goalCell % width;
+			final float goalY = goalCell / width;
+			this.openSet.clear();
+			this.regionStamps[startRegion] = this.stamp;
+			this.regionScores[startRegion] = 0;
+			this.regionCameFrom[startRegion] = -1;
+			this.regionEntryCells[startRegion] = startCell;
+			this.openSet.addOrUpdate(startRegion, 0);
+			while (!this.openSet.isEmpty()) {
+				final int current = this.openSet.poll();
+				final int currentSector = layer.regionSectors[current];
+				final int currentEntryCell = this.regionEntryCells[current];
+				final float currentX = currentEntryCell % width;
+				final float currentY = currentEntryCell / width;
+				final float currentScore = this.regionScores[current];
+				if (current == goalRegion) {
+					storeRoute(layer, goalRegion);
+					return true;
+				}
+				final int currentLocalRegion = current - layer.sectorRegionOffsets[currentSector];
+				final IntArray edges = layer.sectorEdges[currentSector];
+				for (int i = 0; i < edges.size; i += EDGE_STRIDE) {
+					if (edges.get(i) != currentLocalRegion) {
+						continue;
+					}
+					final int packedNeighbor = edges.get(i + 1);
+					final int portalCell = edges.get(i + 2);
+					final int neighborSector = packedNeighbor / MAX_LOCAL_REGIONS;
+					final int neighbor = layer.sectorRegionOffsets[neighborSector]
+							+ (packedNeighbor % MAX_LOCAL_REGIONS);
+					final float portalX = portalCell % width;
+					final float portalY = portalCell / width;
+					final float tentativeScore = currentScore + distance(currentX, currentY, portalX, portalY);
+					if ((this.regionStamps[neighbor] != this.stamp) || (tentativeScore < this.regionScores[neighbor])) {
+						this.regionStamps[neighbor] = this.stamp;
+						this.regionScores[neighbor] = tentativeScore;
+						this.regionCameFrom[neighbor] = current;
+						this.regionEntryCells[neighbor] = portalCell;
+						this.openSet.addOrUpdate(neighbor, tentativeScore + distance(portalX, portalY, goalX, goalY));
+					}
+				}
+			}
+			this.routeSectors.clear();
+			this.routeEntryCells.clear();
+			return false;
+		}
+
+		private void storeRoute(final SectorLayer layer, final int goalRegion) {
+			this.routeSectors.clear();
+			this.routeEntryCells.clear();
+			int region = goalRegion;
+			while (region != -1) {
+				final int sector = layer.regionSectors[region];
+				this.routeSectors.add(sector);
+				this.routeEntryCells.add(this.regionEntryCells[region]);
+				markSector(sector);
+				region = this.regionCameFrom[region];
+			}
+			this.routeSectors.reverse();
+			this.routeEntryCells.reverse();
+		}
+
+		private void markSector(final int sector) {
+			final int sectorsWide = CPathfindingSectorGraph.this.sectorsWide;
+			final int sectorsHigh = CPathfindingSectorGraph.this.sectorsHigh;
+			final int sectorX = sector % sectorsWide;
+			final int sectorY = sector / sectorsWide;
+			for (int y = Math.max(0, sectorY - CORRIDOR_SECTOR_MARGIN); y <= Math.min(sectorsHigh - 1,
+					sectorY + CORRIDOR_SECTOR_MARGIN); y++) {
+				for (int x = Math.max(0, sectorX - CORRIDOR_SECTOR_MARGIN); x <= Math.min(sectorsWide - 1,
+						sectorX + CORRIDOR_SECTOR_MARGIN); x++) {
+					this.sectorStamps[(y * sectorsWide) + x] = this.stamp;
+				}
+			}
+		}
+
+		private void ensureCapacity(final int regionCount) {
+			if (this.regionScores.length < regionCount) {
+				this.regionScores = new float[regionCount];
+				this.regionCameFrom = new int[regionCount];
+				this.regionStamps = new int[regionCount];
+				this.regionEntryCells = new int[regionCount];
+			}
+			this.openSet.ensureIdCapacity(regionCount);
+		}
+	}
+
+	private static float distance(final float x1, final float y1, final float x2, final float y2) {
+		final float dx = x2 - x1;
+		final float dy = y2 - y1;
+		return (float) Math.sqrt((dx * dx) + (dy * dy));
+	}
+}
@@ -0,0 +1,421 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation.pathing;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.IntArray;
+import com.etheller.warsmash.util.WarsmashConstants;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid;
+import com.etheller.warsmash.viewer5.handlers.w3x.environment.PathingGrid.MovementType;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CSimulation;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CUnit;
+import com.etheller.warsmash.viewer5.handlers.w3x.simulation.CWorldCollisionSnapshot;
+
+/**
+ * Runs path searches on background threads without breaking lockstep.
+ *
+ * Requests made during game tick N are collected, and at the end of that tick
+ * the service takes a snapshot of the dynamic pathing and of the unit
+ * collision, and hands all of the requests to the worker threads at once. The
+ * results are handed back at the same point of tick N+1, in the order the
+ * requests were made. Every search only looks at the snapshot, so its result
+ * does not depend on thread timing or on how many threads there are, and every
+ * peer in a multiplayer game sees every path arrive on the same tick.
+ *
+ * With zero worker threads the searches just run on the game thread, with the
+ * same timing.
+ *
+ * Requests that start and end in the same sectors as another request of the
+ * same kind share one search, either with an earlier request of the same batch
+ * or with a recent result from the {@link CPathfindingCache}. Big groups of
+ * requests headed for the same goal cell (usually a large selection given one
+ * move order) instead share one {@link CPathfindingFlowField}, and each unit's
+ * path is read off of that.
+ */
+public class CPathfindingService implements PathingGrid.DynamicPathingListener {
+	private static final int FLOW_FIELD_WINDOW_MARGIN = CPathfindingSectorGraph.SECTOR_SIZE * 2;
+
+	private final PathingGrid pathingGrid;
+	private final PathingGrid pathingGridSnapshot;
+	private final CWorldCollisionSnapshot collisionSnapshot;
+	private final CPathfindingSectorGraph sectorGraph;
+	private final CPathfindingCache cache;
+	private final Map<Long, PathfindingRequest> batchLeaders = new HashMap<>();
+	private final Map<Long, List<PathfindingRequest>> flowFieldGroups = new HashMap<>();
+	private final Worker[] workers;
+	private final ExecutorService executor;
+	// dynamic pathing changes since the last snapshot, as min x, min y, max x, max
+	// y cell bounds
+	private final IntArray changedDynamicPathing = new IntArray();
+	private List<PathfindingRequest> pendingRequests = new ArrayList<>();
+	private List<PathfindingRequest> inFlightRequests = new ArrayList<>();
+	private final List<Future<?>> inFlightTasks = new ArrayList<>();
+	private final AtomicInteger nextInFlightRequest = new AtomicInteger();
+	private int updateTick;
+
+	public CPathfindingService(final PathingGrid pathingGrid, final Rectangle entireMapBounds,
+			final int workerThreads) {
+		this.pathingGrid = pathingGrid;
+		this.pathingGridSnapshot = pathingGrid.createSnapshot();
+		this.collisionSnapshot = new CWorldCollisionSnapshot(entireMapBounds);
+		this.sectorGraph = new CPathfindingSectorGraph(this.pathingGridSnapshot);
+		this.cache = new CPathfindingCache(pathingGrid, this.sectorGraph);
+		pathingGrid.addDynamicPathingListener(this);
+		final int searchNodeCount = CPathfindingProcessor.getSearchNodeCount(pathingGrid);
+		this.workers = new Worker[Math.max(1, workerThreads)];
+		for (int i = 0; i < this.workers.length; i++) {
+			this.workers[i] = new Worker(new CPathfindingProcessor(this.pathingGridSnapshot, this.collisionSnapshot,
+					this.sectorGraph, new CPathfindingSearchStatePool(searchNodeCount)));
+		}
+		if (workerThreads > 0) {
+			final AtomicInteger threadNumber = new AtomicInteger();
+			this.executor = Executors.newFixedThreadPool(workerThreads, runnable -> {
+				final Thread thread = new Thread(runnable, "Pathfinding-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		else {
+			this.executor = null;
+		}
+	}
+
+	public void findNaiveSlowPath(final CUnit ignoreIntersectionsWithThisUnit,
+			final CUnit ignoreIntersectionsWithThisSecondUnit, final float startX, final float startY,
+			final Point2D.Float goal, final PathingGrid.MovementType movementType, final float collisionSize,
+			final boolean allowSmoothing, final CPathfindingResultHandler queueItem) {
+		this.pendingRequests.add(new PathfindingRequest(ignoreIntersectionsWithThisUnit,
+				ignoreIntersectionsWithThisSecondUnit, startX, startY, goal, movementType, collisionSize,
+				allowSmoothing, queueItem, true));
+	}
+
+	public CPathfindingCache getCache() {
+		return this.cache;
+	}
+
+	public void removeFromPathfindingQueue(final CPathfindingResultHandler queueItem) {
+		for (int i = this.pendingRequests.size() - 1; i >= 0; i--) {
+			if (this.pendingRequests.get(i).queueItem == queueItem) {
+				this.pendingRequests.remove(i);
+			}
+		}
+		// searches that are already running cannot be pulled back, but we can
+		// throw away what they find
+		for (int i = 0; i < this.inFlightRequests.size(); i++) {
+			final PathfindingRequest request = this.inFlightRequests.get(i);
+			if (request.queueItem == queueItem) {
+				request.cancelled = true;
+			}
+		}
+	}
+
+	@Override
+	public void dynamicPathingChanged(final int minCellX, final int minCellY, final int maxCellX,
+			final int maxCellY) {
+		// the snapshot is not ours to touch while the workers might be reading it,
+		// so just remember what changed until the next dispatch
+		this.changedDynamicPathing.add(minCellX);
+		this.changedDynamicPathing.add(minCellY);
+		this.changedDynamicPathing.add(maxCellX);
+		this.changedDynamicPathing.add(maxCellY);
+		this.cache.dynamicPathingChanged(minCellX, minCellY, maxCellX, maxCellY);
+	}
+
+	/**
+	 * Called once per game tick: hands out the results of the searches that were
+	 * started on the previous tick, then starts the searches that were requested
+	 * since.
+	 */
+	public void update(final CSimulation simulation) {
+		this.updateTick++;
+		finishInFlightRequests(simulation);
+		dispatchPendingRequests(simulation);
+	}
+
+	public void shutdown() {
+		if (this.executor != null) {
+			this.executor.shutdownNow();
+		}
+	}
+
+	private void finishInFlightRequests(final CSimulation simulation) {
+		for (int i = 0; i < this.inFlightTasks.size(); i++) {
+			try {
+				this.inFlightTasks.get(i).get();
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for pathfinding", e);
+			}
+			catch (final ExecutionException e) {
+				throw new IllegalStateException("Pathfinding worker failed", e.getCause());
+			}
+		}
+		this.inFlightTasks.clear();
+		final List<PathfindingRequest> finishedRequests = this.inFlightRequests;
+		this.inFlightRequests = new ArrayList<>();
+		for (int i = 0; i < finishedRequests.size(); i++) {
+			final PathfindingRequest request = finishedRequests.get(i);
+			final List<Point2D.Float> waypoints;
+			if (request.followsFlowField && request.waypoints.isEmpty()) {
+				// the unit was somewhere the flow field did not reach
+				if (!request.cancelled) {
+					this.pendingRequests.add(request.withoutSharing());
+				}
+				continue;
+			}
+			if (request.leader != null) {
+				if (request.leader.sharedWaypoints == null) {
+					// the search we were counting on found nothing, but that might just be
+					// because of where it started, so search for ourselves next time
+					if (!request.cancelled) {
+						this.pendingRequests.add(request.withoutSharing());
+					}
+					continue;
+				}
+				waypoints = CPathfindingCache.adaptPath(request.leader.sharedWaypoints, request.goal);
+			}
+			else if (request.sharedWaypoints != null) {
+				waypoints = CPathfindingCache.adaptPath(request.sharedWaypoints, request.goal);
+			}
+			else {
+				waypoints = request.getWaypoints();
+				// even if this request was cancelled, its path is still good for others
+				request.sharedWaypoints = this.cache.put(request.cacheKey, request.startX, request.startY,
+						waypoints, this.updateTick);
+			}
+			if (!request.cancelled) {
+				request.queueItem.pathFound(waypoints, simulation);
+			}
+		}
+	}
+
+	private void dispatchPendingRequests(final CSimulation simulation) {
+		if (this.pendingRequests.isEmpty()) {
+			return;
+		}
+		if (this.changedDynamicPathing.size > 0) {
+			for (int i = 0; i < this.changedDynamicPathing.size; i += 4) {
+				this.pathingGrid.copyDynamicPathingInto(this.pathingGridSnapshot, this.changedDynamicPathing.get(i),
+						this.changedDynamicPathing.get(i + 1), this.changedDynamicPathing.get(i + 2),
+						this.changedDynamicPathing.get(i + 3));
+				this.sectorGraph.dynamicPathingChanged(this.changedDynamicPathing.get(i),
+						this.changedDynamicPathing.get(i + 1), this.changedDynamicPathing.get(i + 2),
+						this.changedDynamicPathing.get(i + 3));
+			}
+			this.changedDynamicPathing.clear();
+		}
+		// the workers share the sector graph, so it has to be up to date before they
+		// start reading it
+		for (int i = 0; i < this.pendingRequests.size(); i++) {
+			this.sectorGraph.prepareForSearches(this.pendingRequests.get(i).movementType);
+		}
+		this.collisionSnapshot.rebuild(simulation.getUnits());
+		this.cache.removeExpired(this.updateTick);
+		if (WarsmashConstants.PATHFINDING_FLOW_FIELD_GROUP_SIZE > 0) {
+			groupFlowFieldRequests();
+		}
+		for (int i = 0; i < this.pendingRequests.size(); i++) {
+			final PathfindingRequest request = this.pendingRequests.get(i);
+			if (!request.allowSharing || request.followsFlowField) {
+				continue;
+			}
+			request.cacheKey = this.cache.getKey(request.startX, request.startY, request.goalCopy.x,
+					request.goalCopy.y, request.movementType, request.collisionSize);
+			if (request.cacheKey == CPathfindingCache.NOT_CACHEABLE) {
+				continue;
+			}
+			final PathfindingRequest leader = this.batchLeaders.get(request.cacheKey);
+			if (leader != null) {
+				request.leader = leader;
+				this.cache.countHit();
+			}
+			else {
+				request.sharedWaypoints = this.cache.get(request.cacheKey, this.updateTick);
+				if (request.sharedWaypoints == null) {
+					this.batchLeaders.put(request.cacheKey, request);
+				}
+			}
+		}
+		this.batchLeaders.clear();
+
+		final List<PathfindingRequest> requests = this.pendingRequests;
+		this.pendingRequests = this.inFlightRequests;
+		this.inFlightRequests = requests;
+		this.nextInFlightRequest.set(0);
+		if (this.executor == null) {
+			this.workers[0].run();
+		}
+		else {
+			for (final Worker worker : this.workers) {
+				this.inFlightTasks.add(this.executor.submit(worker));
+			}
+		}
+	}
+
+	private void groupFlowFieldRequests() {
+		for (int i = 0; i < this.pendingRequests.size(); i++) {
+			final PathfindingRequest request = this.pendingRequests.get(i);
+			if (!request.allowSharing || (request.movementType == null)
+					|| (request.movementType == MovementType.DISABLED)) {
+				continue;
+			}
+			final long flowFieldKey = (((long) this.pathingGrid.getCellY(request.goalCopy.y)) << 40)
+					| (((long) this.pathingGrid.getCellX(request.goalCopy.x)) << 16)
+					| (request.movementType.ordinal() << 8)
+					| CPathfindingCache.getCollisionSizeClass(request.collisionSize);
+			List<PathfindingRequest> group = this.flowFieldGroups.get(flowFieldKey);
+			if (group == null) {
+				group = new ArrayList<>();
+				this.flowFieldGroups.put(flowFieldKey, group);
+			}
+			group.add(request);
+		}
+		for (final List<PathfindingRequest> group : this.flowFieldGroups.values()) {
+			if (group.size() >= WarsmashConstants.PATHFINDING_FLOW_FIELD_GROUP_SIZE) {
+				// the first request of the group builds the field for everyone
+				group.get(0).flowFieldGroup = group;
+				for (int i = 0; i < group.size(); i++) {
+					group.get(i).followsFlowField = true;
+				}
+			}
+		}
+		this.flowFieldGroups.clear();
+	}
+
+	private final class Worker implements Runnable {
+		private final CPathfindingProcessor processor;
+		private final CPathfindingFlowField flowField;
+
+		private Worker(final CPathfindingProcessor processor) {
+			this.processor = processor;
+			this.flowField = new CPathfindingFlowField(CPathfindingService.this.pathingGridSnapshot);
+			processor.setWorkIterationsPerUpdate(Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void run() {
+			final List<PathfindingRequest> requests = CPathfindingService.this.inFlightRequests;
+			int requestIndex;
+			while ((requestIndex = CPathfindingService.this.nextInFlightRequest.getAndIncrement()) < requests
+					.size()) {
+				final PathfindingRequest request = requests.get(requestIndex);
+				if (request.flowFieldGroup != null) {
+					followFlowField(request.flowFieldGroup);
+					continue;
+				}
+				if (request.followsFlowField || (request.leader != null) || (request.sharedWaypoints != null)) {
+					continue;
+				}
+				this.processor.findNaiveSlowPath(request.ignoreIntersectionsWithThisUnit,
+						request.ignoreIntersectionsWithThisSecondUnit, request.startX, request.startY,
+						request.goalCopy, request.movementType, request.collisionSize, request.allowSmoothing,
+						request);
+				// nothing else is queued on this processor, and it has no work limit, so this
+				// runs the search to the end
+				this.processor.update(null);
+			}
+		}
+
+		private void followFlowField(final List<PathfindingRequest> group) {
+			final PathingGrid pathingGrid = CPathfindingService.this.pathingGridSnapshot;
+			final PathfindingRequest first = group.get(0);
+			int minCellX = pathingGrid.getCellX(first.goalCopy.x);
+			int minCellY = pathingGrid.getCellY(first.goalCopy.y);
+			int maxCellX = minCellX;
+			int maxCellY = minCellY;
+			float collisionSize = 0;
+			for (int i = 0; i < group.size(); i++) {
+				final PathfindingRequest request = group.get(i);
+				final int cellX = pathingGrid.getCellX(request.startX);
+				final int cellY = pathingGrid.getCellY(request.startY);
+				minCellX = Math.min(minCellX, cellX);
+				minCellY = Math.min(minCellY, cellY);
+				maxCellX = Math.max(maxCellX, cellX);
+				maxCellY = Math.max(maxCellY, cellY);
+				collisionSize = Math.max(collisionSize, request.collisionSize);
+			}
+			// leave some room to walk around things that are between the group and the goal
+			final int margin = FLOW_FIELD_WINDOW_MARGIN;
+			this.flowField.build(first.goalCopy.x, first.goalCopy.y, first.movementType, collisionSize,
+					minCellX - margin, minCellY - margin, maxCellX + margin, maxCellY + margin);
+			for (int i = 0; i < group.size(); i++) {
+				final PathfindingRequest request = group.get(i);
+				request.waypoints = this.flowField.trace(request.startX, request.startY, request.goalCopy);
+			}
+		}
+	}
+
+	private static final class PathfindingRequest implements CPathfindingResultHandler {
+		private final CUnit ignoreIntersectionsWithThisUnit;
+		private final CUnit ignoreIntersectionsWithThisSecondUnit;
+		private final float startX;
+		private final float startY;
+		private final Point2D.Float goal;
+		// the caller may move its goal around while we are searching
+		private final Point2D.Float goalCopy;
+		private final MovementType movementType;
+		private final float collisionSize;
+		private final boolean allowSmoothing;
+		private final CPathfindingResultHandler queueItem;
+		private final boolean allowSharing;
+		private List<Point2D.Float> waypoints = Collections.emptyList();
+		private boolean cancelled;
+		private long cacheKey = CPathfindingCache.NOT_CACHEABLE;
+		// the request whose search we use instead of our own
+		private PathfindingRequest leader;
+		// route that requests sharing with this one should use, or null
+		private List<Point2D.Float> sharedWaypoints;
+		// set on the first request of a flow field group, which builds the field
+		private List<PathfindingRequest> flowFieldGroup;
+		private boolean followsFlowField;
+
+		private PathfindingRequest(final CUnit ignoreIntersectionsWithThisUnit,
+				final CUnit ignoreIntersectionsWithThisSecondUnit, final float startX, final float startY,
+				final Point2D.Float goal, final MovementType movementType, final float collisionSize,
+				final boolean allowSmoothing, final CPathfindingResultHandler queueItem, final boolean allowSharing) {
+			this.ignoreIntersectionsWithThisUnit = ignoreIntersectionsWithThisUnit;
+			this.ignoreIntersectionsWithThisSecondUnit = ignoreIntersectionsWithThisSecondUnit;
+			this.startX = startX;
+			this.startY = startY;
+			this.goal = goal;
+			this.goalCopy = new Point2D.Float(goal.x, goal.y);
+			this.movementType = movementType;
+			this.collisionSize = collisionSize;
+			this.allowSmoothing = allowSmoothing;
+			this.queueItem = queueItem;
+			this.allowSharing = allowSharing;
+		}
+
+		private PathfindingRequest withoutSharing() {
+			return new PathfindingRequest(this.ignoreIntersectionsWithThisUnit,
+					this.ignoreIntersectionsWithThisSecondUnit, this.startX, this.startY, this.goal, this.movementType,
+					this.collisionSize, this.allowSmoothing, this.queueItem, false);
+		}
+
+		@Override
+		public void pathFound(final List<Point2D.Float> waypoints, final CSimulation simulation) {
+			this.waypoints = waypoints;
+		}
+
+		private List<Point2D.Float> getWaypoints() {
+			final int last = this.waypoints.size() - 1;
+			if ((last >= 0) && (this.waypoints.get(last) == this.goalCopy)) {
+				// the single threaded pathfinder used to end the path on the caller's own goal
+				// point, which some callers keep moving, so keep doing that
+				this.waypoints.set(last, this.goal);
+			}
+			return this.waypoints;
+		}
+	}
+}
@@ -10,6 +10,9 @@ public abstract class CTimer {
 	private float remainingTimeAfterPause;
 	private boolean running = false;
 	private boolean repeats;
+	// place and scheduling order in the CTimerQueue of the simulation
+	int queueIndex = CTimerQueue.NOT_QUEUED;
+	long queueSequence;
 
 	public void setTimeoutTime(final float timeoutTime) {
 		this.timeoutTime = timeoutTime;
@@ -76,6 +79,11 @@ public abstract class CTimer {
 		return this.engineFireTick;
 	}
 
+	void shiftTicks(final int ticks) {
+		this.engineFireTick += ticks;
+		this.scheduleTick += ticks;
+	}
+
 	public abstract void onFire();
 
 	public void fire(final CSimulation simulation) {
@@ -0,0 +1,132 @@
+package com.etheller.warsmash.viewer5.handlers.w3x.simulation.timers;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of the running timers, ordered by the tick they fire on and
+ * then by the order they were scheduled in, so that timers firing on the same
+ * tick always fire in the same order for every player. Each timer remembers its
+ * place in the heap, so scheduling and cancelling are both O(log n).
+ */
+public final class CTimerQueue {
+	static final int NOT_QUEUED = -1;
+
+	private CTimer[] heap = new CTimer[16];
+	private int size;
+	private long nextSequence;
+
+	/**
+	 * Schedules the timer for its engine fire tick, first cancelling it if it was
+	 * already scheduled.
+	 */
+	public void add(final CTimer timer) {
+		if (timer.queueIndex != NOT_QUEUED) {
+			remove(timer);
+		}
+		if (this.size == this.heap.length) {
+			this.heap = Arrays.copyOf(this.heap, this.size * 2);
+		}
+		timer.queueSequence = this.nextSequence++;
+		final int index = this.size++;
+		this.heap[index] = timer;
+		timer.queueIndex = index;
+		siftUp(index);
+	}
+
+	public boolean remove(final CTimer timer) {
+		final int index = timer.queueIndex;
+		if ((index == NOT_QUEUED) || (index >= this.size) || (this.heap[index] != timer)) {
+			return false;
+		}
+		final int last = --this.size;
+		timer.queueIndex = NOT_QUEUED;
+		if (index != last) {
+			final CTimer lastTimer = this.heap[last];
+			this.heap[index] = lastTimer;
+			lastTimer.queueIndex = index;
+			this.heap[last] = null;
+			siftDown(index);
+			if (this.heap[index] == lastTimer) {
+				siftUp(index);
+			}
+		}
+		else {
+			this.heap[last] = null;
+		}
+		return true;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public CTimer peek() {
+		return this.size == 0 ? null : this.heap[0];
+	}
+
+	/**
+	 * Moves every timer by the same number of ticks, which keeps their order.
+	 */
+	public void shiftTicks(final int ticks) {
+		for (int i = 0; i < this.size; i++) {
+			this.heap[i].shiftTicks(ticks);
+		}
+	}
+
+	public CTimer poll() {
+		if (this.size == 0) {
+			return null;
+		}
+		final CTimer first = this.heap[0];
+		remove(first);
+		return first;
+	}
+
+	private void siftUp(int index) {
+		final CTimer timer = this.heap[index];
+		while (index > 0) {
+			final int parent = (index - 1) >>> 1;
+			final CTimer parentTimer = this.heap[parent];
+			if (!firesBefore(timer, parentTimer)) {
+				break;
+			}
+			this.heap[index] = parentTimer;
+			parentTimer.queueIndex = index;
+			index = parent;
+		}
+		this.heap[index] = timer;
+		timer.queueIndex = index;
+	}
+
+	private void siftDown(int index) {
+		final CTimer timer = this.heap[index];
+		final int half = this.size >>> 1;
+		while (index < half) {
+			int child = (index << 1) + 1;
+			final int right = child + 1;
+			if ((right < this.size) && firesBefore(this.heap[right], this.heap[child])) {
+				child = right;
+			}
+			final CTimer childTimer = this.heap[child];
+			if (!firesBefore(childTimer, timer)) {
+				break;
+			}
+			this.heap[index] = childTimer;
+			childTimer.queueIndex = index;
+			index = child;
+		}
+		this.heap[index] = timer;
+		timer.queueIndex = index;
+	}
+
+	private static boolean firesBefore(final CTimer a, final CTimer b) {
+		if (a.getEngineFireTick() != b.getEngineFireTick()) {
+			return a.getEngineFireTick() < b.getEngineFireTick();
+		}
+		return a.queueSequence < b.queueSequence;
+	}
+}
@@ -287,6 +287,9 @@ public class MeleeUI implements CUnitStateListener, CommandButtonListener, Comma
 	private SimpleFrame smashArmorIconWrapper;
 	private final RallyPositioningVisitor rallyPositioningVisitor;
 	private final CPlayer localPlayer;
+	// this UI as a listener, with the calls passed over from the simulation thread
+	private final CUnitStateListener unitStateListener;
+	private final CPlayerStateListener playerStateListener;
 	private MeleeUIAbilityActivationReceiver meleeUIAbilityActivationReceiver;
 	private MdxModel waypointModel;
 	private final List<MdxComplexInstance> waypointModelInstances = new ArrayList<>();
@@ -351,7 +354,9 @@ public class MeleeUI implements CUnitStateListener, CommandButtonListener, Comma
 		this.rallyPositioningVisitor = new RallyPositioningVisitor();
 		this.cursorTargetSetupVisitor = new CursorTargetSetupVisitor();
 
-		this.localPlayer.addStateListener(this);
+		this.unitStateListener = war3MapViewer.getSimulationThread().forwardUnitStateListener(this);
+		this.playerStateListener = war3MapViewer.getSimulationThread().forwardPlayerStateListener(this);
+		this.localPlayer.addStateListener(this.playerStateListener);
 
 		this.itemCommandCardCommandListener = new ItemCommandCardCommandListener();
 	}
@@ -1338,6 +1343,13 @@ public class MeleeUI implements CUnitStateListener, CommandButtonListener, Comma
 		glyphLayout.setText(font, fpsString);
 		font.draw(batch, fpsString, (this.uiViewport.getMinWorldWidth() - glyphLayout.width) / 2,
 				1100 * this.heightRatioCorrection);
+		if (WarsmashConstants.SHOW_SIMULATION_PROFILER) {
+			float profilerY = (1100 * this.heightRatioCorrection) - font.getLineHeight();
+			for (final String line : this.war3MapViewer.simulation.getProfiler().getSummaryLines(5)) {
+				font.draw(batch, line, 16, profilerY);
+				profilerY -= font.getLineHeight();
+			}
+		}
 		this.rootFrame.render(batch, this.rootFrame.getFont20(), glyphLayout);
 		if (this.selectedUnit != null) {
 			this.rootFrame.getFont20().setColor(Color.WHITE);
@@ -1857,7 +1869,7 @@ public class MeleeUI implements CUnitStateListener, CommandButtonListener, Comma
 			unit = null;
 		}
 		if (this.selectedUnit != null) {
-			this.selectedUnit.getSimulationUnit().removeStateListener(this);
+			this.selectedUnit.getSimulationUnit().removeStateListener(this.unitStateListener);
 		}
 		this.portrait.setSelectedUnit(unit);
 		this.selectedUnit = unit;
@@ -1897,7 +1909,7 @@ public class MeleeUI implements CUnitStateListener, CommandButtonListener, Comma
 			repositionWaypointFlags(null);
 		}
 		else {
-			unit.getSimulationUnit().addStateListener(this);
+			unit.getSimulationUnit().addStateListener(this.unitStateListener);
 			reloadSelectedUnitUI(unit);
 		}
 	}
@@ -2565,6 +2577,12 @@ public class MeleeUI implements CUnitStateListener, CommandButtonListener, Comma
 			if (keycode == Input.Keys.X) {
 				War3MapViewer.DEBUG_DEPTH = 0;
 			}
+			if (keycode == Input.Keys.P) {
+				WarsmashConstants.SHOW_SIMULATION_PROFILER = !WarsmashConstants.SHOW_SIMULATION_PROFILER;
+				if (WarsmashConstants.SHOW_SIMULATION_PROFILER) {
+					WarsmashConstants.ENABLE_SIMULATION_PROFILER = true;
+				}
+			}
 		}
 		final String keyString = Input.Keys.toString(keycode);
 		final char c = keyString.length() == 1 ? keyString.charAt(0) : ' ';
@@ -2939,7 +2957,8 @@ public class MeleeUI implements CUnitStateListener, CommandButtonListener, Comma
 					for (final RenderUnit renderUnit : selectedUnits) {
 						final MultiSelectUnitStateListener multiSelectUnitStateListener = new MultiSelectUnitStateListener(
 								renderUnit);
-						renderUnit.getSimulationUnit().addStateListener(multiSelectUnitStateListener);
+						renderUnit.getSimulationUnit()
+								.addStateListener(multiSelectUnitStateListener.forwardedListener);
 						this.multiSelectUnitStateListeners.add(multiSelectUnitStateListener);
 					}
 				}
@@ -3264,13 +3283,15 @@ public class MeleeUI implements CUnitStateListener, CommandButtonListener, Comma
 
 	private final class MultiSelectUnitStateListener implements CUnitStateListener {
 		private final RenderUnit sourceUnit;
+		private final CUnitStateListener forwardedListener;
 
 		public MultiSelectUnitStateListener(final RenderUnit sourceUnit) {
 			this.sourceUnit = sourceUnit;
+			this.forwardedListener = MeleeUI.this.war3MapViewer.getSimulationThread().forwardUnitStateListener(this);
 		}
 
 		public void dispose() {
-			this.sourceUnit.getSimulationUnit().removeStateListener(this);
+			this.sourceUnit.getSimulationUnit().removeStateListener(this.forwardedListener);
 		}
 
 		@Override
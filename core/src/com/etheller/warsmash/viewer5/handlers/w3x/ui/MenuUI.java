@@ -18,6 +18,7 @@ import com.etheller.warsmash.WarsmashGdxMapScreen;
 import com.etheller.warsmash.WarsmashGdxMenuScreen;
 import com.etheller.warsmash.WarsmashGdxMultiScreenGame;
 import com.etheller.warsmash.datasources.DataSource;
+import com.etheller.warsmash.datasources.DataSourceConfig;
 import com.etheller.warsmash.networking.GameTurnManager;
 import com.etheller.warsmash.networking.MultiplayerHack;
 import com.etheller.warsmash.networking.WarsmashClient;
@@ -649,7 +650,7 @@ public class MenuUI {
 		this.loadingFrame.setVisible(true);
 		this.loadingBar.setVisible(true);
 		this.loadingCustomPanel.setVisible(true);
-		final DataSource codebase = WarsmashGdxMapScreen.parseDataSources(this.warsmashIni);
+		final DataSource codebase = DataSourceConfig.parseDataSources(this.warsmashIni);
 		final GameTurnManager turnManager;
 		if (MultiplayerHack.MULTIPLAYER_HACK_SERVER_ADDR != null) {
 			turnManager = GameTurnManager.PAUSED;
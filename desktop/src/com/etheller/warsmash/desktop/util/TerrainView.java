@@ -6,8 +6,8 @@ import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.WindowConstants;
 
-import com.etheller.warsmash.WarsmashGdxMapScreen;
 import com.etheller.warsmash.datasources.DataSource;
+import com.etheller.warsmash.datasources.DataSourceConfig;
 import com.etheller.warsmash.desktop.DesktopLauncher;
 import com.etheller.warsmash.parsers.w3x.War3Map;
 import com.etheller.warsmash.parsers.w3x.w3e.War3MapW3e;
@@ -16,7 +16,7 @@ import com.etheller.warsmash.units.DataTable;
 public class TerrainView {
 	public static void main(final String[] args) {
 		final DataTable warsmashIni = DesktopLauncher.loadWarsmashIni();
-		final DataSource dataSources = WarsmashGdxMapScreen.parseDataSources(warsmashIni);
+		final DataSource dataSources = DataSourceConfig.parseDataSources(warsmashIni);
 		final War3Map war3Map = new War3Map(dataSources, warsmashIni.get("Map").getField("FilePath"));
 		try {
 			final War3MapW3e environmentFile = war3Map.readEnvironment();